@@ -0,0 +1,67 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free bounded queue for many producers and a single consumer. Producers claim a
+ * slot by advancing the tail with a CAS and then publish the element into it; the
+ * consumer sees a slot as filled once the element is visible, so a producer that has
+ * claimed but not yet published holds up the consumer only until it finishes.
+ *
+ * <p>{@link #poll()} must only be called from one thread at a time.
+ */
+class BoundedMpscQueue<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    BoundedMpscQueue(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns false without waiting if the queue is full.
+     */
+    boolean offer(T element) {
+        while (true) {
+            long position = tail.get();
+            if (position - head.get() > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                slots.lazySet((int) position & mask, element);
+                return true;
+            }
+        }
+    }
+
+    T poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        T element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * Approximate while producers are active.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+}
@@ -0,0 +1,83 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of equally sized receive buffers. When the pool is empty, or a request
+ * is larger than the pooled size, an unpooled buffer is allocated instead so the reader
+ * never blocks on a slow consumer; those cases are counted as misses.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int bufferCount;
+    private final ArrayBlockingQueue<PooledBuffer> free;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+
+    public BufferPool(int bufferCount, int bufferSize) {
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new PooledBuffer(this, new byte[bufferSize]));
+        }
+    }
+
+    public PooledBuffer acquire(int size) {
+        PooledBuffer buffer = null;
+        if (size <= bufferSize) {
+            buffer = free.poll();
+            if (buffer == null) {
+                exhaustions.incrementAndGet();
+            }
+        }
+
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = new PooledBuffer(null, new byte[size]);
+        } else {
+            hits.incrementAndGet();
+        }
+        buffer.claim();
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public int getOutstanding() {
+        return bufferCount - free.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + hits.get()
+                + ", misses=" + misses.get()
+                + ", exhaustions=" + exhaustions.get()
+                + ", outstanding=" + getOutstanding() + "/" + bufferCount + "}";
+    }
+}
@@ -0,0 +1,127 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Bounded in-process byte pipe with socket-like close semantics: once closed, the
+ * reader drains what is buffered and then sees end of stream, and writers fail.
+ */
+public class BytePipe {
+    private final byte[] ring;
+    private int readIndex;
+    private int size;
+    private boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return BytePipe.this.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BytePipe.this) {
+                return size;
+            }
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            BytePipe.this.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    public BytePipe(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (size == 0) {
+            if (closed) {
+                return -1;
+            }
+            waitInterruptibly();
+        }
+
+        int count = Math.min(length, size);
+        int first = Math.min(count, ring.length - readIndex);
+        System.arraycopy(ring, readIndex, buffer, offset, first);
+        System.arraycopy(ring, 0, buffer, offset + first, count - first);
+        readIndex = (readIndex + count) % ring.length;
+        size -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (size == ring.length && !closed) {
+                waitInterruptibly();
+            }
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+
+            int writeIndex = (readIndex + size) % ring.length;
+            int count = Math.min(length, ring.length - size);
+            int first = Math.min(count, ring.length - writeIndex);
+            System.arraycopy(buffer, offset, ring, writeIndex, first);
+            System.arraycopy(buffer, offset + first, ring, 0, count - first);
+            size += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+    }
+
+    private void waitInterruptibly() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.toString());
+        }
+    }
+}
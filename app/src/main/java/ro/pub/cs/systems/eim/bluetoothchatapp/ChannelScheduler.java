@@ -0,0 +1,214 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * How a session's writer shares the link between its three channels: control frames
+ * (acknowledgements, pongs, typing indicators), interactive chat messages and bulk
+ * frames (file chunks, relayed messages).
+ *
+ * <p>Control frames go first, always. Between the other two the writer alternates by
+ * weight: while both have data it sends {@code interactiveWeight} interactive units for
+ * each bulk unit, and with {@link #STRICT} interactive traffic always wins. A unit is one
+ * frame, or one piece of a frame larger than the channel's maximum frame size; such
+ * frames are sent as {@link FrameProtocol#TYPE_FRAGMENT} pieces to peers that can
+ * reassemble them. The maximum frame size therefore bounds how long a control frame
+ * waits behind the other channels to the one unit already being written, e.g. 16 ms
+ * for 4 KB frames on a 250 KB/s RFCOMM link.
+ * <pre>
+ * FRAGMENT  flags: channel &lt;&lt; 8 | FLAG_LAST_FRAGMENT on the last piece
+ *           payload: the next bytes of the whole frame, header included
+ * </pre>
+ */
+public class ChannelScheduler {
+    public enum Channel {
+        CONTROL,
+        INTERACTIVE,
+        BULK
+    }
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 4 * 1024;
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+    public static final int STRICT = Integer.MAX_VALUE;
+    static final int MIN_FRAME_SIZE = 256;
+
+    private final int interactiveMaxFrame;
+    private final int bulkMaxFrame;
+    private final int interactiveWeight;
+
+    public ChannelScheduler() {
+        this(DEFAULT_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE, DEFAULT_INTERACTIVE_WEIGHT);
+    }
+
+    /**
+     * @param interactiveWeight interactive units sent per bulk unit when both channels
+     *                          are busy, or {@link #STRICT}
+     */
+    public ChannelScheduler(int interactiveMaxFrame, int bulkMaxFrame, int interactiveWeight) {
+        if (interactiveMaxFrame < MIN_FRAME_SIZE || bulkMaxFrame < MIN_FRAME_SIZE || interactiveWeight < 1) {
+            throw new IllegalArgumentException("interactiveMaxFrame " + interactiveMaxFrame + ", bulkMaxFrame "
+                    + bulkMaxFrame + ", interactiveWeight " + interactiveWeight);
+        }
+        this.interactiveMaxFrame = interactiveMaxFrame;
+        this.bulkMaxFrame = bulkMaxFrame;
+        this.interactiveWeight = interactiveWeight;
+    }
+
+    /**
+     * Largest frame, header included, sent in one piece on {@code channel}. Control
+     * frames are never split.
+     */
+    public int getMaxFrameSize(Channel channel) {
+        switch (channel) {
+            case INTERACTIVE:
+                return interactiveMaxFrame;
+            case BULK:
+                return bulkMaxFrame;
+            default:
+                return FrameProtocol.HEADER_SIZE + FrameProtocol.MAX_PAYLOAD_LENGTH;
+        }
+    }
+
+    public int getInteractiveWeight() {
+        return interactiveWeight;
+    }
+
+    Turns newTurns() {
+        return new Turns(interactiveWeight);
+    }
+
+    /**
+     * The writer's place in the interactive/bulk rotation.
+     */
+    static final class Turns {
+        private final int weight;
+        private int interactiveInARow;
+
+        Turns(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * The channel to send the next unit from, or null if neither has anything.
+         */
+        Channel next(boolean interactiveWaiting, boolean bulkWaiting) {
+            if (interactiveWaiting && (!bulkWaiting || interactiveInARow < weight)) {
+                interactiveInARow++;
+                return Channel.INTERACTIVE;
+            }
+            interactiveInARow = 0;
+            return bulkWaiting ? Channel.BULK : null;
+        }
+    }
+
+    /**
+     * A frame going out in pieces. The frame's bytes must not change until it is done.
+     */
+    static final class Fragments {
+        private final byte[] frame;
+        private final int end;
+        private final int flags;
+        private int position;
+
+        Fragments(byte[] frame, int offset, int length, Channel channel) {
+            this.frame = frame;
+            this.position = offset;
+            this.end = offset + length;
+            this.flags = channel.ordinal() << 8;
+        }
+
+        /**
+         * Writes the next piece, at most {@code maxFrameSize} bytes with its header, and
+         * returns the bytes written.
+         */
+        int writeNext(OutputStream out, byte[] header, int maxFrameSize) throws IOException {
+            int length = Math.min(end - position, maxFrameSize - FrameProtocol.HEADER_SIZE);
+            boolean last = position + length == end;
+            FrameProtocol.writeHeader(header, 0, FrameProtocol.TYPE_FRAGMENT,
+                    flags | (last ? FrameProtocol.FLAG_LAST_FRAGMENT : 0), length);
+            out.write(header);
+            out.write(frame, position, length);
+            out.flush();
+            position += length;
+            return FrameProtocol.HEADER_SIZE + length;
+        }
+
+        boolean isDone() {
+            return position == end;
+        }
+    }
+
+    /**
+     * Puts fragmented frames back together, one in progress per channel.
+     */
+    static final class Reassembly {
+        private static final int MAX_RETAINED = 64 * 1024;
+
+        private final byte[][] buffers = new byte[Channel.values().length][];
+        private final int[] lengths = new int[Channel.values().length];
+        private byte[] completed;
+        private int completedLength;
+
+        /**
+         * Adds a piece. Returns true when it completes a frame, which is then available
+         * from {@link #frame()} until the next call.
+         */
+        boolean add(int flags, byte[] payload, int offset, int length) throws ProtocolException {
+            int channel = flags >>> 8;
+            if (channel >= buffers.length) {
+                throw new ProtocolException("Fragment for unknown channel " + channel);
+            }
+            int total = lengths[channel] + length;
+            if (total > FrameProtocol.HEADER_SIZE + FrameProtocol.MAX_PAYLOAD_LENGTH) {
+                throw new ProtocolException("Fragmented frame too large: " + total);
+            }
+            byte[] buffer = buffers[channel];
+            if (buffer == null || buffer.length < total) {
+                byte[] grown = new byte[Math.max(total, buffer == null ? 0 : Math.min(2 * buffer.length,
+                        FrameProtocol.HEADER_SIZE + FrameProtocol.MAX_PAYLOAD_LENGTH))];
+                if (buffer != null) {
+                    System.arraycopy(buffer, 0, grown, 0, lengths[channel]);
+                }
+                buffers[channel] = buffer = grown;
+            }
+            System.arraycopy(payload, offset, buffer, lengths[channel], length);
+            lengths[channel] = total;
+            if ((flags & FrameProtocol.FLAG_LAST_FRAGMENT) == 0) {
+                return false;
+            }
+
+            lengths[channel] = 0;
+            if (total < FrameProtocol.HEADER_SIZE || buffer[0] != FrameProtocol.VERSION
+                    || readLength(buffer) != total - FrameProtocol.HEADER_SIZE) {
+                throw new ProtocolException("Fragments do not add up to a frame");
+            }
+            if ((buffer[1] & 0xff) == FrameProtocol.TYPE_FRAGMENT) {
+                throw new ProtocolException("Nested fragment");
+            }
+            completed = buffer;
+            completedLength = total;
+            if (buffer.length > MAX_RETAINED) {
+                buffers[channel] = null;
+            }
+            return true;
+        }
+
+        /**
+         * The completed frame, header included, at offset 0.
+         */
+        byte[] frame() {
+            return completed;
+        }
+
+        int frameLength() {
+            return completedLength;
+        }
+
+        private static int readLength(byte[] frame) {
+            return ((frame[4] & 0xff) << 24) | ((frame[5] & 0xff) << 16) | ((frame[6] & 0xff) << 8)
+                    | (frame[7] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Carries chat events from the {@link ChatService} to whichever activity's
+ * {@link UiEventBus} is attached, and keeps them while none is, so an activity recreated
+ * after a rotation picks up where the last one stopped.
+ *
+ * <p>Messages are appended to their peer's {@link ChatLog} as they arrive, attached or
+ * not, and their events carry the log offset. While detached at most {@code capacity}
+ * events are kept: an event that only reports the latest value (connection state, link
+ * quality, transfer progress) replaces the one it supersedes, and past that the oldest
+ * event is dropped. A dropped message is still in the log and comes back with the
+ * history.
+ */
+public class ChatEventRelay extends UiEventPublisher {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final ChatLogStore store;
+    private final ChatSearchIndex searchIndex;
+    private final int capacity;
+    private final ArrayDeque<UiEvent> missed = new ArrayDeque<>();
+    private UiEventBus target;
+    private long replayed;
+    private long dropped;
+    private long sessionsOpened;
+
+    /**
+     * @param searchIndex told about every logged message; may be null
+     */
+    public ChatEventRelay(ChatLogStore store, ChatSearchIndex searchIndex, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.store = store;
+        this.searchIndex = searchIndex;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Replays the events kept since the last detach into {@code bus}, oldest first, and
+     * then forwards new events to it. The bus needs room for {@code capacity} events, as
+     * the replay runs on the caller's thread, usually the UI thread, and must not block.
+     * Returns the number of events replayed.
+     */
+    public synchronized int attach(UiEventBus bus) {
+        int count = missed.size();
+        UiEvent event;
+        while ((event = missed.poll()) != null) {
+            bus.publish(event);
+        }
+        target = bus;
+        replayed += count;
+        return count;
+    }
+
+    /**
+     * Stops forwarding to {@code bus} if it is attached. An event already on its way may
+     * still reach it.
+     */
+    public synchronized void detach(UiEventBus bus) {
+        if (target == bus) {
+            target = null;
+        }
+    }
+
+    public synchronized boolean isAttached() {
+        return target != null;
+    }
+
+    @Override
+    public void publish(UiEvent event) {
+        UiEventBus bus;
+        synchronized (this) {
+            bus = target;
+            if (bus == null) {
+                keep(event);
+                return;
+            }
+        }
+        bus.publish(event);
+    }
+
+    private void keep(UiEvent event) {
+        if (event.obj instanceof PooledBuffer && ((PooledBuffer) event.obj).isPooled()) {
+            // Don't hold the receive pool's buffers while nobody is reading them.
+            PooledBuffer pooled = (PooledBuffer) event.obj;
+            PooledBuffer copy = new PooledBuffer(null, Arrays.copyOf(pooled.data(), pooled.length()));
+            copy.claim();
+            copy.setLength(pooled.length());
+            pooled.release();
+            event = new UiEvent(event.what, event.arg1, event.arg2, copy, event.text, event.timestamp, event.offset);
+        }
+        for (Iterator<UiEvent> iterator = missed.iterator(); iterator.hasNext(); ) {
+            if (supersedes(event, iterator.next())) {
+                iterator.remove();
+                break;
+            }
+        }
+        if (missed.size() == capacity) {
+            UiEvent oldest = missed.poll();
+            if (oldest.obj instanceof PooledBuffer) {
+                ((PooledBuffer) oldest.obj).release();
+            }
+            dropped++;
+        }
+        missed.add(event);
+    }
+
+    private static boolean supersedes(UiEvent newer, UiEvent older) {
+        if (newer.what != older.what) {
+            return false;
+        }
+        switch (newer.what) {
+            case Constants.MESSAGE_STATE_CHANGED:
+                return true;
+            case Constants.MESSAGE_LINK_QUALITY:
+                return newer.arg1 == older.arg1;
+            case Constants.MESSAGE_FILE_PROGRESS:
+                return newer.obj == older.obj;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void onSessionConnected(PeerSession session) {
+        synchronized (this) {
+            sessionsOpened++;
+        }
+        super.onSessionConnected(session);
+    }
+
+    @Override
+    public void onMessageRead(PeerSession session, PooledBuffer message) {
+        long timestamp = System.currentTimeMillis();
+        long offset = log(session, timestamp, false, message.data(), message.length());
+        publish(new UiEvent(Constants.MESSAGE_READ, message.length(), session.getId(), message, null, timestamp,
+                offset));
+    }
+
+    @Override
+    public void onMessageWritten(PeerSession session, byte[] message) {
+        long timestamp = System.currentTimeMillis();
+        long offset = log(session, timestamp, true, message, message.length);
+        publish(new UiEvent(Constants.MESSAGE_WRITE, -1, session.getId(), message, null, timestamp, offset));
+    }
+
+    private long log(PeerSession session, long timestamp, boolean outgoing, byte[] payload, int length) {
+        String address = session.getAddress();
+        if (address == null) {
+            return -1;
+        }
+        try {
+            long offset = store.get(address).append(timestamp, outgoing, payload, 0, length);
+            if (searchIndex != null) {
+                searchIndex.update(address);
+            }
+            return offset;
+        } catch (IOException e) {
+            Log.e("ChatEventRelay->Log", e.toString());
+            return -1;
+        }
+    }
+
+    public synchronized long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Events lost because more than {@code capacity} came in while detached.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getSessionsOpened() {
+        return sessionsOpened;
+    }
+}
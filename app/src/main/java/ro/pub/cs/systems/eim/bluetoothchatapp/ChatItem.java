@@ -0,0 +1,51 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * One line of the conversation view. {@code address} and {@code offset} locate the
+ * message in its peer's {@link ChatLog}; the offset is -1 for messages that were not logged.
+ */
+public final class ChatItem {
+    private final String address;
+    private final long offset;
+    private final long timestamp;
+    private final boolean outgoing;
+    private final String sender;
+    private final String text;
+
+    public ChatItem(String address, long offset, long timestamp, boolean outgoing, String sender, String text) {
+        this.address = address;
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.outgoing = outgoing;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    boolean isLogged() {
+        return address != null && offset >= 0;
+    }
+}
@@ -0,0 +1,52 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * Receives events from {@link ChatUtils}. Callbacks run on the chat I/O threads.
+ * A received message buffer is owned by the listener, which must release it.
+ */
+public interface ChatListener {
+    void onStateChanged(int state);
+
+    void onSessionConnected(PeerSession session);
+
+    void onSessionClosed(PeerSession session);
+
+    void onMessageRead(PeerSession session, PooledBuffer message);
+
+    void onMessageWritten(PeerSession session, byte[] message);
+
+    void onToast(String text);
+
+    default void onTransferProgress(FileTransfer transfer) {
+    }
+
+    /**
+     * A relayed message from {@code origin}, the node id of the sender, that reached us
+     * through {@code from} after {@code hops} forwards. By default it is handled like a
+     * message sent directly by {@code from}.
+     */
+    default void onRelayedMessage(PeerSession from, long origin, int hops, PooledBuffer message) {
+        onMessageRead(from, message);
+    }
+
+    /**
+     * A {@link TypedMessage} of a type this build knows. The view and its body are only
+     * valid during the call; copy out anything kept.
+     */
+    default void onTypedMessage(PeerSession session, TypedMessage message) {
+    }
+
+    /**
+     * The hellos are exchanged and the session is about to carry chat. From here on
+     * {@link PeerSession#isEncrypted()} and {@link PeerSession#getVerificationCode()} do not
+     * change; a session that is not encrypted talks in plaintext, which the user should see.
+     */
+    default void onHandshakeComplete(PeerSession session) {
+    }
+
+    /**
+     * A ping was answered or lost; {@code quality} is the session's current estimate.
+     */
+    default void onLinkQuality(PeerSession session, LinkQualityEstimator.Snapshot quality) {
+    }
+}
@@ -0,0 +1,550 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only message log for one peer.
+ * <p>
+ * Records live in segment files named after the offset of their first record. Each
+ * segment has a sparse index mapping a record offset to its file position roughly every
+ * {@code indexIntervalBytes}, so a read can seek close to any offset and scan forward a
+ * few kilobytes at most. Appends only copy into a write buffer; {@link #commit()} writes
+ * the buffer out and forces it to disk, so every append made since the previous commit
+ * shares one fsync.
+ * <pre>
+ * record: | payload length u32 | crc32 u32 | timestamp i64 | flags u8 | payload |
+ * index:  | offset - base u32 | position u32 |
+ * </pre>
+ */
+public class ChatLog implements Closeable {
+    static final int RECORD_HEADER_SIZE = 17;
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final int FLAG_OUTGOING = 1;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final int DEFAULT_INDEX_INTERVAL_BYTES = 4096;
+    public static final int DEFAULT_WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final int indexIntervalBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 256);
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final Object commitLock = new Object();
+
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty;
+    private boolean closed;
+
+    public ChatLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_INTERVAL_BYTES, DEFAULT_WRITE_BUFFER_BYTES);
+    }
+
+    public ChatLog(File directory, long segmentBytes, int indexIntervalBytes, int writeBufferBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        writeBuffer = ByteBuffer.allocate(writeBufferBytes);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+    }
+
+    public synchronized long getNextOffset() {
+        return nextOffset;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long append(long timestamp, boolean outgoing, byte[] payload) throws IOException {
+        return append(timestamp, outgoing, payload, 0, payload.length);
+    }
+
+    /**
+     * Adds a record and returns its offset. The record is readable immediately and
+     * durable after the next {@link #commit()}.
+     */
+    public synchronized long append(long timestamp, boolean outgoing, byte[] payload, int offset, int length)
+            throws IOException {
+        ensureOpen();
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (active.size > 0 && active.size + recordSize > segmentBytes) {
+            roll();
+        }
+
+        long position = active.size;
+        if (position - active.lastIndexedPosition >= indexIntervalBytes) {
+            addIndexEntry(active, nextOffset, position);
+        }
+
+        crc.reset();
+        crc.update(payload, offset, length);
+        if (recordSize > writeBuffer.remaining()) {
+            drainWriteBuffer();
+        }
+        if (recordSize > writeBuffer.capacity()) {
+            headerBuffer.clear();
+            putHeader(headerBuffer, length, timestamp, outgoing);
+            headerBuffer.flip();
+            writeFully(active.channel, headerBuffer, active.flushedSize);
+            writeFully(active.channel, ByteBuffer.wrap(payload, offset, length), active.flushedSize + RECORD_HEADER_SIZE);
+            active.flushedSize += recordSize;
+        } else {
+            putHeader(writeBuffer, length, timestamp, outgoing);
+            writeBuffer.put(payload, offset, length);
+        }
+
+        active.size += recordSize;
+        dirty = true;
+        return nextOffset++;
+    }
+
+    /**
+     * Writes out everything appended so far and forces it to disk.
+     */
+    public void commit() throws IOException {
+        synchronized (commitLock) {
+            FileChannel logChannel;
+            FileChannel indexChannel;
+            synchronized (this) {
+                if (!dirty || closed) {
+                    return;
+                }
+                drainWriteBuffer();
+                drainIndexBuffer();
+                dirty = false;
+                logChannel = active.channel;
+                indexChannel = active.indexChannel;
+            }
+            try {
+                logChannel.force(false);
+                indexChannel.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was rolled or the log closed meanwhile, both of which force first.
+            }
+        }
+    }
+
+    public List<ChatLogRecord> readLast(int count) throws IOException {
+        long end;
+        synchronized (this) {
+            end = nextOffset;
+        }
+        return read(Math.max(0, end - count), count);
+    }
+
+    /**
+     * Reads up to {@code maxRecords} records starting at {@code fromOffset}, oldest first.
+     */
+    public List<ChatLogRecord> read(long fromOffset, int maxRecords) throws IOException {
+        List<Segment> toRead = new ArrayList<>();
+        List<Long> limits = new ArrayList<>();
+        long scanOffset;
+        long scanPosition;
+        long endOffset;
+        synchronized (this) {
+            ensureOpen();
+            endOffset = nextOffset;
+            if (fromOffset >= endOffset || maxRecords <= 0) {
+                return new ArrayList<>();
+            }
+            drainWriteBuffer();
+            Map.Entry<Long, Segment> first = segments.floorEntry(Math.max(fromOffset, segments.firstKey()));
+            Segment segment = first.getValue();
+            long[] floor = segment.floor(fromOffset);
+            scanOffset = floor[0];
+            scanPosition = floor[1];
+            for (Segment s : segments.tailMap(first.getKey(), true).values()) {
+                toRead.add(s);
+                limits.add(s == active ? s.flushedSize : s.size);
+            }
+        }
+
+        List<ChatLogRecord> records = new ArrayList<>(Math.min(maxRecords, 1024));
+        long offset = scanOffset;
+        long position = scanPosition;
+        for (int i = 0; i < toRead.size() && records.size() < maxRecords && offset < endOffset; i++) {
+            Segment segment = toRead.get(i);
+            if (i > 0) {
+                offset = segment.baseOffset;
+                position = 0;
+            }
+            try (SegmentReader reader = new SegmentReader(segment.logFile, position, limits.get(i))) {
+                while (records.size() < maxRecords && offset < endOffset && reader.next()) {
+                    if (offset >= fromOffset) {
+                        records.add(new ChatLogRecord(offset, reader.timestamp, reader.outgoing, reader.payload()));
+                    }
+                    offset++;
+                }
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (commitLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                drainWriteBuffer();
+                drainIndexBuffer();
+                active.channel.force(false);
+                active.indexChannel.force(false);
+                active.closeChannels();
+                closed = true;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Log closed: " + directory);
+        }
+    }
+
+    private void putHeader(ByteBuffer buffer, int length, long timestamp, boolean outgoing) {
+        buffer.putInt(length);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(timestamp);
+        buffer.put((byte) (outgoing ? FLAG_OUTGOING : 0));
+    }
+
+    private void addIndexEntry(Segment segment, long offset, long position) throws IOException {
+        segment.addIndexEntry((int) (offset - segment.baseOffset), (int) position);
+        if (indexBuffer.remaining() < INDEX_ENTRY_SIZE) {
+            drainIndexBuffer();
+        }
+        indexBuffer.putInt((int) (offset - segment.baseOffset));
+        indexBuffer.putInt((int) position);
+    }
+
+    private void drainWriteBuffer() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        int bytes = writeBuffer.remaining();
+        writeFully(active.channel, writeBuffer, active.flushedSize);
+        active.flushedSize += bytes;
+        writeBuffer.clear();
+    }
+
+    private void drainIndexBuffer() throws IOException {
+        if (indexBuffer.position() == 0) {
+            return;
+        }
+        indexBuffer.flip();
+        int bytes = indexBuffer.remaining();
+        writeFully(active.indexChannel, indexBuffer, active.indexFlushedSize);
+        active.indexFlushedSize += bytes;
+        indexBuffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void roll() throws IOException {
+        drainWriteBuffer();
+        drainIndexBuffer();
+        active.channel.force(false);
+        active.indexChannel.force(false);
+        active.closeChannels();
+
+        active = new Segment(directory, nextOffset);
+        active.openForAppend(0, 0);
+        segments.put(active.baseOffset, active);
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                    Segment segment = new Segment(directory, base);
+                    segment.size = file.length();
+                    segment.loadIndex();
+                    segments.put(base, segment);
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            active = new Segment(directory, 0);
+            active.openForAppend(0, 0);
+            segments.put(0L, active);
+            nextOffset = 0;
+            return;
+        }
+
+        active = segments.lastEntry().getValue();
+        long offset;
+        long position;
+        List<long[]> rebuilt = new ArrayList<>();
+        while (true) {
+            long[] floor = active.lastIndexEntry();
+            offset = floor[0];
+            position = floor[1];
+            rebuilt.clear();
+            try (SegmentReader reader = new SegmentReader(active.logFile, position, active.size)) {
+                long lastIndexed = position;
+                while (reader.next() && reader.isValid(crc)) {
+                    long recordPosition = reader.position() - RECORD_HEADER_SIZE - reader.length;
+                    if (recordPosition - lastIndexed >= indexIntervalBytes) {
+                        rebuilt.add(new long[]{offset, recordPosition});
+                        lastIndexed = recordPosition;
+                    }
+                    position = reader.position();
+                    offset++;
+                }
+            }
+            if (offset > floor[0] || active.indexCount == 0) {
+                break;
+            }
+            // The indexed record itself is damaged, so the entry cannot be trusted either.
+            active.indexCount--;
+            active.lastIndexedPosition = active.indexCount == 0 ? 0 : active.indexPositions[active.indexCount - 1];
+        }
+
+        active.openForAppend(position, active.indexCount * (long) INDEX_ENTRY_SIZE);
+        for (long[] entry : rebuilt) {
+            addIndexEntry(active, entry[0], entry[1]);
+        }
+        dirty = !rebuilt.isEmpty();
+        nextOffset = offset;
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final File logFile;
+        final File indexFile;
+
+        int[] indexOffsets = new int[16];
+        int[] indexPositions = new int[16];
+        int indexCount;
+        long lastIndexedPosition;
+
+        long size;
+        long flushedSize;
+        long indexFlushedSize;
+        FileChannel channel;
+        FileChannel indexChannel;
+
+        Segment(File directory, long baseOffset) {
+            this.baseOffset = baseOffset;
+            String name = String.format(Locale.US, "%020d", baseOffset);
+            logFile = new File(directory, name + LOG_SUFFIX);
+            indexFile = new File(directory, name + INDEX_SUFFIX);
+        }
+
+        void addIndexEntry(int relativeOffset, int position) {
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = relativeOffset;
+            indexPositions[indexCount] = position;
+            indexCount++;
+            lastIndexedPosition = position;
+        }
+
+        /**
+         * Returns the offset and position of the last indexed record at or before
+         * {@code offset}, falling back to the start of the segment.
+         */
+        long[] floor(long offset) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (baseOffset + indexOffsets[mid] <= offset) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found < 0) {
+                return new long[]{baseOffset, 0};
+            }
+            return new long[]{baseOffset + indexOffsets[found], indexPositions[found]};
+        }
+
+        long[] lastIndexEntry() {
+            if (indexCount == 0) {
+                return new long[]{baseOffset, 0};
+            }
+            return new long[]{baseOffset + indexOffsets[indexCount - 1], indexPositions[indexCount - 1]};
+        }
+
+        void loadIndex() throws IOException {
+            if (!indexFile.exists()) {
+                return;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+                int entries = (int) (file.length() / INDEX_ENTRY_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+                FileChannel channel = file.getChannel();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Keep reading until the buffer is full.
+                }
+                buffer.flip();
+                int previousOffset = -1;
+                for (int i = 0; i < entries; i++) {
+                    int relativeOffset = buffer.getInt();
+                    int position = buffer.getInt();
+                    if (relativeOffset <= previousOffset || position < 0 || position >= size) {
+                        break;
+                    }
+                    addIndexEntry(relativeOffset, position);
+                    previousOffset = relativeOffset;
+                }
+            }
+        }
+
+        void openForAppend(long validSize, long validIndexSize) throws IOException {
+            channel = new RandomAccessFile(logFile, "rw").getChannel();
+            channel.truncate(validSize);
+            indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+            indexChannel.truncate(validIndexSize);
+            size = validSize;
+            flushedSize = validSize;
+            indexFlushedSize = validIndexSize;
+        }
+
+        void closeChannels() throws IOException {
+            channel.close();
+            indexChannel.close();
+        }
+    }
+
+    /**
+     * Sequential record reader over a segment file through a buffered channel.
+     */
+    private static final class SegmentReader implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long limit;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private long filePosition;
+        private long recordPosition;
+
+        int length;
+        int checksum;
+        long timestamp;
+        boolean outgoing;
+        private int payloadStart;
+
+        SegmentReader(File logFile, long position, long limit) throws IOException {
+            file = new RandomAccessFile(logFile, "r");
+            channel = file.getChannel();
+            this.limit = Math.min(limit, channel.size());
+            filePosition = position;
+            recordPosition = position;
+            buffer.flip();
+        }
+
+        /**
+         * Advances to the next record. Returns false at the end of the readable data or
+         * at a record that was only partly written.
+         */
+        boolean next() throws IOException {
+            buffer.position(Math.min(buffer.limit(), payloadStart + length));
+            payloadStart = buffer.position();
+            length = 0;
+            if (!fill(RECORD_HEADER_SIZE)) {
+                return false;
+            }
+            int recordLength = buffer.getInt();
+            if (recordLength < 0 || recordPosition + RECORD_HEADER_SIZE + recordLength > limit) {
+                return false;
+            }
+            checksum = buffer.getInt();
+            timestamp = buffer.getLong();
+            outgoing = (buffer.get() & FLAG_OUTGOING) != 0;
+            buffer.position(buffer.position() - RECORD_HEADER_SIZE);
+            if (!fill(RECORD_HEADER_SIZE + recordLength)) {
+                return false;
+            }
+            payloadStart = buffer.position() + RECORD_HEADER_SIZE;
+            length = recordLength;
+            recordPosition += RECORD_HEADER_SIZE + recordLength;
+            return true;
+        }
+
+        boolean isValid(CRC32 crc) {
+            crc.reset();
+            crc.update(buffer.array(), payloadStart, length);
+            return (int) crc.getValue() == checksum;
+        }
+
+        byte[] payload() {
+            return Arrays.copyOfRange(buffer.array(), payloadStart, payloadStart + length);
+        }
+
+        long position() {
+            return recordPosition;
+        }
+
+        private boolean fill(int needed) throws IOException {
+            if (buffer.remaining() >= needed) {
+                return true;
+            }
+            if (buffer.capacity() < needed) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            while (buffer.position() < needed && filePosition < limit) {
+                int read = channel.read(buffer, filePosition);
+                if (read < 0) {
+                    break;
+                }
+                filePosition += read;
+            }
+            buffer.flip();
+            payloadStart = 0;
+            return buffer.remaining() >= needed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
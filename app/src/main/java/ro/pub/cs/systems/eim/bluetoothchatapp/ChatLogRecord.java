@@ -0,0 +1,31 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+public final class ChatLogRecord {
+    private final long offset;
+    private final long timestamp;
+    private final boolean outgoing;
+    private final byte[] payload;
+
+    public ChatLogRecord(long offset, long timestamp, boolean outgoing, byte[] payload) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.outgoing = outgoing;
+        this.payload = payload;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
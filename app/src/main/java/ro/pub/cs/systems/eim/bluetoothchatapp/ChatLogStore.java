@@ -0,0 +1,81 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns one {@link ChatLog} per peer under a root directory and group-commits all of
+ * them on a background thread every {@code commitIntervalMillis}.
+ */
+public class ChatLogStore implements Closeable {
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 200;
+
+    private final File root;
+    private final ConcurrentMap<String, ChatLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService committer;
+
+    public ChatLogStore(File root) {
+        this(root, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    public ChatLogStore(File root, long commitIntervalMillis) {
+        this.root = root;
+        committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-log-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commitAll, commitIntervalMillis, commitIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public ChatLog get(String peerAddress) throws IOException {
+        try {
+            return logs.computeIfAbsent(peerAddress, address -> {
+                try {
+                    return new ChatLog(new File(root, directoryName(address)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public void commitAll() {
+        for (ChatLog log : logs.values()) {
+            try {
+                log.commit();
+            } catch (IOException e) {
+                Log.e("ChatLog->Commit", e.toString());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        committer.shutdown();
+        for (ChatLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.e("ChatLog->Close", e.toString());
+            }
+        }
+        logs.clear();
+    }
+
+    static String directoryName(String peerAddress) {
+        return peerAddress.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
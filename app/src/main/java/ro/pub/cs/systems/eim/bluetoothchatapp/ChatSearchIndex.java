@@ -0,0 +1,387 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * In-memory inverted index over the messages in a {@link ChatLogStore}.
+ *
+ * <p>Every message gets a document id in the order it is indexed. A term's posting list
+ * holds the ids of the messages containing it, as varint gaps from the previous id, so a
+ * term seen in every message costs about a byte per message. Ids only grow, which makes
+ * indexing a new message an append to the end of each of its terms' lists.
+ *
+ * <p>Terms are runs of letters and digits, lower-cased and with diacritics removed, so
+ * "Bun\u0103" and "buna" are the same term. Every word of a query matches as a prefix:
+ * "mar ion" finds messages with a word starting "mar" and one starting "ion". Results
+ * come newest first by message timestamp.
+ *
+ * <p>{@link #update(String)} reads what a peer's log gained since the last update and
+ * indexes it on a background thread, {@link #BATCH_SIZE} records at a time. The index
+ * is not saved; it is rebuilt from the logs in the background after a restart. Searches
+ * may run on any thread and wait at most for the batch being added.
+ */
+public class ChatSearchIndex implements Closeable {
+    public static final int BATCH_SIZE = 256;
+    static final int MAX_TERM_LENGTH = 32;
+
+    private final ChatLogStore store;
+    private final ExecutorService indexer;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final StreamingTextDecoder text = new StreamingTextDecoder();
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final Map<String, Integer> peerIds = new HashMap<>();
+    private final List<String> peers = new ArrayList<>();
+    private final Map<String, Long> indexedUpTo = new HashMap<>();
+    private int documents;
+    private int[] documentPeers = new int[1024];
+    private long[] documentOffsets = new long[1024];
+    private long[] documentTimestamps = new long[1024];
+    private long[] newestUpTo = new long[1024];
+    private long postingBytes;
+
+    public ChatSearchIndex(ChatLogStore store) {
+        this.store = store;
+        indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-search-index");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    public static final class Hit {
+        private final String address;
+        private final long offset;
+        private final long timestamp;
+
+        Hit(String address, long offset, long timestamp) {
+            this.address = address;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * The message's offset in the peer's {@link ChatLog}.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Indexes, in the background, whatever {@code address}'s log holds past the last
+     * update. Calls made while one for the same peer is still queued are folded into it.
+     */
+    public void update(String address) {
+        if (pending.add(address)) {
+            indexer.execute(() -> {
+                pending.remove(address);
+                try {
+                    catchUp(address);
+                } catch (IOException e) {
+                    Log.e("ChatSearchIndex->Update", e.toString());
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits until every update requested so far has been indexed. Returns false on
+     * timeout.
+     */
+    public boolean awaitIndexed(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            indexer.submit(() -> { }).get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void catchUp(String address) throws IOException {
+        ChatLog log = store.get(address);
+        long from;
+        synchronized (this) {
+            from = indexedUpTo.getOrDefault(address, 0L);
+        }
+        List<String> words = new ArrayList<>();
+        List<ChatLogRecord> batch;
+        while (!(batch = log.read(from, BATCH_SIZE)).isEmpty()) {
+            List<String[]> batchTerms = new ArrayList<>(batch.size());
+            for (ChatLogRecord record : batch) {
+                words.clear();
+                tokenize(text.decode(record.getPayload(), 0, record.getPayload().length), words);
+                batchTerms.add(words.toArray(new String[0]));
+            }
+            from = batch.get(batch.size() - 1).getOffset() + 1;
+            add(address, batch, batchTerms, from);
+        }
+    }
+
+    private synchronized void add(String address, List<ChatLogRecord> records, List<String[]> recordTerms,
+                                  long nextOffset) {
+        Integer peer = peerIds.get(address);
+        if (peer == null) {
+            peer = peers.size();
+            peers.add(address);
+            peerIds.put(address, peer);
+        }
+        if (documents + records.size() > documentPeers.length) {
+            int capacity = Math.max(2 * documentPeers.length, documents + records.size());
+            documentPeers = Arrays.copyOf(documentPeers, capacity);
+            documentOffsets = Arrays.copyOf(documentOffsets, capacity);
+            documentTimestamps = Arrays.copyOf(documentTimestamps, capacity);
+            newestUpTo = Arrays.copyOf(newestUpTo, capacity);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            int document = documents++;
+            documentPeers[document] = peer;
+            documentOffsets[document] = records.get(i).getOffset();
+            documentTimestamps[document] = records.get(i).getTimestamp();
+            newestUpTo[document] = document == 0 ? documentTimestamps[0]
+                    : Math.max(newestUpTo[document - 1], documentTimestamps[document]);
+            for (String term : recordTerms.get(i)) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    postings = new Postings();
+                    terms.put(term, postings);
+                }
+                postingBytes += postings.add(document);
+            }
+        }
+        indexedUpTo.put(address, nextOffset);
+    }
+
+    /**
+     * Returns up to {@code limit} messages matching every word of {@code query}, newest
+     * first. A query without letters or digits matches nothing.
+     */
+    public List<Hit> search(String query, int limit) {
+        List<String> words = new ArrayList<>();
+        tokenize(query, words);
+        if (words.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        synchronized (this) {
+            BitSet matches = null;
+            for (String word : words) {
+                BitSet wordMatches = new BitSet(documents);
+                for (Postings postings : prefixed(word).values()) {
+                    postings.addTo(wordMatches);
+                }
+                if (matches == null) {
+                    matches = wordMatches;
+                } else {
+                    matches.and(wordMatches);
+                }
+                if (matches.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+
+            // Ids follow indexing order, which is close to but not exactly time order, so
+            // keep the newest by timestamp in a min-heap, walking down from the last id until
+            // no earlier message can be newer than the oldest one kept.
+            PriorityQueue<Integer> newest = new PriorityQueue<>(limit + 1,
+                    (a, b) -> Long.compare(documentTimestamps[a], documentTimestamps[b]));
+            for (int document = matches.previousSetBit(documents - 1); document >= 0;
+                 document = matches.previousSetBit(document - 1)) {
+                if (newest.size() < limit) {
+                    newest.add(document);
+                } else if (newestUpTo[document] <= documentTimestamps[newest.peek()]) {
+                    break;
+                } else if (documentTimestamps[document] > documentTimestamps[newest.peek()]) {
+                    newest.poll();
+                    newest.add(document);
+                }
+            }
+            Hit[] hits = new Hit[newest.size()];
+            for (int i = hits.length - 1; i >= 0; i--) {
+                int document = newest.poll();
+                hits[i] = new Hit(peers.get(documentPeers[document]), documentOffsets[document],
+                        documentTimestamps[document]);
+            }
+            return Arrays.asList(hits);
+        }
+    }
+
+    private SortedMap<String, Postings> prefixed(String prefix) {
+        return terms.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    public synchronized int getDocumentCount() {
+        return documents;
+    }
+
+    public synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * Size of all posting lists, excluding the spare room at the end of each.
+     */
+    public synchronized long getPostingBytes() {
+        return postingBytes;
+    }
+
+    @Override
+    public void close() {
+        indexer.shutdownNow();
+    }
+
+    /**
+     * Splits {@code text} into search terms and adds them to {@code out}. Terms longer
+     * than {@link #MAX_TERM_LENGTH} are cut short, so queries are cut the same way.
+     */
+    static void tokenize(CharSequence text, List<String> out) {
+        CharSequence folded = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (c < 0x80) {
+                if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                    append(term, c);
+                } else if (c >= 'A' && c <= 'Z') {
+                    append(term, (char) (c + ('a' - 'A')));
+                } else {
+                    endTerm(term, out);
+                }
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                // A diacritic NFD split off the letter before it.
+            } else if (Character.isLetterOrDigit(c)) {
+                String simple = fold(Character.toLowerCase(c));
+                for (int j = 0; j < simple.length(); j++) {
+                    append(term, simple.charAt(j));
+                }
+            } else {
+                endTerm(term, out);
+            }
+        }
+        endTerm(term, out);
+    }
+
+    /**
+     * Letters with a stroke or ligature, which NFD leaves whole.
+     */
+    private static String fold(char c) {
+        switch (c) {
+            case '\u00df':
+                return "ss";
+            case '\u00e6':
+                return "ae";
+            case '\u0153':
+                return "oe";
+            case '\u00f8':
+                return "o";
+            case '\u0111':
+                return "d";
+            case '\u0142':
+                return "l";
+            case '\u0131':
+                return "i";
+            default:
+                return String.valueOf(c);
+        }
+    }
+
+    private static void append(StringBuilder term, char c) {
+        if (term.length() < MAX_TERM_LENGTH) {
+            term.append(c);
+        }
+    }
+
+    private static void endTerm(StringBuilder term, List<String> out) {
+        if (term.length() > 0) {
+            out.add(term.toString());
+            term.setLength(0);
+        }
+    }
+
+    private static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ascending document ids as varint gaps; the first gap is from -1.
+     */
+    static final class Postings {
+        private byte[] data = new byte[4];
+        private int length;
+        private int last = -1;
+
+        /**
+         * Adds {@code document}, which must not be below the last one added, and returns
+         * the bytes it took. A repeat of the last id is ignored.
+         */
+        int add(int document) {
+            if (document == last) {
+                return 0;
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, length + 5));
+            }
+            int start = length;
+            int gap = document - last;
+            while ((gap & ~0x7f) != 0) {
+                data[length++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = document;
+            return length - start;
+        }
+
+        void addTo(BitSet documents) {
+            int document = -1;
+            int position = 0;
+            while (position < length) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                document += gap;
+                documents.set(document);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Owns the Bluetooth sessions, the chat logs and the search index, so that they outlive
+ * the activities showing them. {@link MainActivity} starts the service and binds to it;
+ * a rotation only detaches the activity's event bus from the {@link ChatEventRelay} and
+ * attaches the new one, and the links stay up. The activity stops the service when the
+ * user leaves for good.
+ *
+ * <p>This is a plain started service, not a foreground one, so Android may still stop it
+ * once the app has been in the background for a while.
+ */
+public class ChatService extends Service {
+    private static final long METRICS_DUMP_MILLIS = 60_000;
+
+    public class LocalBinder extends Binder {
+        public ChatService getService() {
+            return ChatService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private ChatLogStore chatLogStore;
+    private ChatSearchIndex searchIndex;
+    private ChatEventRelay events;
+    private ChatUtils chatUtils;
+    private int attaches;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        chatLogStore = new ChatLogStore(new File(getFilesDir(), "chatlog"));
+        searchIndex = new ChatSearchIndex(chatLogStore);
+        events = new ChatEventRelay(chatLogStore, searchIndex, ChatEventRelay.DEFAULT_CAPACITY);
+        chatUtils = new ChatUtils(this, events);
+        chatUtils.startMetricsDump(METRICS_DUMP_MILLIS);
+        indexKnownPeers();
+    }
+
+    /**
+     * Rebuilds the search index from the logs of every peer we remember, in the background.
+     */
+    private void indexKnownPeers() {
+        KnownDeviceCache knownDevices = chatUtils.getKnownDevices();
+        if (knownDevices != null) {
+            for (KnownDevice device : knownDevices.recent(KnownDeviceCache.MAX_DEVICES)) {
+                searchIndex.update(device.getAddress());
+            }
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Restarting without an activity is pointless: it asks for the permissions and
+        // picks the peers.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Sends events to {@code bus}, starting with those missed since the last activity
+     * detached.
+     */
+    public void attach(UiEventBus bus) {
+        attaches++;
+        int replayed = events.attach(bus);
+        Log.d("ChatService->Attach", "replayed " + replayed + ", dropped " + events.getDropped());
+    }
+
+    public void detach(UiEventBus bus) {
+        events.detach(bus);
+    }
+
+    public ChatUtils getChatUtils() {
+        return chatUtils;
+    }
+
+    public ChatLogStore getChatLogStore() {
+        return chatLogStore;
+    }
+
+    public ChatSearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        chatUtils.stopMetricsDump();
+        chatUtils.stop();
+        Log.d("ChatService->Stats", "sessions opened " + events.getSessionsOpened() + " over " + attaches
+                + " activity attaches, events replayed " + events.getReplayed() + ", dropped " + events.getDropped());
+        searchIndex.close();
+        chatLogStore.close();
+    }
+}
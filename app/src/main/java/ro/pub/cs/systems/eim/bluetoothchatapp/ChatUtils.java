@@ -1,341 +1,815 @@
 package ro.pub.cs.systems.eim.bluetoothchatapp;
 
-import static android.Manifest.permission.BLUETOOTH_CONNECT;
-
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
-import androidx.core.app.ActivityCompat;
-
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
-
-public class ChatUtils {
-    private final Handler handler;
-    private final BluetoothAdapter bluetoothAdapter;
-    private final Context context;
-
-    private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private ConnectedThread connectedThread;
-
-    private final UUID APP_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+import java.net.ProtocolException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ChatUtils implements PeerSession.Callback {
+    private final ChatListener listener;
+    private final Transport transport;
+    private final int maxSessions;
+    private final SessionScheduler scheduler;
+    private final FileTransferManager fileTransfers;
+    private final RelayManager relay;
+
+    private final ConcurrentMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicReference<AcceptTask> acceptTask = new AtomicReference<>();
+    private final ConcurrentMap<String, ResumeState> resumeStates = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final long epoch = new Random().nextLong();
+
+    private final ScheduledThreadPoolExecutor timer;
+    private final ConcurrentMap<String, Integer> reconnectAttempts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ScheduledFuture<?>> pendingReconnects = new ConcurrentHashMap<>();
+    private volatile ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private volatile boolean running;
+    private volatile KnownDeviceCache knownDevices;
+    private volatile long pingIntervalMillis = DEFAULT_PING_INTERVAL_MILLIS;
+    private volatile SessionCrypto.Mode encryption = SessionCrypto.Mode.REQUIRED;
+    private final AtomicReference<ScheduledFuture<?>> probeTask = new AtomicReference<>();
+    // Arrays hash and compare by identity, so this finds a group by its shared message copy.
+    private final ConcurrentMap<byte[], GroupSend> pendingGroups = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor fanOut;
+    private final ConcurrentMap<PeerSession, Backlog> backlogs = new ConcurrentHashMap<>();
+
+    private static final int RECEIVE_POOL_BUFFERS = 64;
+    private static final int RECEIVE_POOL_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_MAX_SESSIONS = 7;
+    public static final int MAX_QUEUED_INDICATORS = 16;
+    public static final long DEFAULT_PING_INTERVAL_MILLIS = 5000;
+    private static final long PROBE_TICK_MILLIS = 250;
+
+    private final BufferPool receivePool = new BufferPool(RECEIVE_POOL_BUFFERS, RECEIVE_POOL_BUFFER_SIZE);
+    private volatile OutboundQueue.Backpressure backpressure = OutboundQueue.Backpressure.REJECT;
+    private volatile FrameCompression compression = new FrameCompression();
+    private volatile ChannelScheduler channelScheduler = new ChannelScheduler();
 
     public static final int STATE_NONE = 0;
     public static final int STATE_LISTEN = 1;
     public static final int STATE_CONNECTING = 2;
     public static final int STATE_CONNECTED = 3;
 
-    private int state;
+    private final AtomicInteger state = new AtomicInteger(STATE_NONE);
+    private final AtomicLong stateUpdates = new AtomicLong();
+    private final AtomicInteger pendingStateReports = new AtomicInteger();
+    private int reportedState = STATE_NONE;
 
     public ChatUtils(Context context, Handler handler) {
-        this.handler = handler;
+        this(context, new HandlerChatListener(handler));
+    }
 
-        this.context = context;
-        state = STATE_NONE;
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    public ChatUtils(Context context, ChatListener listener) {
+        this(new RfcommTransport(context), listener);
+        setDownloadDirectory(new File(context.getFilesDir(), "received"));
+        setKnownDevices(KnownDeviceCache.open(new File(context.getFilesDir(), "known_devices")));
     }
 
-    public int getState() {
-        return state;
+    public ChatUtils(Transport transport, ChatListener listener) {
+        this(transport, listener, DEFAULT_MAX_SESSIONS);
     }
 
-    public synchronized void setState(int state) {
-        this.state = state;
-        handler.obtainMessage(Constants.MESSAGE_STATE_CHANGED, state, -1).sendToTarget();
+    public ChatUtils(Transport transport, ChatListener listener, int maxSessions) {
+        this(transport, listener, maxSessions, SessionScheduler.forSessions(maxSessions));
     }
 
-    public synchronized void start() {
-        cancelConnectThread();
-        createAndStartAcceptThread();
-        cancelConnectedThread();
-        setState(STATE_LISTEN);
+    public ChatUtils(Transport transport, ChatListener listener, int maxSessions, SessionScheduler scheduler) {
+        this.transport = transport;
+        this.listener = listener;
+        this.maxSessions = maxSessions;
+        this.scheduler = scheduler;
+        fileTransfers = new FileTransferManager(listener, scheduler, sessions::get);
+        relay = new RelayManager(epoch, listener, receivePool, sessions::values);
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ChatTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setKeepAliveTime(10, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+        fanOut = new ThreadPoolExecutor(maxSessions, maxSessions, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ChatFanOut");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        fanOut.allowCoreThreadTimeOut(true);
     }
 
-    public synchronized void stop() {
-        cancelConnectThread();
-        cancelAcceptThread();
-        cancelConnectedThread();
-        setState(STATE_NONE);
+    public BufferPool getReceivePool() {
+        return receivePool;
     }
 
-    public void connect(BluetoothDevice device) {
-        if (state == STATE_CONNECTING) {
-            cancelConnectThread();
+    public SessionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Where incoming files are written. Offers are refused while this is not set.
+     */
+    public void setDownloadDirectory(File directory) {
+        fileTransfers.setDownloadDirectory(directory);
+    }
+
+    /**
+     * Starts sending {@code file} to the peer. If the peer is not connected the transfer
+     * waits and starts when it connects.
+     */
+    public FileTransfer sendFile(String address, File file) throws IOException {
+        return fileTransfers.send(address, file);
+    }
+
+    /**
+     * Window, ack frequency and pacing for file transfers started from now on.
+     */
+    public void setFlowControl(FlowControl flowControl) {
+        fileTransfers.setFlowControl(flowControl);
+    }
+
+    public FlowControl getFlowControl() {
+        return fileTransfers.getFlowControl();
+    }
+
+    public List<FileTransfer> getTransfers() {
+        return fileTransfers.getTransfers();
+    }
+
+    public PeerSession getSession(String address) {
+        return sessions.get(address);
+    }
+
+    public Collection<PeerSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public void setBackpressure(OutboundQueue.Backpressure backpressure) {
+        this.backpressure = backpressure;
+        for (PeerSession session : sessions.values()) {
+            session.getOutboundQueue().setBackpressure(backpressure);
         }
-        createAndStartConnectThread(device);
-        cancelConnectedThread();
-        setState(STATE_CONNECTING);
     }
 
-    public void write(byte[] buffer) {
-        ConnectedThread connThread;
-        synchronized (this) {
-            if (state != STATE_CONNECTED) {
-                return;
+    /**
+     * Compression settings and counters for sessions opened from now on.
+     */
+    public void setCompression(FrameCompression compression) {
+        this.compression = compression;
+    }
+
+    public FrameCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * How sessions opened from now on share their link between control, chat and bulk
+     * traffic.
+     */
+    public void setChannelScheduler(ChannelScheduler channelScheduler) {
+        this.channelScheduler = channelScheduler;
+    }
+
+    public ChannelScheduler getChannelScheduler() {
+        return channelScheduler;
+    }
+
+    /**
+     * How dialled links that drop are retried. Only links this side opened are retried;
+     * the peer that dialled us is expected to dial again.
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * How long a link may stay silent before it is pinged. Pings measure the round trip
+     * time and detect peers that disappeared without closing the link.
+     */
+    public void setPingInterval(long pingIntervalMillis) {
+        this.pingIntervalMillis = pingIntervalMillis;
+    }
+
+    /**
+     * Whether sessions agree keys and seal their traffic; see {@link SessionCrypto.Mode}.
+     * {@link SessionCrypto.Mode#REQUIRED} unless the user agrees to plaintext. Applies to
+     * sessions opened from now on.
+     */
+    public void setEncryption(SessionCrypto.Mode encryption) {
+        this.encryption = encryption;
+    }
+
+    public SessionCrypto.Mode getEncryption() {
+        return encryption;
+    }
+
+    /**
+     * Where successful connections and failed attempts are remembered, or null to not
+     * remember them.
+     */
+    public void setKnownDevices(KnownDeviceCache knownDevices) {
+        this.knownDevices = knownDevices;
+    }
+
+    public KnownDeviceCache getKnownDevices() {
+        return knownDevices;
+    }
+
+    /**
+     * In relay mode {@link #write(byte[])} floods messages to every node within the
+     * relay ttl, and messages from other nodes are forwarded to our other peers.
+     */
+    public void setRelayEnabled(boolean enabled) {
+        relay.setForwarding(enabled);
+    }
+
+    public boolean isRelayEnabled() {
+        return relay.isForwarding();
+    }
+
+    public RelayManager getRelay() {
+        return relay;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Logs a metrics snapshot every {@code periodMillis} until {@link #stopMetricsDump()}.
+     */
+    public void startMetricsDump(long periodMillis) {
+        metrics.startPeriodicDump(timer, periodMillis, TimeUnit.MILLISECONDS,
+                snapshot -> Log.i("Metrics->Dump", relay.isForwarding() ? snapshot + "\n" + relay.snapshot()
+                        : snapshot.toString()));
+    }
+
+    public void stopMetricsDump() {
+        metrics.stopPeriodicDump();
+    }
+
+    public ResumeState getResumeState(String address) {
+        return resumeStates.computeIfAbsent(address, key -> new ResumeState(epoch));
+    }
+
+    /**
+     * Aggregate state over all sessions: connected if any peer is connected, connecting
+     * if any connection attempt is in flight, listening if only the accept loop runs.
+     *
+     * <p>This is a value recomputed from the sessions, not a state machine: any state can
+     * follow any other, and no move is checked. Only each session's own state is held to
+     * {@link ConnectionStateMachine#SESSION_TRANSITIONS}.
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    public void start() {
+        running = true;
+        if (probeTask.get() == null) {
+            ScheduledFuture<?> task = timer.scheduleAtFixedRate(this::probeSessions, PROBE_TICK_MILLIS,
+                    PROBE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+            if (!probeTask.compareAndSet(null, task)) {
+                task.cancel(false);
             }
-            connThread = connectedThread;
         }
-        connThread.write(buffer);
+        AcceptTask task = new AcceptTask();
+        if (acceptTask.compareAndSet(null, task)) {
+            task.listenAndStart();
+        }
+        updateState();
     }
 
-    private void createAndStartAcceptThread() {
-        acceptThread = new AcceptThread();
-        acceptThread.start();
+    public void stop() {
+        stopAll();
     }
 
-    private void createAndStartConnectThread(BluetoothDevice device) {
-        connectThread = new ConnectThread(device);
-        connectThread.start();
+    /**
+     * Stops like {@link #stop()} and waits until the accept loop and every session task
+     * has finished. Returns false if something was still running at the timeout.
+     */
+    public boolean stopAndJoin(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<PeerSession> stopped = new ArrayList<>(sessions.values());
+        AcceptTask task = stopAll();
+        if (task != null && !task.join(deadline - System.nanoTime())) {
+            return false;
+        }
+        for (PeerSession session : stopped) {
+            if (!session.join(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void cancelAcceptThread() {
-        if (acceptThread != null) {
-            acceptThread.cancel();
-            acceptThread = null;
+    private AcceptTask stopAll() {
+        running = false;
+        ScheduledFuture<?> probes = probeTask.getAndSet(null);
+        if (probes != null) {
+            probes.cancel(false);
         }
+        for (String address : pendingReconnects.keySet()) {
+            cancelReconnect(address);
+        }
+        reconnectAttempts.clear();
+        AcceptTask task = acceptTask.getAndSet(null);
+        if (task != null) {
+            task.cancel();
+        }
+        for (PeerSession session : sessions.values()) {
+            session.close();
+        }
+        updateState();
+        return task;
     }
 
-    private void cancelConnectThread() {
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
-        }
+    public void connect(BluetoothDevice device) {
+        connect(device.getAddress());
+    }
+
+    public void connect(String address) {
+        cancelReconnect(address);
+        open(address);
     }
 
-    private void cancelConnectedThread() {
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+    private void open(String address) {
+        if (sessions.size() >= maxSessions) {
+            listener.onToast("Too many connections");
+            return;
+        }
+        PeerSession session = newSession(address);
+        if (sessions.putIfAbsent(address, session) != null) {
+            return;
+        }
+        updateState();
+        try {
+            session.setReadTask(scheduler.submit("Connect-" + address, () -> runConnect(session), session));
+        } catch (RejectedExecutionException e) {
+            Log.e("Connect->Submit", e.toString());
+            session.connectFailed();
         }
     }
 
-    private class AcceptThread extends Thread {
-        private final BluetoothServerSocket serverSocket;
+    public void disconnect(String address) {
+        cancelReconnect(address);
+        PeerSession session = sessions.get(address);
+        if (session != null) {
+            session.close();
+        }
+    }
 
-        public AcceptThread() {
-            BluetoothServerSocket tmp = null;
-            if (ActivityCompat.checkSelfPermission(context, BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                try {
-                    String APP_NAME = "BluetoothChatApp";
-                    tmp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, APP_UUID);
-                } catch (IOException e) {
-                    Log.e("Accept->Constructor", e.toString());
-                }
-            } else {
-                Log.e("Accept->Constructor", "Bluetooth connect permission not granted");
+    /**
+     * Queues the message for every connected peer, or in relay mode for every node the
+     * relay reaches. Returns true if at least one peer accepted it.
+     */
+    public boolean write(byte[] buffer) {
+        if (relay.isForwarding()) {
+            return relay.send(buffer);
+        }
+        boolean accepted = false;
+        for (PeerSession session : sessions.values()) {
+            if (session.write(buffer)) {
+                accepted = true;
             }
-
-            serverSocket = tmp;
         }
+        return accepted;
+    }
 
+    public boolean write(String address, byte[] buffer) {
+        PeerSession session = sessions.get(address);
+        return session != null && session.write(buffer);
+    }
 
-        public void run() {
-            BluetoothSocket socket = null;
-            if (serverSocket != null) {
-                try {
-                    socket = serverSocket.accept();
-                } catch (IOException e) {
-                    Log.e("Accept->Run", e.toString());
-                    try {
-                        serverSocket.close();
-                    } catch (IOException e1) {
-                        Log.e("Accept->Close", e.toString());
-                    }
-                }
+    /**
+     * Sends a frame built by {@link TypedMessage}. Typed text is queued with the chat
+     * messages, so it is sequenced and replayed after a reconnect the same way. Typing
+     * indicators, receipts and control messages go ahead of queued chat text, and are
+     * dropped rather than queued behind {@link #MAX_QUEUED_INDICATORS} others.
+     */
+    public boolean send(String address, byte[] messageFrame) {
+        PeerSession session = sessions.get(address);
+        if (session == null) {
+            return false;
+        }
+        if (TypedMessage.typeOf(messageFrame) == TypedMessage.TEXT) {
+            return session.write(FrameProtocol.TYPE_MESSAGE,
+                    Arrays.copyOfRange(messageFrame, FrameProtocol.HEADER_SIZE, messageFrame.length));
+        }
+        return session.trySendControl(messageFrame, MAX_QUEUED_INDICATORS);
+    }
+
+    /**
+     * Sends one message to several peers without waiting on any of them. The message is
+     * copied once and that copy is queued for every peer; each session's writer frames
+     * and writes it in parallel with the others. A peer whose queue is full under
+     * {@link OutboundQueue.Backpressure#BLOCK} gets the message from its backlog, which
+     * one fan-out thread at a time writes in order, so a slow peer only delays itself. A peer whose queue drops the message under
+     * {@link OutboundQueue.Backpressure#DROP_OLDEST} is marked failed. The returned
+     * {@link GroupSend} reports when, or whether, each peer got it.
+     */
+    public GroupSend writeGroup(Collection<String> addresses, byte[] buffer) {
+        GroupSend group = new GroupSend(buffer.clone(), addresses);
+        byte[] message = group.getMessage();
+        pendingGroups.put(message, group);
+        for (String address : group.getPeers()) {
+            PeerSession session = sessions.get(address);
+            if (session == null) {
+                group.failed(address);
+                continue;
+            }
+            Backlog backlog = backlogs.get(session);
+            if ((backlog == null || !backlog.isBusy()) && session.tryWrite(message)) {
+                continue;
+            }
+            if (session.isConnected()
+                    && session.getOutboundQueue().getBackpressure() == OutboundQueue.Backpressure.BLOCK) {
+                backlogs.computeIfAbsent(session, Backlog::new).add(group);
             } else {
-                Log.e("Accept->Run", "Server socket is null");
+                group.failed(address);
             }
+        }
+        if (group.isDone()) {
+            pendingGroups.remove(message, group);
+        }
+        return group;
+    }
 
-            if (socket != null) {
-                switch (state) {
-                    case STATE_LISTEN:
-                    case STATE_CONNECTING:
-                        connected(socket, socket.getRemoteDevice());
-                        break;
-                    case STATE_NONE:
-                    case STATE_CONNECTED:
-                        try {
-                            socket.close();
-                        } catch (IOException e) {
-                            Log.e("Accept->CloseSocket", e.toString());
-                        }
-                        break;
-                }
+    /**
+     * {@link #writeGroup(Collection, byte[])} to every connected peer.
+     */
+    public GroupSend writeGroup(byte[] buffer) {
+        List<String> addresses = new ArrayList<>();
+        for (PeerSession session : sessions.values()) {
+            if (session.isConnected()) {
+                addresses.add(session.getAddress());
             }
         }
+        return writeGroup(addresses, buffer);
+    }
 
-        public void cancel() {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                Log.e("Accept->CloseServer", e.toString());
-            }
+    private void resolveGroup(GroupSend group, String failedAddress) {
+        if (group.failed(failedAddress)) {
+            pendingGroups.remove(group.getMessage(), group);
+        }
+    }
+
+    private PeerSession newSession(String address) {
+        return new PeerSession(address, listener, receivePool, backpressure, compression, channelScheduler,
+                getResumeState(address), encryption, metrics.peer(address), scheduler, this);
+    }
+
+    private void probeSessions() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis);
+        for (PeerSession session : sessions.values()) {
+            session.probe(now, idleNanos);
+        }
+    }
+
+    private void cancelReconnect(String address) {
+        reconnectAttempts.remove(address);
+        ScheduledFuture<?> pending = pendingReconnects.remove(address);
+        if (pending != null) {
+            pending.cancel(false);
         }
     }
 
-    private class ConnectThread extends Thread {
-        private BluetoothSocket socket;
-        private final BluetoothDevice device;
+    /**
+     * Schedules the next attempt to re-dial a lost peer. Returns false once the policy
+     * has run out of attempts.
+     */
+    private boolean scheduleReconnect(String address) {
+        int attempt = reconnectAttempts.merge(address, 1, Integer::sum);
+        ReconnectPolicy policy = reconnectPolicy;
+        if (attempt > policy.getMaxAttempts()) {
+            reconnectAttempts.remove(address);
+            return false;
+        }
+        long delay = policy.delayMillis(attempt - 1);
+        metrics.peer(address).reconnects.increment();
+        Log.d("Reconnect->Schedule", address + " attempt " + attempt + " in " + delay + " ms");
+        pendingReconnects.put(address, timer.schedule(() -> {
+            pendingReconnects.remove(address);
+            if (running && !sessions.containsKey(address)) {
+                open(address);
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+        return true;
+    }
 
-        public ConnectThread(BluetoothDevice device) {
-            this.device = device;
-            if (ActivityCompat.checkSelfPermission(context, BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+    /**
+     * Recomputes the aggregate state after a session or the accept loop changed. Callers
+     * race without a lock: each one counts itself in first and recomputes until no other
+     * update started meanwhile, so a value computed from a stale view is always
+     * overwritten and the last write reflects the last change.
+     */
+    private void updateState() {
+        long update = stateUpdates.incrementAndGet();
+        while (true) {
+            int newState = acceptTask.get() != null ? STATE_LISTEN : STATE_NONE;
+            for (PeerSession session : sessions.values()) {
+                int sessionState = session.getState();
+                if (sessionState == STATE_CONNECTED) {
+                    newState = STATE_CONNECTED;
+                    break;
+                } else if (sessionState == STATE_CONNECTING) {
+                    newState = STATE_CONNECTING;
+                }
+            }
+            if (state.getAndSet(newState) != newState) {
+                reportState();
+            }
+            long latest = stateUpdates.get();
+            if (latest == update) {
                 return;
             }
-            BluetoothSocket tmp = null;
-            try {
+            update = latest;
+        }
+    }
 
-                tmp = device.createRfcommSocketToServiceRecord(APP_UUID);
-            } catch (IOException e) {
-                Log.e("Connect->Constructor", e.toString());
+    /**
+     * Tells the listener about aggregate state changes, one thread at a time: whoever finds
+     * the counter at zero reports, and keeps reporting until no other change came in
+     * meanwhile, so the last report is always the current state.
+     */
+    private void reportState() {
+        if (pendingStateReports.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            int current = state.get();
+            if (current != reportedState) {
+                reportedState = current;
+                listener.onStateChanged(current);
             }
+            missed = pendingStateReports.addAndGet(-missed);
+        } while (missed != 0);
+    }
 
-            socket = tmp;
+    @Override
+    public void onSessionConnected(PeerSession session) {
+        reconnectAttempts.remove(session.getAddress());
+        long connectNanos = -1;
+        if (session.isOutgoing()) {
+            connectNanos = System.nanoTime() - session.getCreatedNanos();
+            session.getMetrics().connectTime.record(connectNanos);
         }
+        KnownDeviceCache cache = knownDevices;
+        if (cache != null) {
+            cache.recordConnected(session.getAddress(), session.getName(), System.currentTimeMillis(),
+                    connectNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(connectNanos));
+        }
+        listener.onSessionConnected(session);
+        updateState();
+        fileTransfers.onSessionConnected(session);
+    }
 
-        public void run() {
-            if (ActivityCompat.checkSelfPermission(context, BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                return;
-            }
-            try {
-                socket.connect();
-            } catch (IOException e) {
-                Log.e("Connect->Run", e.toString());
-                try {
-                    socket.close();
-                } catch (IOException e1) {
-                    Log.e("Connect->CloseSocket", e.toString());
+    @Override
+    public void onSessionEnded(PeerSession session, int previousState, boolean requested) {
+        sessions.remove(session.getAddress(), session);
+        backlogs.remove(session);
+        fileTransfers.onSessionEnded(session);
+        for (GroupSend group : pendingGroups.values()) {
+            resolveGroup(group, session.getAddress());
+        }
+        KnownDeviceCache cache = knownDevices;
+        if (cache != null && previousState == STATE_CONNECTING && !requested) {
+            cache.recordFailure(session.getAddress());
+        }
+        if (previousState == STATE_CONNECTED) {
+            listener.onSessionClosed(session);
+        }
+        if (!requested) {
+            String address = session.getAddress();
+            boolean retrying = previousState == STATE_CONNECTED || reconnectAttempts.containsKey(address);
+            if (retrying && session.isOutgoing() && running && scheduleReconnect(address)) {
+                if (previousState == STATE_CONNECTED) {
+                    listener.onToast("Connection Lost");
                 }
-                connectionFailed();
-                return;
+            } else {
+                listener.onToast(previousState == STATE_CONNECTING ? "Cant connect to the device" : "Connection Lost");
             }
+        }
+        updateState();
+    }
 
-            synchronized (ChatUtils.this) {
-                connectThread = null;
+    @Override
+    public void onMessagesFlushed(PeerSession session, List<byte[]> messages, long flushedNanos) {
+        ResumeState resumeState = session.getResumeState();
+        for (byte[] message : messages) {
+            if (resumeState.getFrameType(message) == FrameProtocol.TYPE_RELAY) {
+                relay.onFlushed(session, message);
+            } else if (!pendingGroups.isEmpty()) {
+                GroupSend group = pendingGroups.get(message);
+                if (group != null && group.delivered(session.getAddress(), flushedNanos)) {
+                    pendingGroups.remove(message, group);
+                }
             }
+        }
+    }
 
-            connected(socket, device);
+    @Override
+    public void onMessageDropped(PeerSession session, byte[] message) {
+        GroupSend group = pendingGroups.get(message);
+        if (group != null) {
+            resolveGroup(group, session.getAddress());
         }
+    }
 
-        public void cancel() {
+    @Override
+    public void onControlFrame(PeerSession session, int type, int flags, byte[] payload, int offset, int length)
+            throws ProtocolException {
+        if (type == FrameProtocol.TYPE_RELAY) {
+            relay.onFrame(session, payload, offset, length);
+        } else if (type == FrameProtocol.TYPE_MESSAGE) {
+            onTypedMessage(session, payload, offset, length);
+        } else {
+            fileTransfers.onFrame(session, type, flags, payload, offset, length);
+        }
+    }
+
+    private void onTypedMessage(PeerSession session, byte[] payload, int offset, int length) {
+        TypedMessage message = new TypedMessage();
+        try {
+            if (!message.wrap(payload, offset, length)) {
+                Log.d("ChatUtils->Message", "Ignoring message with schema " + payload[offset]);
+                return;
+            }
+        } catch (ProtocolException e) {
+            Log.e("ChatUtils->Message", "Malformed message from " + session.getAddress() + ": " + e);
+            return;
+        }
+        if (message.isKnownType()) {
+            listener.onTypedMessage(session, message);
+        } else {
+            Log.d("ChatUtils->Message", "Ignoring message of type " + message.getType());
+        }
+    }
+
+    private void accepted(TransportSocket socket) {
+        String address = socket.getRemoteAddress();
+        if (sessions.size() >= maxSessions && !sessions.containsKey(address)) {
+            Log.e("Accept->Run", "Session limit reached, rejecting " + address);
             try {
                 socket.close();
             } catch (IOException e) {
-                Log.e("Connect->Cancel", e.toString());
+                Log.e("Accept->CloseSocket", e.toString());
             }
+            return;
+        }
+
+        PeerSession session = newSession(address);
+        PeerSession previous = sessions.put(address, session);
+        if (previous != null) {
+            previous.close();
         }
+        session.runIncoming(socket);
     }
 
-    @SuppressWarnings("InfiniteLoopStatement")
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
+    private void runConnect(PeerSession session) {
+        TransportSocket socket;
+        try {
+            socket = transport.createConnection(session.getAddress());
+        } catch (IOException e) {
+            Log.e("Connect->Run", e.toString());
+            session.connectFailed();
+            return;
+        }
+        session.runOutgoing(socket);
+    }
 
-        public ConnectedThread(BluetoothSocket socket) {
-            this.socket = socket;
+    /**
+     * Group messages waiting for room in one peer's full queue. At most one fan-out thread
+     * drains it at a time, in order, so a stalled peer ties up one thread rather than the
+     * pool and its messages cannot overtake each other.
+     */
+    private final class Backlog implements Runnable {
+        private final PeerSession session;
+        private final ArrayDeque<GroupSend> waiting = new ArrayDeque<>();
+        private boolean draining;
+
+        Backlog(PeerSession session) {
+            this.session = session;
+        }
 
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        /**
+         * Whether messages are waiting or being written; a new one must queue behind them.
+         */
+        synchronized boolean isBusy() {
+            return draining;
+        }
 
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.d("Connected->Constructor", e.toString());
+        void add(GroupSend group) {
+            synchronized (this) {
+                waiting.add(group);
+                if (draining) {
+                    return;
+                }
+                draining = true;
             }
-
-            inputStream = tmpIn;
-            outputStream = tmpOut;
+            fanOut.execute(this);
         }
 
+        @Override
         public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-
             while (true) {
-                try {
-                    bytes = inputStream.read(buffer);
-
-                    handler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-                } catch (IOException e) {
-                    connectionLost();
+                GroupSend group;
+                synchronized (this) {
+                    group = waiting.poll();
+                    if (group == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (!session.write(group.getMessage())) {
+                    resolveGroup(group, session.getAddress());
                 }
             }
         }
+    }
 
-        public void write(byte[] buffer) {
+    private class AcceptTask implements Runnable {
+        private volatile TransportServer serverSocket;
+        private volatile SessionScheduler.TaskHandle handle;
+        private volatile boolean cancelled;
+
+        public void listenAndStart() {
             try {
-                outputStream.write(buffer);
-                handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
+                serverSocket = transport.listen();
             } catch (IOException e) {
-                Log.d("Connected->Write", e.toString());
+                Log.e("Accept->Listen", e.toString());
+                acceptTask.compareAndSet(this, null);
+                return;
+            }
+            if (cancelled) {
+                cancel();
+                return;
             }
-        }
-
-        public void cancel() {
             try {
-                socket.close();
-            } catch (IOException e) {
-                Log.d("Connected->Cancel", e.toString());
+                handle = scheduler.submit("Accept", this, serverSocket);
+            } catch (RejectedExecutionException e) {
+                Log.e("Accept->Submit", e.toString());
+                cancel();
+                acceptTask.compareAndSet(this, null);
             }
         }
-    }
-
-    private void connectionLost() {
-        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Connection Lost");
-        message.setData(bundle);
-        handler.sendMessage(message);
-
-        ChatUtils.this.start();
-    }
 
-    private synchronized void connectionFailed() {
-        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Cant connect to the device");
-        message.setData(bundle);
-        handler.sendMessage(message);
-
-        ChatUtils.this.start();
-    }
-
-    private synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        if (connectThread != null) {
-            connectThread.cancel();
-            connectThread = null;
+        @Override
+        public void run() {
+            while (!cancelled) {
+                try {
+                    accepted(serverSocket.accept());
+                } catch (IOException e) {
+                    if (!cancelled) {
+                        Log.e("Accept->Run", e.toString());
+                        cancel();
+                        acceptTask.compareAndSet(this, null);
+                        updateState();
+                    }
+                    return;
+                }
+            }
         }
 
-        if (connectedThread != null) {
-            connectedThread.cancel();
-            connectedThread = null;
+        public void cancel() {
+            cancelled = true;
+            TransportServer server = serverSocket;
+            if (server == null) {
+                return;
+            }
+            try {
+                server.close();
+            } catch (IOException e) {
+                Log.e("Accept->CloseServer", e.toString());
+            }
         }
 
-        connectedThread = new ConnectedThread(socket);
-        connectedThread.start();
-
-        Message message = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        if (ActivityCompat.checkSelfPermission(context, BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-            return;
+        public boolean join(long timeoutNanos) throws InterruptedException {
+            SessionScheduler.TaskHandle current = handle;
+            return current == null || current.join(timeoutNanos, TimeUnit.NANOSECONDS);
         }
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
-        message.setData(bundle);
-        handler.sendMessage(message);
-
-        setState(STATE_CONNECTED);
     }
 }
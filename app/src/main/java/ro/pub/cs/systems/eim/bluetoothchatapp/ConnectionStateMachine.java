@@ -0,0 +1,155 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection state held in one atomic int and moved only along the edges of a fixed
+ * transition table, by compare-and-set. Racing threads never block each other: of two
+ * transitions out of the same state exactly one wins, and the loser sees the state the
+ * winner left. Asking for an edge the table does not have is a bug and throws.
+ *
+ * <p>Listeners run outside any lock, on whichever thread made a change, but never two
+ * at once. A change made while they run is reported after them, against the state they
+ * were told about, so a listener sees an unbroken chain of states ending in the current
+ * one. States that came and went during a callback may be folded into one report.
+ *
+ * <p>Each {@link PeerSession} is held to {@link #SESSION_TRANSITIONS}; that is the only
+ * table in use. The aggregate {@link ChatUtils#getState()} is recomputed from the sessions
+ * and is not a machine.
+ */
+public final class ConnectionStateMachine {
+    public interface Listener {
+        void onStateChanged(ConnectionStateMachine machine, int previous, int current);
+    }
+
+    /**
+     * Edges of a {@link PeerSession}: a connection attempt either connects or fails, and a
+     * connection ends once. Sessions are not reused.
+     */
+    static final int[][] SESSION_TRANSITIONS = {
+            {ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED},
+            {ChatUtils.STATE_CONNECTING, ChatUtils.STATE_NONE},
+            {ChatUtils.STATE_CONNECTED, ChatUtils.STATE_NONE},
+    };
+
+    private static final int STATE_COUNT = 4;
+
+    private final AtomicInteger state;
+    private final int[] legal = new int[STATE_COUNT];
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger pendingReports = new AtomicInteger();
+    private int reported;
+
+    /**
+     * @param transitions {from, to} pairs of ChatUtils STATE_ constants
+     */
+    public ConnectionStateMachine(int initial, int[][] transitions) {
+        checkState(initial);
+        for (int[] transition : transitions) {
+            checkState(transition[0]);
+            checkState(transition[1]);
+            legal[transition[0]] |= 1 << transition[1];
+        }
+        state = new AtomicInteger(initial);
+        reported = initial;
+    }
+
+    public int get() {
+        return state.get();
+    }
+
+    public boolean isLegal(int from, int to) {
+        return from >= 0 && from < STATE_COUNT && to >= 0 && to < STATE_COUNT && (legal[from] & 1 << to) != 0;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} if the state is still {@code from}. Returns
+     * false, changing nothing, if another thread got there first.
+     */
+    public boolean transition(int from, int to) {
+        if (!isLegal(from, to)) {
+            throw new IllegalStateException(String.format(Locale.US, "Illegal transition %s -> %s", name(from),
+                    name(to)));
+        }
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        report();
+        return true;
+    }
+
+    /**
+     * Moves to {@code to} from whatever the state is, and returns the state it left. Does
+     * nothing and returns {@code to} if already there, and throws if the table has no
+     * edge from the current state.
+     */
+    public int moveTo(int to) {
+        while (true) {
+            int current = state.get();
+            if (current == to) {
+                return current;
+            }
+            if (transition(current, to)) {
+                return current;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reports changes to listeners, one thread at a time: whoever finds the counter at
+     * zero reports, and keeps reporting until no other change came in meanwhile.
+     */
+    private void report() {
+        if (pendingReports.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            int current = state.get();
+            if (current != reported) {
+                int previous = reported;
+                reported = current;
+                for (Listener listener : listeners) {
+                    listener.onStateChanged(this, previous, current);
+                }
+            }
+            missed = pendingReports.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private static void checkState(int state) {
+        if (state < 0 || state >= STATE_COUNT) {
+            throw new IllegalArgumentException("Unknown state " + state);
+        }
+    }
+
+    static String name(int state) {
+        switch (state) {
+            case ChatUtils.STATE_NONE:
+                return "NONE";
+            case ChatUtils.STATE_LISTEN:
+                return "LISTEN";
+            case ChatUtils.STATE_CONNECTING:
+                return "CONNECTING";
+            case ChatUtils.STATE_CONNECTED:
+                return "CONNECTED";
+            default:
+                return Integer.toString(state);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name(state.get());
+    }
+}
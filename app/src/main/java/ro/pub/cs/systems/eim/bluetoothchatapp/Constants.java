@@ -6,7 +6,13 @@ public class Constants {
     public static final int MESSAGE_WRITE = 2;
     public static final int MESSAGE_DEVICE_NAME = 3;
     public static final int MESSAGE_TOAST = 4;
+    public static final int MESSAGE_DEVICE_DISCONNECTED = 5;
+    public static final int MESSAGE_FILE_PROGRESS = 6;
+    public static final int MESSAGE_LINK_QUALITY = 7;
+    public static final int MESSAGE_SECURITY = 8;
 
     public static final String DEVICE_NAME = "deviceName";
+    public static final String DEVICE_ADDRESS = "deviceAddress";
     public static final String TOAST = "toast";
+    public static final String VERIFICATION_CODE = "verificationCode";
 }
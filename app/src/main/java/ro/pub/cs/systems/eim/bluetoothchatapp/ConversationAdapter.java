@@ -0,0 +1,50 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Binds a {@link ConversationWindow} to the conversation list. The window reports its
+ * changes as item ranges, so only the affected rows are rebound.
+ */
+public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapter.MessageViewHolder> {
+    private final ConversationWindow window;
+
+    public ConversationAdapter(ConversationWindow window) {
+        this.window = window;
+        window.setCallback(new AdapterListUpdateCallback(this));
+    }
+
+    @NonNull
+    @Override
+    public MessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView view = (TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.message_layout, parent, false);
+        return new MessageViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
+        ChatItem item = window.get(position);
+        holder.text.setText(item.getSender() + ": " + item.getText());
+    }
+
+    @Override
+    public int getItemCount() {
+        return window.size();
+    }
+
+    static class MessageViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        MessageViewHolder(TextView view) {
+            super(view);
+            text = view;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Reads pages of the merged conversation from the per-peer logs for a
+ * {@link ConversationWindow}. Pages are merged across peers by timestamp. Called off the
+ * UI thread, one page at a time, with cursor maps copied from the window.
+ */
+public class ConversationPager {
+    private static final Comparator<ChatItem> BY_TIME = Comparator.comparingLong(ChatItem::getTimestamp);
+
+    private final ChatLogStore store;
+    private final Function<String, String> deviceNames;
+    private final StreamingTextDecoder text = new StreamingTextDecoder();
+
+    public ConversationPager(ChatLogStore store, Function<String, String> deviceNames) {
+        this.store = store;
+        this.deviceNames = deviceNames;
+    }
+
+    /**
+     * Returns up to {@code count} of the newest messages that come before the given cursors.
+     */
+    public List<ChatItem> loadOlder(Map<String, Long> olderCursors, int count) throws IOException {
+        List<ChatItem> page = new ArrayList<>();
+        for (Map.Entry<String, Long> cursor : olderCursors.entrySet()) {
+            long end = cursor.getValue();
+            long start = Math.max(0, end - count);
+            addRecords(page, cursor.getKey(), store.get(cursor.getKey()).read(start, (int) (end - start)));
+        }
+        page.sort(BY_TIME);
+        return page.size() > count ? new ArrayList<>(page.subList(page.size() - count, page.size())) : page;
+    }
+
+    /**
+     * Returns up to {@code count} of the oldest messages at or after the given cursors.
+     */
+    public List<ChatItem> loadNewer(Map<String, Long> newerCursors, int count) throws IOException {
+        List<ChatItem> page = new ArrayList<>();
+        for (Map.Entry<String, Long> cursor : newerCursors.entrySet()) {
+            addRecords(page, cursor.getKey(), store.get(cursor.getKey()).read(cursor.getValue(), count));
+        }
+        page.sort(BY_TIME);
+        return page.size() > count ? new ArrayList<>(page.subList(0, count)) : page;
+    }
+
+    /**
+     * True when no log has messages past the given cursors.
+     */
+    public boolean isCaughtUp(Map<String, Long> newerCursors) throws IOException {
+        for (Map.Entry<String, Long> cursor : newerCursors.entrySet()) {
+            if (store.get(cursor.getKey()).getNextOffset() > cursor.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the messages behind search hits, in the hits' order.
+     */
+    public List<ChatItem> loadHits(List<ChatSearchIndex.Hit> hits) throws IOException {
+        List<ChatItem> items = new ArrayList<>(hits.size());
+        for (ChatSearchIndex.Hit hit : hits) {
+            addRecords(items, hit.getAddress(), store.get(hit.getAddress()).read(hit.getOffset(), 1));
+        }
+        return items;
+    }
+
+    private void addRecords(List<ChatItem> page, String address, List<ChatLogRecord> records) {
+        String name = deviceNames.apply(address);
+        for (ChatLogRecord record : records) {
+            String sender = record.isOutgoing() ? "Me" : (name != null ? name : address);
+            page.add(new ChatItem(address, record.getOffset(), record.getTimestamp(), record.isOutgoing(),
+                    sender, text.decode(record.getPayload(), 0, record.getPayload().length)));
+        }
+    }
+}
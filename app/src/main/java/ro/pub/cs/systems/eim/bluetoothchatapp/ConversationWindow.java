@@ -0,0 +1,200 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The slice of the conversation that is currently in memory. It never holds more than
+ * {@code capacity} items: growing at one end trims the other, and the trimmed messages
+ * are paged back in from the chat logs when the user scrolls towards them.
+ *
+ * <p>For every peer the window keeps two log cursors. Messages with offsets below the
+ * older cursor come before the window, messages at or above the newer cursor come after
+ * it. Every change is reported as a range insert or remove to the {@link ListUpdateCallback},
+ * never as a full refresh. Not thread safe; use it from the UI thread.
+ */
+public class ConversationWindow {
+    private final int capacity;
+    private final ArrayList<ChatItem> items;
+    private final Map<String, Long> olderCursors = new HashMap<>();
+    private final Map<String, Long> newerCursors = new HashMap<>();
+    private ListUpdateCallback callback;
+
+    private boolean hasNewer;
+    private boolean olderExhausted;
+
+    public ConversationWindow(int capacity) {
+        this.capacity = capacity;
+        items = new ArrayList<>(capacity);
+    }
+
+    public void setCallback(ListUpdateCallback callback) {
+        this.callback = callback;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public ChatItem get(int position) {
+        return items.get(position);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * True once the newest messages have been trimmed to make room for older ones. Live
+     * messages are then not added until the newer pages have been read back.
+     */
+    public boolean hasNewer() {
+        return hasNewer;
+    }
+
+    public boolean hasOlder() {
+        return !olderExhausted && !olderCursors.isEmpty();
+    }
+
+    /**
+     * Starts following a peer whose log currently ends at {@code nextOffset}. Everything
+     * before that offset is available as older history.
+     */
+    public void track(String address, long nextOffset) {
+        if (olderCursors.containsKey(address)) {
+            return;
+        }
+        olderCursors.put(address, nextOffset);
+        newerCursors.put(address, nextOffset);
+        olderExhausted = false;
+    }
+
+    public Map<String, Long> getOlderCursors() {
+        return new HashMap<>(olderCursors);
+    }
+
+    public Map<String, Long> getNewerCursors() {
+        return new HashMap<>(newerCursors);
+    }
+
+    /**
+     * Adds messages that have just been sent or received. They are dropped while the
+     * window is detached from the newest messages; they are in the logs and come back
+     * with the next newer page. Messages below a peer's newer cursor are already covered,
+     * e.g. events replayed after the peer's history was loaded, and are skipped.
+     */
+    public void appendLive(List<ChatItem> batch) {
+        if (hasNewer || batch.isEmpty()) {
+            return;
+        }
+        List<ChatItem> fresh = batch;
+        for (int i = 0; i < batch.size(); i++) {
+            if (isCovered(batch.get(i))) {
+                fresh = new ArrayList<>(batch.size());
+                for (ChatItem item : batch) {
+                    if (!isCovered(item)) {
+                        fresh.add(item);
+                    }
+                }
+                break;
+            }
+        }
+        addAtEnd(fresh);
+    }
+
+    private boolean isCovered(ChatItem item) {
+        Long newer = item.isLogged() ? newerCursors.get(item.getAddress()) : null;
+        return newer != null && item.getOffset() < newer;
+    }
+
+    /**
+     * Adds a page of older messages, in chronological order, in front of the window. An
+     * empty page means the start of every log has been reached.
+     */
+    public void prependOlder(List<ChatItem> page) {
+        if (page.isEmpty()) {
+            olderExhausted = true;
+            return;
+        }
+        items.addAll(0, page);
+        for (ChatItem item : page) {
+            if (item.isLogged()) {
+                olderCursors.merge(item.getAddress(), item.getOffset(), Math::min);
+                newerCursors.putIfAbsent(item.getAddress(), item.getOffset() + 1);
+            }
+        }
+        notifyInserted(0, page.size());
+        trimTail(items.size() - capacity);
+    }
+
+    /**
+     * Adds a page of newer messages after the window. {@code caughtUp} says whether the
+     * page reached the end of every log, after which live messages are added again.
+     */
+    public void appendNewer(List<ChatItem> page, boolean caughtUp) {
+        addAtEnd(page);
+        hasNewer = !caughtUp;
+    }
+
+    private void addAtEnd(List<ChatItem> batch) {
+        int position = items.size();
+        items.addAll(batch);
+        for (ChatItem item : batch) {
+            if (item.isLogged()) {
+                newerCursors.merge(item.getAddress(), item.getOffset() + 1, Math::max);
+                olderCursors.putIfAbsent(item.getAddress(), item.getOffset());
+            }
+        }
+        if (!batch.isEmpty()) {
+            notifyInserted(position, batch.size());
+        }
+        trimHead(items.size() - capacity);
+    }
+
+    private void trimHead(int count) {
+        if (count <= 0) {
+            return;
+        }
+        List<ChatItem> removed = items.subList(0, count);
+        for (ChatItem item : removed) {
+            if (item.isLogged()) {
+                olderCursors.merge(item.getAddress(), item.getOffset() + 1, Math::max);
+            }
+        }
+        removed.clear();
+        olderExhausted = false;
+        notifyRemoved(0, count);
+    }
+
+    private void trimTail(int count) {
+        if (count <= 0) {
+            return;
+        }
+        int from = items.size() - count;
+        List<ChatItem> removed = items.subList(from, items.size());
+        for (ChatItem item : removed) {
+            if (item.isLogged()) {
+                newerCursors.merge(item.getAddress(), item.getOffset(), Math::min);
+            }
+        }
+        removed.clear();
+        hasNewer = true;
+        notifyRemoved(from, count);
+    }
+
+    private void notifyInserted(int position, int count) {
+        if (callback != null) {
+            callback.onInserted(position, count);
+        }
+    }
+
+    private void notifyRemoved(int position, int count) {
+        if (callback != null) {
+            callback.onRemoved(position, count);
+        }
+    }
+}
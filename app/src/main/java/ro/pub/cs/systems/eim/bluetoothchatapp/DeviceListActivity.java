@@ -15,20 +15,29 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
+import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
 
+/**
+ * Lets the user pick a peer. Devices that connected before are listed first, straight
+ * from the {@link KnownDeviceCache}, so picking one of them needs no discovery;
+ * discovery starts by itself only when nothing is cached.
+ */
 public class DeviceListActivity extends AppCompatActivity {
+    public static final String EXTRA_DEVICE_ADDRESS = "deviceAddress";
+    private static final int RECENT_DEVICES = 5;
+
     private ProgressBar progressScanDevices;
-    private ArrayAdapter<String> adapterPairedDevices, adapterAvailableDevices;
+    private ArrayAdapter<KnownDevice> adapterRecentDevices, adapterPairedDevices, adapterAvailableDevices;
     private BluetoothAdapter bluetoothAdapter;
-    private Set<String> discoveredDeviceAddresses;
+    private KnownDeviceCache knownDevices;
+    private final Set<String> discoveredDeviceAddresses = new HashSet<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -38,26 +47,34 @@ public class DeviceListActivity extends AppCompatActivity {
     }
 
     private void init() {
+        ListView listRecentDevices = findViewById(R.id.list_recent_devices);
         ListView listPairedDevices = findViewById(R.id.list_paired_devices);
         ListView listAvailableDevices = findViewById(R.id.list_available_devices);
         progressScanDevices = findViewById(R.id.progress_scan_devices);
 
+        adapterRecentDevices = new ArrayAdapter<>(this, R.layout.device_list_item);
         adapterPairedDevices = new ArrayAdapter<>(this, R.layout.device_list_item);
         adapterAvailableDevices = new ArrayAdapter<>(this, R.layout.device_list_item);
 
+        listRecentDevices.setAdapter(adapterRecentDevices);
         listPairedDevices.setAdapter(adapterPairedDevices);
         listAvailableDevices.setAdapter(adapterAvailableDevices);
 
         listAvailableDevices.setOnItemClickListener(this::onDeviceClick);
         listPairedDevices.setOnItemClickListener(this::onDeviceClick);
+        listRecentDevices.setOnItemClickListener(this::onDeviceClick);
 
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        knownDevices = KnownDeviceCache.open(new File(getFilesDir(), "known_devices"));
+        populateRecentDevices();
         populatePairedDevices();
 
         registerReceiver(bluetoothDeviceListener, new IntentFilter(BluetoothDevice.ACTION_FOUND));
         registerReceiver(bluetoothDeviceListener, new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
-        discoveredDeviceAddresses = new HashSet<>();
 
+        if (adapterRecentDevices.getCount() == 0) {
+            scanDevices();
+        }
     }
 
     private void onDeviceClick(AdapterView<?> adapterView, View view, int i, long l) {
@@ -66,15 +83,19 @@ public class DeviceListActivity extends AppCompatActivity {
         }
         bluetoothAdapter.cancelDiscovery();
 
-        String info = ((TextView) view).getText().toString();
-        String address = info.substring(info.length() - 17);
-
+        KnownDevice device = (KnownDevice) adapterView.getItemAtPosition(i);
         Intent intent = new Intent();
-        intent.putExtra("deviceAddress", address);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress());
         setResult(RESULT_OK, intent);
         finish();
     }
 
+    private void populateRecentDevices() {
+        for (KnownDevice device : knownDevices.recent(RECENT_DEVICES)) {
+            adapterRecentDevices.add(device);
+        }
+    }
+
     private void populatePairedDevices() {
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             return;
@@ -82,7 +103,7 @@ public class DeviceListActivity extends AppCompatActivity {
         Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
         if (pairedDevices != null && !pairedDevices.isEmpty()) {
             for (BluetoothDevice device : pairedDevices) {
-                adapterPairedDevices.add(device.getName() + "\n" + device.getAddress());
+                adapterPairedDevices.add(describe(device));
             }
         }
     }
@@ -97,9 +118,9 @@ public class DeviceListActivity extends AppCompatActivity {
                 if (ActivityCompat.checkSelfPermission(DeviceListActivity.this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
                     return;
                 }
-                if (device != null && !discoveredDeviceAddresses.contains(device.getAddress())) {
-                    adapterAvailableDevices.add(device.getName() + "\n" + device.getAddress());
-                    discoveredDeviceAddresses.add(device.getAddress());
+                if (device != null && discoveredDeviceAddresses.add(device.getAddress())) {
+                    adapterAvailableDevices.add(knownDevices.recordSeen(device.getAddress(), device.getName(),
+                            System.currentTimeMillis()));
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 onDiscoveryFinished();
@@ -107,6 +128,14 @@ public class DeviceListActivity extends AppCompatActivity {
         }
     };
 
+    private KnownDevice describe(BluetoothDevice device) {
+        KnownDevice known = knownDevices.get(device.getAddress());
+        if (known != null && known.getName() != null) {
+            return known;
+        }
+        return new KnownDevice(device.getAddress(), device.getName(), 0, 0, 0, 0, new long[0]);
+    }
+
     private void onDiscoveryFinished() {
         progressScanDevices.setVisibility(View.GONE);
         int availableDevicesCount = adapterAvailableDevices.getCount();
@@ -131,6 +160,7 @@ public class DeviceListActivity extends AppCompatActivity {
     private void scanDevices() {
         progressScanDevices.setVisibility(View.VISIBLE);
         adapterAvailableDevices.clear();
+        discoveredDeviceAddresses.clear();
         Toast.makeText(this, "Scan started", Toast.LENGTH_SHORT).show();
 
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
@@ -0,0 +1,115 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.File;
+
+/**
+ * Progress of one file moving to or from a peer. A transfer survives the loss of its
+ * session and continues from the last acknowledged offset when the peer reconnects.
+ */
+public class FileTransfer {
+    public enum State {
+        WAITING,
+        ACTIVE,
+        PAUSED,
+        COMPLETED,
+        FAILED
+    }
+
+    private final long id;
+    private final String address;
+    private final String name;
+    private final long size;
+    private final boolean outgoing;
+    private final File file;
+
+    private volatile State state = State.WAITING;
+    private volatile long transferred;
+    private volatile long resumedAtNanos;
+    private volatile long resumedAtBytes;
+    volatile long lastReportNanos;
+
+    FileTransfer(long id, String address, String name, long size, boolean outgoing, File file) {
+        this.id = id;
+        this.address = address;
+        this.name = name;
+        this.size = size;
+        this.outgoing = outgoing;
+        this.file = file;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    /**
+     * The file being sent, or for an incoming transfer the file it is written to; the
+     * final name is only used once the transfer has completed.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Bytes acknowledged by the receiver (outgoing) or written to disk (incoming).
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public int getPercent() {
+        return size == 0 ? 100 : (int) (transferred * 100 / size);
+    }
+
+    /**
+     * Average bytes per second since the transfer was last started or resumed.
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - resumedAtNanos;
+        return elapsed <= 0 ? 0 : (transferred - resumedAtBytes) * 1e9 / elapsed;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void resumeFrom(long offset) {
+        transferred = offset;
+        resumedAtBytes = offset;
+        resumedAtNanos = System.nanoTime();
+        state = State.ACTIVE;
+    }
+
+    void setTransferred(long transferred) {
+        this.transferred = transferred;
+    }
+
+    boolean isFinished() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "FileTransfer{" + name + ", " + (outgoing ? "to " : "from ") + address
+                + ", " + state + ", " + transferred + "/" + size + "}";
+    }
+}
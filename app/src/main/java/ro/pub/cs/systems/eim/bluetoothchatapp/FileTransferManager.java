@@ -0,0 +1,533 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.net.ProtocolException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Sends and receives files over peer sessions in checksummed chunks.
+ * <pre>
+ * OFFER  id u64, size u64, name length u16, name UTF-8, window u32 (optional)
+ * CHUNK  id u64, offset u64, crc32 u32, data
+ * ACK    id u64, next offset u64 (-1 refuses the offer); flag RESEND asks the sender
+ *        to go back to that offset
+ * </pre>
+ * Acks are cumulative: the receiver reports how much it has written in order, every
+ * few chunks as set by {@link FlowControl}. The sender keeps at most one window
+ * unacknowledged, optionally paced, and reads each chunk from its {@link FileChannel}
+ * just before sending it. Chunks go on the session's bulk lane, behind chat messages.
+ * When a session is lost the transfer pauses; on reconnect the sender offers it again
+ * and the receiver answers with the length it already has. A finished transfer is
+ * forgotten, except that the last {@link #REMEMBERED_COMPLETIONS} received ones are
+ * acknowledged again if their sender missed the final ack.
+ */
+public class FileTransferManager {
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    static final int FLAG_RESEND = 1;
+    static final int REMEMBERED_COMPLETIONS = 32;
+    private static final int OFFER_HEADER_SIZE = 18;
+    private static final int CHUNK_HEADER_SIZE = 20;
+    private static final int ACK_SIZE = 16;
+    private static final int WINDOW_FIELD_SIZE = 4;
+    private static final int LEGACY_WINDOW_BYTES = 4 * CHUNK_SIZE;
+    private static final long REFUSED = -1;
+    private static final long PROGRESS_INTERVAL_NANOS = 250_000_000L;
+
+    private final ChatListener listener;
+    private final SessionScheduler scheduler;
+    private final Function<String, PeerSession> sessions;
+    private final ConcurrentMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Map<Long, FileTransfer> completed = new LinkedHashMap<Long, FileTransfer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FileTransfer> eldest) {
+            return size() > REMEMBERED_COMPLETIONS;
+        }
+    };
+
+    private volatile File downloadDirectory;
+    private volatile FlowControl flowControl = new FlowControl();
+
+    FileTransferManager(ChatListener listener, SessionScheduler scheduler, Function<String, PeerSession> sessions) {
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.sessions = sessions;
+    }
+
+    public void setDownloadDirectory(File downloadDirectory) {
+        this.downloadDirectory = downloadDirectory;
+    }
+
+    /**
+     * Applies to transfers offered or accepted from now on.
+     */
+    public void setFlowControl(FlowControl flowControl) {
+        this.flowControl = flowControl;
+    }
+
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
+    public List<FileTransfer> getTransfers() {
+        List<FileTransfer> transfers = new ArrayList<>();
+        for (Outgoing transfer : outgoing.values()) {
+            transfers.add(transfer.transfer);
+        }
+        for (Incoming transfer : incoming.values()) {
+            transfers.add(transfer.transfer);
+        }
+        return transfers;
+    }
+
+    public FileTransfer send(String address, File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        Outgoing transfer = new Outgoing(new FileTransfer(id, address, file.getName(), channel.size(), true, file),
+                channel);
+        outgoing.put(id, transfer);
+        PeerSession session = sessions.apply(address);
+        if (session != null && session.isConnected()) {
+            transfer.offer(session);
+        } else {
+            transfer.transfer.setState(FileTransfer.State.PAUSED);
+        }
+        return transfer.transfer;
+    }
+
+    void onSessionConnected(PeerSession session) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.transfer.getAddress().equals(session.getAddress())) {
+                transfer.offer(session);
+            }
+        }
+    }
+
+    void onSessionEnded(PeerSession session) {
+        for (Outgoing transfer : outgoing.values()) {
+            if (transfer.pause(session)) {
+                report(transfer.transfer, true);
+            }
+        }
+        for (Incoming transfer : incoming.values()) {
+            if (transfer.transfer.getAddress().equals(session.getAddress())) {
+                transfer.transfer.setState(FileTransfer.State.PAUSED);
+                report(transfer.transfer, true);
+            }
+        }
+    }
+
+    /**
+     * Throws if the frame is too short for its type.
+     */
+    void onFrame(PeerSession session, int type, int flags, byte[] payload, int offset, int length)
+            throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, offset, length);
+        switch (type) {
+            case FrameProtocol.TYPE_FILE_OFFER:
+                requireLength("offer", length, OFFER_HEADER_SIZE);
+                long id = buffer.getLong();
+                long size = buffer.getLong();
+                int nameLength = buffer.getShort() & 0xffff;
+                requireLength("offer", length, OFFER_HEADER_SIZE + nameLength);
+                byte[] name = new byte[nameLength];
+                buffer.get(name);
+                int window = buffer.remaining() >= WINDOW_FIELD_SIZE ? buffer.getInt() : LEGACY_WINDOW_BYTES;
+                if (id < 0 || size < 0 || window <= 0) {
+                    throw new ProtocolException("Bad offer: id " + id + ", size " + size + ", window " + window);
+                }
+                onOffer(session, id, size, new String(name, StandardCharsets.UTF_8), window);
+                break;
+            case FrameProtocol.TYPE_FILE_CHUNK:
+                requireLength("chunk", length, CHUNK_HEADER_SIZE);
+                Incoming receiving = incoming.get(buffer.getLong());
+                if (receiving == null) {
+                    break;
+                }
+                if (!receiving.transfer.getAddress().equals(session.getAddress())) {
+                    Log.e("FileTransfer->Chunk", session.getAddress() + " sent a chunk of a transfer from "
+                            + receiving.transfer.getAddress());
+                    break;
+                }
+                receiving.onChunk(session, buffer.getLong(), buffer.getInt(), payload,
+                        offset + CHUNK_HEADER_SIZE, length - CHUNK_HEADER_SIZE);
+                break;
+            case FrameProtocol.TYPE_FILE_ACK:
+                requireLength("ack", length, ACK_SIZE);
+                Outgoing sending = outgoing.get(buffer.getLong());
+                if (sending != null) {
+                    sending.onAck(session, buffer.getLong(), (flags & FLAG_RESEND) != 0);
+                }
+                break;
+            default:
+                Log.d("FileTransfer->Frame", "Ignoring frame of type " + type);
+        }
+    }
+
+    private static void requireLength(String frame, int length, int minimum) throws ProtocolException {
+        if (length < minimum) {
+            throw new ProtocolException("Short " + frame + ": " + length + " bytes, need " + minimum);
+        }
+    }
+
+    private void onOffer(PeerSession session, long id, long size, String name, int senderWindow) {
+        Incoming transfer = incoming.get(id);
+        if (transfer != null && !transfer.transfer.getAddress().equals(session.getAddress())) {
+            Log.e("FileTransfer->Offer", session.getAddress() + " offered a transfer id already in use");
+            sendAck(session, id, REFUSED, 0);
+            return;
+        }
+        if (transfer == null) {
+            FileTransfer done;
+            synchronized (completed) {
+                done = completed.get(id);
+            }
+            if (done != null && done.getAddress().equals(session.getAddress())) {
+                // The link dropped before our final ack got through.
+                sendAck(session, id, done.getSize(), 0);
+                return;
+            }
+            File directory = downloadDirectory;
+            if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+                Log.e("FileTransfer->Offer", "No download directory, refusing " + name);
+                sendAck(session, id, REFUSED, 0);
+                return;
+            }
+            try {
+                transfer = new Incoming(id, session.getAddress(), name, size, directory);
+            } catch (IOException e) {
+                Log.e("FileTransfer->Offer", e.toString());
+                sendAck(session, id, REFUSED, 0);
+                return;
+            }
+            incoming.put(id, transfer);
+        }
+        sendAck(session, id, transfer.resume(flowControl.ackInterval(senderWindow)), 0);
+        report(transfer.transfer, true);
+    }
+
+    private static void sendAck(PeerSession session, long id, long nextOffset, int flags) {
+        byte[] frame = new byte[FrameProtocol.HEADER_SIZE + ACK_SIZE];
+        FrameProtocol.writeHeader(frame, 0, FrameProtocol.TYPE_FILE_ACK, flags, ACK_SIZE);
+        ByteBuffer.wrap(frame, FrameProtocol.HEADER_SIZE, ACK_SIZE).putLong(id).putLong(nextOffset);
+        session.sendControl(frame);
+    }
+
+    private void report(FileTransfer transfer, boolean force) {
+        long now = System.nanoTime();
+        if (force || transfer.isFinished() || now - transfer.lastReportNanos >= PROGRESS_INTERVAL_NANOS) {
+            transfer.lastReportNanos = now;
+            listener.onTransferProgress(transfer);
+        }
+    }
+
+    private static String sanitize(String name) {
+        String base = new File(name).getName().replaceAll("[^A-Za-z0-9._ -]", "_");
+        return base.isEmpty() || base.startsWith(".") ? "file" + base : base;
+    }
+
+    private class Outgoing {
+        final FileTransfer transfer;
+        private final FileChannel channel;
+        private PeerSession session;
+        private int generation;
+        private long acked;
+        private long sendOffset;
+        private FlowControl flow;
+
+        Outgoing(FileTransfer transfer, FileChannel channel) {
+            this.transfer = transfer;
+            this.channel = channel;
+        }
+
+        void offer(PeerSession session) {
+            synchronized (this) {
+                if (transfer.isFinished()) {
+                    return;
+                }
+                this.session = session;
+                generation++;
+                flow = flowControl;
+                transfer.setState(FileTransfer.State.WAITING);
+            }
+            byte[] name = transfer.getName().getBytes(StandardCharsets.UTF_8);
+            int length = 18 + name.length + WINDOW_FIELD_SIZE;
+            byte[] frame = new byte[FrameProtocol.HEADER_SIZE + length];
+            FrameProtocol.writeHeader(frame, 0, FrameProtocol.TYPE_FILE_OFFER, 0, length);
+            ByteBuffer.wrap(frame, FrameProtocol.HEADER_SIZE, length)
+                    .putLong(transfer.getId()).putLong(transfer.getSize()).putShort((short) name.length).put(name)
+                    .putInt(flow.getWindowBytes());
+            session.sendControl(frame);
+        }
+
+        boolean pause(PeerSession ended) {
+            synchronized (this) {
+                if (session != ended || transfer.isFinished()) {
+                    return false;
+                }
+                session = null;
+                generation++;
+                transfer.setState(FileTransfer.State.PAUSED);
+                notifyAll();
+                return true;
+            }
+        }
+
+        void onAck(PeerSession from, long nextOffset, boolean resend) {
+            int started = -1;
+            synchronized (this) {
+                if (from != session || transfer.isFinished()) {
+                    return;
+                }
+                if (nextOffset == REFUSED || nextOffset > transfer.getSize()) {
+                    finish(FileTransfer.State.FAILED);
+                } else if (transfer.getState() == FileTransfer.State.WAITING) {
+                    acked = nextOffset;
+                    sendOffset = nextOffset;
+                    transfer.resumeFrom(nextOffset);
+                    started = generation;
+                } else {
+                    acked = Math.max(acked, nextOffset);
+                    if (resend) {
+                        sendOffset = nextOffset;
+                    }
+                    transfer.setTransferred(acked);
+                    notifyAll();
+                }
+                if (acked == transfer.getSize() && transfer.getState() == FileTransfer.State.ACTIVE) {
+                    finish(FileTransfer.State.COMPLETED);
+                    started = -1;
+                }
+            }
+            if (started >= 0) {
+                start(from, started);
+            }
+            report(transfer, false);
+        }
+
+        private void start(PeerSession session, int generation) {
+            try {
+                scheduler.submit("File-" + transfer.getId(), () -> stream(session, generation), null);
+            } catch (RejectedExecutionException e) {
+                Log.e("FileTransfer->Start", e.toString());
+                synchronized (this) {
+                    if (this.generation == generation) {
+                        finish(FileTransfer.State.FAILED);
+                    }
+                }
+                report(transfer, true);
+            }
+        }
+
+        private void stream(PeerSession session, int generation) {
+            CRC32 crc = new CRC32();
+            int dataStart = FrameProtocol.HEADER_SIZE + CHUNK_HEADER_SIZE;
+            FlowControl flow;
+            synchronized (this) {
+                flow = this.flow;
+            }
+            long pacing = flow.getPacingBytesPerSecond();
+            long nextSendNanos = System.nanoTime();
+            while (true) {
+                long offset;
+                synchronized (this) {
+                    while (this.generation == generation
+                            && (sendOffset >= transfer.getSize() || sendOffset - acked >= flow.getWindowBytes())) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (this.generation != generation) {
+                        return;
+                    }
+                    offset = sendOffset;
+                }
+
+                int length = (int) Math.min(CHUNK_SIZE, transfer.getSize() - offset);
+                byte[] frame = new byte[dataStart + length];
+                try {
+                    ByteBuffer data = ByteBuffer.wrap(frame, dataStart, length);
+                    while (data.hasRemaining()) {
+                        if (channel.read(data, offset + data.position() - dataStart) < 0) {
+                            throw new EOFException("File shrank during transfer");
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e("FileTransfer->Read", e.toString());
+                    synchronized (this) {
+                        if (this.generation == generation) {
+                            finish(FileTransfer.State.FAILED);
+                        }
+                    }
+                    report(transfer, true);
+                    return;
+                }
+                crc.reset();
+                crc.update(frame, dataStart, length);
+                FrameProtocol.writeHeader(frame, 0, FrameProtocol.TYPE_FILE_CHUNK, 0, CHUNK_HEADER_SIZE + length);
+                ByteBuffer.wrap(frame, FrameProtocol.HEADER_SIZE, CHUNK_HEADER_SIZE)
+                        .putLong(transfer.getId()).putLong(offset).putInt((int) crc.getValue());
+
+                if (pacing > 0) {
+                    long now = System.nanoTime();
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(nextSendNanos - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    nextSendNanos = Math.max(now, nextSendNanos) + frame.length * 1_000_000_000L / pacing;
+                }
+                if (!session.sendFrame(frame)) {
+                    return;
+                }
+                synchronized (this) {
+                    if (sendOffset == offset) {
+                        sendOffset = offset + length;
+                    }
+                }
+            }
+        }
+
+        private void finish(FileTransfer.State state) {
+            generation++;
+            transfer.setState(state);
+            outgoing.remove(transfer.getId());
+            notifyAll();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.d("FileTransfer->Close", e.toString());
+            }
+        }
+    }
+
+    private class Incoming {
+        final FileTransfer transfer;
+        private final File partFile;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private long received;
+        private long lastAcked;
+        private int ackInterval = CHUNK_SIZE;
+        private boolean resendRequested;
+
+        Incoming(long id, String address, String name, long size, File directory) throws IOException {
+            File target = new File(directory, sanitize(name));
+            for (int i = 1; target.exists(); i++) {
+                target = new File(directory, i + "-" + sanitize(name));
+            }
+            transfer = new FileTransfer(id, address, name, size, false, target);
+            partFile = new File(directory, target.getName() + ".part");
+            channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        synchronized long resume(int ackInterval) {
+            this.ackInterval = ackInterval;
+            lastAcked = received;
+            resendRequested = false;
+            if (!transfer.isFinished()) {
+                transfer.resumeFrom(received);
+                if (received == transfer.getSize()) {
+                    complete();
+                }
+            }
+            return received;
+        }
+
+        void onChunk(PeerSession session, long offset, int checksum, byte[] data, int dataOffset, int length) {
+            long next = -1;
+            synchronized (this) {
+                if (transfer.isFinished()) {
+                    return;
+                }
+                crc.reset();
+                crc.update(data, dataOffset, length);
+                if (offset != received || (int) crc.getValue() != checksum
+                        || received + length > transfer.getSize()) {
+                    if (!resendRequested) {
+                        resendRequested = true;
+                        sendAck(session, transfer.getId(), received, FLAG_RESEND);
+                    }
+                    return;
+                }
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, offset + buffer.position() - dataOffset);
+                    }
+                } catch (IOException e) {
+                    Log.e("FileTransfer->Write", e.toString());
+                    fail();
+                    sendAck(session, transfer.getId(), REFUSED, 0);
+                    report(transfer, true);
+                    return;
+                }
+                received += length;
+                resendRequested = false;
+                transfer.setTransferred(received);
+                if (received == transfer.getSize()) {
+                    complete();
+                }
+                if (received - lastAcked >= ackInterval || transfer.isFinished()) {
+                    lastAcked = received;
+                    next = received;
+                }
+            }
+            if (next >= 0) {
+                sendAck(session, transfer.getId(), next, 0);
+            }
+            report(transfer, false);
+        }
+
+        private void complete() {
+            try {
+                channel.force(false);
+                channel.close();
+                if (!partFile.renameTo(transfer.getFile())) {
+                    throw new IOException("Cannot rename " + partFile);
+                }
+                synchronized (completed) {
+                    completed.put(transfer.getId(), transfer);
+                }
+                incoming.remove(transfer.getId());
+                transfer.setState(FileTransfer.State.COMPLETED);
+            } catch (IOException e) {
+                Log.e("FileTransfer->Complete", e.toString());
+                fail();
+            }
+        }
+
+        private void fail() {
+            transfer.setState(FileTransfer.State.FAILED);
+            incoming.remove(transfer.getId());
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.d("FileTransfer->Close", e.toString());
+            }
+            partFile.delete();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * Tuning for bulk transfers. The sender keeps at most {@code windowBytes} unacknowledged;
+ * to fill a link it has to cover the bandwidth-delay product, e.g. 20 KB for a 100 KB/s
+ * link with 200 ms round trips. The receiver acknowledges once {@code ackEveryBytes}
+ * have arrived since its last ack, but never less often than twice per sender window,
+ * so a small window cannot stall waiting for an ack that is not coming.
+ *
+ * <p>With {@code pacingBytesPerSecond} set, chunks leave evenly spaced at that rate
+ * instead of as one burst per ack. Pacing at about the link rate keeps the link's own
+ * queue short, so chat messages are not stuck behind a window's worth of file data.
+ */
+public class FlowControl {
+    public static final int DEFAULT_WINDOW_BYTES = 4 * FileTransferManager.CHUNK_SIZE;
+    public static final int DEFAULT_ACK_EVERY_BYTES = FileTransferManager.CHUNK_SIZE;
+
+    private final int windowBytes;
+    private final int ackEveryBytes;
+    private final long pacingBytesPerSecond;
+
+    public FlowControl() {
+        this(DEFAULT_WINDOW_BYTES, DEFAULT_ACK_EVERY_BYTES, 0);
+    }
+
+    /**
+     * @param pacingBytesPerSecond 0 sends each chunk as soon as the window allows
+     */
+    public FlowControl(int windowBytes, int ackEveryBytes, long pacingBytesPerSecond) {
+        if (windowBytes < FileTransferManager.CHUNK_SIZE) {
+            throw new IllegalArgumentException("Window smaller than one chunk: " + windowBytes);
+        }
+        if (ackEveryBytes <= 0 || pacingBytesPerSecond < 0) {
+            throw new IllegalArgumentException("ackEveryBytes " + ackEveryBytes + ", pacing " + pacingBytesPerSecond);
+        }
+        this.windowBytes = windowBytes;
+        this.ackEveryBytes = ackEveryBytes;
+        this.pacingBytesPerSecond = pacingBytesPerSecond;
+    }
+
+    public int getWindowBytes() {
+        return windowBytes;
+    }
+
+    public int getAckEveryBytes() {
+        return ackEveryBytes;
+    }
+
+    public long getPacingBytesPerSecond() {
+        return pacingBytesPerSecond;
+    }
+
+    /**
+     * How many bytes the receiver lets through between acks for a sender that announced
+     * {@code senderWindow}.
+     */
+    int ackInterval(int senderWindow) {
+        return Math.max(1, Math.min(ackEveryBytes, senderWindow / 2));
+    }
+
+    @Override
+    public String toString() {
+        return "window " + windowBytes + " B, ack every " + ackEveryBytes + " B, pacing "
+                + (pacingBytesPerSecond == 0 ? "off" : pacingBytesPerSecond + " B/s");
+    }
+}
@@ -0,0 +1,280 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame DEFLATE compression for the chat link, and the counters that show whether
+ * it pays off. A compressed payload is the original length (u32) followed by raw
+ * DEFLATE data; the frame carries {@link #FLAG_COMPRESSED}, plus {@link #FLAG_DICTIONARY}
+ * when the preset dictionary was used.
+ *
+ * <p>Each session gets one {@link Compressor} for its writer and one {@link Decompressor}
+ * for its reader; both keep their native stream and buffers for the life of the session.
+ * Frames below the threshold are sent as they are, as are frames that do not shrink.
+ */
+public class FrameCompression {
+    public static final int FLAG_COMPRESSED = 0x1;
+    public static final int FLAG_DICTIONARY = 0x2;
+
+    public static final int CODEC_DEFLATE = 0x1;
+
+    public static final int DEFAULT_THRESHOLD = 64;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    private static final int LENGTH_PREFIX = 4;
+
+    /**
+     * Common chat fragments; DEFLATE favours matches near the end, so the most frequent
+     * ones come last.
+     */
+    private static final byte[] DEFAULT_DICTIONARY = ("https://www. .com .jpg .png meeting tomorrow tonight "
+            + "morning phone call later today where when what why how file sent message please sorry "
+            + "thank you thanks okay yes no I'm I am you are it's that's don't can't will just like know "
+            + "think want need going have with this that there here and the ").getBytes(StandardCharsets.UTF_8);
+
+    private final boolean enabled;
+    private final int level;
+    private final int threshold;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    private final AtomicLong framesCompressed = new AtomicLong();
+    private final AtomicLong framesBelowThreshold = new AtomicLong();
+    private final AtomicLong framesIncompressible = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong framesDecompressed = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public FrameCompression() {
+        this(true, DEFAULT_LEVEL, DEFAULT_THRESHOLD, DEFAULT_DICTIONARY);
+    }
+
+    public FrameCompression(boolean enabled, int level, int threshold, byte[] dictionary) {
+        this.enabled = enabled;
+        this.level = level;
+        this.threshold = threshold;
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            CRC32 crc = new CRC32();
+            crc.update(dictionary);
+            dictionaryId = (int) crc.getValue();
+        } else {
+            dictionaryId = 0;
+        }
+    }
+
+    public static FrameCompression disabled() {
+        return new FrameCompression(false, DEFAULT_LEVEL, DEFAULT_THRESHOLD, null);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Codecs advertised to the peer in the session hello.
+     */
+    public int getCodecs() {
+        return enabled ? CODEC_DEFLATE : 0;
+    }
+
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Returns a compressor for a peer that advertised {@code peerCodecs}, or null if the
+     * two sides have no codec in common.
+     */
+    public Compressor newCompressor(int peerCodecs, int peerDictionaryId) {
+        if (!enabled || (peerCodecs & CODEC_DEFLATE) == 0) {
+            return null;
+        }
+        boolean useDictionary = dictionary != null && peerDictionaryId == dictionaryId;
+        return new Compressor(useDictionary);
+    }
+
+    public Decompressor newDecompressor() {
+        return new Decompressor();
+    }
+
+    public long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    public long getFramesBelowThreshold() {
+        return framesBelowThreshold.get();
+    }
+
+    public long getFramesIncompressible() {
+        return framesIncompressible.get();
+    }
+
+    public long getFramesDecompressed() {
+        return framesDecompressed.get();
+    }
+
+    /**
+     * Compressed size over original size of the frames that were compressed.
+     */
+    public double getRatio() {
+        long in = bytesIn.get();
+        return in == 0 ? 1 : (double) bytesOut.get() / in;
+    }
+
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    /**
+     * CPU time spent compressing, including attempts that did not shrink the frame.
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameCompression{compressed=" + getFramesCompressed()
+                + ", small=" + getFramesBelowThreshold()
+                + ", incompressible=" + getFramesIncompressible()
+                + ", ratio=" + String.format("%.2f", getRatio())
+                + ", saved=" + getBytesSaved()
+                + ", compressMs=" + getCompressNanos() / 1_000_000
+                + ", decompressMs=" + getDecompressNanos() / 1_000_000 + "}";
+    }
+
+    /**
+     * Compresses frames for one session's writer. Not thread safe.
+     */
+    public class Compressor {
+        private final Deflater deflater = new Deflater(level, true);
+        private final boolean useDictionary;
+
+        private Compressor(boolean useDictionary) {
+            this.useDictionary = useDictionary;
+        }
+
+        /**
+         * Compresses {@code length} bytes into {@code destination} when that saves space.
+         * Returns the compressed payload length, or -1 if the frame should go out as it
+         * is. {@code destination} needs room for {@code length} bytes at {@code destOffset}.
+         */
+        public int compress(byte[] source, int offset, int length, byte[] destination, int destOffset) {
+            if (length < threshold) {
+                framesBelowThreshold.incrementAndGet();
+                return -1;
+            }
+            long start = System.nanoTime();
+            deflater.reset();
+            if (useDictionary) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(source, offset, length);
+            deflater.finish();
+
+            int limit = length - 1 - LENGTH_PREFIX;
+            int written = 0;
+            while (!deflater.finished() && written < limit) {
+                written += deflater.deflate(destination, destOffset + LENGTH_PREFIX + written, limit - written);
+            }
+            compressNanos.addAndGet(System.nanoTime() - start);
+            if (!deflater.finished()) {
+                framesIncompressible.incrementAndGet();
+                return -1;
+            }
+
+            destination[destOffset] = (byte) (length >>> 24);
+            destination[destOffset + 1] = (byte) (length >>> 16);
+            destination[destOffset + 2] = (byte) (length >>> 8);
+            destination[destOffset + 3] = (byte) length;
+            framesCompressed.incrementAndGet();
+            bytesIn.addAndGet(length);
+            bytesOut.addAndGet(LENGTH_PREFIX + written);
+            return LENGTH_PREFIX + written;
+        }
+
+        /**
+         * Frame flags to set on a payload this compressor produced.
+         */
+        public int flags() {
+            return useDictionary ? FLAG_COMPRESSED | FLAG_DICTIONARY : FLAG_COMPRESSED;
+        }
+
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Restores compressed frames for one session's reader into a reused buffer. The
+     * result is only valid until the next call. Not thread safe.
+     */
+    public class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[4096];
+
+        private Decompressor() {
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        /**
+         * Decompresses a payload into {@link #buffer()} and returns its length.
+         */
+        public int decompress(byte[] payload, int offset, int length, int flags) throws DataFormatException {
+            if (length < LENGTH_PREFIX) {
+                throw new DataFormatException("Compressed payload too short");
+            }
+            int originalLength = ((payload[offset] & 0xff) << 24) | ((payload[offset + 1] & 0xff) << 16)
+                    | ((payload[offset + 2] & 0xff) << 8) | (payload[offset + 3] & 0xff);
+            if (originalLength < 0 || originalLength > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+                throw new DataFormatException("Bad original length " + originalLength);
+            }
+            if ((flags & FLAG_DICTIONARY) != 0 && dictionary == null) {
+                throw new DataFormatException("Peer used a dictionary we do not have");
+            }
+            if (buffer.length < originalLength) {
+                buffer = new byte[Math.max(originalLength, buffer.length * 2)];
+            }
+
+            long start = System.nanoTime();
+            inflater.reset();
+            if ((flags & FLAG_DICTIONARY) != 0) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(payload, offset + LENGTH_PREFIX, length - LENGTH_PREFIX);
+            int produced = 0;
+            while (produced < originalLength && !inflater.finished()) {
+                int n = inflater.inflate(buffer, produced, originalLength - produced);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            decompressNanos.addAndGet(System.nanoTime() - start);
+            if (produced != originalLength) {
+                throw new DataFormatException("Expected " + originalLength + " bytes, got " + produced);
+            }
+            framesDecompressed.incrementAndGet();
+            return produced;
+        }
+
+        public void end() {
+            inflater.end();
+        }
+    }
+}
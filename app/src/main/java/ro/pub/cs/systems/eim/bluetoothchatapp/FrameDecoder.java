@@ -0,0 +1,115 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.net.ProtocolException;
+
+/**
+ * Incremental decoder that rebuilds whole frames from arbitrarily split reads.
+ * A frame contained entirely in one read is handed to the listener straight from
+ * the read buffer; a frame spanning reads is copied exactly once into a reassembly
+ * buffer. Payload arrays are only valid for the duration of the callback.
+ */
+public class FrameDecoder {
+    public interface Listener {
+        void onFrame(int type, int flags, byte[] payload, int offset, int length);
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int RETAINED_BUFFER_LIMIT = 64 * 1024;
+
+    private final Listener listener;
+    private final int maxPayloadLength;
+
+    private final byte[] header = new byte[FrameProtocol.HEADER_SIZE];
+    private int headerFill;
+
+    private boolean readingPayload;
+    private int type;
+    private int flags;
+    private int length;
+
+    private byte[] reassembly = EMPTY;
+    private int reassemblyFill;
+
+    public FrameDecoder(Listener listener) {
+        this(listener, FrameProtocol.MAX_PAYLOAD_LENGTH);
+    }
+
+    public FrameDecoder(Listener listener, int maxPayloadLength) {
+        this.listener = listener;
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    public void feed(byte[] data, int offset, int count) throws ProtocolException {
+        int end = offset + count;
+        while (offset < end) {
+            if (!readingPayload) {
+                if (headerFill == 0 && end - offset >= FrameProtocol.HEADER_SIZE) {
+                    parseHeader(data, offset);
+                    offset += FrameProtocol.HEADER_SIZE;
+                } else {
+                    int n = Math.min(FrameProtocol.HEADER_SIZE - headerFill, end - offset);
+                    System.arraycopy(data, offset, header, headerFill, n);
+                    headerFill += n;
+                    offset += n;
+                    if (headerFill < FrameProtocol.HEADER_SIZE) {
+                        return;
+                    }
+                    headerFill = 0;
+                    parseHeader(header, 0);
+                }
+
+                if (length == 0) {
+                    listener.onFrame(type, flags, EMPTY, 0, 0);
+                    continue;
+                }
+                readingPayload = true;
+                reassemblyFill = 0;
+            }
+
+            int available = end - offset;
+            if (reassemblyFill == 0 && available >= length) {
+                readingPayload = false;
+                listener.onFrame(type, flags, data, offset, length);
+                offset += length;
+                continue;
+            }
+
+            if (reassembly.length < length) {
+                reassembly = new byte[length];
+            }
+            int n = Math.min(length - reassemblyFill, available);
+            System.arraycopy(data, offset, reassembly, reassemblyFill, n);
+            reassemblyFill += n;
+            offset += n;
+
+            if (reassemblyFill == length) {
+                readingPayload = false;
+                reassemblyFill = 0;
+                listener.onFrame(type, flags, reassembly, 0, length);
+                if (reassembly.length > RETAINED_BUFFER_LIMIT) {
+                    reassembly = EMPTY;
+                }
+            }
+        }
+    }
+
+    public boolean isIdle() {
+        return !readingPayload && headerFill == 0;
+    }
+
+    private void parseHeader(byte[] source, int offset) throws ProtocolException {
+        int version = source[offset] & 0xFF;
+        if (version != FrameProtocol.VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+        type = source[offset + 1] & 0xFF;
+        flags = ((source[offset + 2] & 0xFF) << 8) | (source[offset + 3] & 0xFF);
+        length = ((source[offset + 4] & 0xFF) << 24)
+                | ((source[offset + 5] & 0xFF) << 16)
+                | ((source[offset + 6] & 0xFF) << 8)
+                | (source[offset + 7] & 0xFF);
+        if (length < 0 || length > maxPayloadLength) {
+            throw new ProtocolException("Frame length out of range: " + (length & 0xFFFFFFFFL));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * Wire format of a frame sent over the chat link.
+ * <pre>
+ * +---------+------+-----------+----------------+----------------
+ * | version | type | flags     | payload length | payload ...
+ * | 1 byte  | 1 b  | 2 bytes   | 4 bytes        | length bytes
+ * +---------+------+-----------+----------------+----------------
+ * </pre>
+ * All multi-byte fields are big-endian.
+ */
+public final class FrameProtocol {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_FILE_OFFER = 2;
+    public static final int TYPE_FILE_CHUNK = 3;
+    public static final int TYPE_FILE_ACK = 4;
+    public static final int TYPE_HELLO = 5;
+    public static final int TYPE_PING = 6;
+    public static final int TYPE_PONG = 7;
+    public static final int TYPE_RELAY = 8;
+    public static final int TYPE_SEALED = 9;
+    public static final int TYPE_MESSAGE = 10;
+    public static final int TYPE_FRAGMENT = 11;
+
+    /**
+     * Set on frames from the message lane (text, and typed or relayed messages) whose
+     * payload starts with a u32 sequence number.
+     */
+    public static final int FLAG_SEQUENCED = 0x4;
+
+    /**
+     * Set on the fragment that completes a frame; see {@link ChannelScheduler}.
+     */
+    public static final int FLAG_LAST_FRAGMENT = 0x8;
+
+    private FrameProtocol() {
+    }
+
+    public static void writeHeader(byte[] destination, int offset, int type, int flags, int length) {
+        destination[offset] = (byte) VERSION;
+        destination[offset + 1] = (byte) type;
+        destination[offset + 2] = (byte) (flags >>> 8);
+        destination[offset + 3] = (byte) flags;
+        destination[offset + 4] = (byte) (length >>> 24);
+        destination[offset + 5] = (byte) (length >>> 16);
+        destination[offset + 6] = (byte) (length >>> 8);
+        destination[offset + 7] = (byte) length;
+    }
+
+    public static byte[] encode(int type, int flags, byte[] payload, int offset, int length) {
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too large: " + length);
+        }
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeHeader(frame, 0, type, flags, length);
+        System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, byte[] payload) {
+        return encode(type, 0, payload, 0, payload.length);
+    }
+}
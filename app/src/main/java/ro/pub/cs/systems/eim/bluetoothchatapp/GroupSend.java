@@ -0,0 +1,120 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of one message sent to a group of peers with
+ * {@link ChatUtils#writeGroup(Collection, byte[])}. Each peer ends up either delivered,
+ * with the time from the send to its socket write, or failed, when it was not
+ * connected, refused the message or disconnected before writing it.
+ */
+public class GroupSend {
+    private static final long PENDING = -1;
+    private static final long FAILED = -2;
+
+    private final byte[] message;
+    private final long startNanos;
+    private final Map<String, Long> outcomes = new LinkedHashMap<>();
+    private final CountDownLatch remaining;
+
+    GroupSend(byte[] message, Collection<String> addresses) {
+        this.message = message;
+        this.startNanos = System.nanoTime();
+        for (String address : addresses) {
+            outcomes.put(address, PENDING);
+        }
+        remaining = new CountDownLatch(outcomes.size());
+    }
+
+    /**
+     * The shared copy queued for every peer; must not be modified.
+     */
+    byte[] getMessage() {
+        return message;
+    }
+
+    public synchronized Set<String> getPeers() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(outcomes.keySet()));
+    }
+
+    /**
+     * Records the write to {@code address}; returns true once every peer has an outcome.
+     */
+    boolean delivered(String address, long flushedNanos) {
+        return resolve(address, Math.max(0, flushedNanos - startNanos));
+    }
+
+    boolean failed(String address) {
+        return resolve(address, FAILED);
+    }
+
+    private synchronized boolean resolve(String address, long outcome) {
+        Long current = outcomes.get(address);
+        if (current != null && current == PENDING) {
+            outcomes.put(address, outcome);
+            remaining.countDown();
+        }
+        return remaining.getCount() == 0;
+    }
+
+    public boolean isDone() {
+        return remaining.getCount() == 0;
+    }
+
+    /**
+     * Waits until every peer has an outcome. Returns false on timeout.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return remaining.await(timeout, unit);
+    }
+
+    /**
+     * Nanoseconds from the send to the write on {@code address}'s socket, or -1 if the
+     * message was not (yet) written there.
+     */
+    public synchronized long getLatencyNanos(String address) {
+        Long outcome = outcomes.get(address);
+        return outcome == null || outcome < 0 ? -1 : outcome;
+    }
+
+    public synchronized Map<String, Long> getLatencies() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() >= 0) {
+                latencies.put(outcome.getKey(), outcome.getValue());
+            }
+        }
+        return latencies;
+    }
+
+    public synchronized Set<String> getFailed() {
+        Set<String> failed = new LinkedHashSet<>();
+        for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+            if (outcome.getValue() == FAILED) {
+                failed.add(outcome.getKey());
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("GroupSend{");
+        String separator = "";
+        for (Map.Entry<String, Long> outcome : outcomes.entrySet()) {
+            long value = outcome.getValue();
+            builder.append(separator).append(outcome.getKey()).append('=')
+                    .append(value == PENDING ? "pending" : value == FAILED ? "failed"
+                            : String.format("%.2f ms", value / 1e6));
+            separator = ", ";
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,75 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Forwards chat events to a {@link Handler} as the {@link Constants} message codes.
+ * Per-session messages carry the session id so the receiver can tell peers apart.
+ */
+public class HandlerChatListener implements ChatListener {
+    private final Handler handler;
+
+    public HandlerChatListener(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        handler.obtainMessage(Constants.MESSAGE_STATE_CHANGED, state, -1).sendToTarget();
+    }
+
+    @Override
+    public void onSessionConnected(PeerSession session) {
+        Message message = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME, session.getId(), -1);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, session.getName());
+        bundle.putString(Constants.DEVICE_ADDRESS, session.getAddress());
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+
+    @Override
+    public void onSessionClosed(PeerSession session) {
+        handler.obtainMessage(Constants.MESSAGE_DEVICE_DISCONNECTED, session.getId(), -1).sendToTarget();
+    }
+
+    @Override
+    public void onMessageRead(PeerSession session, PooledBuffer message) {
+        handler.obtainMessage(Constants.MESSAGE_READ, message.length(), session.getId(), message).sendToTarget();
+    }
+
+    @Override
+    public void onMessageWritten(PeerSession session, byte[] message) {
+        handler.obtainMessage(Constants.MESSAGE_WRITE, -1, session.getId(), message).sendToTarget();
+    }
+
+    @Override
+    public void onTransferProgress(FileTransfer transfer) {
+        handler.obtainMessage(Constants.MESSAGE_FILE_PROGRESS, transfer.getPercent(), -1, transfer).sendToTarget();
+    }
+
+    @Override
+    public void onHandshakeComplete(PeerSession session) {
+        Message message = handler.obtainMessage(Constants.MESSAGE_SECURITY, session.getId(), -1);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.VERIFICATION_CODE, session.getVerificationCode());
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+
+    @Override
+    public void onLinkQuality(PeerSession session, LinkQualityEstimator.Snapshot quality) {
+        handler.obtainMessage(Constants.MESSAGE_LINK_QUALITY, session.getId(), -1, quality).sendToTarget();
+    }
+
+    @Override
+    public void onToast(String text) {
+        Message message = handler.obtainMessage(Constants.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.TOAST, text);
+        message.setData(bundle);
+        handler.sendMessage(message);
+    }
+}
@@ -0,0 +1,165 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport whose links are in-process pipes. Every node gets its own instance with a
+ * unique address on a shared {@link Network}, so several chat endpoints can talk to each
+ * other inside one JVM.
+ */
+public class InMemoryTransport implements Transport {
+    private static final int DEFAULT_PIPE_CAPACITY = 64 * 1024;
+
+    public static class Network {
+        private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<>();
+        private final int pipeCapacity;
+
+        public Network() {
+            this(DEFAULT_PIPE_CAPACITY);
+        }
+
+        public Network(int pipeCapacity) {
+            this.pipeCapacity = pipeCapacity;
+        }
+    }
+
+    private final Network network;
+    private final String address;
+
+    public InMemoryTransport(Network network, String address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        Server server = new Server();
+        if (network.servers.putIfAbsent(address, server) != null) {
+            throw new IOException("Address already in use: " + address);
+        }
+        return server;
+    }
+
+    @Override
+    public TransportSocket createConnection(String remoteAddress) {
+        return new PipeSocket(remoteAddress);
+    }
+
+    private class Server implements TransportServer {
+        private final BlockingQueue<PipeSocket> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            PipeSocket socket;
+            try {
+                socket = pending.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.toString());
+            }
+            if (closed) {
+                throw new IOException("Server closed");
+            }
+            return socket;
+        }
+
+        boolean offer(PipeSocket socket) {
+            return !closed && pending.offer(socket);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                network.servers.remove(address, this);
+                pending.offer(new PipeSocket(address));
+            }
+        }
+    }
+
+    private class PipeSocket implements TransportSocket {
+        private final String remoteAddress;
+        private volatile BytePipe inbound;
+        private volatile BytePipe outbound;
+        private volatile boolean closed;
+
+        PipeSocket(String remoteAddress) {
+            this.remoteAddress = remoteAddress;
+        }
+
+        PipeSocket(String remoteAddress, BytePipe inbound, BytePipe outbound) {
+            this.remoteAddress = remoteAddress;
+            this.inbound = inbound;
+            this.outbound = outbound;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (closed) {
+                throw new IOException("Socket closed");
+            }
+            Server server = network.servers.get(remoteAddress);
+            if (server == null) {
+                throw new IOException("Connection refused: " + remoteAddress);
+            }
+
+            BytePipe toServer = new BytePipe(network.pipeCapacity);
+            BytePipe toClient = new BytePipe(network.pipeCapacity);
+            if (!server.offer(new PipeSocket(address, toServer, toClient))) {
+                throw new IOException("Connection refused: " + remoteAddress);
+            }
+            inbound = toClient;
+            outbound = toServer;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connectedPipe(inbound).getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return connectedPipe(outbound).getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if (inbound != null) {
+                inbound.close();
+            }
+            if (outbound != null) {
+                outbound.close();
+            }
+        }
+
+        private BytePipe connectedPipe(BytePipe pipe) throws IOException {
+            if (pipe == null) {
+                throw new IOException("Socket not connected");
+            }
+            return pipe;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Arrays;
+
+/**
+ * A peer remembered by {@link KnownDeviceCache}. Instances are immutable snapshots;
+ * the cache replaces them as it learns more.
+ */
+public final class KnownDevice {
+    static final int LATENCY_HISTORY = 8;
+
+    private final String address;
+    private final String name;
+    private final long lastSeen;
+    private final long lastConnected;
+    private final int connectCount;
+    private final int failureCount;
+    private final long[] connectMillis;
+
+    KnownDevice(String address, String name, long lastSeen, long lastConnected, int connectCount, int failureCount,
+                long[] connectMillis) {
+        this.address = address;
+        this.name = name;
+        this.lastSeen = lastSeen;
+        this.lastConnected = lastConnected;
+        this.connectCount = connectCount;
+        this.failureCount = failureCount;
+        this.connectMillis = connectMillis;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Wall clock time the device was last found by discovery or connected, 0 if never.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Wall clock time of the last successful connection, 0 if never.
+     */
+    public long getLastConnected() {
+        return lastConnected;
+    }
+
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Durations of the most recent dialled connections, oldest first.
+     */
+    public long[] getConnectMillis() {
+        return connectMillis.clone();
+    }
+
+    /**
+     * Median of {@link #getConnectMillis()}, or -1 without history.
+     */
+    public long getMedianConnectMillis() {
+        if (connectMillis.length == 0) {
+            return -1;
+        }
+        long[] sorted = connectMillis.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    KnownDevice seen(String name, long now) {
+        return new KnownDevice(address, name != null ? name : this.name, Math.max(lastSeen, now), lastConnected,
+                connectCount, failureCount, connectMillis);
+    }
+
+    KnownDevice connected(String name, long now, long latencyMillis) {
+        long[] history = connectMillis;
+        if (latencyMillis >= 0) {
+            int keep = Math.min(history.length, LATENCY_HISTORY - 1);
+            history = Arrays.copyOfRange(history, history.length - keep, history.length + 1);
+            history[keep] = latencyMillis;
+        }
+        return new KnownDevice(address, name != null ? name : this.name, Math.max(lastSeen, now), now,
+                connectCount + 1, failureCount, history);
+    }
+
+    KnownDevice failed() {
+        return new KnownDevice(address, name, lastSeen, lastConnected, connectCount, failureCount + 1, connectMillis);
+    }
+
+    /**
+     * Two lines, name then address, as shown in the device lists.
+     */
+    @Override
+    public String toString() {
+        return (name == null ? address : name) + "\n" + address;
+    }
+}
@@ -0,0 +1,222 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Peers this device has seen or talked to, kept in a small file so the device list can
+ * offer them without running discovery. Changes are saved on a background thread at most
+ * {@link #SAVE_DELAY_MILLIS} after they are made, so a discovery burst costs one write,
+ * to a temporary file that then replaces the old one; a crash leaves either the old or
+ * the new cache, and loses at most the changes of the last delay.
+ *
+ * <p>At most {@link #MAX_DEVICES} devices are kept. Past that the least recently active
+ * device that never connected goes first, so a crowded scan cannot push out the peers
+ * {@link #recent(int)} offers; only when every device has connected does the least
+ * recently active one go.
+ *
+ * <p>Use {@link #open(File)} so that the activities and the chat service of one process
+ * share a single instance per file.
+ */
+public class KnownDeviceCache {
+    public static final int MAX_DEVICES = 64;
+    static final long SAVE_DELAY_MILLIS = 2000;
+    private static final int MAGIC = 0x4b444331;
+    private static final Map<String, KnownDeviceCache> OPEN = new HashMap<>();
+    private static final ScheduledExecutorService SAVER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "known-devices-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final LinkedHashMap<String, KnownDevice> devices = new LinkedHashMap<>();
+    private boolean dirty;
+
+    KnownDeviceCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static KnownDeviceCache open(File file) {
+        synchronized (OPEN) {
+            return OPEN.computeIfAbsent(file.getAbsolutePath(), path -> new KnownDeviceCache(file));
+        }
+    }
+
+    public synchronized KnownDevice get(String address) {
+        return devices.get(address);
+    }
+
+    /**
+     * Devices that have connected before, most recent first.
+     */
+    public synchronized List<KnownDevice> recent(int limit) {
+        List<KnownDevice> connected = new ArrayList<>();
+        for (KnownDevice device : devices.values()) {
+            if (device.getLastConnected() > 0) {
+                connected.add(device);
+            }
+        }
+        connected.sort(Comparator.comparingLong(KnownDevice::getLastConnected).reversed());
+        return connected.size() > limit ? new ArrayList<>(connected.subList(0, limit)) : connected;
+    }
+
+    /**
+     * Returns what is now known about the device, which the cache may not keep if it is
+     * full of devices that have connected.
+     */
+    public KnownDevice recordSeen(String address, String name, long now) {
+        return update(address, name, device -> device.seen(name, now));
+    }
+
+    /**
+     * @param latencyMillis how long connecting took, or -1 if the peer dialled us
+     */
+    public void recordConnected(String address, String name, long now, long latencyMillis) {
+        update(address, name, device -> device.connected(name, now, latencyMillis));
+    }
+
+    public void recordFailure(String address) {
+        update(address, null, KnownDevice::failed);
+    }
+
+    private synchronized KnownDevice update(String address, String name, UnaryOperator<KnownDevice> change) {
+        KnownDevice device = devices.remove(address);
+        if (device == null) {
+            device = new KnownDevice(address, name, 0, 0, 0, 0, new long[0]);
+        }
+        device = change.apply(device);
+        devices.put(address, device);
+        if (devices.size() > MAX_DEVICES) {
+            evict();
+        }
+        if (!dirty) {
+            dirty = true;
+            SAVER.schedule(this::saveIfDirty, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return device;
+    }
+
+    /**
+     * Removes the least recently active device that never connected, or failing that the
+     * least recently active one.
+     */
+    private void evict() {
+        String victim = devices.keySet().iterator().next();
+        for (KnownDevice device : devices.values()) {
+            if (device.getLastConnected() == 0) {
+                victim = device.getAddress();
+                break;
+            }
+        }
+        devices.remove(victim);
+    }
+
+    /**
+     * Saves any pending change now and waits for it. Returns false on timeout.
+     */
+    public boolean awaitSaved(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            SAVER.submit(this::saveIfDirty).get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void saveIfDirty() {
+        List<KnownDevice> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            snapshot = new ArrayList<>(devices.values());
+        }
+        save(snapshot);
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a device cache");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                long lastSeen = in.readLong();
+                long lastConnected = in.readLong();
+                int connectCount = in.readInt();
+                int failureCount = in.readInt();
+                long[] latencies = new long[Math.min(in.readUnsignedByte(), KnownDevice.LATENCY_HISTORY)];
+                for (int j = 0; j < latencies.length; j++) {
+                    latencies[j] = in.readLong();
+                }
+                devices.put(address, new KnownDevice(address, name, lastSeen, lastConnected, connectCount,
+                        failureCount, latencies));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            Log.e("DeviceCache->Load", "Discarding " + file + ": " + e);
+            devices.clear();
+        }
+    }
+
+    private void save(List<KnownDevice> snapshot) {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temporary);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (KnownDevice device : snapshot) {
+                    out.writeUTF(device.getAddress());
+                    out.writeBoolean(device.getName() != null);
+                    if (device.getName() != null) {
+                        out.writeUTF(device.getName());
+                    }
+                    out.writeLong(device.getLastSeen());
+                    out.writeLong(device.getLastConnected());
+                    out.writeInt(device.getConnectCount());
+                    out.writeInt(device.getFailureCount());
+                    long[] latencies = device.getConnectMillis();
+                    out.writeByte(latencies.length);
+                    for (long latency : latencies) {
+                        out.writeLong(latency);
+                    }
+                }
+                out.flush();
+                stream.getFD().sync();
+            }
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e("DeviceCache->Save", e.toString());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round-trip time, jitter and loss of one link, fed by ping/pong probes.
+ * The RTT and retransmission timeout follow RFC 6298: SRTT and RTTVAR are exponentially
+ * weighted with gains 1/8 and 1/4, RTO = SRTT + 4 * RTTVAR, doubled on every timeout.
+ * Jitter is the RFC 3550 estimate, the smoothed difference between consecutive samples.
+ * Loss is the share of recent probes that timed out, weighted 1/8 per probe.
+ */
+public class LinkQualityEstimator {
+    static final long INITIAL_RTO_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private long srtt;
+    private long rttVar;
+    private long rto = INITIAL_RTO_NANOS;
+    private long jitter;
+    private long lastSample = -1;
+    private double loss;
+    private long samples;
+    private long timeouts;
+
+    public synchronized void onSample(long rttNanos) {
+        if (samples == 0) {
+            srtt = rttNanos;
+            rttVar = rttNanos / 2;
+        } else {
+            rttVar += (Math.abs(srtt - rttNanos) - rttVar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        if (lastSample >= 0) {
+            jitter += (Math.abs(rttNanos - lastSample) - jitter) / 16;
+        }
+        lastSample = rttNanos;
+        samples++;
+        loss -= loss / 8;
+        rto = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, srtt + 4 * rttVar));
+    }
+
+    /**
+     * A probe was not answered within {@link #getRtoNanos()}. Backs the timeout off so
+     * a slow link is not flooded with probes.
+     */
+    public synchronized void onTimeout() {
+        timeouts++;
+        loss += (1 - loss) / 8;
+        rto = Math.min(MAX_RTO_NANOS, rto * 2);
+    }
+
+    public synchronized long getRtoNanos() {
+        return rto;
+    }
+
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(srtt, rttVar, jitter, loss, rto, samples, timeouts);
+    }
+
+    public static final class Snapshot {
+        private final long srttNanos;
+        private final long rttVarNanos;
+        private final long jitterNanos;
+        private final double loss;
+        private final long rtoNanos;
+        private final long samples;
+        private final long timeouts;
+
+        Snapshot(long srttNanos, long rttVarNanos, long jitterNanos, double loss, long rtoNanos, long samples,
+                 long timeouts) {
+            this.srttNanos = srttNanos;
+            this.rttVarNanos = rttVarNanos;
+            this.jitterNanos = jitterNanos;
+            this.loss = loss;
+            this.rtoNanos = rtoNanos;
+            this.samples = samples;
+            this.timeouts = timeouts;
+        }
+
+        public long getSrttNanos() {
+            return srttNanos;
+        }
+
+        public long getRttVarNanos() {
+            return rttVarNanos;
+        }
+
+        public long getJitterNanos() {
+            return jitterNanos;
+        }
+
+        /**
+         * Between 0 and 1.
+         */
+        public double getLoss() {
+            return loss;
+        }
+
+        public long getRtoNanos() {
+            return rtoNanos;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Short form for the action bar: RTT, jitter after a plus-minus sign, and loss.
+         */
+        @Override
+        public String toString() {
+            if (samples == 0) {
+                return timeouts == 0 ? "measuring" : "no reply";
+            }
+            return String.format(Locale.US, "%d ms \u00b1%d, %.0f%% loss", TimeUnit.NANOSECONDS.toMillis(srttNanos),
+                    TimeUnit.NANOSECONDS.toMillis(jitterNanos), loss * 100);
+        }
+    }
+}
@@ -9,17 +9,19 @@ import static android.Manifest.permission.BLUETOOTH_CONNECT;
 import static android.Manifest.permission.BLUETOOTH_SCAN;
 
 import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.Toast;
 
 import androidx.activity.result.ActivityResultLauncher;
@@ -29,25 +31,71 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 public class MainActivity extends AppCompatActivity {
+    private static final int WINDOW_CAPACITY = 300;
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final long AUTO_RECONNECT_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final int SEARCH_LIMIT = 50;
+    private static final String UNENCRYPTED = "unencrypted";
+
     private BluetoothAdapter bluetoothAdapter;
+    private ChatService chatService;
     private ChatUtils chatUtils;
+    private UiEventBus uiEvents;
 
     private EditText edCreateMessage;
-    private ArrayAdapter<String> adapterMainChat;
-
-    private String connectedDevice;
+    private RecyclerView listMainChat;
+    private LinearLayoutManager layoutManager;
+    private final ConversationWindow conversation = new ConversationWindow(WINDOW_CAPACITY);
+    private final List<ChatItem> pendingItems = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean loadingOlder;
+    private boolean loadingNewer;
+    private boolean autoReconnectTried;
+    private String pendingConnect;
+    private boolean resumed;
+
+    private final Map<Integer, String> connectedDevices = new LinkedHashMap<>();
+    private final Map<Integer, LinkQualityEstimator.Snapshot> linkQuality = new HashMap<>();
+    // Verification code per session, or UNENCRYPTED; absent until the handshake completes.
+    private final Map<Integer, String> verificationCodes = new HashMap<>();
+    private final Map<Integer, String> deviceAddresses = new LinkedHashMap<>();
+    private final Map<String, String> deviceNames = new ConcurrentHashMap<>();
+    private final Map<Integer, StreamingTextDecoder> textDecoders = new HashMap<>();
+    private final StreamingTextDecoder sentText = new StreamingTextDecoder();
+
+    private ChatLogStore chatLogStore;
+    private ConversationPager pager;
+    private ChatSearchIndex searchIndex;
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor();
 
     private final ActivityResultLauncher<Intent> selectDeviceLauncher =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == RESULT_OK) {
-                    String address = Objects.requireNonNull(result.getData()).getStringExtra("deviceAddress");
-                    chatUtils.connect(bluetoothAdapter.getRemoteDevice(address));
+                    String address = Objects.requireNonNull(result.getData()).getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                    if (chatUtils != null) {
+                        chatUtils.connect(bluetoothAdapter.getRemoteDevice(address));
+                    } else {
+                        pendingConnect = address;
+                    }
                 }
             });
 
@@ -60,44 +108,202 @@ public class MainActivity extends AppCompatActivity {
                 }
             });
 
-    private final Handler handler = new Handler(new Handler.Callback() {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
-        public boolean handleMessage(@NonNull Message message) {
-            switch (message.what) {
-                case Constants.MESSAGE_STATE_CHANGED:
-                    updateConnectionState(message.arg1);
-                    break;
-                case Constants.MESSAGE_WRITE:
-                    displayMessage("Me", message.obj);
-                    break;
-                case Constants.MESSAGE_READ:
-                    displayMessage(connectedDevice, message.obj);
-                    break;
-                case Constants.MESSAGE_DEVICE_NAME:
-                    setConnectedDevice(message);
-                    break;
-                case Constants.MESSAGE_TOAST:
-                    displayToast(message);
-                    break;
-            }
-            return false;
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            onChatServiceConnected(((ChatService.LocalBinder) binder).getService());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            chatService = null;
         }
-    });
+    };
+
+    private void onUiEvents(List<UiEvent> events) {
+        for (UiEvent event : events) {
+            dispatch(event);
+        }
+    }
+
+    private void dispatch(UiEvent event) {
+        switch (event.what) {
+            case Constants.MESSAGE_STATE_CHANGED:
+                updateConnectionState(event.arg1);
+                break;
+            case Constants.MESSAGE_WRITE:
+                displaySentMessage(event, (byte[]) event.obj);
+                break;
+            case Constants.MESSAGE_READ:
+                displayReceivedMessage(event, (PooledBuffer) event.obj);
+                break;
+            case Constants.MESSAGE_DEVICE_NAME:
+                setConnectedDevice(event.arg1, (String) event.obj, event.text);
+                break;
+            case Constants.MESSAGE_DEVICE_DISCONNECTED:
+                removeConnectedDevice(event.arg1);
+                break;
+            case Constants.MESSAGE_TOAST:
+                displayToast(event.text);
+                break;
+            case Constants.MESSAGE_FILE_PROGRESS:
+                displayTransferProgress((FileTransfer) event.obj);
+                break;
+            case Constants.MESSAGE_LINK_QUALITY:
+                linkQuality.put(event.arg1, (LinkQualityEstimator.Snapshot) event.obj);
+                updateConnectionState(chatUtils.getState());
+                break;
+            case Constants.MESSAGE_SECURITY:
+                displaySecurity(event.arg1, event.text);
+                break;
+        }
+    }
 
     private void updateConnectionState(int state) {
         CharSequence subTitle = switch (state) {
             case ChatUtils.STATE_NONE, ChatUtils.STATE_LISTEN -> "Not Connected";
             case ChatUtils.STATE_CONNECTING -> "Connecting...";
-            case ChatUtils.STATE_CONNECTED -> "Connected: " + connectedDevice;
+            case ChatUtils.STATE_CONNECTED -> "Connected: " + describeConnectedDevices();
             default -> "Unknown State";
         };
         Objects.requireNonNull(getSupportActionBar()).setSubtitle(subTitle);
     }
 
-    private void displayMessage(String sender, Object messageObj) {
-        byte[] buffer = (byte[]) messageObj;
-        String message = new String(buffer);
-        adapterMainChat.add(sender + ": " + message);
+    private String describeConnectedDevices() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Integer, String> device : connectedDevices.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(device.getValue());
+            String code = verificationCodes.get(device.getKey());
+            if (code != null) {
+                builder.append(" [").append(code).append(']');
+            }
+            LinkQualityEstimator.Snapshot quality = linkQuality.get(device.getKey());
+            if (quality != null) {
+                builder.append(" (").append(quality).append(')');
+            }
+        }
+        return builder.toString();
+    }
+
+    private void displaySentMessage(UiEvent event, byte[] buffer) {
+        enqueueItem(new ChatItem(deviceAddresses.get(event.arg2), event.offset, event.timestamp, true,
+                getOwnLabel(event.arg2), sentText.decode(buffer, 0, buffer.length)));
+    }
+
+    private String getOwnLabel(int sessionId) {
+        if (connectedDevices.size() > 1) {
+            return "Me -> " + connectedDevices.get(sessionId);
+        }
+        return "Me";
+    }
+
+    private void displayReceivedMessage(UiEvent event, PooledBuffer buffer) {
+        int sessionId = event.arg2;
+        try {
+            enqueueItem(new ChatItem(deviceAddresses.get(sessionId), event.offset, event.timestamp, false,
+                    connectedDevices.get(sessionId), textDecoder(sessionId).decode(buffer.data(), 0, buffer.length())));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private StreamingTextDecoder textDecoder(int sessionId) {
+        StreamingTextDecoder decoder = textDecoders.get(sessionId);
+        if (decoder == null) {
+            decoder = new StreamingTextDecoder();
+            textDecoders.put(sessionId, decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Messages are collected and added to the conversation once per pass of the main
+     * looper, so a burst of messages costs one list update instead of one per message.
+     */
+    private void enqueueItem(ChatItem item) {
+        pendingItems.add(item);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.post(this::flushPendingItems);
+        }
+    }
+
+    private void flushPendingItems() {
+        flushScheduled = false;
+        boolean following = layoutManager.findLastVisibleItemPosition() >= conversation.size() - 1;
+        conversation.appendLive(pendingItems);
+        pendingItems.clear();
+        if (following && conversation.size() > 0) {
+            listMainChat.scrollToPosition(conversation.size() - 1);
+        }
+    }
+
+    private void onConversationScrolled() {
+        if (layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+            loadOlderPage();
+        }
+        if (conversation.hasNewer()
+                && layoutManager.findLastVisibleItemPosition() >= conversation.size() - 1 - PREFETCH_DISTANCE) {
+            loadNewerPage();
+        }
+    }
+
+    private void loadOlderPage() {
+        if (loadingOlder || !conversation.hasOlder()) {
+            return;
+        }
+        loadingOlder = true;
+        Map<String, Long> cursors = conversation.getOlderCursors();
+        loadPage(() -> pager.loadOlder(cursors, PAGE_SIZE), page -> {
+            loadingOlder = false;
+            // The window moved while the page was read; the next scroll asks again.
+            if (page != null && cursors.equals(conversation.getOlderCursors())) {
+                conversation.prependOlder(page);
+            }
+        });
+    }
+
+    private void loadNewerPage() {
+        if (loadingNewer) {
+            return;
+        }
+        loadingNewer = true;
+        Map<String, Long> cursors = conversation.getNewerCursors();
+        loadPage(() -> pager.loadNewer(cursors, PAGE_SIZE), page -> {
+            loadingNewer = false;
+            if (page == null || !cursors.equals(conversation.getNewerCursors())) {
+                return;
+            }
+            try {
+                conversation.appendNewer(page, page.isEmpty() || pager.isCaughtUp(conversation.getNewerCursors()));
+            } catch (IOException e) {
+                Log.e("MainActivity->History", e.toString());
+            }
+        });
+    }
+
+    private void loadPage(Callable<List<ChatItem>> loader, Consumer<List<ChatItem>> onLoaded) {
+        historyExecutor.execute(() -> {
+            List<ChatItem> page;
+            try {
+                page = loader.call();
+            } catch (Exception e) {
+                Log.e("MainActivity->History", e.toString());
+                page = null;
+            }
+            List<ChatItem> loaded = page;
+            handler.post(() -> {
+                onLoaded.accept(loaded);
+                if (loaded != null && !loaded.isEmpty()) {
+                    onConversationScrolled();
+                }
+            });
+        });
     }
 
     @Override
@@ -109,32 +315,111 @@ public class MainActivity extends AppCompatActivity {
 
         initViews();
         initBluetooth();
-        chatUtils = new ChatUtils(MainActivity.this, handler);
+        uiEvents = new UiEventBus(UiEventBus.DEFAULT_CAPACITY, UiEventBus.Overflow.BLOCK,
+                UiEventBus.choreographer(handler), this::onUiEvents);
+        Intent service = new Intent(this, ChatService.class);
+        startService(service);
+        bindService(service, serviceConnection, BIND_AUTO_CREATE);
+    }
+
+    /**
+     * Picks up the sessions the service already has, then takes its events, starting
+     * with those that came in while no activity was attached.
+     */
+    private void onChatServiceConnected(ChatService service) {
+        chatService = service;
+        chatUtils = service.getChatUtils();
+        chatLogStore = service.getChatLogStore();
+        searchIndex = service.getSearchIndex();
+        pager = new ConversationPager(chatLogStore, deviceNames::get);
+        for (PeerSession session : chatUtils.getSessions()) {
+            if (session.getState() == ChatUtils.STATE_CONNECTED) {
+                addConnectedDevice(session.getId(), session.getAddress(), session.getName());
+                if (session.isEncrypted()) {
+                    verificationCodes.put(session.getId(), session.getVerificationCode());
+                } else if (session.isHelloReceived()) {
+                    verificationCodes.put(session.getId(), UNENCRYPTED);
+                }
+            }
+        }
+        service.attach(uiEvents);
+        updateConnectionState(chatUtils.getState());
+
+        if (pendingConnect != null) {
+            chatUtils.connect(bluetoothAdapter.getRemoteDevice(pendingConnect));
+            pendingConnect = null;
+        }
+        if (resumed) {
+            startChat();
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
+        startChat();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        resumed = false;
+    }
+
+    private void startChat() {
         if (chatUtils != null && chatUtils.getState() == ChatUtils.STATE_NONE) {
             chatUtils.start();
         }
+        reconnectRecentPeer();
+    }
+
+    /**
+     * On the first resume, dials the last peer we talked to if that was within the last
+     * day. The address comes from the device cache, so no discovery is needed.
+     */
+    private void reconnectRecentPeer() {
+        if (autoReconnectTried || chatUtils == null || bluetoothAdapter == null || !bluetoothAdapter.isEnabled()
+                || ActivityCompat.checkSelfPermission(this, BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        autoReconnectTried = true;
+        KnownDeviceCache knownDevices = chatUtils.getKnownDevices();
+        if (knownDevices == null || !chatUtils.getSessions().isEmpty()) {
+            return;
+        }
+        List<KnownDevice> recent = knownDevices.recent(1);
+        if (!recent.isEmpty()
+                && System.currentTimeMillis() - recent.get(0).getLastConnected() < AUTO_RECONNECT_WINDOW_MILLIS) {
+            chatUtils.connect(recent.get(0).getAddress());
+        }
     }
 
     private void initViews() {
-        ListView listMainChat = findViewById(R.id.list_conversation);
+        listMainChat = findViewById(R.id.list_conversation);
         edCreateMessage = findViewById(R.id.ed_enter_message);
         Button btnSendMessage = findViewById(R.id.btn_send_msg);
 
-        adapterMainChat = new ArrayAdapter<>(this, R.layout.message_layout);
-        listMainChat.setAdapter(adapterMainChat);
+        layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        listMainChat.setLayoutManager(layoutManager);
+        listMainChat.setAdapter(new ConversationAdapter(conversation));
+        listMainChat.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                onConversationScrolled();
+            }
+        });
 
         btnSendMessage.setOnClickListener(view -> sendMessage());
     }
     private void sendMessage() {
         String message = edCreateMessage.getText().toString();
-        if (!message.isEmpty()) {
+        if (!message.isEmpty() && chatUtils != null) {
             edCreateMessage.setText("");
-            chatUtils.write(message.getBytes());
+            if (!chatUtils.write(message.getBytes(StandardCharsets.UTF_8))) {
+                Toast.makeText(this, "Message not sent", Toast.LENGTH_SHORT).show();
+            }
         }
     }
 
@@ -159,10 +444,46 @@ public class MainActivity extends AppCompatActivity {
         } else if (item.getItemId() == R.id.menu_search_devices) {
             checkPermissions();
             return true;
+        } else if (item.getItemId() == R.id.menu_search_history) {
+            if (searchIndex != null) {
+                showSearchDialog();
+            }
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void showSearchDialog() {
+        EditText query = new EditText(this);
+        query.setSingleLine();
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.str_menu_search_history)
+                .setView(query)
+                .setPositiveButton(R.string.str_search, (dialogInterface, i) ->
+                        search(query.getText().toString()))
+                .setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+    private void search(String query) {
+        loadPage(() -> pager.loadHits(searchIndex.search(query, SEARCH_LIMIT)), results -> {
+            if (results == null) {
+                return;
+            }
+            if (results.isEmpty()) {
+                Toast.makeText(this, "No messages found", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            String[] lines = new String[results.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = results.get(i).getSender() + ": " + results.get(i).getText();
+            }
+            new AlertDialog.Builder(this)
+                    .setTitle(query)
+                    .setItems(lines, null)
+                    .setPositiveButton(android.R.string.ok, null).show();
+        });
+    }
+
     private void checkPermissions() {
         if (ContextCompat.checkSelfPermission(this, ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             requestPermissionLauncher.launch(ACCESS_FINE_LOCATION);
@@ -197,18 +518,81 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (chatUtils != null) {
-            chatUtils.stop();
+        if (chatService != null) {
+            chatService.detach(uiEvents);
         }
+        unbindService(serviceConnection);
+        if (isFinishing() && !isChangingConfigurations()) {
+            // Leaving the app, not recreating the activity: close the links.
+            stopService(new Intent(this, ChatService.class));
+        }
+        if (uiEvents != null) {
+            Log.d("MainActivity->UiEvents", "lag " + uiEvents.getLag() + ", dropped " + uiEvents.getDropped()
+                    + ", coalesced " + uiEvents.getCoalesced());
+        }
+        historyExecutor.shutdown();
     }
 
-    private void setConnectedDevice(Message message) {
-        connectedDevice = message.getData().getString(Constants.DEVICE_NAME);
-        Toast.makeText(MainActivity.this, connectedDevice, Toast.LENGTH_SHORT).show();
+    private void setConnectedDevice(int sessionId, String address, String deviceName) {
+        if (address != null && address.equals(deviceAddresses.get(sessionId))) {
+            // Already picked up from the service before its missed events were replayed.
+            return;
+        }
+        addConnectedDevice(sessionId, address, deviceName);
+        Toast.makeText(MainActivity.this, deviceName, Toast.LENGTH_SHORT).show();
+        updateConnectionState(chatUtils.getState());
+    }
+
+    private void addConnectedDevice(int sessionId, String address, String deviceName) {
+        connectedDevices.put(sessionId, deviceName);
+        deviceAddresses.put(sessionId, address);
+        deviceNames.put(address, deviceName);
+        try {
+            conversation.track(address, chatLogStore.get(address).getNextOffset());
+        } catch (IOException e) {
+            Log.e("MainActivity->History", e.toString());
+        }
+        loadOlderPage();
+    }
+
+    private void removeConnectedDevice(int sessionId) {
+        connectedDevices.remove(sessionId);
+        deviceAddresses.remove(sessionId);
+        linkQuality.remove(sessionId);
+        verificationCodes.remove(sessionId);
+        textDecoders.remove(sessionId);
+        updateConnectionState(chatUtils.getState());
+    }
+
+    private void displayTransferProgress(FileTransfer transfer) {
+        Log.d("MainActivity->File", transfer + String.format(" %.1f KB/s", transfer.getThroughput() / 1024));
+        if (transfer.getState() == FileTransfer.State.COMPLETED) {
+            String direction = transfer.isOutgoing() ? "Sent " : "Received ";
+            Toast.makeText(this, direction + transfer.getName(), Toast.LENGTH_SHORT).show();
+        } else if (transfer.getState() == FileTransfer.State.FAILED) {
+            Toast.makeText(this, "Transfer failed: " + transfer.getName(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Shows the code both users should compare, or warns that the peer talks in plaintext.
+     */
+    private void displaySecurity(int sessionId, String code) {
+        verificationCodes.put(sessionId, code != null ? code : UNENCRYPTED);
+        updateConnectionState(chatUtils.getState());
+        String name = connectedDevices.get(sessionId);
+        if (code == null) {
+            Toast.makeText(this, "Not encrypted: " + name, Toast.LENGTH_LONG).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Verify " + name)
+                .setMessage("Check that " + name + " shows the same code:\n\n" + code)
+                .setPositiveButton(android.R.string.ok, null).show();
     }
 
-    private void displayToast(Message message) {
-        Toast.makeText(MainActivity.this, message.getData().getString(Constants.TOAST), Toast.LENGTH_SHORT).show();
+    private void displayToast(String text) {
+        Toast.makeText(MainActivity.this, text, Toast.LENGTH_SHORT).show();
     }
 
     private static final int PERMISSION_REQUEST_CODE = 1;
@@ -0,0 +1,102 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-peer metrics of one {@link ChatUtils}. Query it with {@link #snapshot()}, or have
+ * snapshots pushed periodically with {@link #startPeriodicDump}.
+ */
+public class MetricsRegistry {
+    public static final String TOTAL = "total";
+
+    private final ConcurrentMap<String, PeerMetrics> peers = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> dump;
+
+    public PeerMetrics peer(String address) {
+        PeerMetrics metrics = peers.get(address);
+        return metrics != null ? metrics : peers.computeIfAbsent(address, PeerMetrics::new);
+    }
+
+    public Snapshot snapshot() {
+        List<PeerMetrics.Snapshot> snapshots = new ArrayList<>();
+        PeerMetrics.Snapshot total = new PeerMetrics.Snapshot(TOTAL, 0, 0, 0, 0, 0, 0,
+                LatencyHistogram.Snapshot.empty(), LatencyHistogram.Snapshot.empty(),
+                LatencyHistogram.Snapshot.empty());
+        for (PeerMetrics metrics : peers.values()) {
+            PeerMetrics.Snapshot snapshot = metrics.snapshot();
+            snapshots.add(snapshot);
+            total = total.plus(snapshot);
+        }
+        return new Snapshot(System.currentTimeMillis(), snapshots, total);
+    }
+
+    /**
+     * Hands a snapshot to {@code sink} every {@code period} on {@code executor}, replacing
+     * any dump already running.
+     */
+    public synchronized void startPeriodicDump(ScheduledExecutorService executor, long period, TimeUnit unit,
+                                               Consumer<Snapshot> sink) {
+        stopPeriodicDump();
+        dump = executor.scheduleAtFixedRate(() -> sink.accept(snapshot()), period, period, unit);
+    }
+
+    public synchronized void stopPeriodicDump() {
+        if (dump != null) {
+            dump.cancel(false);
+            dump = null;
+        }
+    }
+
+    public static final class Snapshot {
+        private final long timestamp;
+        private final List<PeerMetrics.Snapshot> peers;
+        private final PeerMetrics.Snapshot total;
+
+        Snapshot(long timestamp, List<PeerMetrics.Snapshot> peers, PeerMetrics.Snapshot total) {
+            this.timestamp = timestamp;
+            this.peers = Collections.unmodifiableList(peers);
+            this.total = total;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public List<PeerMetrics.Snapshot> getPeers() {
+            return peers;
+        }
+
+        public PeerMetrics.Snapshot getPeer(String address) {
+            for (PeerMetrics.Snapshot peer : peers) {
+                if (peer.getAddress().equals(address)) {
+                    return peer;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Sum of all peers, with histograms merged.
+         */
+        public PeerMetrics.Snapshot getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(total.toString());
+            for (PeerMetrics.Snapshot peer : peers) {
+                builder.append('\n').append(peer);
+            }
+            return builder.toString();
+        }
+    }
+}
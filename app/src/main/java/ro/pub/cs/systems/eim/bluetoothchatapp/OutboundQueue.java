@@ -0,0 +1,477 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue between callers of {@link ChatUtils#write(byte[])} and the writer thread.
+ * The writer takes pending messages in batches so several small messages go out in one
+ * socket write. What happens when the queue is full is decided by the {@link Backpressure}
+ * policy.
+ *
+ * <p>A second, small bulk lane carries pre-encoded frames such as file chunks, and a
+ * third one small control frames such as acknowledgements. The writer empties the
+ * control lane on every turn, so it only fills up when the link has stopped moving;
+ * past its capacity control frames are refused and counted. Which of the other lanes
+ * the writer serves next is up to its {@link ChannelScheduler}.
+ */
+public class OutboundQueue {
+    public enum Backpressure {
+        BLOCK,
+        DROP_OLDEST,
+        REJECT
+    }
+
+    /**
+     * Told about a message {@link Backpressure#DROP_OLDEST} evicted to make room, on the
+     * thread that offered the newer one, after the queue's lock is released.
+     */
+    public interface DropListener {
+        void onDropped(byte[] message);
+    }
+
+    public static final int DEFAULT_BULK_CAPACITY = 2;
+    public static final int DEFAULT_CONTROL_CAPACITY = 64;
+
+    private final int capacity;
+    private final ArrayDeque<byte[]> queue;
+    private final long[] enqueueNanos;
+    private int enqueueHead;
+    private final int bulkCapacity;
+    private final ArrayDeque<byte[]> bulk;
+    private final int controlCapacity;
+    private final ArrayDeque<byte[]> control = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition bulkNotFull = lock.newCondition();
+
+    private volatile Backpressure backpressure;
+    private volatile DropListener dropListener;
+    private boolean closed;
+
+    private long enqueued;
+    private long dropped;
+    private long rejected;
+    private int maxDepth;
+    private long bulkEnqueued;
+    private long controlEnqueued;
+    private long controlRejected;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong flushedMessages = new AtomicLong();
+
+    public OutboundQueue(int capacity, Backpressure backpressure) {
+        this(capacity, backpressure, DEFAULT_BULK_CAPACITY);
+    }
+
+    public OutboundQueue(int capacity, Backpressure backpressure, int bulkCapacity) {
+        this(capacity, backpressure, bulkCapacity, DEFAULT_CONTROL_CAPACITY);
+    }
+
+    public OutboundQueue(int capacity, Backpressure backpressure, int bulkCapacity, int controlCapacity) {
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.bulkCapacity = bulkCapacity;
+        this.controlCapacity = controlCapacity;
+        queue = new ArrayDeque<>(capacity);
+        enqueueNanos = new long[capacity];
+        bulk = new ArrayDeque<>(bulkCapacity);
+    }
+
+    public void setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    public Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    public void setDropListener(DropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Queues a message for sending. Returns false if the message was rejected because the
+     * queue is full, closed, or the caller was interrupted while blocked.
+     */
+    public boolean offer(byte[] message) {
+        return offer(message, true);
+    }
+
+    /**
+     * Like {@link #offer(byte[])}, but under {@link Backpressure#BLOCK} returns false
+     * instead of waiting when the queue is full. Not counted as a rejection, since the
+     * caller is expected to retry with {@link #offer(byte[])}.
+     */
+    public boolean tryOffer(byte[] message) {
+        return offer(message, false);
+    }
+
+    private boolean offer(byte[] message, boolean mayWait) {
+        byte[] evicted = null;
+        lock.lock();
+        try {
+            while (!closed && queue.size() == capacity) {
+                switch (backpressure) {
+                    case REJECT:
+                        rejected++;
+                        return false;
+                    case DROP_OLDEST:
+                        evicted = queue.pollFirst();
+                        enqueueHead = (enqueueHead + 1) % capacity;
+                        dropped++;
+                        break;
+                    case BLOCK:
+                        if (!mayWait) {
+                            return false;
+                        }
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            rejected++;
+                            return false;
+                        }
+                        break;
+                }
+            }
+            if (closed) {
+                rejected++;
+                return false;
+            }
+
+            enqueueNanos[(enqueueHead + queue.size()) % capacity] = System.nanoTime();
+            queue.addLast(message);
+            enqueued++;
+            maxDepth = Math.max(maxDepth, queue.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+            DropListener listener = dropListener;
+            if (evicted != null && listener != null) {
+                listener.onDropped(evicted);
+            }
+        }
+    }
+
+    /**
+     * Queues an encoded frame on the bulk lane, blocking while the lane is full. Returns
+     * false if the queue is closed or the caller was interrupted.
+     */
+    public boolean offerBulk(byte[] frame) {
+        lock.lock();
+        try {
+            while (!closed && bulk.size() == bulkCapacity) {
+                try {
+                    bulkNotFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (closed) {
+                return false;
+            }
+            bulk.addLast(frame);
+            bulkEnqueued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame on the bulk lane unless it already holds {@code maxDepth} frames.
+     * Never waits, so a reader forwarding traffic is not held up by a slow peer.
+     */
+    public boolean offerBulk(byte[] frame, int maxDepth) {
+        lock.lock();
+        try {
+            if (closed || bulk.size() >= maxDepth) {
+                return false;
+            }
+            bulk.addLast(frame);
+            bulkEnqueued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a small control frame without waiting for room. Used for acknowledgements,
+     * which must never block the reader that produces them, and sent ahead of both other
+     * lanes. Returns false if the queue is closed or the control lane is full.
+     */
+    public boolean offerControl(byte[] frame) {
+        return offerControl(frame, controlCapacity);
+    }
+
+    /**
+     * Queues a control frame unless the control lane already holds {@code maxDepth}
+     * frames, or is full; for traffic that may be dropped, such as typing indicators.
+     */
+    public boolean offerControl(byte[] frame, int maxDepth) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (control.size() >= Math.min(maxDepth, controlCapacity)) {
+                controlRejected++;
+                return false;
+            }
+            control.addLast(frame);
+            controlEnqueued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until anything is pending on any lane. Returns false once the queue is
+     * closed.
+     */
+    public boolean await() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty() && bulk.isEmpty() && control.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves pending messages into {@code batch} while their combined payload stays within
+     * {@code maxBatchBytes}; the first message is always taken, whatever its size. If
+     * {@code enqueueTimes} is not null, each message's {@link System#nanoTime()} at
+     * enqueue is copied into it, so it must hold at least the queue capacity. Never waits;
+     * returns the number of messages taken, 0 once the queue is closed.
+     */
+    public int pollBatch(List<byte[]> batch, int maxBatchBytes, long[] enqueueTimes) {
+        lock.lock();
+        try {
+            return closed ? 0 : drain(batch, maxBatchBytes, enqueueTimes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(List<byte[]> batch, int maxBatchBytes, long[] enqueueTimes) {
+        if (queue.isEmpty()) {
+            return 0;
+        }
+        int taken = 0;
+        int bytes = 0;
+        do {
+            byte[] message = queue.pollFirst();
+            if (enqueueTimes != null) {
+                enqueueTimes[taken] = enqueueNanos[enqueueHead];
+            }
+            enqueueHead = (enqueueHead + 1) % capacity;
+            taken++;
+            bytes += message.length;
+            batch.add(message);
+        } while (!queue.isEmpty() && bytes + queue.peekFirst().length <= maxBatchBytes);
+        notFull.signalAll();
+        return taken;
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasMessages() {
+        lock.lock();
+        try {
+            return !queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasBulk() {
+        lock.lock();
+        try {
+            return !bulk.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] pollControl() {
+        lock.lock();
+        try {
+            return control.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] pollBulk() {
+        lock.lock();
+        try {
+            byte[] frame = bulk.pollFirst();
+            if (frame != null && bulk.size() < bulkCapacity) {
+                bulkNotFull.signal();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordFlush(int bytes, int messages) {
+        flushes.incrementAndGet();
+        flushedBytes.addAndGet(bytes);
+        flushedMessages.addAndGet(messages);
+    }
+
+    public void close() {
+        closeAndDrain();
+    }
+
+    /**
+     * Closes the queue and returns the chat messages that were still waiting, oldest
+     * first. Pending bulk and control frames are discarded.
+     */
+    public List<byte[]> closeAndDrain() {
+        lock.lock();
+        try {
+            closed = true;
+            List<byte[]> pending = new ArrayList<>(queue);
+            queue.clear();
+            enqueueHead = 0;
+            bulk.clear();
+            control.clear();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            bulkNotFull.signalAll();
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEnqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBulkEnqueued() {
+        lock.lock();
+        try {
+            return bulkEnqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getControlEnqueued() {
+        lock.lock();
+        try {
+            return controlEnqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Control frames refused because the control lane was full, or held the caller's
+     * {@code maxDepth}.
+     */
+    public long getControlRejected() {
+        lock.lock();
+        try {
+            return controlRejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFlushedBytes() {
+        return flushedBytes.get();
+    }
+
+    public long getFlushedMessages() {
+        return flushedMessages.get();
+    }
+
+    public double getAverageFlushBytes() {
+        long count = flushes.get();
+        return count == 0 ? 0 : (double) flushedBytes.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueue{depth=" + getDepth()
+                + ", maxDepth=" + getMaxDepth()
+                + ", dropped=" + getDropped()
+                + ", rejected=" + getRejected()
+                + ", flushes=" + getFlushes()
+                + ", avgFlushBytes=" + Math.round(getAverageFlushBytes()) + "}";
+    }
+}
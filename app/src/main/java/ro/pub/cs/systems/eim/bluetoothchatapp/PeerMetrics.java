@@ -0,0 +1,132 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one peer address. They span reconnects, so the
+ * numbers describe the peer rather than a single session. Updates are striped
+ * {@link LongAdder}s and lock-free histograms, cheap enough for every frame on the
+ * reader and writer threads.
+ */
+public class PeerMetrics {
+    private final String address;
+
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    final LatencyHistogram sendToFlush = new LatencyHistogram();
+    final LatencyHistogram connectTime = new LatencyHistogram();
+    final LatencyHistogram rtt = new LatencyHistogram();
+
+    private volatile OutboundQueue queue;
+
+    PeerMetrics(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Makes {@code queue} the one whose depth is reported, replacing the previous
+     * session's.
+     */
+    void attach(OutboundQueue queue) {
+        this.queue = queue;
+    }
+
+    public Snapshot snapshot() {
+        OutboundQueue current = queue;
+        return new Snapshot(address, bytesIn.sum(), bytesOut.sum(), framesIn.sum(), framesOut.sum(),
+                reconnects.sum(), current == null ? 0 : current.getDepth(),
+                sendToFlush.snapshot(), connectTime.snapshot(), rtt.snapshot());
+    }
+
+    public static final class Snapshot {
+        private final String address;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long framesIn;
+        private final long framesOut;
+        private final long reconnects;
+        private final long queueDepth;
+        private final LatencyHistogram.Snapshot sendToFlush;
+        private final LatencyHistogram.Snapshot connectTime;
+        private final LatencyHistogram.Snapshot rtt;
+
+        Snapshot(String address, long bytesIn, long bytesOut, long framesIn, long framesOut, long reconnects,
+                 long queueDepth, LatencyHistogram.Snapshot sendToFlush, LatencyHistogram.Snapshot connectTime,
+                 LatencyHistogram.Snapshot rtt) {
+            this.address = address;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.framesIn = framesIn;
+            this.framesOut = framesOut;
+            this.reconnects = reconnects;
+            this.queueDepth = queueDepth;
+            this.sendToFlush = sendToFlush;
+            this.connectTime = connectTime;
+            this.rtt = rtt;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getFramesIn() {
+            return framesIn;
+        }
+
+        public long getFramesOut() {
+            return framesOut;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        public LatencyHistogram.Snapshot getSendToFlush() {
+            return sendToFlush;
+        }
+
+        public LatencyHistogram.Snapshot getConnectTime() {
+            return connectTime;
+        }
+
+        /**
+         * Ping round trips.
+         */
+        public LatencyHistogram.Snapshot getRtt() {
+            return rtt;
+        }
+
+        Snapshot plus(Snapshot other) {
+            return new Snapshot(address, bytesIn + other.bytesIn, bytesOut + other.bytesOut,
+                    framesIn + other.framesIn, framesOut + other.framesOut, reconnects + other.reconnects,
+                    queueDepth + other.queueDepth, sendToFlush.merge(other.sendToFlush),
+                    connectTime.merge(other.connectTime), rtt.merge(other.rtt));
+        }
+
+        @Override
+        public String toString() {
+            return address + ": in " + bytesIn + " B/" + framesIn + " frames, out " + bytesOut + " B/" + framesOut
+                    + " frames, queue " + queueDepth + ", reconnects " + reconnects
+                    + ", send-to-flush [" + sendToFlush + "], connect [" + connectTime + "], rtt [" + rtt + "]";
+        }
+    }
+}
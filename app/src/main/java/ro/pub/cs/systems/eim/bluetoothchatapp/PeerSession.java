@@ -0,0 +1,988 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+/**
+ * One link to one peer, with its own state, outbound queue, and read and write tasks
+ * running on the shared {@link SessionScheduler}. Sessions are created by
+ * {@link ChatUtils} and registered by peer address.
+ */
+public class PeerSession implements FrameDecoder.Listener, Closeable {
+    interface Callback {
+        void onSessionConnected(PeerSession session);
+
+        void onSessionEnded(PeerSession session, int previousState, boolean requested);
+
+        /**
+         * Throws if the frame is malformed, which closes the link.
+         */
+        void onControlFrame(PeerSession session, int type, int flags, byte[] payload, int offset, int length)
+                throws ProtocolException;
+
+        /**
+         * Chat messages written to the socket, called on the writer thread right after
+         * the write.
+         */
+        void onMessagesFlushed(PeerSession session, List<byte[]> messages, long flushedNanos);
+
+        /**
+         * A chat message the queue dropped to make room for a newer one; it will not be
+         * written.
+         */
+        void onMessageDropped(PeerSession session, byte[] message);
+    }
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int OUTBOUND_QUEUE_CAPACITY = 256;
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+    private static final int HELLO_SIZE = 5;
+    private static final int RESUME_HELLO_SIZE = 18;
+    private static final int SEQUENCE_SIZE = 4;
+    private static final long HELLO_TIMEOUT_MILLIS = 2000;
+    private static final int HELLO_DELIVERED = 1;
+    private static final int HELLO_PINGS = 2;
+    private static final int HELLO_KEY = 4;
+    private static final int HELLO_FRAGMENTS = 8;
+    private static final int PING_SIZE = 12;
+    static final int DEAD_PEER_PROBES = 4;
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final int id = nextId.getAndIncrement();
+    private final String address;
+    private final ChatListener listener;
+    private final BufferPool receivePool;
+    private final Callback callback;
+    private final SessionScheduler scheduler;
+    private final OutboundQueue outboundQueue;
+    private final FrameCompression compression;
+    private final ChannelScheduler channels;
+    private final ResumeState resumeState;
+    private final SessionCrypto.Mode encryption;
+    private final PeerMetrics metrics;
+    private final long createdNanos = System.nanoTime();
+    private final ConnectionStateMachine state =
+            new ConnectionStateMachine(ChatUtils.STATE_CONNECTING, ConnectionStateMachine.SESSION_TRANSITIONS);
+
+    private volatile String name;
+    private volatile TransportSocket socket;
+    private volatile boolean closeRequested;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    private volatile SessionScheduler.TaskHandle readTask;
+    private volatile SessionScheduler.TaskHandle writeTask;
+    private volatile boolean outgoing;
+    private final CountDownLatch helloReceived = new CountDownLatch(1);
+    private volatile int peerCodecs;
+    private volatile int peerDictionaryId;
+    private volatile ResumeState.Replay replay;
+    private volatile boolean peerAnswersPings;
+    private volatile boolean peerReassembles;
+    private ChannelScheduler.Reassembly reassembly;
+    private volatile long lastReceivedNanos = System.nanoTime();
+    private final LinkQualityEstimator linkQuality = new LinkQualityEstimator();
+    private final Object probeLock = new Object();
+    private int pingId;
+    private boolean pingOutstanding;
+    private long pingSentNanos;
+    private int missedPings;
+    private FrameCompression.Decompressor decompressor;
+    private final byte[][] scratch = new byte[ChannelScheduler.Channel.values().length][0];
+    private volatile SessionCrypto keyExchange;
+    private volatile byte[] hello;
+    private volatile SessionCrypto.Keys keys;
+    private FrameDecoder sealedDecoder;
+    private boolean opening;
+
+    PeerSession(String address, ChatListener listener, BufferPool receivePool,
+                OutboundQueue.Backpressure backpressure, FrameCompression compression, ChannelScheduler channels,
+                ResumeState resumeState, SessionCrypto.Mode encryption, PeerMetrics metrics,
+                SessionScheduler scheduler, Callback callback) {
+        this.address = address;
+        this.name = address;
+        this.listener = listener;
+        this.receivePool = receivePool;
+        this.compression = compression;
+        this.channels = channels;
+        this.resumeState = resumeState;
+        this.encryption = encryption;
+        this.scheduler = scheduler;
+        this.callback = callback;
+        outboundQueue = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, backpressure);
+        outboundQueue.setDropListener(message -> callback.onMessageDropped(this, message));
+        this.metrics = metrics;
+        metrics.attach(outboundQueue);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    public boolean isConnected() {
+        return state.get() == ChatUtils.STATE_CONNECTED;
+    }
+
+    /**
+     * This session's own state, for listeners that follow one peer.
+     */
+    public ConnectionStateMachine getStateMachine() {
+        return state;
+    }
+
+    /**
+     * True once the peer has said which codecs it understands.
+     */
+    public boolean isHelloReceived() {
+        return helloReceived.getCount() == 0;
+    }
+
+    /**
+     * True if this side dialled the peer, as opposed to accepting its connection.
+     */
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public PeerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * True once keys have been agreed with the peer; from then on everything after the
+     * hellos is sealed.
+     */
+    public boolean isEncrypted() {
+        return keys != null;
+    }
+
+    /**
+     * The code both users should see for this session, or null if it is not encrypted.
+     */
+    public String getVerificationCode() {
+        SessionCrypto.Keys current = keys;
+        return current != null ? current.getVerificationCode() : null;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the session was created, before connecting.
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public ResumeState getResumeState() {
+        return resumeState;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public boolean write(byte[] buffer) {
+        return isConnected() && outboundQueue.offer(buffer);
+    }
+
+    /**
+     * Queues {@code payload} with the chat messages, to go out as a frame of
+     * {@code frameType}. Like text it is sequenced and replayed after a reconnect, but it
+     * is not reported through {@link ChatListener#onMessageWritten}.
+     */
+    public boolean write(int frameType, byte[] payload) {
+        if (!isConnected()) {
+            return false;
+        }
+        if (frameType != FrameProtocol.TYPE_TEXT) {
+            resumeState.setFrameType(payload, frameType);
+        }
+        return outboundQueue.offer(payload);
+    }
+
+    /**
+     * Queues the message unless that would mean waiting for room.
+     */
+    public boolean tryWrite(byte[] buffer) {
+        return isConnected() && outboundQueue.tryOffer(buffer);
+    }
+
+    /**
+     * Queues an already encoded frame on the bulk lane, behind any pending chat messages.
+     * Blocks while the lane is full.
+     */
+    public boolean sendFrame(byte[] frame) {
+        return isConnected() && outboundQueue.offerBulk(frame);
+    }
+
+    public boolean sendControl(byte[] frame) {
+        return isConnected() && outboundQueue.offerControl(frame);
+    }
+
+    /**
+     * Queues a frame on the control lane if fewer than {@code maxDepth} are waiting
+     * there; never blocks.
+     */
+    public boolean trySendControl(byte[] frame, int maxDepth) {
+        return isConnected() && outboundQueue.offerControl(frame, maxDepth);
+    }
+
+    /**
+     * Queues a frame on the bulk lane if fewer than {@code maxDepth} are waiting there;
+     * never blocks.
+     */
+    public boolean trySendFrame(byte[] frame, int maxDepth) {
+        return isConnected() && outboundQueue.offerBulk(frame, maxDepth);
+    }
+
+    /**
+     * Connects an outgoing socket on the calling worker and, on success, keeps that worker
+     * as the session's reader.
+     */
+    void runOutgoing(TransportSocket socket) {
+        this.socket = socket;
+        outgoing = true;
+        if (closeRequested) {
+            closeSocket();
+            return;
+        }
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            Log.e("Session->Connect", e.toString());
+            end(closeRequested);
+            return;
+        }
+        if (attach(socket)) {
+            readLoop();
+        }
+    }
+
+    /**
+     * Starts a session for an accepted socket, with reading on its own worker.
+     */
+    void runIncoming(TransportSocket socket) {
+        if (!attach(socket)) {
+            return;
+        }
+        try {
+            readTask = scheduler.submit("Reader-" + address, this::readLoop, socket);
+        } catch (RejectedExecutionException e) {
+            Log.e("Session->Start", "No worker for reader: " + e);
+            end(false);
+        }
+    }
+
+    void setReadTask(SessionScheduler.TaskHandle readTask) {
+        this.readTask = readTask;
+    }
+
+    void connectFailed() {
+        end(closeRequested);
+    }
+
+    private boolean attach(TransportSocket socket) {
+        this.socket = socket;
+        try {
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        } catch (IOException e) {
+            Log.e("Session->Attach", e.toString());
+            end(closeRequested);
+            return false;
+        }
+        name = socket.getRemoteName();
+        if (encryption != SessionCrypto.Mode.OFF) {
+            try {
+                keyExchange = SessionCrypto.generate();
+            } catch (GeneralSecurityException e) {
+                Log.e("Session->Crypto", "No key pair: " + e);
+                if (encryption == SessionCrypto.Mode.REQUIRED) {
+                    end(false);
+                    return false;
+                }
+            }
+        }
+        // Built before the reader starts, so the peer's hello is always agreed against it.
+        hello = buildHello();
+
+        if (!state.transition(ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED)) {
+            closeSocket();
+            return false;
+        }
+
+        try {
+            writeTask = scheduler.submit("Writer-" + address, this::writeLoop, socket);
+        } catch (RejectedExecutionException e) {
+            Log.e("Session->Start", "No worker for writer: " + e);
+            end(false);
+            return false;
+        }
+        callback.onSessionConnected(this);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        end(true);
+    }
+
+    /**
+     * Waits for the session's read and write tasks to finish after it has been closed.
+     */
+    public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        SessionScheduler.TaskHandle[] tasks = {readTask, writeTask};
+        for (SessionScheduler.TaskHandle task : tasks) {
+            if (task != null && !task.join(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void end(boolean requested) {
+        int previous = state.moveTo(ChatUtils.STATE_NONE);
+        if (previous == ChatUtils.STATE_NONE) {
+            return;
+        }
+        resumeState.saveUnsent(outboundQueue.closeAndDrain());
+        SessionScheduler.TaskHandle writer = writeTask;
+        if (writer != null) {
+            writer.cancel();
+        }
+        closeSocket();
+        callback.onSessionEnded(this, previous, requested);
+    }
+
+    private void closeSocket() {
+        TransportSocket current = socket;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException e) {
+            Log.d("Session->Close", e.toString());
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        FrameDecoder decoder = new FrameDecoder(this);
+        int bytes;
+
+        try {
+            while (true) {
+                try {
+                    bytes = inputStream.read(buffer);
+                    if (bytes < 0) {
+                        end(closeRequested);
+                        return;
+                    }
+                    metrics.bytesIn.add(bytes);
+                    decoder.feed(buffer, 0, bytes);
+                } catch (IOException e) {
+                    Log.e("Session->Read", e.toString());
+                    end(closeRequested);
+                    return;
+                } catch (RuntimeException e) {
+                    // Without a reader the session would look connected but never hear
+                    // from the peer again.
+                    Log.e("Session->Read", "Reader failed: " + e);
+                    end(false);
+                    return;
+                }
+            }
+        } finally {
+            if (decompressor != null) {
+                decompressor.end();
+            }
+        }
+    }
+
+    /**
+     * The first frame each side writes.
+     * <pre>
+     * codecs u8, dictionary id u32, epoch u64, flags u8, last delivered seq u32
+     * [, key length u16, public key]
+     * </pre>
+     * The codecs say what this side can decode; the rest lets the peer replay what we
+     * missed. Flags: {@code HELLO_DELIVERED} if the last delivered seq is valid,
+     * {@code HELLO_PINGS} if this side answers pings, {@code HELLO_KEY} if a public key
+     * for {@link SessionCrypto} follows, {@code HELLO_FRAGMENTS} if this side reassembles
+     * frames sent in pieces by a {@link ChannelScheduler}. A peer that sends only the
+     * first five bytes does not resume. Both payloads, as sent, go into the session keys.
+     */
+    private byte[] buildHello() {
+        SessionCrypto exchange = keyExchange;
+        byte[] publicKey = exchange != null ? exchange.getPublicKey() : null;
+        int length = RESUME_HELLO_SIZE + (publicKey != null ? 2 + publicKey.length : 0);
+        ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.HEADER_SIZE + length);
+        FrameProtocol.writeHeader(frame.array(), 0, FrameProtocol.TYPE_HELLO, 0, length);
+        frame.position(FrameProtocol.HEADER_SIZE);
+        frame.put((byte) compression.getCodecs()).putInt(compression.getDictionaryId())
+                .putLong(resumeState.getLocalEpoch())
+                .put((byte) ((resumeState.hasDelivered() ? HELLO_DELIVERED : 0) | HELLO_PINGS
+                        | HELLO_FRAGMENTS | (publicKey != null ? HELLO_KEY : 0)))
+                .putInt(resumeState.getLastDelivered());
+        if (publicKey != null) {
+            frame.putShort((short) publicKey.length).put(publicKey);
+        }
+        return frame.array();
+    }
+
+    private void writeHello() throws IOException {
+        byte[] frame = hello;
+        outputStream.write(frame);
+        outputStream.flush();
+        recordWrite(frame.length);
+    }
+
+    private void onHello(byte[] payload, int offset, int length) {
+        if (length < HELLO_SIZE) {
+            Log.e("Session->Hello", "Short hello from " + address);
+            return;
+        }
+        ByteBuffer peerHello = ByteBuffer.wrap(payload, offset, length);
+        peerCodecs = peerHello.get() & 0xff;
+        peerDictionaryId = peerHello.getInt();
+        if (length >= RESUME_HELLO_SIZE) {
+            long epoch = peerHello.getLong();
+            int helloFlags = peerHello.get();
+            peerAnswersPings = (helloFlags & HELLO_PINGS) != 0;
+            peerReassembles = (helloFlags & HELLO_FRAGMENTS) != 0;
+            replay = resumeState.resume(epoch, (helloFlags & HELLO_DELIVERED) != 0, peerHello.getInt());
+            SessionCrypto exchange = keyExchange;
+            if ((helloFlags & HELLO_KEY) != 0 && exchange != null && peerHello.remaining() >= 2) {
+                byte[] peerKey = new byte[peerHello.getShort() & 0xffff];
+                try {
+                    peerHello.get(peerKey);
+                    byte[] ownHello = hello;
+                    keys = exchange.agree(Arrays.copyOfRange(ownHello, FrameProtocol.HEADER_SIZE, ownHello.length),
+                            Arrays.copyOfRange(payload, offset, offset + length), peerKey);
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    Log.e("Session->Crypto", "Bad key from " + address + ": " + e);
+                    closeSocket();
+                    return;
+                }
+            }
+        }
+        helloReceived.countDown();
+    }
+
+    @Override
+    public void onFrame(int type, int flags, byte[] payload, int offset, int length) {
+        if (type == FrameProtocol.TYPE_SEALED) {
+            openSealed(flags, payload, offset, length);
+            return;
+        }
+        // Once keys are agreed the peer seals everything after its hello.
+        if (!opening && type != FrameProtocol.TYPE_HELLO
+                && (keys != null || encryption == SessionCrypto.Mode.REQUIRED)) {
+            Log.e("Session->Crypto", "Plaintext frame of type " + type + " from " + address);
+            closeSocket();
+            return;
+        }
+        if (type == FrameProtocol.TYPE_FRAGMENT) {
+            onFragment(flags, payload, offset, length);
+            return;
+        }
+        metrics.framesIn.increment();
+        lastReceivedNanos = System.nanoTime();
+        int seq = 0;
+        boolean sequenced = (flags & FrameProtocol.FLAG_SEQUENCED) != 0 && (type == FrameProtocol.TYPE_TEXT
+                || type == FrameProtocol.TYPE_MESSAGE || type == FrameProtocol.TYPE_RELAY);
+        if (sequenced) {
+            if (length < SEQUENCE_SIZE) {
+                Log.e("Session->Frame", "Short sequenced frame from " + address);
+                return;
+            }
+            seq = ByteBuffer.wrap(payload, offset, SEQUENCE_SIZE).getInt();
+            offset += SEQUENCE_SIZE;
+            length -= SEQUENCE_SIZE;
+        }
+        if ((flags & FrameCompression.FLAG_COMPRESSED) != 0) {
+            if (decompressor == null) {
+                decompressor = compression.newDecompressor();
+            }
+            try {
+                length = decompressor.decompress(payload, offset, length, flags);
+            } catch (DataFormatException e) {
+                Log.e("Session->Decompress", "Dropping frame of type " + type + ": " + e);
+                return;
+            }
+            payload = decompressor.buffer();
+            offset = 0;
+            flags &= ~(FrameCompression.FLAG_COMPRESSED | FrameCompression.FLAG_DICTIONARY);
+        }
+        if (sequenced && !resumeState.accept(seq)) {
+            return;
+        }
+
+        if (type == FrameProtocol.TYPE_HELLO) {
+            onHello(payload, offset, length);
+        } else if (type == FrameProtocol.TYPE_PING) {
+            byte[] pong = new byte[FrameProtocol.HEADER_SIZE + length];
+            FrameProtocol.writeHeader(pong, 0, FrameProtocol.TYPE_PONG, 0, length);
+            System.arraycopy(payload, offset, pong, FrameProtocol.HEADER_SIZE, length);
+            outboundQueue.offerControl(pong);
+        } else if (type == FrameProtocol.TYPE_PONG) {
+            onPong(payload, offset, length);
+        } else if (type == FrameProtocol.TYPE_TEXT) {
+            PooledBuffer message = receivePool.acquire(length);
+            System.arraycopy(payload, offset, message.data(), 0, length);
+            message.setLength(length);
+            listener.onMessageRead(this, message);
+        } else {
+            try {
+                callback.onControlFrame(this, type, flags, payload, offset, length);
+            } catch (ProtocolException e) {
+                Log.e("Session->Frame", "Bad frame of type " + type + " from " + address + ": " + e);
+                closeSocket();
+            }
+        }
+    }
+
+    private void onFragment(int flags, byte[] payload, int offset, int length) {
+        if (reassembly == null) {
+            reassembly = new ChannelScheduler.Reassembly();
+        }
+        lastReceivedNanos = System.nanoTime();
+        try {
+            if (!reassembly.add(flags, payload, offset, length)) {
+                return;
+            }
+        } catch (ProtocolException e) {
+            Log.e("Session->Fragment", "Bad fragment from " + address + ": " + e);
+            closeSocket();
+            return;
+        }
+        byte[] frame = reassembly.frame();
+        onFrame(frame[1] & 0xff, ((frame[2] & 0xff) << 8) | (frame[3] & 0xff), frame, FrameProtocol.HEADER_SIZE,
+                reassembly.frameLength() - FrameProtocol.HEADER_SIZE);
+    }
+
+    /**
+     * Authenticates and decrypts a sealed frame in place, then decodes the frames inside
+     * it. Any failure means the stream can no longer be trusted, so the link is closed.
+     */
+    private void openSealed(int flags, byte[] payload, int offset, int length) {
+        SessionCrypto.Keys sessionKeys = keys;
+        if (sessionKeys == null || opening) {
+            Log.e("Session->Crypto", "Unexpected sealed frame from " + address);
+            closeSocket();
+            return;
+        }
+        int plain;
+        try {
+            plain = sessionKeys.opener.open(payload, offset, length, flags);
+        } catch (GeneralSecurityException e) {
+            Log.e("Session->Crypto", "Rejecting frame from " + address + ": " + e);
+            closeSocket();
+            return;
+        }
+        if (sealedDecoder == null) {
+            sealedDecoder = new FrameDecoder(this);
+        }
+        opening = true;
+        try {
+            sealedDecoder.feed(payload, offset, plain);
+        } catch (ProtocolException e) {
+            Log.e("Session->Crypto", "Bad frame inside sealed frame from " + address + ": " + e);
+            closeSocket();
+        } finally {
+            opening = false;
+        }
+    }
+
+    /**
+     * Called periodically for a connected session. Pings the peer when nothing has been
+     * received for {@code idleNanos}, and counts a ping as lost once it has been
+     * outstanding for longer than the estimated RTO. After {@link #DEAD_PEER_PROBES}
+     * lost pings in a row the link is considered dead and the socket is closed, which
+     * ends the session as if the link had dropped.
+     */
+    void probe(long now, long idleNanos) {
+        if (!peerAnswersPings || !isConnected()) {
+            return;
+        }
+        byte[] ping = null;
+        boolean timedOut = false;
+        boolean dead = false;
+        synchronized (probeLock) {
+            if (pingOutstanding) {
+                if (now - pingSentNanos < linkQuality.getRtoNanos()) {
+                    return;
+                }
+                pingOutstanding = false;
+                linkQuality.onTimeout();
+                timedOut = true;
+                dead = ++missedPings >= DEAD_PEER_PROBES;
+            } else if (now - lastReceivedNanos >= idleNanos && now - pingSentNanos >= idleNanos) {
+                ping = new byte[FrameProtocol.HEADER_SIZE + PING_SIZE];
+                FrameProtocol.writeHeader(ping, 0, FrameProtocol.TYPE_PING, 0, PING_SIZE);
+                ByteBuffer.wrap(ping, FrameProtocol.HEADER_SIZE, PING_SIZE).putInt(++pingId).putLong(now);
+                pingOutstanding = true;
+                pingSentNanos = now;
+            }
+        }
+        if (ping != null) {
+            outboundQueue.offerControl(ping);
+        } else if (timedOut) {
+            listener.onLinkQuality(this, linkQuality.snapshot());
+            if (dead) {
+                Log.e("Session->Probe", address + " stopped answering pings");
+                closeSocket();
+            }
+        }
+    }
+
+    private void onPong(byte[] payload, int offset, int length) {
+        if (length < PING_SIZE) {
+            return;
+        }
+        ByteBuffer pong = ByteBuffer.wrap(payload, offset, length);
+        int id = pong.getInt();
+        long rtt = System.nanoTime() - pong.getLong();
+        synchronized (probeLock) {
+            if (!pingOutstanding || id != pingId) {
+                return;
+            }
+            pingOutstanding = false;
+            missedPings = 0;
+            linkQuality.onSample(rtt);
+        }
+        metrics.rtt.record(rtt);
+        listener.onLinkQuality(this, linkQuality.snapshot());
+    }
+
+    public LinkQualityEstimator.Snapshot getLinkQuality() {
+        return linkQuality.snapshot();
+    }
+
+    private void writeLoop() {
+        byte[] header = new byte[FrameProtocol.HEADER_SIZE];
+        byte[] batchBuffer = new byte[MAX_BATCH_BYTES
+                + OUTBOUND_QUEUE_CAPACITY * (FrameProtocol.HEADER_SIZE + SEQUENCE_SIZE)];
+        List<byte[]> batch = new ArrayList<>(OUTBOUND_QUEUE_CAPACITY);
+        long[] enqueueTimes = new long[OUTBOUND_QUEUE_CAPACITY];
+        FrameCompression.Compressor compressor = null;
+        try {
+            writeHello();
+            boolean helloArrived = helloReceived.await(HELLO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!helloArrived) {
+                // Whoever holds back the hello must not get a plaintext session out of it.
+                if (encryption != SessionCrypto.Mode.OFF) {
+                    Log.e("Session->Hello", "No hello from " + address + ", dropping it");
+                    end(closeRequested);
+                    return;
+                }
+                Log.d("Session->Hello", "No hello from " + address + ", continuing without resume");
+            }
+            // Seal before the replay, which would otherwise go out in the clear.
+            SessionCrypto.Keys sessionKeys = keys;
+            if (sessionKeys != null) {
+                outputStream = new SealedOutputStream(outputStream, sessionKeys.sealer, metrics.bytesOut);
+            } else if (encryption == SessionCrypto.Mode.REQUIRED) {
+                Log.e("Session->Crypto", address + " does not encrypt, dropping it");
+                end(closeRequested);
+                return;
+            }
+            listener.onHandshakeComplete(this);
+            boolean sequenced = false;
+            if (helloArrived) {
+                compressor = compression.newCompressor(peerCodecs, peerDictionaryId);
+                ResumeState.Replay pending = replay;
+                if (pending != null) {
+                    sequenced = true;
+                    sendAll(pending.messages, pending, true, header, batchBuffer, compressor);
+                }
+            }
+            sendAll(resumeState.takeUnsent(), null, sequenced, header, batchBuffer, compressor);
+
+            // One unit per turn: all pending control frames, then an interactive batch or
+            // piece, or a bulk frame or piece, as the scheduler's rotation says.
+            boolean fragments = peerReassembles;
+            int interactiveMax = channels.getMaxFrameSize(ChannelScheduler.Channel.INTERACTIVE);
+            int bulkMax = channels.getMaxFrameSize(ChannelScheduler.Channel.BULK);
+            int batchBytes = Math.min(MAX_BATCH_BYTES, interactiveMax);
+            ChannelScheduler.Turns turns = channels.newTurns();
+            ChannelScheduler.Fragments interactivePieces = null;
+            ChannelScheduler.Fragments bulkPieces = null;
+            int interactiveBytes = 0;
+            while (interactivePieces != null || bulkPieces != null ? !outboundQueue.isClosed()
+                    : outboundQueue.await()) {
+                for (byte[] frame; (frame = outboundQueue.pollControl()) != null; ) {
+                    writeFrame(frame, compressor, ChannelScheduler.Channel.CONTROL, Integer.MAX_VALUE, false);
+                }
+                ChannelScheduler.Channel next = turns.next(interactivePieces != null || outboundQueue.hasMessages(),
+                        bulkPieces != null || outboundQueue.hasBulk());
+                if (next == ChannelScheduler.Channel.INTERACTIVE) {
+                    if (interactivePieces == null) {
+                        if (outboundQueue.pollBatch(batch, batchBytes, enqueueTimes) == 0) {
+                            continue;
+                        }
+                        int firstSeq = sequenced ? resumeState.assign(batch) : 0;
+                        if (fragments && batch.size() == 1 && FrameProtocol.HEADER_SIZE + SEQUENCE_SIZE
+                                + batch.get(0).length > interactiveMax) {
+                            byte[] buffer = scratch(ChannelScheduler.Channel.INTERACTIVE,
+                                    FrameProtocol.HEADER_SIZE + SEQUENCE_SIZE + batch.get(0).length);
+                            int length = encodeMessage(batch.get(0), resumeState.getFrameType(batch.get(0)),
+                                    firstSeq, sequenced, compressor, buffer);
+                            interactivePieces = new ChannelScheduler.Fragments(buffer, 0, length,
+                                    ChannelScheduler.Channel.INTERACTIVE);
+                            interactiveBytes = 0;
+                        } else {
+                            messagesWritten(batch, flush(batch, firstSeq, sequenced, header, batchBuffer, compressor),
+                                    enqueueTimes);
+                        }
+                    }
+                    if (interactivePieces != null) {
+                        interactiveBytes += interactivePieces.writeNext(outputStream, header, interactiveMax);
+                        if (interactivePieces.isDone()) {
+                            interactivePieces = null;
+                            metrics.bytesOut.add(interactiveBytes);
+                            metrics.framesOut.increment();
+                            messagesWritten(batch, interactiveBytes, enqueueTimes);
+                        }
+                    }
+                } else if (next == ChannelScheduler.Channel.BULK) {
+                    if (bulkPieces == null) {
+                        byte[] frame = outboundQueue.pollBulk();
+                        if (frame != null) {
+                            bulkPieces = writeFrame(frame, compressor, ChannelScheduler.Channel.BULK, bulkMax,
+                                    fragments);
+                        }
+                    }
+                    if (bulkPieces != null) {
+                        metrics.bytesOut.add(bulkPieces.writeNext(outputStream, header, bulkMax));
+                        if (bulkPieces.isDone()) {
+                            bulkPieces = null;
+                            metrics.framesOut.increment();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d("Session->Write", "Interrupted");
+        } catch (IOException e) {
+            Log.e("Session->Write", e.toString());
+            end(closeRequested);
+        } finally {
+            if (compressor != null) {
+                compressor.end();
+            }
+        }
+    }
+
+    private void messagesWritten(List<byte[]> batch, int bytes, long[] enqueueTimes) {
+        outboundQueue.recordFlush(bytes, batch.size());
+        long flushed = System.nanoTime();
+        for (int i = 0; i < batch.size(); i++) {
+            metrics.sendToFlush.record(flushed - enqueueTimes[i]);
+        }
+        reportWritten(batch, flushed);
+        batch.clear();
+    }
+
+    private void reportWritten(List<byte[]> batch, long flushed) {
+        callback.onMessagesFlushed(this, batch, flushed);
+        for (byte[] message : batch) {
+            if (resumeState.getFrameType(message) == FrameProtocol.TYPE_TEXT) {
+                listener.onMessageWritten(this, message);
+            }
+        }
+    }
+
+    /**
+     * Writes messages left over from an earlier session, in batches like the main loop.
+     * A replay keeps its original sequence numbers and was already reported as written;
+     * anything else is numbered now, if the link is sequenced.
+     */
+    private void sendAll(List<byte[]> messages, ResumeState.Replay replay, boolean sequenced, byte[] header,
+                         byte[] batchBuffer, FrameCompression.Compressor compressor) throws IOException {
+        int replaySeq = replay != null ? replay.firstSeq : 0;
+        List<byte[]> batch = new ArrayList<>();
+        int index = 0;
+        while (index < messages.size()) {
+            int bytes = 0;
+            do {
+                bytes += messages.get(index).length;
+                batch.add(messages.get(index++));
+            } while (index < messages.size() && batch.size() < OUTBOUND_QUEUE_CAPACITY
+                    && bytes + messages.get(index).length <= MAX_BATCH_BYTES);
+
+            if (replay != null) {
+                flush(batch, replaySeq, true, header, batchBuffer, compressor);
+                replaySeq += batch.size();
+            } else {
+                int firstSeq = sequenced ? resumeState.assign(batch) : 0;
+                flush(batch, firstSeq, sequenced, header, batchBuffer, compressor);
+                reportWritten(batch, System.nanoTime());
+            }
+            batch.clear();
+        }
+    }
+
+    private int flush(List<byte[]> batch, int firstSeq, boolean sequenced, byte[] header, byte[] batchBuffer,
+                      FrameCompression.Compressor compressor) throws IOException {
+        int prefix = sequenced ? SEQUENCE_SIZE : 0;
+        int baseFlags = sequenced ? FrameProtocol.FLAG_SEQUENCED : 0;
+        if (batch.size() == 1 && batch.get(0).length > MAX_BATCH_BYTES) {
+            byte[] message = batch.get(0);
+            int type = resumeState.getFrameType(message);
+            byte[] scratch = scratch(ChannelScheduler.Channel.INTERACTIVE, prefix + message.length);
+            writeSequence(scratch, 0, firstSeq, sequenced);
+            int compressed = compressor == null ? -1
+                    : compressor.compress(message, 0, message.length, scratch, prefix);
+            if (compressed >= 0) {
+                FrameProtocol.writeHeader(header, 0, type, baseFlags | compressor.flags(), prefix + compressed);
+                outputStream.write(header);
+                outputStream.write(scratch, 0, prefix + compressed);
+                outputStream.flush();
+                return recordWrite(header.length + prefix + compressed);
+            }
+            FrameProtocol.writeHeader(header, 0, type, baseFlags, prefix + message.length);
+            outputStream.write(header);
+            outputStream.write(scratch, 0, prefix);
+            outputStream.write(message);
+            outputStream.flush();
+            return recordWrite(header.length + prefix + message.length);
+        }
+
+        int position = 0;
+        int seq = firstSeq;
+        for (byte[] message : batch) {
+            int type = resumeState.getFrameType(message);
+            int body = position + FrameProtocol.HEADER_SIZE + prefix;
+            writeSequence(batchBuffer, position + FrameProtocol.HEADER_SIZE, seq++, sequenced);
+            int compressed = compressor == null ? -1
+                    : compressor.compress(message, 0, message.length, batchBuffer, body);
+            if (compressed >= 0) {
+                FrameProtocol.writeHeader(batchBuffer, position, type, baseFlags | compressor.flags(),
+                        prefix + compressed);
+                position = body + compressed;
+                continue;
+            }
+            FrameProtocol.writeHeader(batchBuffer, position, type, baseFlags, prefix + message.length);
+            System.arraycopy(message, 0, batchBuffer, body, message.length);
+            position = body + message.length;
+        }
+        outputStream.write(batchBuffer, 0, position);
+        outputStream.flush();
+        metrics.bytesOut.add(position);
+        metrics.framesOut.add(batch.size());
+        return position;
+    }
+
+    private static void writeSequence(byte[] destination, int offset, int seq, boolean sequenced) {
+        if (sequenced) {
+            destination[offset] = (byte) (seq >>> 24);
+            destination[offset + 1] = (byte) (seq >>> 16);
+            destination[offset + 2] = (byte) (seq >>> 8);
+            destination[offset + 3] = (byte) seq;
+        }
+    }
+
+    /**
+     * Encodes one message as a whole frame of {@code type} into {@code buffer}, which
+     * must hold the uncompressed frame, and returns its length.
+     */
+    private static int encodeMessage(byte[] message, int type, int seq, boolean sequenced,
+                                     FrameCompression.Compressor compressor, byte[] buffer) {
+        int prefix = sequenced ? SEQUENCE_SIZE : 0;
+        int body = FrameProtocol.HEADER_SIZE + prefix;
+        int flags = sequenced ? FrameProtocol.FLAG_SEQUENCED : 0;
+        writeSequence(buffer, FrameProtocol.HEADER_SIZE, seq, sequenced);
+        int length = compressor == null ? -1 : compressor.compress(message, 0, message.length, buffer, body);
+        if (length >= 0) {
+            flags |= compressor.flags();
+        } else {
+            System.arraycopy(message, 0, buffer, body, message.length);
+            length = message.length;
+        }
+        FrameProtocol.writeHeader(buffer, 0, type, flags, prefix + length);
+        return body + length;
+    }
+
+    /**
+     * Writes an encoded frame, compressing its payload when that saves space. If it is
+     * larger than {@code maxFrameSize} and may be fragmented, nothing is written and the
+     * frame is returned as pieces for the caller to send.
+     */
+    private ChannelScheduler.Fragments writeFrame(byte[] frame, FrameCompression.Compressor compressor,
+                                                  ChannelScheduler.Channel channel, int maxFrameSize,
+                                                  boolean fragments) throws IOException {
+        byte[] encoded = frame;
+        int encodedLength = frame.length;
+        if (compressor != null) {
+            byte[] buffer = scratch(channel, frame.length);
+            int compressed = compressor.compress(frame, FrameProtocol.HEADER_SIZE,
+                    frame.length - FrameProtocol.HEADER_SIZE, buffer, FrameProtocol.HEADER_SIZE);
+            if (compressed >= 0) {
+                int flags = ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+                FrameProtocol.writeHeader(buffer, 0, frame[1] & 0xff, flags | compressor.flags(), compressed);
+                encoded = buffer;
+                encodedLength = FrameProtocol.HEADER_SIZE + compressed;
+            }
+        }
+        if (fragments && encodedLength > maxFrameSize) {
+            return new ChannelScheduler.Fragments(encoded, 0, encodedLength, channel);
+        }
+        outputStream.write(encoded, 0, encodedLength);
+        outputStream.flush();
+        recordWrite(encodedLength);
+        return null;
+    }
+
+    private int recordWrite(int bytes) {
+        metrics.bytesOut.add(bytes);
+        metrics.framesOut.increment();
+        return bytes;
+    }
+
+    /**
+     * A buffer for encoding frames of {@code channel}; each channel has its own, since a
+     * frame sent in pieces stays in it while other channels send.
+     */
+    private byte[] scratch(ChannelScheduler.Channel channel, int size) {
+        byte[] buffer = scratch[channel.ordinal()];
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            scratch[channel.ordinal()] = buffer;
+        }
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerSession{" + id + ", " + address + ", state=" + state + "}";
+    }
+}
@@ -0,0 +1,58 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A byte array handed out by a {@link BufferPool}. Exactly one party owns the buffer
+ * at a time; the owner must call {@link #release()} once it is done with the bytes.
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final byte[] data;
+    private final AtomicBoolean owned = new AtomicBoolean();
+    private int length;
+
+    PooledBuffer(BufferPool pool, byte[] data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > data.length) {
+            throw new IllegalArgumentException("Length " + length + " exceeds capacity " + data.length);
+        }
+        this.length = length;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    public void release() {
+        if (!owned.compareAndSet(true, false)) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        length = 0;
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    void claim() {
+        if (!owned.compareAndSet(false, true)) {
+            throw new IllegalStateException("Buffer is already owned");
+        }
+    }
+}
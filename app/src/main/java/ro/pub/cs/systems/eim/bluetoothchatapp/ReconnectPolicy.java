@@ -0,0 +1,45 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnecting after a lost link. Attempt {@code n}
+ * waits a random time between half and all of {@code min(maxDelay, baseDelay * 2^n)}, so
+ * peers that lost the link together do not retry in lockstep.
+ */
+public class ReconnectPolicy {
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final Random random;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts, Random random) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long delayMillis(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > maxDelayMillis) {
+            ceiling = maxDelayMillis;
+        }
+        long half = ceiling / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (ceiling - half));
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Floods chat messages across the peers each node is connected to, so nodes out of
+ * range of each other can still talk.
+ * <pre>
+ * RELAY  origin u64, seq u32, ttl u8, hops u8, message
+ * </pre>
+ * The origin is the sending node's id and, with seq, names the message. A node delivers
+ * a message the first time it sees it and, if forwarding is enabled, passes it on to its
+ * other peers with the ttl (links it may still cross) decremented and hops incremented.
+ * Copies that arrive again over another path are recognised by a
+ * {@link RotatingBloomFilter} that remembers ids for a few minutes.
+ *
+ * <p>A message started here is queued with the chat messages to each peer, so it is
+ * sequenced and replayed after a reconnect like direct chat. Frames forwarded for other
+ * nodes go on the bulk lane without waiting, so a slow peer cannot stall the reader that
+ * forwards to it; a peer whose lane is full misses the copy, which is counted as dropped.
+ * Forwarded frames are not part of session resume.
+ */
+public class RelayManager {
+    public static final int DEFAULT_TTL = 4;
+    public static final int MAX_TTL = 255;
+    static final int HEADER_SIZE = 14;
+    static final int MAX_QUEUED_FRAMES = 32;
+    private static final int TTL_OFFSET = 12;
+    private static final int SEEN_PER_GENERATION = 4096;
+    private static final double SEEN_FALSE_POSITIVE_RATE = 1e-4;
+    private static final long SEEN_GENERATION_NANOS = TimeUnit.MINUTES.toNanos(2);
+
+    private final long nodeId;
+    private final ChatListener listener;
+    private final BufferPool receivePool;
+    private final Supplier<Collection<PeerSession>> sessions;
+    private final RotatingBloomFilter seen =
+            new RotatingBloomFilter(SEEN_PER_GENERATION, SEEN_FALSE_POSITIVE_RATE, SEEN_GENERATION_NANOS,
+                    System.nanoTime());
+    private final AtomicInteger nextSeq = new AtomicInteger();
+
+    private volatile boolean forwarding;
+    private volatile int ttl = DEFAULT_TTL;
+
+    private final LongAdder originated = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    RelayManager(long nodeId, ChatListener listener, BufferPool receivePool,
+                 Supplier<Collection<PeerSession>> sessions) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        this.receivePool = receivePool;
+        this.sessions = sessions;
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Whether messages from other nodes are passed on. Messages are always delivered
+     * locally.
+     */
+    public void setForwarding(boolean forwarding) {
+        this.forwarding = forwarding;
+    }
+
+    public boolean isForwarding() {
+        return forwarding;
+    }
+
+    public void setTtl(int ttl) {
+        if (ttl < 1 || ttl > MAX_TTL) {
+            throw new IllegalArgumentException("ttl " + ttl);
+        }
+        this.ttl = ttl;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Starts a message on its way to every node within the ttl, queueing it for each
+     * connected peer like {@link PeerSession#write(byte[])}. Each peer is reported
+     * through {@link ChatListener#onMessageWritten} once the message has been written to
+     * it. Returns true if at least one peer took it.
+     */
+    public boolean send(byte[] message) {
+        int seq = nextSeq.getAndIncrement();
+        seen.add(key(nodeId, seq), System.nanoTime());
+        originated.increment();
+
+        byte[] payload = new byte[HEADER_SIZE + message.length];
+        ByteBuffer.wrap(payload, 0, HEADER_SIZE)
+                .putLong(nodeId)
+                .putInt(seq)
+                .put((byte) ttl)
+                .put((byte) 0);
+        System.arraycopy(message, 0, payload, HEADER_SIZE, message.length);
+
+        boolean accepted = false;
+        for (PeerSession session : sessions.get()) {
+            if (session.write(FrameProtocol.TYPE_RELAY, payload)) {
+                accepted = true;
+            } else {
+                dropped.increment();
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Called once a payload queued by {@link #send(byte[])} has been written to
+     * {@code session}.
+     */
+    void onFlushed(PeerSession session, byte[] payload) {
+        listener.onMessageWritten(session, Arrays.copyOfRange(payload, HEADER_SIZE, payload.length));
+    }
+
+    void onFrame(PeerSession from, byte[] payload, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            Log.e("Relay->Frame", "Short relay frame from " + from.getAddress());
+            return;
+        }
+        received.increment();
+        ByteBuffer header = ByteBuffer.wrap(payload, offset, HEADER_SIZE);
+        long origin = header.getLong();
+        int seq = header.getInt();
+        int remainingTtl = header.get() & 0xff;
+        int hops = header.get() & 0xff;
+        if (origin == nodeId || !seen.add(key(origin, seq), System.nanoTime())) {
+            duplicates.increment();
+            return;
+        }
+
+        if (forwarding) {
+            if (remainingTtl > 1) {
+                forward(from, payload, offset, length, remainingTtl - 1, Math.min(hops + 1, 255));
+            } else {
+                expired.increment();
+            }
+        }
+
+        int messageLength = length - HEADER_SIZE;
+        PooledBuffer message = receivePool.acquire(messageLength);
+        System.arraycopy(payload, offset + HEADER_SIZE, message.data(), 0, messageLength);
+        message.setLength(messageLength);
+        listener.onRelayedMessage(from, origin, hops, message);
+    }
+
+    private void forward(PeerSession from, byte[] payload, int offset, int length, int nextTtl, int nextHops) {
+        byte[] frame = null;
+        for (PeerSession session : sessions.get()) {
+            if (session == from) {
+                continue;
+            }
+            if (frame == null) {
+                frame = new byte[FrameProtocol.HEADER_SIZE + length];
+                FrameProtocol.writeHeader(frame, 0, FrameProtocol.TYPE_RELAY, 0, length);
+                System.arraycopy(payload, offset, frame, FrameProtocol.HEADER_SIZE, length);
+                frame[FrameProtocol.HEADER_SIZE + TTL_OFFSET] = (byte) nextTtl;
+                frame[FrameProtocol.HEADER_SIZE + TTL_OFFSET + 1] = (byte) nextHops;
+            }
+            if (session.trySendFrame(frame, MAX_QUEUED_FRAMES)) {
+                forwarded.increment();
+            } else {
+                dropped.increment();
+            }
+        }
+    }
+
+    private static long key(long origin, int seq) {
+        return origin ^ (seq * 0x9e3779b97f4a7c15L);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(originated.sum(), received.sum(), duplicates.sum(), forwarded.sum(), dropped.sum(),
+                expired.sum());
+    }
+
+    public static final class Snapshot {
+        private final long originated;
+        private final long received;
+        private final long duplicates;
+        private final long forwarded;
+        private final long dropped;
+        private final long expired;
+
+        Snapshot(long originated, long received, long duplicates, long forwarded, long dropped, long expired) {
+            this.originated = originated;
+            this.received = received;
+            this.duplicates = duplicates;
+            this.forwarded = forwarded;
+            this.dropped = dropped;
+            this.expired = expired;
+        }
+
+        public long getOriginated() {
+            return originated;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getForwarded() {
+            return forwarded;
+        }
+
+        /**
+         * Copies not queued because the peer's queue or bulk lane was full, or it
+         * disconnected.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Messages not forwarded because their ttl ran out here.
+         */
+        public long getExpired() {
+            return expired;
+        }
+
+        /**
+         * Share of received relay frames that were copies of a message already seen.
+         */
+        public double getDuplicateRatio() {
+            return received == 0 ? 0 : (double) duplicates / received;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "relay sent=%d received=%d duplicates=%d (%.0f%%) forwarded=%d dropped=%d"
+                    + " expired=%d", originated, received, duplicates, 100 * getDuplicateRatio(), forwarded, dropped,
+                    expired);
+        }
+    }
+}
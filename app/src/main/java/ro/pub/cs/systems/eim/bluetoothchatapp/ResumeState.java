@@ -0,0 +1,178 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Per-peer message sequencing that outlives a single {@link PeerSession}. Every chat
+ * message sent to the peer gets the next sequence number and is retained, up to a
+ * bound, so it can be replayed if the link drops before the peer saw it. Messages still
+ * queued when a session ends are kept here and sent first by the next session. For the
+ * other direction it remembers the last sequence number delivered, which lets the
+ * receiver drop replayed duplicates.
+ *
+ * <p>Most messages are chat text; one queued with {@link #setFrameType} goes out as a
+ * frame of that type instead, and keeps its type through a replay.
+ *
+ * <p>Sequence numbers are 32-bit and compared with serial-number arithmetic.
+ */
+public class ResumeState {
+    static final int MAX_RETAINED_MESSAGES = 256;
+    static final int MAX_RETAINED_BYTES = 512 * 1024;
+
+    private final long localEpoch;
+
+    private final ArrayDeque<byte[]> retained = new ArrayDeque<>();
+    private int retainedBytes;
+    private int firstRetainedSeq = 1;
+    private int nextSeq = 1;
+    private final ArrayDeque<byte[]> unsent = new ArrayDeque<>();
+    // Keyed by identity, as arrays are; weak, so a message is forgotten once it has left
+    // both the queue and the retransmit buffer.
+    private final Map<byte[], Integer> frameTypes = new WeakHashMap<>();
+    private volatile boolean hasFrameTypes;
+
+    private boolean peerEpochKnown;
+    private long peerEpoch;
+    private boolean delivered;
+    private int lastDelivered;
+
+    ResumeState(long localEpoch) {
+        this.localEpoch = localEpoch;
+    }
+
+    public long getLocalEpoch() {
+        return localEpoch;
+    }
+
+    /**
+     * Sends {@code message} as the payload of a {@code type} frame rather than as text.
+     */
+    synchronized void setFrameType(byte[] message, int type) {
+        frameTypes.put(message, type);
+        hasFrameTypes = true;
+    }
+
+    int getFrameType(byte[] message) {
+        if (!hasFrameTypes) {
+            return FrameProtocol.TYPE_TEXT;
+        }
+        synchronized (this) {
+            Integer type = frameTypes.get(message);
+            return type != null ? type : FrameProtocol.TYPE_TEXT;
+        }
+    }
+
+    /**
+     * Numbers a batch about to be written and retains it for replay. Returns the sequence
+     * number of the first message; the rest follow consecutively.
+     */
+    synchronized int assign(List<byte[]> batch) {
+        int first = nextSeq;
+        for (byte[] message : batch) {
+            retained.addLast(message);
+            retainedBytes += message.length;
+            nextSeq++;
+        }
+        while (retained.size() > MAX_RETAINED_MESSAGES
+                || (retainedBytes > MAX_RETAINED_BYTES && retained.size() > 1)) {
+            retainedBytes -= retained.pollFirst().length;
+            firstRetainedSeq++;
+        }
+        return first;
+    }
+
+    static final class Replay {
+        final int firstSeq;
+        final List<byte[]> messages;
+
+        Replay(int firstSeq, List<byte[]> messages) {
+            this.firstSeq = firstSeq;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Called once the peer's hello arrives. A new epoch means the peer restarted and
+     * forgot both directions, so nothing is replayed and its numbering starts over.
+     * Returns the retained messages the peer has not acknowledged, in order.
+     */
+    synchronized Replay resume(long peerEpoch, boolean peerDelivered, int peerLastDelivered) {
+        if (peerEpochKnown && peerEpoch != this.peerEpoch) {
+            delivered = false;
+            dropRetained();
+        }
+        this.peerEpoch = peerEpoch;
+        peerEpochKnown = true;
+
+        if (peerDelivered) {
+            while (!retained.isEmpty() && firstRetainedSeq - peerLastDelivered <= 0) {
+                retainedBytes -= retained.pollFirst().length;
+                firstRetainedSeq++;
+            }
+            int lost = firstRetainedSeq - peerLastDelivered - 1;
+            if (lost > 0) {
+                Log.e("Resume->Replay", lost + " messages fell out of the retransmit buffer");
+            }
+        }
+        return new Replay(firstRetainedSeq, new ArrayList<>(retained));
+    }
+
+    synchronized int getFirstRetainedSeq() {
+        return firstRetainedSeq;
+    }
+
+    synchronized int getRetainedCount() {
+        return retained.size();
+    }
+
+    private void dropRetained() {
+        retained.clear();
+        retainedBytes = 0;
+        firstRetainedSeq = nextSeq;
+    }
+
+    /**
+     * Keeps messages a session accepted but never wrote; the next session sends them
+     * before anything new.
+     */
+    synchronized void saveUnsent(List<byte[]> messages) {
+        unsent.addAll(messages);
+    }
+
+    synchronized List<byte[]> takeUnsent() {
+        List<byte[]> messages = new ArrayList<>(unsent);
+        unsent.clear();
+        return messages;
+    }
+
+    synchronized int getUnsentCount() {
+        return unsent.size();
+    }
+
+    /**
+     * Records delivery of an incoming message. Returns false for a duplicate that was
+     * already delivered before a replay.
+     */
+    synchronized boolean accept(int seq) {
+        if (delivered && seq - lastDelivered <= 0) {
+            return false;
+        }
+        delivered = true;
+        lastDelivered = seq;
+        return true;
+    }
+
+    synchronized boolean hasDelivered() {
+        return delivered;
+    }
+
+    synchronized int getLastDelivered() {
+        return lastDelivered;
+    }
+}
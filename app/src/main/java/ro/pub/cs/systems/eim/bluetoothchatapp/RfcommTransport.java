@@ -0,0 +1,107 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import static android.Manifest.permission.BLUETOOTH_CONNECT;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import androidx.core.app.ActivityCompat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+public class RfcommTransport implements Transport {
+    private static final String APP_NAME = "BluetoothChatApp";
+    private static final UUID APP_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+
+    public RfcommTransport(Context context) {
+        this.context = context;
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        checkConnectPermission();
+        BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, APP_UUID);
+        return new TransportServer() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new RfcommSocket(serverSocket.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportSocket createConnection(String address) throws IOException {
+        checkConnectPermission();
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new RfcommSocket(device.createRfcommSocketToServiceRecord(APP_UUID));
+    }
+
+    private boolean hasConnectPermission() {
+        return ActivityCompat.checkSelfPermission(context, BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void checkConnectPermission() throws IOException {
+        if (!hasConnectPermission()) {
+            throw new IOException("Bluetooth connect permission not granted");
+        }
+    }
+
+    private class RfcommSocket implements TransportSocket {
+        private final BluetoothSocket socket;
+
+        RfcommSocket(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            checkConnectPermission();
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            BluetoothDevice device = socket.getRemoteDevice();
+            if (!hasConnectPermission()) {
+                return device.getAddress();
+            }
+            return device.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
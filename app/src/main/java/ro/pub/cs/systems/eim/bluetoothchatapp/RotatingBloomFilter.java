@@ -0,0 +1,96 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Arrays;
+
+/**
+ * Approximate set of recently seen 64-bit keys in bounded memory. Keys go into the
+ * current generation; when it is full or older than the generation time it becomes the
+ * previous one and the old previous one is cleared, so a key is remembered for between
+ * one and two generations. Lookups check both. False positives happen at about the
+ * configured rate per generation; false negatives only for expired keys.
+ */
+class RotatingBloomFilter {
+    private final int hashes;
+    private final int mask;
+    private final int keysPerGeneration;
+    private final long generationNanos;
+
+    private long[] current;
+    private long[] previous;
+    private int currentKeys;
+    private long rotatedNanos;
+
+    RotatingBloomFilter(int keysPerGeneration, double falsePositiveRate, long generationNanos, long nowNanos) {
+        double optimalBits = -keysPerGeneration * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int bits = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(64, Math.ceil(optimalBits))) - 1) << 1;
+        this.hashes = (int) Math.max(1, Math.min(16, Math.round((double) bits / keysPerGeneration * Math.log(2))));
+        this.mask = bits - 1;
+        this.keysPerGeneration = keysPerGeneration;
+        this.generationNanos = generationNanos;
+        current = new long[bits / 64];
+        previous = new long[bits / 64];
+        rotatedNanos = nowNanos;
+    }
+
+    /**
+     * Adds {@code key}, returning false if it was (probably) seen already.
+     */
+    synchronized boolean add(long key, long nowNanos) {
+        long elapsed = nowNanos - rotatedNanos;
+        if (elapsed >= 2 * generationNanos) {
+            rotate(nowNanos);
+            rotate(nowNanos);
+        } else if (elapsed >= generationNanos || currentKeys >= keysPerGeneration) {
+            rotate(nowNanos);
+        }
+
+        long hash = mix(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            current[bit >>> 6] |= 1L << bit;
+        }
+        currentKeys++;
+        return true;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    int getBits() {
+        return mask + 1;
+    }
+
+    private boolean contains(long[] words, int h1, int h2) {
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotate(long nowNanos) {
+        long[] cleared = previous;
+        Arrays.fill(cleared, 0);
+        previous = current;
+        current = cleared;
+        currentKeys = 0;
+        rotatedNanos = nowNanos;
+    }
+
+    /**
+     * Stafford's mix13 finalizer, so sequential message ids spread over the whole filter.
+     */
+    private static long mix(long key) {
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+}
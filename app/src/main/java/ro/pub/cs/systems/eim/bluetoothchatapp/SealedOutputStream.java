@@ -0,0 +1,80 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects what the session writer writes between flushes and sends it as
+ * {@link FrameProtocol#TYPE_SEALED} frames. Bytes are copied once into a reused record
+ * buffer and encrypted there in place, so sealing allocates nothing per frame beyond
+ * what the cipher itself needs. A flushed batch of frames becomes one sealed frame, or
+ * several when it is larger than {@link #MAX_RECORD_SIZE}.
+ */
+class SealedOutputStream extends OutputStream {
+    static final int MAX_RECORD_SIZE = 16 * 1024;
+
+    private final OutputStream out;
+    private final SessionCrypto.Sealer sealer;
+    private final LongAdder overheadBytes;
+    private final byte[] record = new byte[FrameProtocol.HEADER_SIZE + MAX_RECORD_SIZE + SessionCrypto.TAG_SIZE];
+    private int fill;
+
+    /**
+     * {@code overheadBytes} is credited with the header and tag of every sealed frame.
+     */
+    SealedOutputStream(OutputStream out, SessionCrypto.Sealer sealer, LongAdder overheadBytes) {
+        this.out = out;
+        this.sealer = sealer;
+        this.overheadBytes = overheadBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (fill == MAX_RECORD_SIZE) {
+            seal();
+        }
+        record[FrameProtocol.HEADER_SIZE + fill++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (fill == MAX_RECORD_SIZE) {
+                seal();
+            }
+            int n = Math.min(length, MAX_RECORD_SIZE - fill);
+            System.arraycopy(bytes, offset, record, FrameProtocol.HEADER_SIZE + fill, n);
+            fill += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fill > 0) {
+            seal();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void seal() throws IOException {
+        int sealed;
+        try {
+            sealed = sealer.seal(record, FrameProtocol.HEADER_SIZE, fill, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal frame", e);
+        }
+        FrameProtocol.writeHeader(record, 0, FrameProtocol.TYPE_SEALED, 0, sealed);
+        out.write(record, 0, FrameProtocol.HEADER_SIZE + sealed);
+        overheadBytes.add(FrameProtocol.HEADER_SIZE + SessionCrypto.TAG_SIZE);
+        fill = 0;
+    }
+}
@@ -0,0 +1,254 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key exchange and frame protection for one session.
+ *
+ * <p>Each side puts a fresh P-256 public key in its hello. Both then run ECDH and
+ * HKDF-SHA256, salted with a hash of the two hellos as sent, to get one AES-256-GCM key
+ * per direction plus a six digit verification code that two users can compare to rule
+ * out a man in the middle. The exchange itself is not authenticated: the code is the
+ * check, and since it covers the whole transcript, a changed resume position, codec or
+ * flag in either hello gives the two ends different keys and codes, and the first sealed
+ * frame fails. Everything after the hellos travels in
+ * {@link FrameProtocol#TYPE_SEALED} frames whose header is authenticated as associated
+ * data. The nonce is a per-direction frame counter, never sent: frames arrive in order
+ * on the stream, so a dropped, replayed or reordered frame fails authentication.
+ */
+public final class SessionCrypto {
+    public enum Mode {
+        /**
+         * Never encrypt.
+         */
+        OFF,
+        /**
+         * Encrypt when the peer's hello carries a key; talk in plaintext to peers whose
+         * hello does not. Anyone on the link can strip the key, so this is only for a user
+         * who has agreed to talk in the clear.
+         */
+        PREFERRED,
+        /**
+         * Drop peers that do not encrypt. The default.
+         */
+        REQUIRED
+    }
+
+    public static final int TAG_SIZE = 16;
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final byte[] LABEL = "BluetoothChatApp session v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final KeyPair keyPair;
+    private final byte[] publicKey;
+
+    private SessionCrypto(KeyPair keyPair) {
+        this.keyPair = keyPair;
+        this.publicKey = keyPair.getPublic().getEncoded();
+    }
+
+    /**
+     * Starts a key exchange with a new ephemeral key pair.
+     */
+    public static SessionCrypto generate() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return new SessionCrypto(generator.generateKeyPair());
+    }
+
+    /**
+     * Our public key, X.509 encoded, for the hello.
+     */
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    /**
+     * Derives the session keys from the peer's public key and both hello payloads, each
+     * exactly as it went over the link; {@code peerHello} carries {@code peerPublicKey}.
+     */
+    public Keys agree(byte[] ownHello, byte[] peerHello, byte[] peerPublicKey) throws GeneralSecurityException {
+        PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(keyPair.getPrivate());
+        agreement.doPhase(peer, true);
+        byte[] secret = agreement.generateSecret();
+
+        // Both ends hash the hellos in the same order: the one with the lower key first.
+        boolean low = compareUnsigned(publicKey, peerPublicKey) < 0;
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(LABEL);
+        updateWithLength(digest, low ? ownHello : peerHello);
+        updateWithLength(digest, low ? peerHello : ownHello);
+        byte[] okm = hkdf(digest.digest(), secret, LABEL, 2 * KEY_SIZE + 4);
+        Arrays.fill(secret, (byte) 0);
+
+        // The first key protects what the side with the lower public key sends.
+        byte[] lowKey = Arrays.copyOfRange(okm, 0, KEY_SIZE);
+        byte[] highKey = Arrays.copyOfRange(okm, KEY_SIZE, 2 * KEY_SIZE);
+        int code = (((okm[2 * KEY_SIZE] & 0xff) << 24) | ((okm[2 * KEY_SIZE + 1] & 0xff) << 16)
+                | ((okm[2 * KEY_SIZE + 2] & 0xff) << 8) | (okm[2 * KEY_SIZE + 3] & 0xff)) & 0x7fffffff;
+        Keys keys = new Keys(new Sealer(low ? lowKey : highKey), new Opener(low ? highKey : lowKey),
+                String.format(Locale.US, "%03d %03d", code % 1_000_000 / 1000, code % 1000));
+        Arrays.fill(okm, (byte) 0);
+        Arrays.fill(lowKey, (byte) 0);
+        Arrays.fill(highKey, (byte) 0);
+        return keys;
+    }
+
+    /**
+     * HKDF (RFC 5869) with HMAC-SHA256.
+     */
+    static byte[] hkdf(byte[] salt, byte[] inputKey, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int position = 0, counter = 1; position < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - position);
+            System.arraycopy(block, 0, output, position, n);
+            position += n;
+        }
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+        return output;
+    }
+
+    private static void updateWithLength(MessageDigest digest, byte[] bytes) {
+        int length = bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                (byte) length});
+        digest.update(bytes);
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    public static final class Keys {
+        public final Sealer sealer;
+        public final Opener opener;
+        private final String verificationCode;
+
+        Keys(Sealer sealer, Opener opener, String verificationCode) {
+            this.sealer = sealer;
+            this.opener = opener;
+            this.verificationCode = verificationCode;
+        }
+
+        /**
+         * Same on both ends unless someone sits between them.
+         */
+        public String getVerificationCode() {
+            return verificationCode;
+        }
+    }
+
+    /**
+     * One direction's AES-GCM state: a cipher and key set up once, and the frame counter
+     * that makes the nonce. Not thread safe.
+     */
+    private abstract static class Direction {
+        private final Cipher cipher;
+        private final SecretKeySpec key;
+        private final int mode;
+        private final byte[] nonce = new byte[NONCE_SIZE];
+        private final byte[] header = new byte[FrameProtocol.HEADER_SIZE];
+        private long counter;
+
+        Direction(byte[] key, int mode) {
+            try {
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM unavailable", e);
+            }
+            this.key = new SecretKeySpec(key, "AES");
+            this.mode = mode;
+        }
+
+        /**
+         * Runs the cipher in place over {@code buffer[offset, offset + length)}, with the
+         * sealed frame's header as associated data.
+         */
+        int apply(byte[] buffer, int offset, int length, int flags, int sealedLength)
+                throws GeneralSecurityException {
+            if (counter == -1) {
+                throw new GeneralSecurityException("Nonce space exhausted");
+            }
+            long value = counter++;
+            for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--) {
+                nonce[i] = (byte) value;
+                value >>>= 8;
+            }
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            FrameProtocol.writeHeader(header, 0, FrameProtocol.TYPE_SEALED, flags, sealedLength);
+            cipher.updateAAD(header);
+            return cipher.doFinal(buffer, offset, length, buffer, offset);
+        }
+
+        long getCounter() {
+            return counter;
+        }
+    }
+
+    public static final class Sealer extends Direction {
+        Sealer(byte[] key) {
+            super(key, Cipher.ENCRYPT_MODE);
+        }
+
+        /**
+         * Encrypts {@code length} bytes at {@code offset} in place and appends the tag, so
+         * the buffer needs {@link #TAG_SIZE} bytes of room after them. Returns the sealed
+         * length, {@code length + TAG_SIZE}.
+         */
+        public int seal(byte[] buffer, int offset, int length, int flags) throws GeneralSecurityException {
+            return apply(buffer, offset, length, flags, length + TAG_SIZE);
+        }
+    }
+
+    public static final class Opener extends Direction {
+        Opener(byte[] key) {
+            super(key, Cipher.DECRYPT_MODE);
+        }
+
+        /**
+         * Authenticates and decrypts a sealed payload in place. Returns the plaintext
+         * length; throws {@link AEADBadTagException} if the frame or its
+         * header was tampered with.
+         */
+        public int open(byte[] buffer, int offset, int length, int flags) throws GeneralSecurityException {
+            if (length < TAG_SIZE) {
+                throw new AEADBadTagException("Sealed frame shorter than its tag");
+            }
+            return apply(buffer, offset, length, flags, length);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool that runs accept, connect, read and write work for all sessions.
+ * Tasks block on socket I/O, so they are handed directly to a worker instead of being
+ * queued; when every worker is busy the submission is rejected. Idle workers are kept
+ * for a while and reused by later connections.
+ */
+public class SessionScheduler {
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SessionScheduler(int maxThreads) {
+        executor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new WorkerFactory());
+    }
+
+    public static SessionScheduler forSessions(int maxSessions) {
+        return new SessionScheduler(2 * maxSessions + 4);
+    }
+
+    /**
+     * Runs {@code task} on a pooled worker. Cancelling the returned handle closes
+     * {@code resource}, which is how blocked socket calls are interrupted.
+     */
+    public TaskHandle submit(String name, Runnable task, Closeable resource) {
+        TaskHandle handle = new TaskHandle(name, resource);
+        try {
+            executor.execute(() -> handle.run(task));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            handle.finished();
+            throw e;
+        }
+        return handle;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public int getPoolSize() {
+        return executor.getPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return executor.getLargestPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionScheduler{pool=" + getPoolSize()
+                + ", active=" + getActiveCount()
+                + ", largest=" + getLargestPoolSize()
+                + ", completed=" + getCompletedTaskCount()
+                + ", rejected=" + getRejectedCount() + "}";
+    }
+
+    public static final class TaskHandle {
+        private final String name;
+        private final Closeable resource;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Thread worker;
+        private volatile boolean cancelled;
+
+        private TaskHandle(String name, Closeable resource) {
+            this.name = name;
+            this.resource = resource;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    Log.d("Scheduler->Cancel", e.toString());
+                }
+            }
+            synchronized (this) {
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+        }
+
+        public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        private void run(Runnable task) {
+            Thread thread = Thread.currentThread();
+            String workerName = thread.getName();
+            thread.setName(name);
+            synchronized (this) {
+                worker = thread;
+            }
+            try {
+                if (!cancelled) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                Log.e("Scheduler->Run", name + ": " + e);
+            } finally {
+                synchronized (this) {
+                    worker = null;
+                    Thread.interrupted();
+                }
+                thread.setName(workerName);
+                finished();
+            }
+        }
+
+        private void finished() {
+            done.countDown();
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "chat-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
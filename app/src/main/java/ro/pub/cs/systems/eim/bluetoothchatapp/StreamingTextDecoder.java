@@ -0,0 +1,121 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes chat text one chunk at a time with a reused {@link CharsetDecoder} and char
+ * buffer. A multibyte character split across chunks is held back until the rest of it
+ * arrives; malformed input becomes U+FFFD instead of failing the message. Not thread
+ * safe, so keep one per session.
+ */
+public class StreamingTextDecoder {
+    /**
+     * Largest char buffer kept between calls; bigger messages get a throwaway buffer.
+     */
+    static final int MAX_RETAINED_CHARS = 64 * 1024;
+    private static final int MAX_SEQUENCE_BYTES = 4;
+
+    private final CharsetDecoder decoder;
+    private final ByteBuffer pending = ByteBuffer.allocate(MAX_SEQUENCE_BYTES);
+    private final boolean asciiCompatible;
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    public StreamingTextDecoder() {
+        this(StandardCharsets.UTF_8);
+    }
+
+    public StreamingTextDecoder(Charset charset) {
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Decodes one complete message.
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        return decode(bytes, offset, length, true);
+    }
+
+    /**
+     * Decodes the next chunk of a stream. Bytes of a character cut off at the end of the
+     * chunk are kept for the next call unless {@code endOfInput} is set, in which case
+     * they are replaced and the decoder is ready for a new stream.
+     */
+    public String decode(byte[] bytes, int offset, int length, boolean endOfInput) {
+        if (asciiCompatible && endOfInput && pending.position() == 0 && isAscii(bytes, offset, length)) {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        CharBuffer out = charsFor(pending.position() + length);
+        ByteBuffer input = ByteBuffer.wrap(bytes, offset, length);
+        if (pending.position() > 0) {
+            // Finish the carried character first: top the carry up from the input and
+            // work out how much of the input the decoder actually used.
+            int carried = pending.position();
+            int taken = Math.min(pending.remaining(), length);
+            pending.put(bytes, offset, taken);
+            pending.flip();
+            decoder.decode(pending, out, false);
+            if (pending.position() >= carried) {
+                input.position(offset + pending.position() - carried);
+                pending.clear();
+            } else {
+                input.position(offset + taken);
+                pending.compact();
+            }
+        }
+
+        if (pending.position() > 0) {
+            if (endOfInput) {
+                pending.flip();
+                decoder.decode(pending, out, true);
+                pending.clear();
+            }
+        } else {
+            decoder.decode(input, out, endOfInput);
+            pending.put(input);
+        }
+        if (endOfInput) {
+            decoder.flush(out);
+            decoder.reset();
+        }
+        out.flip();
+        return out.toString();
+    }
+
+    /**
+     * Drops a partially received character, e.g. when the session ends mid-stream.
+     */
+    public void reset() {
+        pending.clear();
+        decoder.reset();
+    }
+
+    private CharBuffer charsFor(int byteCount) {
+        int needed = (int) Math.ceil(byteCount * (double) decoder.maxCharsPerByte()) + 1;
+        if (needed > MAX_RETAINED_CHARS) {
+            return CharBuffer.allocate(needed);
+        }
+        if (chars.capacity() < needed) {
+            chars = CharBuffer.allocate(Math.min(MAX_RETAINED_CHARS, Math.max(needed, chars.capacity() * 2)));
+        }
+        chars.clear();
+        return chars;
+    }
+
+    private static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
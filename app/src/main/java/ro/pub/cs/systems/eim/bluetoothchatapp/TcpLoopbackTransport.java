@@ -0,0 +1,106 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over TCP on the loopback interface. Addresses are port numbers; the first
+ * {@link #listen()} binds the configured port (or an ephemeral one) and later listens
+ * reuse it, so peers can reconnect to the same address.
+ */
+public class TcpLoopbackTransport implements Transport {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private volatile int port;
+
+    public TcpLoopbackTransport() {
+        this(0);
+    }
+
+    public TcpLoopbackTransport(int port) {
+        this.port = port;
+    }
+
+    public String getAddress() {
+        return String.valueOf(port);
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        port = serverSocket.getLocalPort();
+
+        return new TransportServer() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                return new TcpSocket(socket, String.valueOf(socket.getPort()));
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportSocket createConnection(String address) {
+        return new TcpSocket(new Socket(), address);
+    }
+
+    private static class TcpSocket implements TransportSocket {
+        private final Socket socket;
+        private final String remoteAddress;
+
+        TcpSocket(Socket socket, String remoteAddress) {
+            this.socket = socket;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            int remotePort;
+            try {
+                remotePort = Integer.parseInt(remoteAddress);
+            } catch (NumberFormatException e) {
+                throw new IOException("Not a loopback port: " + remoteAddress, e);
+            }
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), remotePort), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return "localhost:" + remoteAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+
+/**
+ * Link layer used by {@link ChatUtils}. Implementations exist for Bluetooth RFCOMM,
+ * for in-process pipes and for TCP on the loopback interface.
+ */
+public interface Transport {
+    TransportServer listen() throws IOException;
+
+    TransportSocket createConnection(String address) throws IOException;
+}
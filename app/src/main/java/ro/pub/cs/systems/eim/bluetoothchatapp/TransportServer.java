@@ -0,0 +1,11 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface TransportServer extends Closeable {
+    TransportSocket accept() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,26 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of a link. Sockets returned by {@link TransportServer#accept()} are already
+ * connected; sockets from {@link Transport#createConnection(String)} must be connected
+ * first. Closing the socket unblocks any pending connect, read or write.
+ */
+public interface TransportSocket extends Closeable {
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    String getRemoteAddress();
+
+    String getRemoteName();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,278 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.net.ProtocolException;
+
+/**
+ * Typed messages carried in {@link FrameProtocol#TYPE_MESSAGE} frames.
+ * <pre>
+ * MESSAGE  schema u8, type varint, field*
+ * field    key varint (number &lt;&lt; 1 | kind), then
+ *            kind 0: value varint
+ *            kind 1: length varint, bytes
+ * </pre>
+ * Varints are unsigned LEB128: seven bits per byte, low bits first, high bit set on all
+ * but the last byte. A typing indicator, or a receipt for an id below 128, is four bytes
+ * of payload.
+ *
+ * <p>Readers skip fields they do not know, so new fields can be added without a schema
+ * bump; a message of an unknown type still decodes and {@link #isKnownType()} tells the
+ * caller to ignore it. Only a change old readers would misread gets a new schema
+ * version, and such messages are refused.
+ *
+ * <p>An instance is a view over a received payload: {@link #wrap} only records where
+ * the fields are, and the body is read in place from {@link #buffer()}. The view is
+ * valid until the buffer is reused, and can itself be reused for the next message.
+ */
+public final class TypedMessage {
+    public static final int SCHEMA_VERSION = 1;
+
+    public static final int TEXT = 1;
+    public static final int TYPING = 2;
+    public static final int DELIVERED = 3;
+    public static final int READ = 4;
+    public static final int CONTROL = 5;
+    private static final int LAST_KNOWN_TYPE = CONTROL;
+
+    static final int FIELD_ID = 1;
+    static final int FIELD_ACTIVE = 2;
+    static final int FIELD_CODE = 3;
+    static final int FIELD_BODY = 4;
+    static final int KIND_VARINT = 0;
+    static final int KIND_BYTES = 1;
+
+    private byte[] buffer;
+    private int type;
+    private long id;
+    private long number;
+    private int bodyOffset;
+    private int bodyLength;
+    private long varint;
+
+    /**
+     * A chat message; {@code id} is what the receipts for it will carry.
+     */
+    public static byte[] text(long id, byte[] body) {
+        return frame(TEXT, FIELD_ID, id, body);
+    }
+
+    public static byte[] typing(boolean active) {
+        return frame(TYPING, FIELD_ACTIVE, active ? 1 : 0, null);
+    }
+
+    public static byte[] delivered(long id) {
+        return frame(DELIVERED, FIELD_ID, id, null);
+    }
+
+    public static byte[] read(long id) {
+        return frame(READ, FIELD_ID, id, null);
+    }
+
+    /**
+     * An application defined command, with optional data.
+     */
+    public static byte[] control(int code, byte[] data) {
+        if (code < 0) {
+            throw new IllegalArgumentException("code " + code);
+        }
+        return frame(CONTROL, FIELD_CODE, code, data);
+    }
+
+    /**
+     * Encodes a whole frame, header included, ready for {@link PeerSession#sendFrame}.
+     */
+    private static byte[] frame(int type, int numberField, long number, byte[] body) {
+        if (number < 0) {
+            throw new IllegalArgumentException("Negative field " + numberField + ": " + number);
+        }
+        int numberKey = numberField << 1 | KIND_VARINT;
+        int bodyKey = FIELD_BODY << 1 | KIND_BYTES;
+        int length = 1 + varintSize(type) + varintSize(numberKey) + varintSize(number);
+        if (body != null) {
+            length += varintSize(bodyKey) + varintSize(body.length) + body.length;
+        }
+        if (length > FrameProtocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Message too large: " + length);
+        }
+
+        byte[] frame = new byte[FrameProtocol.HEADER_SIZE + length];
+        FrameProtocol.writeHeader(frame, 0, FrameProtocol.TYPE_MESSAGE, 0, length);
+        int position = FrameProtocol.HEADER_SIZE;
+        frame[position++] = (byte) SCHEMA_VERSION;
+        position = writeVarint(frame, position, type);
+        position = writeVarint(frame, position, numberKey);
+        position = writeVarint(frame, position, number);
+        if (body != null) {
+            position = writeVarint(frame, position, bodyKey);
+            position = writeVarint(frame, position, body.length);
+            System.arraycopy(body, 0, frame, position, body.length);
+        }
+        return frame;
+    }
+
+    /**
+     * The message type of a frame built by this class, or -1 if the type varint is
+     * truncated or out of range.
+     */
+    static int typeOf(byte[] frame) {
+        long type = 0;
+        int position = FrameProtocol.HEADER_SIZE + 1;
+        for (int shift = 0; shift < 32 && position < frame.length; shift += 7) {
+            byte b = frame[position++];
+            type |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return type <= Integer.MAX_VALUE ? (int) type : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Points this view at a message payload. Returns false if the message uses a schema
+     * version this build cannot read; throws if it is malformed.
+     */
+    public boolean wrap(byte[] payload, int offset, int length) throws ProtocolException {
+        buffer = payload;
+        type = 0;
+        id = -1;
+        number = 0;
+        bodyOffset = offset;
+        bodyLength = -1;
+        if (length < 1) {
+            throw new ProtocolException("Empty message");
+        }
+        if ((payload[offset] & 0xff) != SCHEMA_VERSION) {
+            return false;
+        }
+
+        int end = offset + length;
+        int position = readVarint(offset + 1, end);
+        // Varints are unsigned: a value with the top bit set reads as a negative long.
+        if (varint < 0 || varint > Integer.MAX_VALUE) {
+            throw new ProtocolException("Message type out of range");
+        }
+        type = (int) varint;
+        while (position < end) {
+            position = readVarint(position, end);
+            long field = varint >>> 1;
+            boolean bytes = (varint & 1) == KIND_BYTES;
+            position = readVarint(position, end);
+            if (bytes) {
+                if (varint < 0 || varint > end - position) {
+                    throw new ProtocolException("Field " + field + " overruns the message");
+                }
+                if (field == FIELD_BODY) {
+                    bodyOffset = position;
+                    bodyLength = (int) varint;
+                }
+                position += (int) varint;
+            } else if (field == FIELD_ID) {
+                if (varint < 0) {
+                    throw new ProtocolException("Message id out of range");
+                }
+                id = varint;
+            } else if (field == FIELD_ACTIVE || field == FIELD_CODE) {
+                number = varint;
+            }
+        }
+        if (type == CONTROL && (number < 0 || number > Integer.MAX_VALUE)) {
+            throw new ProtocolException("Control code out of range");
+        }
+        return true;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Whether this build knows what to do with {@link #getType()}; other messages come
+     * from a newer peer and should be ignored.
+     */
+    public boolean isKnownType() {
+        return type >= TEXT && type <= LAST_KNOWN_TYPE;
+    }
+
+    /**
+     * The message id of a text message or receipt, or -1 if there is none.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public boolean isTypingActive() {
+        return type == TYPING && number != 0;
+    }
+
+    /**
+     * The code of a control message, or 0 for other types; {@link #wrap} refuses codes
+     * that do not fit an int.
+     */
+    public int getCode() {
+        return type == CONTROL ? (int) number : 0;
+    }
+
+    public boolean hasBody() {
+        return bodyLength >= 0;
+    }
+
+    /**
+     * The array the body lives in; see {@link #getBodyOffset()}.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return Math.max(bodyLength, 0);
+    }
+
+    public String getText(StreamingTextDecoder decoder) {
+        return decoder.decode(buffer, bodyOffset, getBodyLength());
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeVarint(byte[] destination, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            destination[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        destination[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads the varint at {@code position} into {@link #varint} and returns the position
+     * after it.
+     */
+    private int readVarint(int position, int end) throws ProtocolException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end) {
+                throw new ProtocolException("Truncated varint");
+            }
+            byte b = buffer[position++];
+            // The tenth byte holds only bit 63; anything above it does not fit.
+            if (shift == 63 && (b & 0x7e) != 0) {
+                throw new ProtocolException("Varint longer than 64 bits");
+            }
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                varint = result;
+                return position;
+            }
+        }
+        throw new ProtocolException("Varint longer than 64 bits");
+    }
+}
@@ -0,0 +1,40 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * One chat event on its way to the UI, with the same codes and argument layout as the
+ * {@link Constants} handler messages. {@code text} carries the toast text, or the device
+ * name for {@link Constants#MESSAGE_DEVICE_NAME}, whose {@code obj} is the address, or
+ * the verification code for {@link Constants#MESSAGE_SECURITY}, null if the session is
+ * not encrypted.
+ * Messages also carry the time they were sent or received and, once logged, their
+ * offset in the peer's {@link ChatLog}; the offset is -1 otherwise.
+ */
+public final class UiEvent {
+    public final int what;
+    public final int arg1;
+    public final int arg2;
+    public final Object obj;
+    public final String text;
+    public final long timestamp;
+    public final long offset;
+    long enqueuedNanos;
+
+    public UiEvent(int what, int arg1, int arg2, Object obj, String text) {
+        this(what, arg1, arg2, obj, text, System.currentTimeMillis(), -1);
+    }
+
+    public UiEvent(int what, int arg1, int arg2, Object obj, String text, long timestamp, long offset) {
+        this.what = what;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.obj = obj;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString() {
+        return "UiEvent{" + what + ", " + arg1 + ", " + arg2 + ", " + obj + (text == null ? "" : ", " + text) + "}";
+    }
+}
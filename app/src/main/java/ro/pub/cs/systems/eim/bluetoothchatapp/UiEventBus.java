@@ -0,0 +1,206 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Delivers chat events to the UI in batches, at most once per display frame, instead of
+ * one {@link Handler} message each. The I/O threads publish into a lock-free bounded
+ * queue; the first event after a drain asks the {@link FrameScheduler} for a drain,
+ * which runs on the UI thread and hands everything queued so far to the consumer.
+ *
+ * <p>Events that only report the latest value are collapsed within a batch: connection
+ * state changes, link quality per session and progress per file transfer. Chat
+ * messages and toasts are always delivered, in order.
+ *
+ * <p>When the queue is full, {@link Overflow#BLOCK} makes the publishing I/O thread wait
+ * for the UI to catch up, which pushes back on the peers; {@link Overflow#DROP_NEWEST}
+ * discards the event and counts it. A full queue on the UI thread itself always drops.
+ */
+public class UiEventBus extends UiEventPublisher {
+    public enum Overflow {
+        BLOCK,
+        DROP_NEWEST
+    }
+
+    public interface FrameScheduler {
+        /**
+         * Runs {@code drain} on the UI thread, typically at the next frame.
+         */
+        void requestFrame(Runnable drain);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_BATCH = 512;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final BoundedMpscQueue<UiEvent> queue;
+    private final Overflow overflow;
+    private final FrameScheduler scheduler;
+    private final Consumer<List<UiEvent>> consumer;
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+    private final Runnable drainTask = this::drain;
+    private volatile Thread drainThread;
+
+    private final List<UiEvent> drained = new ArrayList<>();
+    private final List<UiEvent> batch = new ArrayList<>();
+    private final Set<Long> latestKeys = new HashSet<>();
+    private final Set<Object> latestTransfers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+
+    public UiEventBus(int capacity, Overflow overflow, FrameScheduler scheduler, Consumer<List<UiEvent>> consumer) {
+        this.queue = new BoundedMpscQueue<>(capacity);
+        this.overflow = overflow;
+        this.scheduler = scheduler;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Drains on the next display frame of the thread {@code mainHandler} runs on.
+     */
+    public static FrameScheduler choreographer(Handler mainHandler) {
+        Choreographer.FrameCallback[] callback = new Choreographer.FrameCallback[1];
+        return drain -> mainHandler.post(() -> {
+            if (callback[0] == null) {
+                callback[0] = frameTimeNanos -> drain.run();
+            }
+            Choreographer.getInstance().postFrameCallback(callback[0]);
+        });
+    }
+
+    @Override
+    public void publish(UiEvent event) {
+        event.enqueuedNanos = System.nanoTime();
+        if (!queue.offer(event)) {
+            if (overflow == Overflow.DROP_NEWEST || Thread.currentThread() == drainThread) {
+                drop(event);
+                return;
+            }
+            do {
+                requestDrain();
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    drop(event);
+                    return;
+                }
+            } while (!queue.offer(event));
+        }
+        published.increment();
+        requestDrain();
+    }
+
+    private void drop(UiEvent event) {
+        dropped.increment();
+        if (event.obj instanceof PooledBuffer) {
+            ((PooledBuffer) event.obj).release();
+        }
+    }
+
+    private void requestDrain() {
+        if (!drainRequested.get() && drainRequested.compareAndSet(false, true)) {
+            scheduler.requestFrame(drainTask);
+        }
+    }
+
+    /**
+     * Hands everything queued to the consumer. Runs on the UI thread; public so tests
+     * and callers without a frame clock can drive it.
+     */
+    public void drain() {
+        drainThread = Thread.currentThread();
+        drainRequested.set(false);
+        long now = System.nanoTime();
+        UiEvent event;
+        while (drained.size() < MAX_BATCH && (event = queue.poll()) != null) {
+            lag.record(now - event.enqueuedNanos);
+            drained.add(event);
+        }
+        if (drained.isEmpty()) {
+            return;
+        }
+        if (drained.size() == MAX_BATCH) {
+            requestDrain();
+        }
+
+        for (int i = drained.size() - 1; i >= 0; i--) {
+            event = drained.get(i);
+            if (isLatest(event)) {
+                batch.add(event);
+            }
+        }
+        Collections.reverse(batch);
+        batchSizes.record(batch.size());
+        coalesced.add(drained.size() - batch.size());
+        drained.clear();
+        latestKeys.clear();
+        latestTransfers.clear();
+        try {
+            consumer.accept(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * Called newest first; false for an event superseded by a later one in the batch.
+     */
+    private boolean isLatest(UiEvent event) {
+        switch (event.what) {
+            case Constants.MESSAGE_STATE_CHANGED:
+                return latestKeys.add((long) event.what << 32);
+            case Constants.MESSAGE_LINK_QUALITY:
+                return latestKeys.add(((long) event.what << 32) | (event.arg1 & 0xffffffffL));
+            case Constants.MESSAGE_FILE_PROGRESS:
+                return latestTransfers.add(event.obj);
+            default:
+                return true;
+        }
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Events left out of a batch because a later one replaced them.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Time from publishing an event to draining it.
+     */
+    public LatencyHistogram.Snapshot getLag() {
+        return lag.snapshot();
+    }
+
+    /**
+     * Events per delivered batch; the histogram's values are counts, not nanoseconds.
+     */
+    public LatencyHistogram.Snapshot getBatchSizes() {
+        return batchSizes.snapshot();
+    }
+}
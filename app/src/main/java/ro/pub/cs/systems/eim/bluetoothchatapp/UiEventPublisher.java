@@ -0,0 +1,55 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+/**
+ * Turns {@link ChatListener} callbacks into {@link UiEvent}s, with the codes and argument
+ * layout of the {@link Constants} handler messages, and publishes them.
+ */
+public abstract class UiEventPublisher implements ChatListener {
+    public abstract void publish(UiEvent event);
+
+    @Override
+    public void onStateChanged(int state) {
+        publish(new UiEvent(Constants.MESSAGE_STATE_CHANGED, state, -1, null, null));
+    }
+
+    @Override
+    public void onSessionConnected(PeerSession session) {
+        publish(new UiEvent(Constants.MESSAGE_DEVICE_NAME, session.getId(), -1, session.getAddress(),
+                session.getName()));
+    }
+
+    @Override
+    public void onSessionClosed(PeerSession session) {
+        publish(new UiEvent(Constants.MESSAGE_DEVICE_DISCONNECTED, session.getId(), -1, null, null));
+    }
+
+    @Override
+    public void onMessageRead(PeerSession session, PooledBuffer message) {
+        publish(new UiEvent(Constants.MESSAGE_READ, message.length(), session.getId(), message, null));
+    }
+
+    @Override
+    public void onMessageWritten(PeerSession session, byte[] message) {
+        publish(new UiEvent(Constants.MESSAGE_WRITE, -1, session.getId(), message, null));
+    }
+
+    @Override
+    public void onTransferProgress(FileTransfer transfer) {
+        publish(new UiEvent(Constants.MESSAGE_FILE_PROGRESS, transfer.getPercent(), -1, transfer, null));
+    }
+
+    @Override
+    public void onHandshakeComplete(PeerSession session) {
+        publish(new UiEvent(Constants.MESSAGE_SECURITY, session.getId(), -1, null, session.getVerificationCode()));
+    }
+
+    @Override
+    public void onLinkQuality(PeerSession session, LinkQualityEstimator.Snapshot quality) {
+        publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, session.getId(), -1, quality, null));
+    }
+
+    @Override
+    public void onToast(String text) {
+        publish(new UiEvent(Constants.MESSAGE_TOAST, -1, -1, null, text));
+    }
+}
@@ -0,0 +1,114 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays one user session, a peer chatting every {@value #MESSAGE_INTERVAL_MILLIS} ms
+ * while the phone's activity is recreated {@value #RECREATIONS} times (rotations), over a
+ * simulated radio link, with two owners for the connection. When the activity owns it, as
+ * before {@link ChatService}, every recreation stops it and dials the peer again. When the
+ * service owns it, a recreation only moves the {@link ChatEventRelay} to a new event bus.
+ * Reports reconnects, time without a link, and how many of the peer's messages could not
+ * be sent or never reached the phone. Real RFCOMM adds a second or more of paging per reconnect on top of the hello
+ * measured here. Run with {@code main}; it is not part of the unit test suite.
+ */
+public class ActivityRecreationBenchmark {
+    private static final long LINK_BYTES_PER_SECOND = 64 * 1024;
+    private static final long LATENCY_MILLIS = 20;
+    private static final long LINK_QUEUE_MILLIS = 200;
+    private static final int MESSAGES = 300;
+    private static final long MESSAGE_INTERVAL_MILLIS = 10;
+    private static final int RECREATIONS = 6;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            run(false);
+            run(true);
+        }
+    }
+
+    private static void run(boolean serviceOwned) throws Exception {
+        File directory = Files.createTempDirectory("recreation").toFile();
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils peer = new ChatUtils(link(new InMemoryTransport(network, "peer")), new ChatFixtures.QuietListener());
+        peer.start();
+        AtomicInteger received = new AtomicInteger();
+        ChatLogStore store = new ChatLogStore(directory);
+        ChatEventRelay relay = new ChatEventRelay(store, null, ChatEventRelay.DEFAULT_CAPACITY);
+        UiEventBus bus = newBus(received);
+        relay.attach(bus);
+
+        ChatUtils phone = connect(network, relay);
+        int sessions = 1;
+        long downNanos = 0;
+        int failed = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i > 0 && i % (MESSAGES / (RECREATIONS + 1)) == 0 && i / (MESSAGES / (RECREATIONS + 1)) <= RECREATIONS) {
+                long start = System.nanoTime();
+                relay.detach(bus);
+                bus.drain();
+                if (!serviceOwned) {
+                    phone.stop();
+                    phone = connect(network, relay);
+                    sessions++;
+                }
+                bus = newBus(received);
+                relay.attach(bus);
+                downNanos += serviceOwned ? 0 : System.nanoTime() - start;
+            }
+            if (!peer.write(("message " + i).getBytes(StandardCharsets.UTF_8))) {
+                failed++;
+            }
+            Thread.sleep(MESSAGE_INTERVAL_MILLIS);
+        }
+        Thread.sleep(4 * LATENCY_MILLIS);
+        bus.drain();
+
+        System.out.printf("%-8s owner: %d reconnects, %4d ms without a link, %d of %d peer messages not sent,"
+                        + " %d received%n", serviceOwned ? "service" : "activity", sessions - 1,
+                downNanos / 1_000_000, failed, MESSAGES, received.get());
+        phone.stop();
+        peer.stop();
+        store.close();
+        deleteRecursively(directory);
+    }
+
+    private static ChatUtils connect(InMemoryTransport.Network network, ChatListener listener)
+            throws InterruptedException {
+        ChatUtils phone = new ChatUtils(link(new InMemoryTransport(network, "phone")), listener);
+        phone.start();
+        phone.connect("peer");
+        ChatFixtures.awaitState(phone, ChatUtils.STATE_CONNECTED);
+        return phone;
+    }
+
+    private static Transport link(Transport transport) {
+        return new SimulatedLinkTransport(transport, LINK_BYTES_PER_SECOND, LATENCY_MILLIS, LINK_QUEUE_MILLIS);
+    }
+
+    private static UiEventBus newBus(AtomicInteger received) {
+        return new UiEventBus(UiEventBus.DEFAULT_CAPACITY, UiEventBus.Overflow.DROP_NEWEST, drain -> { }, events -> {
+            for (UiEvent event : events) {
+                if (event.what == Constants.MESSAGE_READ) {
+                    ((PooledBuffer) event.obj).release();
+                    received.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
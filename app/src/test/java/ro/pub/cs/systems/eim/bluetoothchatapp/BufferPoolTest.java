@@ -0,0 +1,89 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void countsHitsMissesAndExhaustions() {
+        BufferPool pool = new BufferPool(2, 64);
+        PooledBuffer first = pool.acquire(64);
+        PooledBuffer second = pool.acquire(10);
+        assertTrue(first.isPooled());
+        assertTrue(second.isPooled());
+        assertEquals(2, pool.getHits());
+        assertEquals(0, pool.getAvailable());
+        assertEquals(2, pool.getOutstanding());
+
+        PooledBuffer spare = pool.acquire(64);
+        assertFalse(spare.isPooled());
+        assertEquals(1, pool.getExhaustions());
+        assertEquals(1, pool.getMisses());
+
+        first.release();
+        PooledBuffer oversize = pool.acquire(65);
+        assertFalse(oversize.isPooled());
+        assertEquals(65, oversize.capacity());
+        assertEquals(2, pool.getMisses());
+        assertEquals("An oversize request is not an exhaustion", 1, pool.getExhaustions());
+        assertEquals(1, pool.getAvailable());
+        assertEquals(2, pool.getHits());
+
+        spare.release();
+        oversize.release();
+        assertEquals("Unpooled buffers are not recycled", 1, pool.getAvailable());
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1, 32);
+        PooledBuffer buffer = pool.acquire(32);
+        buffer.setLength(12);
+        buffer.release();
+        assertEquals(1, pool.getAvailable());
+
+        PooledBuffer again = pool.acquire(16);
+        assertSame(buffer, again);
+        assertEquals(0, again.length());
+        assertEquals(2, pool.getHits());
+        assertEquals(0, pool.getMisses());
+    }
+
+    @Test
+    public void releasingTwiceThrows() {
+        BufferPool pool = new BufferPool(1, 32);
+        PooledBuffer buffer = pool.acquire(8);
+        buffer.release();
+        try {
+            buffer.release();
+            fail("Released twice");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("A second release must not recycle the buffer again", 1, pool.getAvailable());
+    }
+
+    @Test
+    public void claimingAnOwnedBufferThrows() {
+        BufferPool pool = new BufferPool(1, 32);
+        PooledBuffer buffer = pool.acquire(8);
+        try {
+            buffer.claim();
+            fail("Claimed while owned");
+        } catch (IllegalStateException expected) {
+        }
+        buffer.release();
+        buffer.claim();
+        buffer.release();
+    }
+
+    @Test
+    public void lengthPastCapacityThrows() {
+        PooledBuffer buffer = new BufferPool(1, 32).acquire(8);
+        try {
+            buffer.setLength(33);
+            fail("Length past capacity");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
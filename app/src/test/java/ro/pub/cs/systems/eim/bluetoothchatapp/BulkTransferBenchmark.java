@@ -0,0 +1,89 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File transfer throughput over a simulated slow, high-latency link (200 KB/s, 100 ms
+ * each way, so the bandwidth-delay product is 40 KB), for a few flow control settings.
+ * Halfway through each transfer a chat message is sent to show how long it queues
+ * behind file data. Run with {@code main}; it is not part of the unit test suite.
+ */
+public class BulkTransferBenchmark {
+    private static final long LINK_BYTES_PER_SECOND = 200 * 1024;
+    private static final long LATENCY_MILLIS = 100;
+    private static final long LINK_QUEUE_MILLIS = 1000;
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int chunk = FileTransferManager.CHUNK_SIZE;
+        FlowControl[] settings = {
+                new FlowControl(chunk, chunk, 0),
+                new FlowControl(FlowControl.DEFAULT_WINDOW_BYTES, chunk, 0),
+                new FlowControl(FlowControl.DEFAULT_WINDOW_BYTES, FlowControl.DEFAULT_WINDOW_BYTES, 0),
+                new FlowControl(16 * chunk, chunk, 0),
+                new FlowControl(16 * chunk, chunk, LINK_BYTES_PER_SECOND),
+        };
+        File directory = Files.createTempDirectory("bulk").toFile();
+        File source = new File(directory, "source.bin");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Files.write(source.toPath(), content);
+
+        System.out.printf("link %d KB/s, %d ms one way%n", LINK_BYTES_PER_SECOND / 1024, LATENCY_MILLIS);
+        for (FlowControl flowControl : settings) {
+            run(flowControl, source, new File(directory, "received"));
+        }
+    }
+
+    private static void run(FlowControl flowControl, File source, File downloads) throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        BlockingQueue<Long> chatArrivals = new LinkedBlockingQueue<>();
+        ChatUtils server = new ChatUtils(link(new InMemoryTransport(network, "server")),
+                new ChatFixtures.QuietListener() {
+                    @Override
+                    public void onMessageRead(PeerSession session, PooledBuffer message) {
+                        chatArrivals.add(System.nanoTime());
+                        message.release();
+                    }
+                });
+        server.setDownloadDirectory(downloads);
+        server.setFlowControl(flowControl);
+        ChatUtils client = new ChatUtils(link(new InMemoryTransport(network, "client")),
+                new ChatFixtures.QuietListener());
+        client.setFlowControl(flowControl);
+        server.start();
+        client.start();
+        ChatFixtures.connect(client, server, "server");
+
+        long start = System.nanoTime();
+        FileTransfer transfer = client.sendFile("server", source);
+        long chatLatencyMillis = -1;
+        boolean chatSent = false;
+        while (!transfer.isFinished()) {
+            if (!chatSent && transfer.getTransferred() >= FILE_SIZE / 2) {
+                long sent = System.nanoTime();
+                client.write("server", "still there?".getBytes());
+                chatSent = true;
+                Long arrived = chatArrivals.poll(10, TimeUnit.SECONDS);
+                chatLatencyMillis = arrived == null ? -1 : TimeUnit.NANOSECONDS.toMillis(arrived - sent);
+            }
+            Thread.sleep(5);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        client.stop();
+        server.stop();
+
+        double rate = FILE_SIZE / seconds;
+        System.out.printf("%-55s %s %7.1f KB/s (%3.0f%% of link)  chat %4d ms%n", flowControl, transfer.getState(),
+                rate / 1024, 100 * rate / LINK_BYTES_PER_SECOND, chatLatencyMillis);
+    }
+
+    private static Transport link(Transport transport) {
+        return new SimulatedLinkTransport(transport, LINK_BYTES_PER_SECOND, LATENCY_MILLIS, LINK_QUEUE_MILLIS);
+    }
+}
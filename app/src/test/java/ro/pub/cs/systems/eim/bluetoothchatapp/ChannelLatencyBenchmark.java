@@ -0,0 +1,116 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of chat messages and typing indicators sent every 50 ms while a file transfer
+ * saturates a simulated RFCOMM-like link (250 KB/s, 20 ms each way, a shallow 30 ms
+ * link queue), for a few {@link ChannelScheduler} settings. "whole frames" sends every
+ * frame in one piece and alternates chat and bulk one for one. Run with {@code main};
+ * it is not part of the unit test suite.
+ */
+public class ChannelLatencyBenchmark {
+    private static final long LINK_BYTES_PER_SECOND = 250 * 1024;
+    private static final long LATENCY_MILLIS = 20;
+    private static final long LINK_QUEUE_MILLIS = 30;
+    private static final int FILE_SIZE = 2 * 1024 * 1024;
+    private static final long PROBE_INTERVAL_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        File directory = Files.createTempDirectory("channels").toFile();
+        File source = new File(directory, "source.bin");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        Files.write(source.toPath(), content);
+
+        System.out.printf("link %d KB/s, %d ms one way, %d ms queue%n", LINK_BYTES_PER_SECOND / 1024,
+                LATENCY_MILLIS, LINK_QUEUE_MILLIS);
+        for (int round = 0; round < 2; round++) {
+            run("whole frames", new ChannelScheduler(Integer.MAX_VALUE, Integer.MAX_VALUE, 1), source, directory);
+            run("default (4 KB, 4:1)", new ChannelScheduler(), source, directory);
+            run("1 KB, strict", new ChannelScheduler(1024, 1024, ChannelScheduler.STRICT), source, directory);
+        }
+    }
+
+    private static void run(String name, ChannelScheduler channels, File source, File directory) throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ConcurrentMap<Long, Long> arrivals = new ConcurrentHashMap<>();
+        ChatUtils server = new ChatUtils(link(new InMemoryTransport(network, "server")),
+                new ChatFixtures.QuietListener() {
+                    @Override
+                    public void onMessageRead(PeerSession session, PooledBuffer message) {
+                        long probe = Long.parseLong(new String(message.data(), 0, message.length()));
+                        arrivals.put(probe, System.nanoTime());
+                        message.release();
+                    }
+
+                    @Override
+                    public void onTypedMessage(PeerSession session, TypedMessage message) {
+                        arrivals.put(-message.getCode() - 1L, System.nanoTime());
+                    }
+                });
+        server.setDownloadDirectory(new File(directory, "received"));
+        server.setChannelScheduler(channels);
+        ChatUtils client = new ChatUtils(link(new InMemoryTransport(network, "client")),
+                new ChatFixtures.QuietListener());
+        client.setChannelScheduler(channels);
+        client.setFlowControl(new FlowControl(16 * FileTransferManager.CHUNK_SIZE, FileTransferManager.CHUNK_SIZE, 0));
+        server.start();
+        client.start();
+        ChatFixtures.connect(client, server, "server");
+
+        long start = System.nanoTime();
+        FileTransfer transfer = client.sendFile("server", source);
+        Thread.sleep(500);
+        long[] chatSent = new long[1000];
+        long[] controlSent = new long[1000];
+        int probes = 0;
+        while (!transfer.isFinished() && probes < chatSent.length) {
+            chatSent[probes] = System.nanoTime();
+            client.write("server", Long.toString(probes).getBytes());
+            controlSent[probes] = System.nanoTime();
+            client.send("server", TypedMessage.control(probes, null));
+            probes++;
+            Thread.sleep(PROBE_INTERVAL_MILLIS);
+        }
+        while (!transfer.isFinished()) {
+            Thread.sleep(5);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(500);
+        client.stop();
+        server.stop();
+
+        long[] chat = new long[probes];
+        long[] control = new long[probes];
+        for (int i = 0; i < probes; i++) {
+            Long chatArrived = arrivals.get((long) i);
+            Long controlArrived = arrivals.get(-i - 1L);
+            chat[i] = chatArrived == null ? Long.MAX_VALUE : chatArrived - chatSent[i];
+            control[i] = controlArrived == null ? Long.MAX_VALUE : controlArrived - controlSent[i];
+        }
+        System.out.printf("%-20s %s %6.1f KB/s  chat p50 %4d p99 %4d ms  control p50 %4d p99 %4d ms  (%d probes)%n",
+                name, transfer.getState(), FILE_SIZE / seconds / 1024, percentile(chat, 50), percentile(chat, 99),
+                percentile(control, 50), percentile(control, 99), probes);
+    }
+
+    private static long percentile(long[] nanos, int percent) {
+        if (nanos.length == 0) {
+            return -1;
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long value = sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+        return value == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(value);
+    }
+
+    private static Transport link(Transport transport) {
+        return new SimulatedLinkTransport(transport, LINK_BYTES_PER_SECOND, LATENCY_MILLIS, LINK_QUEUE_MILLIS);
+    }
+}
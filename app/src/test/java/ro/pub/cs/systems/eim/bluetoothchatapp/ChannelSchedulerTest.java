@@ -0,0 +1,153 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChannelSchedulerTest {
+    private static final ChannelScheduler.Channel INTERACTIVE = ChannelScheduler.Channel.INTERACTIVE;
+    private static final ChannelScheduler.Channel BULK = ChannelScheduler.Channel.BULK;
+
+    @Test
+    public void sharesTheLinkByWeightWhileBothChannelsAreBusy() {
+        ChannelScheduler.Turns turns = new ChannelScheduler(1024, 1024, 3).newTurns();
+        List<ChannelScheduler.Channel> order = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            order.add(turns.next(true, true));
+        }
+        assertEquals(Arrays.asList(INTERACTIVE, INTERACTIVE, INTERACTIVE, BULK,
+                INTERACTIVE, INTERACTIVE, INTERACTIVE, BULK), order);
+
+        assertEquals(BULK, turns.next(false, true));
+        assertEquals(INTERACTIVE, turns.next(true, false));
+        assertNull(turns.next(false, false));
+    }
+
+    @Test
+    public void strictPriorityNeverServesBulkWhileChatWaits() {
+        ChannelScheduler.Turns turns = new ChannelScheduler(1024, 1024, ChannelScheduler.STRICT).newTurns();
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(INTERACTIVE, turns.next(true, true));
+        }
+        assertEquals(BULK, turns.next(false, true));
+    }
+
+    @Test
+    public void interleavedPiecesReassembleIntoTheOriginalFrames() throws Exception {
+        byte[] text = frame(FrameProtocol.TYPE_TEXT, FrameProtocol.FLAG_SEQUENCED, 5000);
+        byte[] chunk = frame(FrameProtocol.TYPE_FILE_CHUNK, 0, 3000);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] header = new byte[FrameProtocol.HEADER_SIZE];
+        ChannelScheduler.Fragments textPieces = new ChannelScheduler.Fragments(text, 0, text.length, INTERACTIVE);
+        ChannelScheduler.Fragments chunkPieces = new ChannelScheduler.Fragments(chunk, 0, chunk.length, BULK);
+        int pieces = 0;
+        while (!textPieces.isDone() || !chunkPieces.isDone()) {
+            if (!textPieces.isDone()) {
+                assertTrue(textPieces.writeNext(wire, header, 1024) <= 1024);
+                pieces++;
+            }
+            if (!chunkPieces.isDone()) {
+                chunkPieces.writeNext(wire, header, 1024);
+                pieces++;
+            }
+        }
+        assertEquals(5 + 3, pieces);
+
+        List<byte[]> frames = new ArrayList<>();
+        ChannelScheduler.Reassembly reassembly = new ChannelScheduler.Reassembly();
+        FrameDecoder decoder = new FrameDecoder((type, flags, payload, offset, length) -> {
+            assertEquals(FrameProtocol.TYPE_FRAGMENT, type);
+            try {
+                if (reassembly.add(flags, payload, offset, length)) {
+                    frames.add(Arrays.copyOf(reassembly.frame(), reassembly.frameLength()));
+                }
+            } catch (ProtocolException e) {
+                throw new AssertionError(e);
+            }
+        });
+        byte[] bytes = wire.toByteArray();
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals(chunk, frames.get(0));
+        assertArrayEquals(text, frames.get(1));
+    }
+
+    @Test
+    public void rejectsPiecesThatDoNotMakeAFrame() {
+        byte[] frame = frame(FrameProtocol.TYPE_TEXT, 0, 100);
+        int last = FrameProtocol.FLAG_LAST_FRAGMENT;
+
+        assertThrows(ProtocolException.class, () -> new ChannelScheduler.Reassembly()
+                .add(last, frame, 0, frame.length - 1));
+        assertThrows(ProtocolException.class, () -> new ChannelScheduler.Reassembly()
+                .add(7 << 8 | last, frame, 0, frame.length));
+        byte[] nested = frame(FrameProtocol.TYPE_FRAGMENT, 0, 10);
+        assertThrows(ProtocolException.class, () -> new ChannelScheduler.Reassembly()
+                .add(last, nested, 0, nested.length));
+    }
+
+    @Test
+    public void largeMessagesArriveIntactBetweenSmallOnes() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        ChatUtils server = new ChatUtils(new InMemoryTransport(network, "server"), new Listener(received));
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new Listener(null));
+        ChannelScheduler small = new ChannelScheduler(256, 256, 2);
+        server.setChannelScheduler(small);
+        client.setChannelScheduler(small);
+        client.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        try {
+            server.start();
+            client.start();
+            ChatFixtures.connect(client, server, "server");
+
+            Random random = new Random(3);
+            List<byte[]> sent = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                byte[] message = new byte[i % 4 == 0 ? 20_000 + random.nextInt(5000) : 1 + random.nextInt(100)];
+                random.nextBytes(message);
+                sent.add(message);
+                assertTrue(client.write(message));
+            }
+            for (byte[] message : sent) {
+                assertArrayEquals(message, received.poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private static byte[] frame(int type, int flags, int length) {
+        byte[] payload = new byte[length];
+        new Random(length).nextBytes(payload);
+        return FrameProtocol.encode(type, flags, payload, 0, length);
+    }
+
+    private static class Listener extends ChatFixtures.QuietListener {
+        private final BlockingQueue<byte[]> received;
+
+        Listener(BlockingQueue<byte[]> received) {
+            this.received = received;
+        }
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            if (received != null) {
+                received.add(Arrays.copyOf(message.data(), message.length()));
+            }
+            message.release();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatEventRelayTest {
+    private File directory;
+    private ChatLogStore store;
+    private final ChatFixtures.Endpoints endpoints = new ChatFixtures.Endpoints();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("relay").toFile();
+        store = new ChatLogStore(directory);
+    }
+
+    @After
+    public void tearDown() {
+        endpoints.stopAll();
+        store.close();
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void sessionOutlivesADetachAndMissedMessagesAreReplayed() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatEventRelay relay = new ChatEventRelay(store, null, ChatEventRelay.DEFAULT_CAPACITY);
+        List<UiEvent> first = new ArrayList<>();
+        UiEventBus firstBus = new UiEventBus(UiEventBus.DEFAULT_CAPACITY, UiEventBus.Overflow.BLOCK, drain -> { },
+                first::addAll);
+        assertEquals(0, relay.attach(firstBus));
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), relay);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"),
+                new ChatFixtures.QuietListener());
+        ChatFixtures.connect(clientChat, serverChat, "server");
+        clientChat.write("one".getBytes(StandardCharsets.UTF_8));
+        awaitLogged("client", 1);
+
+        relay.detach(firstBus);
+        assertFalse(relay.isAttached());
+        clientChat.write("two".getBytes(StandardCharsets.UTF_8));
+        clientChat.write("three".getBytes(StandardCharsets.UTF_8));
+        awaitLogged("client", 3);
+        firstBus.drain();
+        assertEquals(1, messages(first).size());
+        assertEquals("one", text(messages(first).get(0)));
+
+        List<UiEvent> second = new ArrayList<>();
+        UiEventBus secondBus = new UiEventBus(UiEventBus.DEFAULT_CAPACITY, UiEventBus.Overflow.BLOCK, drain -> { },
+                second::addAll);
+        assertTrue(relay.attach(secondBus) >= 2);
+        secondBus.drain();
+        List<UiEvent> replayed = messages(second);
+        assertEquals(2, replayed.size());
+        assertEquals("two", text(replayed.get(0)));
+        assertEquals(1, replayed.get(0).offset);
+        assertEquals("three", text(replayed.get(1)));
+        assertEquals(2, replayed.get(1).offset);
+
+        assertEquals(1, relay.getSessionsOpened());
+        assertEquals(1, serverChat.getSessions().size());
+        assertEquals(ChatUtils.STATE_CONNECTED, serverChat.getState());
+        assertEquals(0, serverChat.getReceivePool().getOutstanding());
+    }
+
+    @Test
+    public void keepsLatestValuesAndDropsTheOldestPastCapacity() {
+        ChatEventRelay relay = new ChatEventRelay(store, null, 4);
+        BufferPool pool = new BufferPool(2, 16);
+        relay.publish(new UiEvent(Constants.MESSAGE_STATE_CHANGED, ChatUtils.STATE_CONNECTING, -1, null, null));
+        relay.publish(new UiEvent(Constants.MESSAGE_READ, 0, 7, pool.acquire(16), null));
+        assertEquals(0, pool.getOutstanding());
+        relay.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 1, -1, "slow", null));
+        relay.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 2, -1, "other", null));
+        relay.publish(new UiEvent(Constants.MESSAGE_STATE_CHANGED, ChatUtils.STATE_CONNECTED, -1, null, null));
+        relay.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 1, -1, "fast", null));
+        relay.publish(new UiEvent(Constants.MESSAGE_TOAST, -1, -1, null, "hello"));
+
+        List<UiEvent> delivered = new ArrayList<>();
+        UiEventBus bus = new UiEventBus(16, UiEventBus.Overflow.DROP_NEWEST, drain -> { }, delivered::addAll);
+        assertEquals(4, relay.attach(bus));
+        assertEquals(1, relay.getDropped());
+        bus.drain();
+        assertEquals(4, delivered.size());
+        assertEquals("other", delivered.get(0).obj);
+        assertEquals(ChatUtils.STATE_CONNECTED, delivered.get(1).arg1);
+        assertEquals("fast", delivered.get(2).obj);
+        assertEquals("hello", delivered.get(3).text);
+
+        relay.publish(new UiEvent(Constants.MESSAGE_TOAST, -1, -1, null, "live"));
+        bus.drain();
+        assertEquals("live", delivered.get(4).text);
+    }
+
+    private void awaitLogged(String address, long count) throws Exception {
+        ChatLog log = store.get(address);
+        ChatFixtures.await("Expected " + count + " logged messages", () -> log.getNextOffset() >= count);
+    }
+
+    private static List<UiEvent> messages(List<UiEvent> events) {
+        List<UiEvent> messages = new ArrayList<>();
+        for (UiEvent event : events) {
+            if (event.what == Constants.MESSAGE_READ) {
+                messages.add(event);
+            }
+        }
+        return messages;
+    }
+
+    private static String text(UiEvent event) {
+        PooledBuffer buffer = (PooledBuffer) event.obj;
+        String text = new String(buffer.data(), 0, buffer.length(), StandardCharsets.UTF_8);
+        buffer.release();
+        return text;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Shared pieces for the tests and benchmarks that run {@link ChatUtils} endpoints against
+ * each other.
+ */
+final class ChatFixtures {
+    static final long TIMEOUT_MILLIS = 5000;
+
+    private ChatFixtures() {
+    }
+
+    /**
+     * Ignores every event and releases received buffers. Tests extend it to record what
+     * they check.
+     */
+    static class QuietListener implements ChatListener {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onSessionConnected(PeerSession session) {
+        }
+
+        @Override
+        public void onSessionClosed(PeerSession session) {
+        }
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            message.release();
+        }
+
+        @Override
+        public void onMessageWritten(PeerSession session, byte[] message) {
+        }
+
+        @Override
+        public void onToast(String text) {
+        }
+    }
+
+    /**
+     * The endpoints a test started, for its {@code @After} to stop.
+     */
+    static final class Endpoints {
+        private final List<ChatUtils> started = new ArrayList<>();
+
+        ChatUtils start(Transport transport, ChatListener listener) {
+            return start(new ChatUtils(transport, listener));
+        }
+
+        ChatUtils start(ChatUtils chatUtils) {
+            started.add(chatUtils);
+            chatUtils.start();
+            return chatUtils;
+        }
+
+        void stopAll() {
+            for (ChatUtils chatUtils : started) {
+                chatUtils.stop();
+            }
+            started.clear();
+        }
+    }
+
+    /**
+     * Polls {@code condition} until it holds, failing with {@code what} after
+     * {@link #TIMEOUT_MILLIS}.
+     */
+    static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        await(what, TIMEOUT_MILLIS, condition);
+    }
+
+    static void await(String what, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(what);
+            }
+            Thread.sleep(2);
+        }
+    }
+
+    static void awaitState(ChatUtils chatUtils, int state) throws InterruptedException {
+        await("Expected state " + state, () -> chatUtils.getState() == state);
+    }
+
+    /**
+     * Has {@code client} dial {@code address}, where {@code server} listens, and waits
+     * until both ends are connected.
+     */
+    static void connect(ChatUtils client, ChatUtils server, String address) throws InterruptedException {
+        client.connect(address);
+        awaitConnected(client, address, server);
+    }
+
+    static void awaitConnected(ChatUtils client, String address, ChatUtils server) throws InterruptedException {
+        await("Not connected to " + address, () -> {
+            PeerSession session = client.getSession(address);
+            return session != null && session.isConnected() && server.getState() == ChatUtils.STATE_CONNECTED;
+        });
+    }
+
+    static void awaitSessions(ChatUtils chatUtils, int count) throws InterruptedException {
+        await("Expected " + count + " connected sessions", () -> connectedSessions(chatUtils) == count);
+    }
+
+    static int connectedSessions(ChatUtils chatUtils) {
+        int connected = 0;
+        for (PeerSession session : chatUtils.getSessions()) {
+            if (session.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+}
@@ -0,0 +1,125 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatLogTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chatlog").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void readsBackAcrossSegmentsAndReopen() throws Exception {
+        try (ChatLog log = new ChatLog(directory, 8 * 1024, 512, 1024)) {
+            for (int i = 0; i < 2000; i++) {
+                assertEquals(i, log.append(1000L + i, i % 2 == 0, ("message " + i).getBytes()));
+            }
+            assertTrue(log.getSegmentCount() > 1);
+
+            List<ChatLogRecord> middle = log.read(990, 20);
+            assertEquals(20, middle.size());
+            assertEquals(990, middle.get(0).getOffset());
+            assertEquals("message 1009", new String(middle.get(19).getPayload()));
+            assertEquals(1000L + 1009, middle.get(19).getTimestamp());
+            assertFalse(middle.get(19).isOutgoing());
+        }
+
+        try (ChatLog log = new ChatLog(directory, 8 * 1024, 512, 1024)) {
+            assertEquals(2000, log.getNextOffset());
+            List<ChatLogRecord> last = log.readLast(3);
+            assertEquals(3, last.size());
+            assertEquals("message 1997", new String(last.get(0).getPayload()));
+            assertEquals("message 1999", new String(last.get(2).getPayload()));
+
+            assertEquals(2000, log.append(5, true, "after reopen".getBytes()));
+            assertEquals("after reopen", new String(log.readLast(1).get(0).getPayload()));
+        }
+    }
+
+    @Test
+    public void readsUncommittedAndOversizedRecords() throws Exception {
+        try (ChatLog log = new ChatLog(directory, 64 * 1024, 512, 256)) {
+            byte[] large = new byte[10_000];
+            large[9_999] = 42;
+            log.append(1, false, "small".getBytes());
+            log.append(2, true, large);
+            log.append(3, false, "tail".getBytes());
+
+            List<ChatLogRecord> records = log.readLast(10);
+            assertEquals(3, records.size());
+            assertEquals(42, records.get(1).getPayload()[9_999]);
+            assertEquals("tail", new String(records.get(2).getPayload()));
+        }
+    }
+
+    @Test
+    public void truncatesTornTailOnRecovery() throws Exception {
+        try (ChatLog log = new ChatLog(directory, 1024 * 1024, 256, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                log.append(i, false, ("message " + i).getBytes());
+            }
+            log.commit();
+        }
+
+        File segment = new File(directory, String.format("%020d.log", 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        try (ChatLog log = new ChatLog(directory, 1024 * 1024, 256, 1024)) {
+            assertEquals(99, log.getNextOffset());
+            assertEquals("message 98", new String(log.readLast(1).get(0).getPayload()));
+            assertEquals(99, log.append(0, false, "replacement".getBytes()));
+        }
+
+        try (ChatLog log = new ChatLog(directory, 1024 * 1024, 256, 1024)) {
+            assertEquals("replacement", new String(log.readLast(1).get(0).getPayload()));
+        }
+    }
+
+    @Test
+    public void loadsLastMessagesQuicklyFromLargeHistory() throws Exception {
+        byte[] message = "a typical chat message of moderate length".getBytes();
+        try (ChatLog log = new ChatLog(directory)) {
+            for (int i = 0; i < 100_000; i++) {
+                log.append(i, false, message);
+            }
+        }
+
+        long start = System.nanoTime();
+        try (ChatLog log = new ChatLog(directory)) {
+            List<ChatLogRecord> last = log.readLast(50);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(50, last.size());
+            assertEquals(99_999, last.get(49).getOffset());
+            assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 200);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
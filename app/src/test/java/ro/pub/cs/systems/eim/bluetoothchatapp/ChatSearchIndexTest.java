@@ -0,0 +1,153 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChatSearchIndexTest {
+    private static final String ALICE = "00:11:22:33:44:55";
+    private static final String BOB = "66:77:88:99:AA:BB";
+
+    private File directory;
+    private ChatLogStore store;
+    private ChatSearchIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("search").toFile();
+        store = new ChatLogStore(directory);
+        index = new ChatSearchIndex(store);
+    }
+
+    @After
+    public void tearDown() {
+        index.close();
+        store.close();
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void tokenizesWithoutCaseOrDiacritics() {
+        List<String> terms = new ArrayList<>();
+        ChatSearchIndex.tokenize("Bun\u0103 ziua, \u0218tefan! Stra\u00dfe caf\u00e9-ul \u0141\u00f3d\u017a 42x", terms);
+        assertEquals(Arrays.asList("buna", "ziua", "stefan", "strasse", "cafe", "ul", "lodz", "42x"), terms);
+
+        terms.clear();
+        ChatSearchIndex.tokenize("  ...  ", terms);
+        assertTrue(terms.isEmpty());
+    }
+
+    @Test
+    public void matchesEveryWordAsAPrefix() throws Exception {
+        append(ALICE, 100, "Ne vedem m\u00e2ine la \u0219coal\u0103");
+        append(ALICE, 200, "maine nu pot");
+        append(BOB, 150, "Scoala e \u00eenchis\u0103 m\u00e2ine");
+        index.update(ALICE);
+        index.update(BOB);
+        assertTrue(index.awaitIndexed(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList(200L, 150L, 100L), timestamps(index.search("MAINE", 10)));
+        assertEquals(Arrays.asList(150L, 100L), timestamps(index.search("mai sco", 10)));
+        assertEquals(Arrays.asList(150L), timestamps(index.search("\u00eenchis", 10)));
+        assertTrue(index.search("maine inchisoare", 10).isEmpty());
+        assertTrue(index.search("?!", 10).isEmpty());
+
+        ChatSearchIndex.Hit hit = index.search("inchisa", 10).get(0);
+        assertEquals(BOB, hit.getAddress());
+        assertEquals(0, hit.getOffset());
+    }
+
+    @Test
+    public void ranksByTimestampAndKeepsTheNewest() throws Exception {
+        // Indexed out of time order: Bob's older messages come after Alice's newer ones.
+        for (int i = 0; i < 500; i++) {
+            append(ALICE, 10_000 + i, "ping " + i);
+        }
+        index.update(ALICE);
+        assertTrue(index.awaitIndexed(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            append(BOB, i * 100L, "ping back " + i);
+        }
+        index.update(BOB);
+        assertTrue(index.awaitIndexed(5, TimeUnit.SECONDS));
+
+        List<ChatSearchIndex.Hit> hits = index.search("ping", 3);
+        assertEquals(Arrays.asList(49_900L, 49_800L, 49_700L), timestamps(hits));
+        assertEquals(BOB, hits.get(0).getAddress());
+        assertEquals(499, hits.get(0).getOffset());
+        List<Long> all = timestamps(index.search("pi", 2000));
+        assertEquals(1000, all.size());
+        for (int i = 1; i < all.size(); i++) {
+            assertTrue(all.get(i - 1) >= all.get(i));
+        }
+    }
+
+    @Test
+    public void indexesOnlyWhatTheLogGainedSinceTheLastUpdate() throws Exception {
+        append(ALICE, 1, "first message");
+        index.update(ALICE);
+        assertTrue(index.awaitIndexed(5, TimeUnit.SECONDS));
+        assertEquals(1, index.getDocumentCount());
+
+        for (int i = 0; i < 3 * ChatSearchIndex.BATCH_SIZE + 7; i++) {
+            append(ALICE, 2 + i, "batch " + i);
+            index.update(ALICE);
+        }
+        index.update(ALICE);
+        assertTrue(index.awaitIndexed(5, TimeUnit.SECONDS));
+        assertEquals(1 + 3 * ChatSearchIndex.BATCH_SIZE + 7, index.getDocumentCount());
+        assertEquals(1, index.search("first", 10).size());
+        assertEquals(ChatSearchIndex.BATCH_SIZE * 3 + 7, index.search("batch", 10_000).size());
+        assertEquals(2, timestamps(index.search("batch 0", 10)).get(0).longValue());
+    }
+
+    @Test
+    public void postingsRoundTripAsGaps() {
+        ChatSearchIndex.Postings postings = new ChatSearchIndex.Postings();
+        int[] documents = {0, 1, 127, 128, 16_511, 16_512, 2_000_000};
+        int bytes = 0;
+        for (int document : documents) {
+            bytes += postings.add(document);
+            assertEquals(0, postings.add(document));
+        }
+        assertEquals(1 + 1 + 1 + 1 + 2 + 1 + 3, bytes);
+
+        BitSet decoded = new BitSet();
+        postings.addTo(decoded);
+        assertArrayEquals(documents, decoded.stream().toArray());
+    }
+
+    private void append(String address, long timestamp, String text) throws IOException {
+        store.get(address).append(timestamp, false, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Long> timestamps(List<ChatSearchIndex.Hit> hits) {
+        List<Long> timestamps = new ArrayList<>();
+        for (ChatSearchIndex.Hit hit : hits) {
+            timestamps.add(hit.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,57 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one-way message throughput of the full chat pipeline over the JVM transports.
+ * Run with {@code main}; it is not part of the unit test suite.
+ */
+public class ChatThroughputBenchmark {
+    private static final int MESSAGES = 200_000;
+    private static final int MESSAGE_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            InMemoryTransport.Network network = new InMemoryTransport.Network();
+            run("in-memory", new InMemoryTransport(network, "server"), new InMemoryTransport(network, "client"), "server");
+
+            TcpLoopbackTransport tcpServer = new TcpLoopbackTransport();
+            tcpServer.listen().close();
+            run("tcp-loopback", tcpServer, new TcpLoopbackTransport(), tcpServer.getAddress());
+        }
+    }
+
+    private static void run(String name, Transport serverTransport, Transport clientTransport, String address)
+            throws InterruptedException {
+        CountDownLatch received = new CountDownLatch(MESSAGES);
+        ChatUtils server = new ChatUtils(serverTransport, new ChatFixtures.QuietListener() {
+            @Override
+            public void onMessageRead(PeerSession session, PooledBuffer message) {
+                message.release();
+                received.countDown();
+            }
+        });
+        ChatUtils client = new ChatUtils(clientTransport, new ChatFixtures.QuietListener());
+        client.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        server.start();
+        client.start();
+        ChatFixtures.connect(client, server, address);
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            client.write(message);
+        }
+        boolean completed = received.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        OutboundQueue queue = client.getSession(address).getOutboundQueue();
+        client.stop();
+        server.stop();
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-14s %s %,10.0f msg/s %8.1f MB/s  %s%n", name, completed ? "ok     " : "TIMEOUT",
+                MESSAGES / seconds, (double) MESSAGES * MESSAGE_SIZE / seconds / (1024 * 1024), queue);
+    }
+}
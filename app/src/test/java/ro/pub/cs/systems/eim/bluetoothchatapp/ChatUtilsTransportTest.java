@@ -0,0 +1,482 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.TIMEOUT_MILLIS;
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.await;
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.awaitSessions;
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.awaitState;
+import static org.junit.Assert.*;
+
+public class ChatUtilsTransportTest {
+    private final ChatFixtures.Endpoints endpoints = new ChatFixtures.Endpoints();
+
+    @After
+    public void tearDown() {
+        endpoints.stopAll();
+    }
+
+    @Test
+    public void inMemoryPeersExchangeMessages() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        RecordingListener client = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), client);
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+
+        clientChat.write("ping".getBytes());
+        assertEquals("ping", server.nextMessage());
+        serverChat.write("pong".getBytes());
+        assertEquals("pong", client.nextMessage());
+    }
+
+    @Test
+    public void tcpLoopbackPeersExchangeMessages() throws Exception {
+        TcpLoopbackTransport serverTransport = new TcpLoopbackTransport();
+        RecordingListener server = new RecordingListener();
+        RecordingListener client = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(serverTransport, server);
+        ChatUtils clientChat = endpoints.start(new TcpLoopbackTransport(), client);
+
+        clientChat.connect(serverTransport.getAddress());
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 100_000) {
+            large.append("large message ");
+        }
+        clientChat.write(large.toString().getBytes());
+        assertEquals(large.toString(), server.nextMessage());
+    }
+
+    @Test
+    public void deliversBurstInOrder() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+
+        clientChat.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(clientChat.write(("message " + i).getBytes()));
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("message " + i, server.nextMessage());
+        }
+        assertEquals(0, serverChat.getReceivePool().getOutstanding());
+    }
+
+    @Test
+    public void hubHoldsSeveralPeersAtOnce() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener hub = new RecordingListener();
+        ChatUtils hubChat = endpoints.start(new InMemoryTransport(network, "hub"), hub);
+        List<RecordingListener> peers = new ArrayList<>();
+        List<ChatUtils> peerChats = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RecordingListener peer = new RecordingListener();
+            ChatUtils peerChat = endpoints.start(new InMemoryTransport(network, "peer" + i), peer);
+            peerChat.connect("hub");
+            peers.add(peer);
+            peerChats.add(peerChat);
+        }
+        for (ChatUtils peerChat : peerChats) {
+            awaitState(peerChat, ChatUtils.STATE_CONNECTED);
+        }
+        awaitSessions(hubChat, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(hubChat.write("peer" + i, ("direct " + i).getBytes()));
+        }
+        assertTrue(hubChat.write("everyone".getBytes()));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("direct " + i, peers.get(i).nextMessage());
+            assertEquals("everyone", peers.get(i).nextMessage());
+        }
+
+        peerChats.get(1).stop();
+        awaitSessions(hubChat, 2);
+        assertNull(hubChat.getSession("peer1"));
+        assertEquals(ChatUtils.STATE_CONNECTED, hubChat.getState());
+        assertTrue(hubChat.write("peer2", "still here".getBytes()));
+        assertEquals("still here", peers.get(2).nextMessage());
+    }
+
+    @Test
+    public void rejectsPeersBeyondSessionLimit() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils hubChat = new ChatUtils(new InMemoryTransport(network, "hub"), new RecordingListener(), 1);
+        endpoints.start(hubChat);
+
+        ChatUtils first = endpoints.start(new InMemoryTransport(network, "first"), new RecordingListener());
+        first.connect("hub");
+        awaitSessions(hubChat, 1);
+        RecordingListener second = new RecordingListener();
+        ChatUtils secondChat = endpoints.start(new InMemoryTransport(network, "second"), second);
+        secondChat.connect("hub");
+
+        assertEquals("Connection Lost", second.toasts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, hubChat.getSessions().size());
+        assertNotNull(hubChat.getSession("first"));
+    }
+
+    @Test
+    public void returnsToListeningWhenPeerGoesAway() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        clientChat.stop();
+
+        assertEquals("Connection Lost", server.toasts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitState(serverChat, ChatUtils.STATE_LISTEN);
+
+        clientChat.start();
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+    }
+
+    @Test
+    public void resumesAfterLinkDropsWithoutLosingOrRepeatingMessages() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network(1024);
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        clientChat.setReconnectPolicy(new ReconnectPolicy(20, 200, 10, new Random(1)));
+        clientChat.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+
+        int total = 1000;
+        Thread sender = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                while (!clientChat.write("server", ("message " + i).getBytes())) {
+                    Thread.yield();
+                }
+            }
+        });
+        sender.start();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message " + i, server.nextMessage());
+        }
+        serverChat.disconnect("client");
+
+        for (int i = 100; i < total; i++) {
+            assertEquals("message " + i, server.nextMessage());
+        }
+        sender.join(TIMEOUT_MILLIS);
+        assertNull(server.messages.poll(100, TimeUnit.MILLISECONDS));
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+    }
+
+    @Test
+    public void idleLinkIsPingedAndSilentPeerIsDropped() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        CountDownLatch frozen = new CountDownLatch(1);
+        RecordingListener server = new RecordingListener() {
+            @Override
+            public void onMessageRead(PeerSession session, PooledBuffer message) {
+                message.release();
+                try {
+                    frozen.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        BlockingQueue<LinkQualityEstimator.Snapshot> reports = new LinkedBlockingQueue<>();
+        RecordingListener client = new RecordingListener() {
+            @Override
+            public void onLinkQuality(PeerSession session, LinkQualityEstimator.Snapshot quality) {
+                reports.add(quality);
+            }
+        };
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), client);
+        clientChat.setPingInterval(20);
+        clientChat.setReconnectPolicy(new ReconnectPolicy(10_000, 10_000, 1, new Random(1)));
+
+        clientChat.connect("server");
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+        LinkQualityEstimator.Snapshot measured = reports.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(measured);
+        assertEquals(1, measured.getSamples());
+        assertTrue(clientChat.getSession("server").getLinkQuality().getSrttNanos() > 0);
+
+        // The server's reader now hangs without closing the link, so pings go unanswered.
+        assertTrue(clientChat.write("freeze".getBytes()));
+        assertEquals("Connection Lost", client.toasts.poll(3 * TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(clientChat.getSession("server"));
+        frozen.countDown();
+    }
+
+    @Test
+    public void reportsFailureWhenNobodyListens() throws Exception {
+        RecordingListener client = new RecordingListener();
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(new InMemoryTransport.Network(), "client"),
+                client);
+
+        clientChat.connect("nobody");
+
+        assertEquals("Cant connect to the device", client.toasts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        awaitState(clientChat, ChatUtils.STATE_LISTEN);
+    }
+
+    @Test
+    public void encryptsEverythingAfterTheHello() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        TappedTransport serverTransport = new TappedTransport(new InMemoryTransport(network, "server"));
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(serverTransport, server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+        clientChat.write("meet me by the library".getBytes());
+        assertEquals("meet me by the library", server.nextMessage());
+
+        PeerSession serverSide = serverChat.getSession("client");
+        PeerSession clientSide = clientChat.getSession("server");
+        assertTrue(serverSide.isEncrypted());
+        assertTrue(clientSide.isEncrypted());
+        assertEquals(serverSide.getVerificationCode(), clientSide.getVerificationCode());
+        assertFalse(serverTransport.received().contains("library"));
+    }
+
+    @Test
+    public void resumedMessagesAreSealedToo() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network(1024);
+        TappedTransport serverTransport = new TappedTransport(new InMemoryTransport(network, "server"));
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(serverTransport, server);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        clientChat.setReconnectPolicy(new ReconnectPolicy(20, 200, 10, new Random(1)));
+        clientChat.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        awaitState(clientChat, ChatUtils.STATE_CONNECTED);
+
+        // Whatever is still in the pipe when the link drops is replayed on the next one.
+        int total = 500;
+        Thread sender = new Thread(() -> {
+            for (int i = 0; i < total; i++) {
+                while (!clientChat.write("server", ("secret " + i).getBytes())) {
+                    Thread.yield();
+                }
+            }
+        });
+        sender.start();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("secret " + i, server.nextMessage());
+        }
+        serverChat.disconnect("client");
+
+        for (int i = 50; i < total; i++) {
+            assertEquals("secret " + i, server.nextMessage());
+        }
+        sender.join(TIMEOUT_MILLIS);
+        assertTrue(clientChat.getSession("server").isEncrypted());
+        assertFalse(serverTransport.received().contains("secret"));
+    }
+
+    @Test
+    public void plaintextOnlyWithConsent() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        TappedTransport serverTransport = new TappedTransport(new InMemoryTransport(network, "server"));
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(serverTransport, server);
+        serverChat.setEncryption(SessionCrypto.Mode.PREFERRED);
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        clientChat.setEncryption(SessionCrypto.Mode.OFF);
+
+        clientChat.connect("server");
+        awaitState(serverChat, ChatUtils.STATE_CONNECTED);
+        clientChat.write("meet me by the library".getBytes());
+        assertEquals("meet me by the library", server.nextMessage());
+
+        assertFalse(serverChat.getSession("client").isEncrypted());
+        assertTrue(serverTransport.received().contains("library"));
+    }
+
+    @Test
+    public void requiredEncryptionDropsPlaintextPeers() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        assertEquals(SessionCrypto.Mode.REQUIRED, serverChat.getEncryption());
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        clientChat.setEncryption(SessionCrypto.Mode.OFF);
+
+        clientChat.connect("server");
+        clientChat.write("in the clear".getBytes());
+
+        assertEquals("Connection Lost", server.toasts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNull(server.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void peerThatWithholdsItsHelloIsDropped() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), new RecordingListener());
+        serverChat.setEncryption(SessionCrypto.Mode.PREFERRED);
+
+        // Connects and stays silent, as if its hello had been held back on the link.
+        TransportSocket mute = new InMemoryTransport(network, "mute").createConnection("server");
+        try {
+            mute.connect();
+            await("Session from the mute peer", () -> serverChat.getSession("mute") != null);
+            await("Mute peer still connected", TIMEOUT_MILLIS, () -> serverChat.getSession("mute") == null);
+        } finally {
+            mute.close();
+        }
+    }
+
+    private static class RecordingListener extends ChatFixtures.QuietListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> toasts = new LinkedBlockingQueue<>();
+
+        String nextMessage() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            return message;
+        }
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            messages.add(new String(message.data(), 0, message.length()));
+            message.release();
+        }
+
+        @Override
+        public void onToast(String text) {
+            toasts.add(text);
+        }
+    }
+    /**
+     * Keeps a copy of every byte read from the peer, as a stand-in for someone
+     * listening on the link.
+     */
+    private static class TappedTransport implements Transport {
+        private final Transport delegate;
+        private final ByteArrayOutputStream tap = new ByteArrayOutputStream();
+
+        TappedTransport(Transport delegate) {
+            this.delegate = delegate;
+        }
+
+        String received() {
+            synchronized (tap) {
+                return new String(tap.toByteArray(), StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        @Override
+        public TransportServer listen() throws IOException {
+            TransportServer server = delegate.listen();
+            return new TransportServer() {
+                @Override
+                public TransportSocket accept() throws IOException {
+                    return tapped(server.accept());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    server.close();
+                }
+            };
+        }
+
+        @Override
+        public TransportSocket createConnection(String address) throws IOException {
+            return tapped(delegate.createConnection(address));
+        }
+
+        private TransportSocket tapped(TransportSocket socket) {
+            return new TransportSocket() {
+                @Override
+                public void connect() throws IOException {
+                    socket.connect();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new FilterInputStream(socket.getInputStream()) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b >= 0) {
+                                synchronized (tap) {
+                                    tap.write(b);
+                                }
+                            }
+                            return b;
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            int n = super.read(b, off, len);
+                            if (n > 0) {
+                                synchronized (tap) {
+                                    tap.write(b, off, n);
+                                }
+                            }
+                            return n;
+                        }
+                    };
+                }
+
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return socket.getOutputStream();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return socket.getRemoteAddress();
+                }
+
+                @Override
+                public String getRemoteName() {
+                    return socket.getRemoteName();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    socket.close();
+                }
+            };
+        }
+    }
+}
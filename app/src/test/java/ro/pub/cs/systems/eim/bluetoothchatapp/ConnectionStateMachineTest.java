@@ -0,0 +1,168 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    private static final int THREADS = 8;
+
+    @Test
+    public void followsOnlyTheTable() {
+        ConnectionStateMachine machine =
+                new ConnectionStateMachine(ChatUtils.STATE_CONNECTING, ConnectionStateMachine.SESSION_TRANSITIONS);
+
+        assertFalse(machine.isLegal(ChatUtils.STATE_CONNECTED, ChatUtils.STATE_CONNECTING));
+        assertThrows(IllegalStateException.class,
+                () -> machine.transition(ChatUtils.STATE_CONNECTING, ChatUtils.STATE_LISTEN));
+        assertFalse(machine.transition(ChatUtils.STATE_CONNECTED, ChatUtils.STATE_NONE));
+        assertTrue(machine.transition(ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED));
+        assertEquals(ChatUtils.STATE_CONNECTED, machine.moveTo(ChatUtils.STATE_NONE));
+        assertEquals(ChatUtils.STATE_NONE, machine.moveTo(ChatUtils.STATE_NONE));
+        assertThrows(IllegalStateException.class, () -> machine.moveTo(ChatUtils.STATE_CONNECTED));
+        assertEquals(ChatUtils.STATE_NONE, machine.get());
+    }
+
+    @Test
+    public void exactlyOneRacingTransitionWins() throws Exception {
+        for (int round = 0; round < 500; round++) {
+            ConnectionStateMachine machine = new ConnectionStateMachine(ChatUtils.STATE_CONNECTING,
+                    ConnectionStateMachine.SESSION_TRANSITIONS);
+            AtomicInteger connected = new AtomicInteger();
+            AtomicInteger endedWhileConnecting = new AtomicInteger();
+            AtomicInteger endedWhileConnected = new AtomicInteger();
+            CyclicBarrier start = new CyclicBarrier(THREADS);
+            runAll(THREADS, thread -> {
+                start.await();
+                if (thread % 2 == 0) {
+                    if (machine.transition(ChatUtils.STATE_CONNECTING, ChatUtils.STATE_CONNECTED)) {
+                        connected.incrementAndGet();
+                    }
+                } else {
+                    int previous = machine.moveTo(ChatUtils.STATE_NONE);
+                    if (previous == ChatUtils.STATE_CONNECTING) {
+                        endedWhileConnecting.incrementAndGet();
+                    } else if (previous == ChatUtils.STATE_CONNECTED) {
+                        endedWhileConnected.incrementAndGet();
+                    }
+                }
+            });
+
+            assertEquals(ChatUtils.STATE_NONE, machine.get());
+            assertEquals(1, endedWhileConnecting.get() + endedWhileConnected.get());
+            assertEquals(connected.get(), endedWhileConnected.get());
+        }
+    }
+
+    @Test
+    public void listenersSeeAnUnbrokenChainEndingInTheCurrentState() throws Exception {
+        int[][] everyEdge = new int[12][];
+        for (int from = 0, edge = 0; from < 4; from++) {
+            for (int to = 0; to < 4; to++) {
+                if (from != to) {
+                    everyEdge[edge++] = new int[]{from, to};
+                }
+            }
+        }
+        ConnectionStateMachine machine = new ConnectionStateMachine(ChatUtils.STATE_NONE, everyEdge);
+        AtomicBoolean inCallback = new AtomicBoolean();
+        AtomicInteger last = new AtomicInteger(ChatUtils.STATE_NONE);
+        AtomicInteger reports = new AtomicInteger();
+        AtomicReference<String> problem = new AtomicReference<>();
+        machine.addListener((source, previous, current) -> {
+            if (!inCallback.compareAndSet(false, true)) {
+                problem.compareAndSet(null, "listener ran concurrently");
+            }
+            if (previous != last.get() || previous == current) {
+                problem.compareAndSet(null, "got " + previous + " -> " + current + " after " + last.get());
+            }
+            last.set(current);
+            reports.incrementAndGet();
+            inCallback.set(false);
+        });
+
+        runAll(THREADS, thread -> {
+            Random random = new Random(thread);
+            for (int i = 0; i < 20_000; i++) {
+                machine.moveTo(random.nextInt(4));
+            }
+        });
+
+        assertNull(problem.get());
+        assertTrue(reports.get() > 0);
+        assertEquals(machine.get(), last.get());
+    }
+
+    @Test
+    public void hubStateSettlesWhilePeersComeAndGo() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        AtomicInteger lastReported = new AtomicInteger(-1);
+        ChatUtils hub = new ChatUtils(new InMemoryTransport(network, "hub"), new ChatFixtures.QuietListener() {
+            @Override
+            public void onStateChanged(int state) {
+                lastReported.set(state);
+            }
+        }, THREADS);
+        hub.start();
+        List<ChatUtils> peers = new ArrayList<>();
+        try {
+            runAll(THREADS, thread -> {
+                for (int i = 0; i < 5; i++) {
+                    ChatUtils peer = new ChatUtils(new InMemoryTransport(network, "peer" + thread),
+                            new ChatFixtures.QuietListener());
+                    synchronized (peers) {
+                        peers.add(peer);
+                    }
+                    peer.start();
+                    peer.connect("hub");
+                    Thread.sleep(thread % 3);
+                    peer.stop();
+                }
+            });
+            ChatFixtures.await("Hub sessions left", () -> hub.getSessions().isEmpty());
+
+            assertEquals(ChatUtils.STATE_LISTEN, hub.getState());
+            assertEquals(ChatUtils.STATE_LISTEN, lastReported.get());
+        } finally {
+            hub.stop();
+            for (ChatUtils peer : peers) {
+                peer.stop();
+            }
+        }
+    }
+
+    private interface Body {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runAll(int threads, Body body) throws Exception {
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            new Thread(() -> {
+                try {
+                    body.run(thread);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
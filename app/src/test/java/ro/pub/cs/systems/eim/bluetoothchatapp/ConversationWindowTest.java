@@ -0,0 +1,168 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConversationWindowTest {
+    private File directory;
+    private ChatLogStore store;
+    private final List<String> updates = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("conversation").toFile();
+        store = new ChatLogStore(directory);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void liveBurstIsBoundedAndReportedAsRanges() throws Exception {
+        ConversationWindow window = newWindow(100);
+        window.track("peer", 0);
+
+        List<ChatItem> batch = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            batch.add(log("peer", i, "message " + i));
+            if (batch.size() == 250) {
+                window.appendLive(batch);
+                batch.clear();
+            }
+        }
+
+        assertEquals(100, window.size());
+        assertEquals("message 4900", window.get(0).getText());
+        assertEquals("message 4999", window.get(99).getText());
+        assertEquals(Collections.singletonMap("peer", 4900L), window.getOlderCursors());
+        assertEquals(Collections.singletonMap("peer", 5000L), window.getNewerCursors());
+        assertEquals(40, updates.size());
+        assertEquals("insert 0 250", updates.get(0));
+        assertEquals("remove 0 150", updates.get(1));
+        assertEquals("insert 100 250", updates.get(2));
+        assertEquals("remove 0 250", updates.get(3));
+    }
+
+    @Test
+    public void pagesOlderHistoryMergedAcrossPeersAndBack() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            log(i % 3 == 0 ? "a" : "b", i, "message " + i);
+        }
+        ConversationPager pager = new ConversationPager(store, address -> "Peer " + address);
+        ConversationWindow window = newWindow(120);
+        window.track("a", store.get("a").getNextOffset());
+        window.track("b", store.get("b").getNextOffset());
+
+        while (window.hasOlder()) {
+            window.prependOlder(pager.loadOlder(window.getOlderCursors(), 50));
+        }
+        assertEquals(120, window.size());
+        assertTrue(window.hasNewer());
+        for (int i = 0; i < 120; i++) {
+            assertEquals("message " + i, window.get(i).getText());
+        }
+
+        while (window.hasNewer()) {
+            List<ChatItem> page = pager.loadNewer(window.getNewerCursors(), 50);
+            window.appendNewer(page, page.isEmpty() || pager.isCaughtUp(window.getNewerCursors()));
+        }
+        assertEquals(120, window.size());
+        for (int i = 0; i < 120; i++) {
+            assertEquals("message " + (180 + i), window.get(i).getText());
+        }
+        assertEquals("Peer b", window.get(119).getSender());
+    }
+
+    @Test
+    public void dropsLiveMessagesWhileDetachedAndPicksThemUpFromTheLog() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            log("peer", i, "message " + i);
+        }
+        ConversationPager pager = new ConversationPager(store, address -> address);
+        ConversationWindow window = newWindow(40);
+        window.track("peer", 100);
+        window.prependOlder(pager.loadOlder(window.getOlderCursors(), 30));
+        window.prependOlder(pager.loadOlder(window.getOlderCursors(), 30));
+        assertTrue(window.hasNewer());
+
+        window.appendLive(Collections.singletonList(log("peer", 100, "live")));
+        assertEquals("message 79", window.get(39).getText());
+
+        while (window.hasNewer()) {
+            List<ChatItem> page = pager.loadNewer(window.getNewerCursors(), 30);
+            window.appendNewer(page, page.isEmpty() || pager.isCaughtUp(window.getNewerCursors()));
+        }
+        assertEquals("live", window.get(39).getText());
+    }
+
+    @Test
+    public void skipsReplayedMessagesTheHistoryAlreadyHas() throws Exception {
+        ChatItem missed = log("peer", 1, "while away");
+        ConversationPager pager = new ConversationPager(store, address -> address);
+        ConversationWindow window = newWindow(40);
+        window.track("peer", store.get("peer").getNextOffset());
+        window.prependOlder(pager.loadOlder(window.getOlderCursors(), 30));
+
+        window.appendLive(Arrays.asList(missed, log("peer", 2, "after")));
+        assertEquals(2, window.size());
+        assertEquals("while away", window.get(0).getText());
+        assertEquals("after", window.get(1).getText());
+    }
+
+    private ConversationWindow newWindow(int capacity) {
+        ConversationWindow window = new ConversationWindow(capacity);
+        window.setCallback(new ListUpdateCallback() {
+            @Override
+            public void onInserted(int position, int count) {
+                updates.add("insert " + position + " " + count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                updates.add("remove " + position + " " + count);
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                updates.add("move " + fromPosition + " " + toPosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                updates.add("change " + position + " " + count);
+            }
+        });
+        return window;
+    }
+
+    private ChatItem log(String address, long timestamp, String text) throws IOException {
+        long offset = store.get(address).append(timestamp, false, text.getBytes());
+        return new ChatItem(address, offset, timestamp, false, address, text);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,80 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares chat throughput with and without session encryption over TCP loopback, and
+ * times sealing alone. RFCOMM moves roughly 250-300 KB/s, so the encrypted rate only
+ * has to stay well above that. Run with {@code main}; it is not part of the unit test
+ * suite.
+ */
+public class EncryptionBenchmark {
+    private static final int MESSAGES = 100_000;
+    private static final int MESSAGE_SIZE = 256;
+    private static final int SEALS = 200_000;
+    private static final double RFCOMM_BYTES_PER_SECOND = 275 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 3; round++) {
+            run(SessionCrypto.Mode.OFF);
+            run(SessionCrypto.Mode.REQUIRED);
+            seal();
+        }
+    }
+
+    private static void run(SessionCrypto.Mode mode) throws Exception {
+        CountDownLatch received = new CountDownLatch(MESSAGES);
+        TcpLoopbackTransport serverTransport = new TcpLoopbackTransport();
+        serverTransport.listen().close();
+        ChatUtils server = new ChatUtils(serverTransport, new ChatFixtures.QuietListener() {
+            @Override
+            public void onMessageRead(PeerSession session, PooledBuffer message) {
+                message.release();
+                received.countDown();
+            }
+        });
+        ChatUtils client = new ChatUtils(new TcpLoopbackTransport(), new ChatFixtures.QuietListener());
+        server.setEncryption(mode);
+        client.setEncryption(mode);
+        client.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        server.start();
+        client.start();
+        ChatFixtures.connect(client, server, serverTransport.getAddress());
+
+        // Random bytes, so compression does not shrink the plaintext run.
+        byte[] message = new byte[MESSAGE_SIZE];
+        new Random(1).nextBytes(message);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            client.write(message);
+        }
+        boolean completed = received.await(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        boolean encrypted = client.getSession(serverTransport.getAddress()).isEncrypted();
+        client.stop();
+        server.stop();
+
+        double bytesPerSecond = (double) MESSAGES * MESSAGE_SIZE / (elapsed / 1e9);
+        System.out.printf("%-9s %s encrypted=%-5b %8.1f MB/s  %6.0fx rfcomm%n", mode, completed ? "ok     " : "TIMEOUT",
+                encrypted, bytesPerSecond / (1024 * 1024), bytesPerSecond / RFCOMM_BYTES_PER_SECOND);
+    }
+
+    private static void seal() throws Exception {
+        SessionCrypto alice = SessionCrypto.generate();
+        SessionCrypto bob = SessionCrypto.generate();
+        SessionCrypto.Sealer sealer = alice.agree(alice.getPublicKey(), bob.getPublicKey(), bob.getPublicKey()).sealer;
+        byte[] record = new byte[16 * 1024 + SessionCrypto.TAG_SIZE];
+        for (int size : new int[]{MESSAGE_SIZE, 16 * 1024}) {
+            int count = SEALS * MESSAGE_SIZE / size;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sealer.seal(record, 0, size, 0);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("seal %5d B %8.0f ns/record %8.1f MB/s%n", size, (double) elapsed / count,
+                    (double) count * size / (elapsed / 1e9) / (1024 * 1024));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final ChatFixtures.Endpoints endpoints = new ChatFixtures.Endpoints();
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("transfer").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        endpoints.stopAll();
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void sendsFileWhileChatKeepsFlowing() throws Exception {
+        byte[] content = randomBytes(8 * 1024 * 1024 + 123);
+        File source = write("source.bin", content);
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        serverChat.setDownloadDirectory(new File(directory, "received"));
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        ChatFixtures.connect(clientChat, serverChat, "server");
+
+        FileTransfer sending = clientChat.sendFile("server", source);
+        FileTransfer receiving = awaitIncoming(serverChat);
+        assertTrue(clientChat.write("while sending".getBytes()));
+        assertEquals("while sending", server.messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(receiving.getTransferred() < content.length);
+
+        awaitState(receiving, FileTransfer.State.COMPLETED);
+        awaitState(sending, FileTransfer.State.COMPLETED);
+        assertEquals("source.bin", receiving.getFile().getName());
+        assertArrayEquals(content, Files.readAllBytes(receiving.getFile().toPath()));
+        assertTrue(sending.getThroughput() > 0);
+    }
+
+    @Test
+    public void resumesFromAcknowledgedOffsetAfterConnectionLoss() throws Exception {
+        byte[] content = randomBytes(1024 * 1024);
+        File source = write("log-bundle.zip", content);
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), server);
+        serverChat.setDownloadDirectory(new File(directory, "received"));
+
+        // The first acknowledgement the client sees blocks its reader, so the sender
+        // stalls after one window and the transfer is cut at a known offset.
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener client = new RecordingListener() {
+            @Override
+            public void onTransferProgress(FileTransfer transfer) {
+                if (transfer.getState() == FileTransfer.State.ACTIVE) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), client);
+        ChatFixtures.connect(clientChat, serverChat, "server");
+
+        FileTransfer sending = clientChat.sendFile("server", source);
+        FileTransfer receiving = awaitIncoming(serverChat);
+        ChatFixtures.await("Window not filled", TIMEOUT_MILLIS,
+                () -> receiving.getTransferred() >= FlowControl.DEFAULT_WINDOW_BYTES);
+
+        clientChat.stop();
+        release.countDown();
+        awaitState(receiving, FileTransfer.State.PAUSED);
+        awaitState(sending, FileTransfer.State.PAUSED);
+        assertEquals(FlowControl.DEFAULT_WINDOW_BYTES, receiving.getTransferred());
+
+        clientChat.start();
+        ChatFixtures.connect(clientChat, serverChat, "server");
+        awaitState(receiving, FileTransfer.State.COMPLETED);
+        awaitState(sending, FileTransfer.State.COMPLETED);
+        assertArrayEquals(content, Files.readAllBytes(receiving.getFile().toPath()));
+        assertEquals(1, new File(directory, "received").list().length);
+        assertTrue(serverChat.getTransfers().isEmpty());
+    }
+
+    @Test
+    public void receiverAcksAtLeastTwicePerSenderWindow() throws Exception {
+        byte[] content = randomBytes(20 * FileTransferManager.CHUNK_SIZE + 7);
+        File source = write("notes.txt", content);
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), new RecordingListener());
+        serverChat.setDownloadDirectory(new File(directory, "received"));
+        serverChat.setFlowControl(new FlowControl(FlowControl.DEFAULT_WINDOW_BYTES, 1024 * 1024, 0));
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        clientChat.setFlowControl(new FlowControl(FileTransferManager.CHUNK_SIZE, FileTransferManager.CHUNK_SIZE,
+                4 * 1024 * 1024));
+        ChatFixtures.connect(clientChat, serverChat, "server");
+
+        FileTransfer sending = clientChat.sendFile("server", source);
+        FileTransfer receiving = awaitIncoming(serverChat);
+
+        awaitState(receiving, FileTransfer.State.COMPLETED);
+        awaitState(sending, FileTransfer.State.COMPLETED);
+        assertArrayEquals(content, Files.readAllBytes(receiving.getFile().toPath()));
+    }
+
+    @Test
+    public void failsWhenReceiverHasNowhereToStoreFiles() throws Exception {
+        File source = write("photo.jpg", randomBytes(1000));
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), new RecordingListener());
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        ChatFixtures.connect(clientChat, serverChat, "server");
+
+        FileTransfer sending = clientChat.sendFile("server", source);
+
+        awaitState(sending, FileTransfer.State.FAILED);
+        assertEquals(ChatUtils.STATE_CONNECTED, clientChat.getState());
+    }
+
+    @Test
+    public void shortFrameClosesTheLink() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils serverChat = endpoints.start(new InMemoryTransport(network, "server"), new RecordingListener());
+        serverChat.setDownloadDirectory(new File(directory, "received"));
+        ChatUtils clientChat = endpoints.start(new InMemoryTransport(network, "client"), new RecordingListener());
+        ChatFixtures.connect(clientChat, serverChat, "server");
+        PeerSession serverSide = serverChat.getSession("client");
+
+        byte[] chunk = new byte[FrameProtocol.HEADER_SIZE + 8];
+        FrameProtocol.writeHeader(chunk, 0, FrameProtocol.TYPE_FILE_CHUNK, 0, 8);
+        assertTrue(clientChat.getSession("server").sendControl(chunk));
+
+        ChatFixtures.await("Still connected", TIMEOUT_MILLIS, () -> !serverSide.isConnected());
+    }
+
+    private static FileTransfer awaitIncoming(ChatUtils chatUtils) throws InterruptedException {
+        ChatFixtures.await("No incoming transfer", TIMEOUT_MILLIS, () -> !chatUtils.getTransfers().isEmpty());
+        return chatUtils.getTransfers().get(0);
+    }
+
+    private static void awaitState(FileTransfer transfer, FileTransfer.State state) throws InterruptedException {
+        ChatFixtures.await("Expected " + state, TIMEOUT_MILLIS, () -> transfer.getState() == state);
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class RecordingListener extends ChatFixtures.QuietListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            messages.add(new String(message.data(), 0, message.length()));
+            message.release();
+        }
+    }
+}
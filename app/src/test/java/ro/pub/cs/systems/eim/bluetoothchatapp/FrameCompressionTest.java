@@ -0,0 +1,128 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.TIMEOUT_MILLIS;
+import static org.junit.Assert.*;
+
+public class FrameCompressionTest {
+    private final ChatFixtures.Endpoints endpoints = new ChatFixtures.Endpoints();
+
+    @After
+    public void tearDown() {
+        endpoints.stopAll();
+    }
+
+    @Test
+    public void roundTripsWithAndWithoutDictionary() throws Exception {
+        FrameCompression compression = new FrameCompression();
+        byte[] message = "thank you, see you tomorrow at the meeting, I'm going to call you later today"
+                .getBytes();
+
+        FrameCompression.Compressor withDictionary = compression.newCompressor(
+                FrameCompression.CODEC_DEFLATE, compression.getDictionaryId());
+        FrameCompression.Compressor plain = compression.newCompressor(FrameCompression.CODEC_DEFLATE, 0);
+        FrameCompression.Decompressor decompressor = compression.newDecompressor();
+
+        byte[] destination = new byte[message.length];
+        int small = withDictionary.compress(message, 0, message.length, destination, 0);
+        assertTrue(small > 0);
+        assertEquals(FrameCompression.FLAG_COMPRESSED | FrameCompression.FLAG_DICTIONARY, withDictionary.flags());
+        int length = decompressor.decompress(destination, 0, small, withDictionary.flags());
+        assertArrayEquals(message, Arrays.copyOf(decompressor.buffer(), length));
+
+        int larger = plain.compress(message, 0, message.length, destination, 0);
+        assertTrue("dictionary " + small + " vs plain " + larger, larger < 0 || small < larger);
+
+        byte[] buffer = decompressor.buffer();
+        for (int i = 0; i < 100; i++) {
+            int compressed = withDictionary.compress(message, 0, message.length, destination, 0);
+            decompressor.decompress(destination, 0, compressed, withDictionary.flags());
+        }
+        assertSame(buffer, decompressor.buffer());
+        withDictionary.end();
+        plain.end();
+        decompressor.end();
+    }
+
+    @Test
+    public void skipsSmallAndIncompressibleFrames() {
+        FrameCompression compression = new FrameCompression();
+        FrameCompression.Compressor compressor = compression.newCompressor(FrameCompression.CODEC_DEFLATE, 0);
+
+        byte[] shortMessage = "ok".getBytes();
+        assertEquals(-1, compressor.compress(shortMessage, 0, shortMessage.length, new byte[2], 0));
+
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertEquals(-1, compressor.compress(random, 0, random.length, new byte[random.length], 0));
+
+        assertEquals(1, compression.getFramesBelowThreshold());
+        assertEquals(1, compression.getFramesIncompressible());
+        assertEquals(0, compression.getFramesCompressed());
+        assertEquals(1.0, compression.getRatio(), 0);
+        compressor.end();
+    }
+
+    @Test
+    public void compressesOnlyWhenBothPeersAgree() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 40_000) {
+            text.append("log line ").append(text.length() % 97).append(" status ok\n");
+        }
+        byte[] large = text.toString().getBytes();
+        byte[] chat = "are you coming to the meeting tomorrow morning? I am going to call you later, thanks".getBytes();
+
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        FrameCompression clientCompression = new FrameCompression();
+        RecordingListener server = new RecordingListener();
+        ChatUtils serverChat = start(new InMemoryTransport(network, "server"), server, new FrameCompression());
+        ChatUtils clientChat = start(new InMemoryTransport(network, "client"), new RecordingListener(),
+                clientCompression);
+        ChatFixtures.connect(clientChat, serverChat, "server");
+        awaitHello(clientChat.getSession("server"));
+
+        assertTrue(clientChat.write(chat));
+        assertTrue(clientChat.write(large));
+        assertArrayEquals(chat, server.messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(large, server.messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, clientCompression.getFramesCompressed());
+        assertTrue(clientCompression.getRatio() < 0.5);
+        assertEquals(2, serverChat.getCompression().getFramesDecompressed());
+
+        RecordingListener legacy = new RecordingListener();
+        ChatUtils legacyChat = start(new InMemoryTransport(network, "legacy"), legacy, FrameCompression.disabled());
+        ChatFixtures.connect(clientChat, legacyChat, "legacy");
+        awaitHello(clientChat.getSession("legacy"));
+        assertTrue(clientChat.write("legacy", large));
+        assertArrayEquals(large, legacy.messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, clientCompression.getFramesCompressed());
+    }
+
+    private ChatUtils start(Transport transport, ChatListener listener, FrameCompression compression) {
+        ChatUtils chatUtils = new ChatUtils(transport, listener);
+        chatUtils.setCompression(compression);
+        return endpoints.start(chatUtils);
+    }
+
+    private static void awaitHello(PeerSession session) throws InterruptedException {
+        ChatFixtures.await("No hello", session::isHelloReceived);
+    }
+
+    private static class RecordingListener extends ChatFixtures.QuietListener {
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            messages.add(Arrays.copyOf(message.data(), message.length()));
+            message.release();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Integer> types = new ArrayList<>();
+
+    private final FrameDecoder decoder = new FrameDecoder((type, flags, payload, offset, length) -> {
+        types.add(type);
+        frames.add(Arrays.copyOfRange(payload, offset, offset + length));
+    });
+
+    @Test
+    public void decodesFramesSplitAtRandomBoundaries() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> sent = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) {
+            byte[] payload = new byte[random.nextInt(4000)];
+            random.nextBytes(payload);
+            sent.add(payload);
+            stream.write(FrameProtocol.encode(FrameProtocol.TYPE_TEXT, payload));
+        }
+
+        byte[] wire = stream.toByteArray();
+        int offset = 0;
+        while (offset < wire.length) {
+            int chunk = Math.min(wire.length - offset, 1 + random.nextInt(3000));
+            decoder.feed(wire, offset, chunk);
+            offset += chunk;
+        }
+
+        assertEquals(sent.size(), frames.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), frames.get(i));
+        }
+        assertTrue(decoder.isIdle());
+    }
+
+    @Test
+    public void decodesFramesFedOneByteAtATime() throws Exception {
+        byte[] first = FrameProtocol.encode(FrameProtocol.TYPE_TEXT, "salut".getBytes());
+        byte[] second = FrameProtocol.encode(7, new byte[0]);
+        byte[] wire = new byte[first.length + second.length];
+        System.arraycopy(first, 0, wire, 0, first.length);
+        System.arraycopy(second, 0, wire, first.length, second.length);
+
+        for (int i = 0; i < wire.length; i++) {
+            decoder.feed(wire, i, 1);
+        }
+
+        assertEquals(2, frames.size());
+        assertArrayEquals("salut".getBytes(), frames.get(0));
+        assertEquals(0, frames.get(1).length);
+        assertEquals(Integer.valueOf(7), types.get(1));
+    }
+
+    @Test
+    public void decodesSeveralFramesMergedIntoOneRead() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            stream.write(FrameProtocol.encode(FrameProtocol.TYPE_TEXT, ("message " + i).getBytes()));
+        }
+        byte[] wire = stream.toByteArray();
+
+        decoder.feed(wire, 0, wire.length);
+
+        assertEquals(10, frames.size());
+        assertArrayEquals("message 9".getBytes(), frames.get(9));
+    }
+
+    @Test
+    public void decodesPayloadLargerThanReadBuffer() throws Exception {
+        byte[] payload = new byte[3 * 1024 * 1024];
+        new Random(7).nextBytes(payload);
+        byte[] wire = FrameProtocol.encode(FrameProtocol.TYPE_TEXT, payload);
+
+        for (int offset = 0; offset < wire.length; offset += 8192) {
+            decoder.feed(wire, offset, Math.min(8192, wire.length - offset));
+        }
+
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0));
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        byte[] wire = FrameProtocol.encode(FrameProtocol.TYPE_TEXT, "x".getBytes());
+        wire[0] = 99;
+
+        assertThrows(ProtocolException.class, () -> decoder.feed(wire, 0, wire.length));
+    }
+
+    @Test
+    public void rejectsOversizedFrame() {
+        FrameDecoder small = new FrameDecoder((type, flags, payload, offset, length) -> fail(), 16);
+        byte[] wire = FrameProtocol.encode(FrameProtocol.TYPE_TEXT, new byte[17]);
+
+        assertThrows(ProtocolException.class, () -> small.feed(wire, 0, wire.length));
+    }
+}
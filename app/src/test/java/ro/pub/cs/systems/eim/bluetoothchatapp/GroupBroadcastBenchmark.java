@@ -0,0 +1,119 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sending to a growing group of peers over simulated radio links (64 KB/s,
+ * 20 ms one way, one link per peer), one of which reads slowly. The hub uses
+ * {@link OutboundQueue.Backpressure#BLOCK}, so once the slow peer's queue is full a write
+ * to it waits.
+ *
+ * <p>The serial baseline is what sending to a group looked like before
+ * {@link ChatUtils#writeGroup}: the caller copies the message for each peer and writes it
+ * to one peer after the other, so every message waits behind the slow peer's full queue
+ * and the fast peers receive at its pace. The group run hands each message to
+ * {@code writeGroup} once. Both report the caller's time per message, when the fast peers
+ * and when all peers had everything, and the group run how much sooner its fast peers
+ * finished. Run with {@code main}; it is not part of the unit test suite.
+ */
+public class GroupBroadcastBenchmark {
+    private static final long LINK_BYTES_PER_SECOND = 64 * 1024;
+    private static final long LATENCY_MILLIS = 20;
+    private static final long LINK_QUEUE_MILLIS = 200;
+    private static final long SLOW_READ_MILLIS = 10;
+    private static final int MESSAGES = 1000;
+    private static final int MESSAGE_SIZE = 160;
+    private static final int[] FAST_PEERS = {1, 2, 4, ChatUtils.DEFAULT_MAX_SESSIONS - 1};
+    private static final int PIPE_CAPACITY = 1024;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("link %d KB/s, %d ms one way, %d x %d B messages, slow peer reads one per %d ms%n",
+                LINK_BYTES_PER_SECOND / 1024, LATENCY_MILLIS, MESSAGES, MESSAGE_SIZE, SLOW_READ_MILLIS);
+        for (int peers : FAST_PEERS) {
+            double serial = run(peers, false);
+            double group = run(peers, true);
+            System.out.printf("      fast peers done x%.2f sooner with writeGroup%n", serial / group);
+        }
+    }
+
+    /**
+     * Returns the seconds until every fast peer had every message.
+     */
+    private static double run(int fastPeers, boolean group) throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network(PIPE_CAPACITY);
+        ChatUtils hub = new ChatUtils(new SimulatedLinkTransport(new InMemoryTransport(network, "hub"),
+                LINK_BYTES_PER_SECOND, LATENCY_MILLIS, LINK_QUEUE_MILLIS), new ChatFixtures.QuietListener());
+        hub.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        hub.start();
+        CountDownLatch fastReceived = new CountDownLatch(fastPeers * MESSAGES);
+        CountDownLatch slowReceived = new CountDownLatch(MESSAGES);
+        List<ChatUtils> clients = new ArrayList<>();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i <= fastPeers; i++) {
+            boolean slow = i == fastPeers;
+            String address = slow ? "slow" : "peer" + i;
+            ChatUtils client = new ChatUtils(new InMemoryTransport(network, address),
+                    new ChatFixtures.QuietListener() {
+                        @Override
+                        public void onMessageRead(PeerSession session, PooledBuffer message) {
+                            message.release();
+                            if (slow) {
+                                try {
+                                    Thread.sleep(SLOW_READ_MILLIS);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                                slowReceived.countDown();
+                            } else {
+                                fastReceived.countDown();
+                            }
+                        }
+                    });
+            client.start();
+            client.connect("hub");
+            clients.add(client);
+            addresses.add(address);
+        }
+        ChatFixtures.await("Peers not connected", () -> ChatFixtures.connectedSessions(hub) == fastPeers + 1);
+
+        byte[] message = new byte[MESSAGE_SIZE];
+        new Random(fastPeers).nextBytes(message);
+        LatencyHistogram latency = new LatencyHistogram();
+        List<GroupSend> sends = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (group) {
+                sends.add(hub.writeGroup(addresses, message));
+            } else {
+                for (String address : addresses) {
+                    hub.write(address, message.clone());
+                }
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+        boolean completed = fastReceived.await(120, TimeUnit.SECONDS);
+        long fastNanos = System.nanoTime() - start;
+        completed &= slowReceived.await(120, TimeUnit.SECONDS);
+        long allNanos = System.nanoTime() - start;
+        for (GroupSend send : sends) {
+            send.await(1, TimeUnit.SECONDS);
+            for (long nanos : send.getLatencies().values()) {
+                latency.record(nanos);
+            }
+        }
+
+        for (ChatUtils client : clients) {
+            client.stop();
+        }
+        hub.stop();
+
+        System.out.printf("%-6s %d+1 peers %s caller %8.1f us/msg  fast peers done %6.2f s  all done %6.2f s  %s%n",
+                group ? "group" : "serial", fastPeers, completed ? "ok     " : "TIMEOUT", sendNanos / 1e3 / MESSAGES,
+                fastNanos / 1e9, allNanos / 1e9, group ? "latency " + latency.snapshot() : "");
+        return fastNanos / 1e9;
+    }
+}
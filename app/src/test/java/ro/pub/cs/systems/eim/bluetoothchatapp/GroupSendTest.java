@@ -0,0 +1,183 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.TIMEOUT_MILLIS;
+import static org.junit.Assert.*;
+
+public class GroupSendTest {
+    private final InMemoryTransport.Network network = new InMemoryTransport.Network(1024);
+    private final ChatFixtures.Endpoints endpoints = new ChatFixtures.Endpoints();
+
+    @After
+    public void tearDown() {
+        endpoints.stopAll();
+    }
+
+    @Test
+    public void slowPeerDoesNotHoldBackTheOthers() throws Exception {
+        ChatUtils hub = start("hub", new RecordingListener(null));
+        hub.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        RecordingListener first = new RecordingListener(null);
+        RecordingListener second = new RecordingListener(null);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(release);
+        connect(start("first", first), hub);
+        connect(start("second", second), hub);
+        connect(start("slow", slow), hub);
+
+        // The slow peer stops reading, so its pipe and then its queue on the hub fill up.
+        Thread filler = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                hub.write("slow", new byte[64]);
+            }
+        });
+        filler.setDaemon(true);
+        filler.start();
+        OutboundQueue slowQueue = hub.getSession("slow").getOutboundQueue();
+        ChatFixtures.await("Slow queue not filled", () -> slowQueue.getDepth() >= 256);
+
+        byte[] message = "to everyone".getBytes();
+        long start = System.nanoTime();
+        GroupSend group = hub.writeGroup(Arrays.asList("first", "second", "slow", "absent"), message);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        message[0] = 'X';
+
+        assertEquals("to everyone", first.next());
+        assertEquals("to everyone", second.next());
+        ChatFixtures.await("Latencies not reported", () -> group.getLatencies().size() >= 2);
+        assertTrue(group.getLatencyNanos("first") >= 0);
+        assertTrue(group.getLatencyNanos("second") >= 0);
+        assertEquals(-1, group.getLatencyNanos("slow"));
+        assertEquals(Arrays.asList("absent"), new ArrayList<>(group.getFailed()));
+        assertFalse(group.isDone());
+
+        release.countDown();
+        assertTrue(group.toString(), group.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(group.getLatencyNanos("slow") > group.getLatencyNanos("first"));
+        filler.join(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void peerThatDisconnectsBeforeTheWriteFails() throws Exception {
+        ChatUtils hub = start("hub", new RecordingListener(null));
+        hub.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        CountDownLatch never = new CountDownLatch(1);
+        ChatUtils stalled = start("stalled", new RecordingListener(never));
+        connect(stalled, hub);
+        Thread filler = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                hub.write("stalled", new byte[64]);
+            }
+        });
+        filler.setDaemon(true);
+        filler.start();
+        OutboundQueue queue = hub.getSession("stalled").getOutboundQueue();
+        ChatFixtures.await("Stalled queue not filled", () -> queue.getDepth() >= 256);
+
+        GroupSend group = hub.writeGroup("bye".getBytes());
+        hub.disconnect("stalled");
+
+        assertTrue(group.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("stalled"), new ArrayList<>(group.getFailed()));
+        never.countDown();
+    }
+
+    @Test
+    public void stalledPeerDoesNotTieUpTheFanOut() throws Exception {
+        ChatUtils hub = start("hub", new RecordingListener(null));
+        hub.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener first = new RecordingListener(release);
+        CountDownLatch never = new CountDownLatch(1);
+        connect(start("first", first), hub);
+        connect(start("stalled", new RecordingListener(never)), hub);
+
+        // Both queues overflow; then only the stalled peer stays stuck.
+        int count = 2000;
+        List<GroupSend> groups = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            groups.add(hub.writeGroup(String.format("%-100d", i).getBytes()));
+        }
+        release.countDown();
+        for (int i = 0; i < count; i++) {
+            assertEquals(String.format("%-100d", i), first.next());
+        }
+        assertTrue(groups.get(count - 1).getLatencyNanos("first") >= 0);
+        assertEquals(-1, groups.get(count - 1).getLatencyNanos("stalled"));
+        never.countDown();
+    }
+
+    @Test
+    public void peerThatDropsTheMessageFails() throws Exception {
+        ChatUtils hub = start("hub", new RecordingListener(null));
+        hub.setBackpressure(OutboundQueue.Backpressure.DROP_OLDEST);
+        RecordingListener first = new RecordingListener(null);
+        CountDownLatch never = new CountDownLatch(1);
+        connect(start("first", first), hub);
+        connect(start("stalled", new RecordingListener(never)), hub);
+        OutboundQueue queue = hub.getSession("stalled").getOutboundQueue();
+        while (queue.getDepth() < 256) {
+            hub.write("stalled", new byte[64]);
+        }
+
+        GroupSend group = hub.writeGroup("soon gone".getBytes());
+        for (int i = 0; i < 256; i++) {
+            hub.write("stalled", new byte[64]);
+        }
+
+        assertTrue(group.toString(), group.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("stalled"), new ArrayList<>(group.getFailed()));
+        assertEquals("soon gone", first.next());
+        never.countDown();
+    }
+
+    private ChatUtils start(String address, ChatListener listener) {
+        return endpoints.start(new InMemoryTransport(network, address), listener);
+    }
+
+    private static void connect(ChatUtils client, ChatUtils hub) throws InterruptedException {
+        int before = ChatFixtures.connectedSessions(hub);
+        ChatFixtures.connect(client, hub, "hub");
+        ChatFixtures.awaitSessions(hub, before + 1);
+    }
+
+    private static class RecordingListener extends ChatFixtures.QuietListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        private final CountDownLatch gate;
+
+        RecordingListener(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        String next() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            return message;
+        }
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            try {
+                if (gate != null) {
+                    gate.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (message.length() != 64) {
+                messages.add(new String(message.data(), 0, message.length()));
+            }
+            message.release();
+        }
+    }
+}
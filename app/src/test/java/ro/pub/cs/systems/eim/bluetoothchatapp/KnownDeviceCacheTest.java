@@ -0,0 +1,167 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KnownDeviceCacheTest {
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("devices").toFile();
+        file = new File(directory, "known_devices");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        cache.recordSeen("AA:AA:AA:AA:AA:01", "Phone", 1000);
+        cache.recordConnected("AA:AA:AA:AA:AA:01", null, 2000, 850);
+        cache.recordFailure("AA:AA:AA:AA:AA:01");
+        cache.recordSeen("AA:AA:AA:AA:AA:02", null, 3000);
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+
+        KnownDevice device = new KnownDeviceCache(file).get("AA:AA:AA:AA:AA:01");
+        assertEquals("Phone", device.getName());
+        assertEquals(2000, device.getLastSeen());
+        assertEquals(2000, device.getLastConnected());
+        assertEquals(1, device.getConnectCount());
+        assertEquals(1, device.getFailureCount());
+        assertArrayEquals(new long[] {850}, device.getConnectMillis());
+        assertNull(new KnownDeviceCache(file).get("AA:AA:AA:AA:AA:02").getName());
+    }
+
+    @Test
+    public void listsRecentlyConnectedDevicesFirst() {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        cache.recordConnected("old", "Old", 1000, 100);
+        cache.recordSeen("never", "Never connected", 5000);
+        cache.recordConnected("new", "New", 3000, -1);
+        cache.recordConnected("middle", "Middle", 2000, 100);
+
+        List<KnownDevice> recent = cache.recent(2);
+        assertEquals(2, recent.size());
+        assertEquals("new", recent.get(0).getAddress());
+        assertEquals("middle", recent.get(1).getAddress());
+        assertEquals(3, cache.recent(10).size());
+        assertEquals(0, cache.get("new").getConnectMillis().length);
+    }
+
+    @Test
+    public void keepsBoundedLatencyHistory() throws Exception {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        for (int i = 1; i <= 20; i++) {
+            cache.recordConnected("peer", "Peer", i, i * 100L);
+        }
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+        KnownDevice device = new KnownDeviceCache(file).get("peer");
+        assertEquals(KnownDevice.LATENCY_HISTORY, device.getConnectMillis().length);
+        assertEquals(1300, device.getConnectMillis()[0]);
+        assertEquals(2000, device.getConnectMillis()[KnownDevice.LATENCY_HISTORY - 1]);
+        assertEquals(1700, device.getMedianConnectMillis());
+    }
+
+    @Test
+    public void evictsLeastRecentlyActiveDevices() throws Exception {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        for (int i = 0; i < KnownDeviceCache.MAX_DEVICES + 5; i++) {
+            cache.recordSeen("peer" + i, null, i);
+        }
+        cache.recordSeen("peer5", "Again", 1000);
+        cache.recordSeen("extra", null, 1001);
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+
+        KnownDeviceCache reloaded = new KnownDeviceCache(file);
+        assertNull(reloaded.get("peer4"));
+        assertNull(reloaded.get("peer6"));
+        assertNotNull(reloaded.get("peer5"));
+        assertNotNull(reloaded.get("extra"));
+    }
+
+    @Test
+    public void crowdedScanKeepsConnectedPeers() {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        for (int i = 0; i < KnownDeviceCache.MAX_DEVICES; i++) {
+            cache.recordConnected("peer" + i, null, i + 1, 100);
+        }
+        for (int i = 0; i < 3 * KnownDeviceCache.MAX_DEVICES; i++) {
+            KnownDevice seen = cache.recordSeen("stranger" + i, "Stranger", 1000 + i);
+            assertEquals("Stranger", seen.getName());
+        }
+
+        assertEquals(KnownDeviceCache.MAX_DEVICES, cache.recent(2 * KnownDeviceCache.MAX_DEVICES).size());
+        assertNull(cache.get("stranger0"));
+
+        cache.recordConnected("newcomer", null, 5000, 100);
+        assertNull("Oldest connected peer makes room", cache.get("peer0"));
+        assertNotNull(cache.get("peer1"));
+        assertNotNull(cache.get("newcomer"));
+    }
+
+    @Test
+    public void batchesSaves() throws Exception {
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        for (int i = 0; i < 10; i++) {
+            cache.recordSeen("peer" + i, null, i);
+        }
+        assertFalse("Saved on the caller's thread", file.exists());
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+        assertNotNull(new KnownDeviceCache(file).get("peer9"));
+    }
+
+    @Test
+    public void discardsCorruptFile() throws Exception {
+        Files.write(file.toPath(), new byte[] {1, 2, 3});
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        assertTrue(cache.recent(10).isEmpty());
+        cache.recordConnected("peer", "Peer", 1, 1);
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+        assertNotNull(new KnownDeviceCache(file).get("peer"));
+    }
+
+    @Test
+    public void chatRecordsConnections() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils server = new ChatUtils(new InMemoryTransport(network, "server"), new ChatFixtures.QuietListener());
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new ChatFixtures.QuietListener());
+        KnownDeviceCache cache = new KnownDeviceCache(file);
+        client.setKnownDevices(cache);
+        try {
+            server.start();
+            client.start();
+            client.connect("nobody");
+            client.connect("server");
+            ChatFixtures.await("Devices not cached", () -> cache.get("server") != null && cache.get("nobody") != null);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+        assertTrue(cache.awaitSaved(5, TimeUnit.SECONDS));
+        KnownDevice device = new KnownDeviceCache(file).get("server");
+        assertEquals(1, device.getConnectCount());
+        assertEquals(1, device.getConnectMillis().length);
+        assertEquals(1, cache.get("nobody").getFailureCount());
+        assertEquals(1, cache.recent(10).size());
+    }
+}
@@ -0,0 +1,54 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkQualityEstimatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void followsRfc6298() {
+        LinkQualityEstimator estimator = new LinkQualityEstimator();
+        assertEquals(LinkQualityEstimator.INITIAL_RTO_NANOS, estimator.getRtoNanos());
+
+        estimator.onSample(100 * MS);
+        LinkQualityEstimator.Snapshot first = estimator.snapshot();
+        assertEquals(100 * MS, first.getSrttNanos());
+        assertEquals(50 * MS, first.getRttVarNanos());
+        assertEquals(300 * MS, first.getRtoNanos());
+
+        estimator.onSample(200 * MS);
+        LinkQualityEstimator.Snapshot second = estimator.snapshot();
+        assertEquals(62_500_000, second.getRttVarNanos());
+        assertEquals(112_500_000, second.getSrttNanos());
+        assertEquals(362_500_000, second.getRtoNanos());
+        assertEquals(100 * MS / 16, second.getJitterNanos());
+    }
+
+    @Test
+    public void timeoutsBackOffAndRaiseLoss() {
+        LinkQualityEstimator estimator = new LinkQualityEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.onSample(MS);
+        }
+        assertEquals(LinkQualityEstimator.MIN_RTO_NANOS, estimator.getRtoNanos());
+
+        estimator.onTimeout();
+        estimator.onTimeout();
+        assertEquals(4 * LinkQualityEstimator.MIN_RTO_NANOS, estimator.getRtoNanos());
+        double loss = estimator.snapshot().getLoss();
+        assertTrue(loss > 0.2 && loss < 0.25);
+
+        for (int i = 0; i < 40; i++) {
+            estimator.onTimeout();
+        }
+        assertEquals(LinkQualityEstimator.MAX_RTO_NANOS, estimator.getRtoNanos());
+
+        estimator.onSample(MS);
+        assertEquals(LinkQualityEstimator.MIN_RTO_NANOS, estimator.getRtoNanos());
+        assertEquals(42, estimator.snapshot().getTimeouts());
+    }
+}
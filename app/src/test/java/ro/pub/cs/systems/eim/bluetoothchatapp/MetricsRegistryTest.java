@@ -0,0 +1,95 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    @Test
+    public void bucketsCoverEveryValueWithBoundedError() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket >= 0 && bucket < LatencyHistogram.BUCKETS);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(value + " <= " + upper, value <= upper);
+            assertTrue(value + " within 12.5% of " + upper, upper - value <= value / 8);
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reportsPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_000, snapshot.getPercentileNanos(0.5), 500_000 / 8);
+        assertEquals(990_000, snapshot.getPercentileNanos(0.99), 990_000 / 8);
+        assertEquals(1_000_000, snapshot.getMaxNanos());
+        assertEquals(1_000_000, snapshot.getPercentileNanos(1.0));
+
+        LatencyHistogram.Snapshot merged = snapshot.merge(new LatencyHistogram().snapshot());
+        assertEquals(snapshot.getPercentileNanos(0.99), merged.getPercentileNanos(0.99));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LatencyHistogram histogram = new LatencyHistogram();
+        PeerMetrics metrics = new PeerMetrics("peer");
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i);
+            metrics.bytesOut.add(i);
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100_000; i++) {
+            histogram.record(i * 31L);
+            metrics.bytesOut.add(i);
+            metrics.framesOut.increment();
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void sessionsReportTrafficAndLatency() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils server = new ChatUtils(new InMemoryTransport(network, "server"), new ChatFixtures.QuietListener());
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new ChatFixtures.QuietListener());
+        try {
+            server.start();
+            client.start();
+            ChatFixtures.connect(client, server, "server");
+            for (int i = 0; i < 50; i++) {
+                assertTrue(client.write(("metrics " + i).getBytes()));
+            }
+            ChatFixtures.await("Metrics not recorded",
+                    () -> server.getMetrics().snapshot().getTotal().getFramesIn() >= 51
+                            && client.getMetrics().snapshot().getTotal().getSendToFlush().getCount() >= 50);
+
+            MetricsRegistry.Snapshot clientSnapshot = client.getMetrics().snapshot();
+            PeerMetrics.Snapshot toServer = clientSnapshot.getPeer("server");
+            assertNotNull(toServer);
+            assertEquals(50, toServer.getSendToFlush().getCount());
+            assertEquals(1, toServer.getConnectTime().getCount());
+            assertTrue(toServer.getFramesOut() >= 50);
+            assertEquals(toServer.getBytesOut(), clientSnapshot.getTotal().getBytesOut());
+
+            PeerMetrics.Snapshot fromClient = server.getMetrics().snapshot().getPeer("client");
+            assertEquals(toServer.getBytesOut(), fromClient.getBytesIn());
+            assertEquals(0, fromClient.getConnectTime().getCount());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+}
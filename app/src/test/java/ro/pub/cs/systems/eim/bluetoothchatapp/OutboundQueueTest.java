@@ -0,0 +1,132 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    @Test
+    public void coalescesPendingMessagesUpToBatchLimit() {
+        OutboundQueue queue = new OutboundQueue(16, OutboundQueue.Backpressure.REJECT);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(new byte[100]));
+        }
+
+        List<byte[]> batch = new ArrayList<>();
+        assertEquals(3, queue.pollBatch(batch, 300, null));
+        assertEquals(3, batch.size());
+
+        batch.clear();
+        assertEquals(2, queue.pollBatch(batch, 300, null));
+        assertEquals(2, batch.size());
+    }
+
+    @Test
+    public void alwaysTakesOversizedFirstMessage() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Backpressure.REJECT);
+        queue.offer(new byte[1000]);
+        queue.offer(new byte[10]);
+
+        List<byte[]> batch = new ArrayList<>();
+        assertEquals(1, queue.pollBatch(batch, 100, null));
+        assertEquals(1, batch.size());
+        assertEquals(1000, batch.get(0).length);
+    }
+
+    @Test
+    public void keepsControlFramesOffTheBulkLane() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Backpressure.REJECT, 1);
+        byte[] chunk = new byte[16];
+        byte[] ack = new byte[8];
+        assertTrue(queue.offerBulk(chunk));
+        assertTrue(queue.offerControl(ack));
+        assertTrue(queue.offerControl(ack));
+
+        assertTrue(queue.await());
+        assertFalse(queue.hasMessages());
+        assertEquals(0, queue.pollBatch(new ArrayList<>(), 100, null));
+        assertSame(ack, queue.pollControl());
+        assertSame(ack, queue.pollControl());
+        assertNull(queue.pollControl());
+        assertSame(chunk, queue.pollBulk());
+        assertEquals(2, queue.getControlEnqueued());
+    }
+
+    @Test
+    public void controlLaneIsBounded() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Backpressure.REJECT, 1, 3);
+        byte[] typing = new byte[8];
+        assertTrue(queue.offerControl(typing, 2));
+        assertTrue(queue.offerControl(typing, 2));
+        assertFalse(queue.offerControl(typing, 2));
+        assertTrue(queue.offerControl(new byte[8]));
+        assertFalse(queue.offerControl(new byte[8]));
+        assertEquals(3, queue.getControlEnqueued());
+        assertEquals(2, queue.getControlRejected());
+
+        assertNotNull(queue.pollControl());
+        assertTrue(queue.offerControl(new byte[8]));
+    }
+
+    @Test
+    public void rejectPolicyRefusesWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Backpressure.REJECT);
+
+        assertTrue(queue.offer(new byte[]{1}));
+        assertTrue(queue.offer(new byte[]{2}));
+        assertFalse(queue.offer(new byte[]{3}));
+        assertEquals(1, queue.getRejected());
+        assertEquals(2, queue.getDepth());
+    }
+
+    @Test
+    public void dropOldestPolicyKeepsNewestMessages() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Backpressure.DROP_OLDEST);
+        queue.offer(new byte[]{1});
+        queue.offer(new byte[]{2});
+        assertTrue(queue.offer(new byte[]{3}));
+
+        List<byte[]> batch = new ArrayList<>();
+        queue.pollBatch(batch, 100, null);
+        assertEquals(2, batch.size());
+        assertEquals(2, batch.get(0)[0]);
+        assertEquals(3, batch.get(1)[0]);
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    public void reportsDroppedMessages() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Backpressure.DROP_OLDEST);
+        List<byte[]> dropped = new ArrayList<>();
+        queue.setDropListener(dropped::add);
+        byte[] oldest = {1};
+        queue.offer(oldest);
+        queue.offer(new byte[]{2});
+        assertTrue(dropped.isEmpty());
+        queue.offer(new byte[]{3});
+        assertEquals(1, dropped.size());
+        assertSame(oldest, dropped.get(0));
+    }
+
+    @Test
+    public void blockPolicyWaitsForRoomAndCloseReleasesWaiters() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Backpressure.BLOCK);
+        queue.offer(new byte[]{1});
+
+        boolean[] result = {true};
+        Thread producer = new Thread(() -> result[0] = queue.offer(new byte[]{2}));
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+
+        queue.close();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        assertFalse(result[0]);
+        assertFalse(queue.await());
+        assertEquals(0, queue.pollBatch(new ArrayList<>(), 100, null));
+    }
+}
@@ -0,0 +1,193 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.TIMEOUT_MILLIS;
+import static org.junit.Assert.*;
+
+/**
+ * Relay behaviour on small simulated meshes of {@link ChatUtils} nodes linked by
+ * {@link InMemoryTransport}.
+ */
+public class RelayTopologyTest {
+    private final InMemoryTransport.Network network = new InMemoryTransport.Network();
+    private final List<ChatUtils> nodes = new ArrayList<>();
+    private final List<RelayListener> listeners = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ChatUtils node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void reachesTheEndOfALineWithinTtl() throws Exception {
+        startNodes(5);
+        for (int i = 1; i < 5; i++) {
+            link(i, i - 1);
+        }
+        awaitLinks(1, 2, 2, 2, 1);
+
+        assertTrue(nodes.get(0).write("hello".getBytes()));
+
+        long origin = nodes.get(0).getRelay().getNodeId();
+        for (int i = 1; i < 5; i++) {
+            assertEquals(origin + "/" + (i - 1) + "/hello", listeners.get(i).next());
+        }
+        assertEquals(1, nodes.get(3).getRelay().snapshot().getForwarded());
+        assertEquals(1, nodes.get(4).getRelay().snapshot().getExpired());
+    }
+
+    @Test
+    public void reportsMessagesOnceWrittenToEachPeer() throws Exception {
+        startNodes(3);
+        link(1, 0);
+        link(2, 0);
+        awaitLinks(2, 1, 1);
+
+        assertTrue(nodes.get(0).write("to both".getBytes()));
+
+        Set<String> peers = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            String written = listeners.get(0).written.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(written);
+            assertTrue(written, written.endsWith(" flushed/to both"));
+            peers.add(written);
+        }
+        assertEquals(2, peers.size());
+        assertNull(listeners.get(0).written.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void stopsWhenTtlRunsOut() throws Exception {
+        startNodes(4);
+        for (int i = 1; i < 4; i++) {
+            link(i, i - 1);
+        }
+        awaitLinks(1, 2, 2, 1);
+        nodes.get(0).getRelay().setTtl(2);
+
+        nodes.get(0).write("short".getBytes());
+
+        assertTrue(listeners.get(2).next().endsWith("/1/short"));
+        assertEquals(1, nodes.get(2).getRelay().snapshot().getExpired());
+        assertNull(listeners.get(3).messages.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void nodeWithRelayOffDeliversButDoesNotForward() throws Exception {
+        startNodes(3);
+        link(1, 0);
+        link(2, 1);
+        awaitLinks(1, 2, 1);
+        nodes.get(1).setRelayEnabled(false);
+
+        nodes.get(0).write("local only".getBytes());
+
+        assertTrue(listeners.get(1).next().endsWith("/0/local only"));
+        assertNull(listeners.get(2).messages.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, nodes.get(1).getRelay().snapshot().getForwarded());
+    }
+
+    @Test
+    public void fullMeshDeliversEveryMessageOnceAndCountsDuplicates() throws Exception {
+        int count = 5;
+        int perNode = 20;
+        startNodes(count);
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                link(i, j);
+            }
+        }
+        awaitLinks(4, 4, 4, 4, 4);
+
+        for (int m = 0; m < perNode; m++) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(nodes.get(i).write(("m" + m + " from " + i).getBytes()));
+            }
+            Thread.sleep(2);
+        }
+
+        long received = 0;
+        long duplicates = 0;
+        for (int i = 0; i < count; i++) {
+            Set<String> seen = new HashSet<>();
+            for (int k = 0; k < (count - 1) * perNode; k++) {
+                String message = listeners.get(i).next();
+                assertTrue("Delivered twice: " + message, seen.add(message));
+                assertFalse(message.endsWith(" from " + i));
+            }
+            RelayManager.Snapshot relay = nodes.get(i).getRelay().snapshot();
+            received += relay.getReceived();
+            duplicates += relay.getDuplicates();
+            assertEquals(perNode, relay.getOriginated());
+        }
+        for (RelayListener listener : listeners) {
+            assertNull(listener.messages.poll(100, TimeUnit.MILLISECONDS));
+        }
+        // Each message reaches every node directly and is then forwarded once more by
+        // each of them, so most frames on a full mesh are duplicates.
+        assertTrue(duplicates > received / 2);
+        assertEquals((long) count * perNode * (count - 1), received - duplicates);
+    }
+
+    private void startNodes(int count) {
+        for (int i = 0; i < count; i++) {
+            RelayListener listener = new RelayListener();
+            ChatUtils node = new ChatUtils(new InMemoryTransport(network, "node" + i), listener);
+            node.setRelayEnabled(true);
+            node.start();
+            nodes.add(node);
+            listeners.add(listener);
+        }
+    }
+
+    private void link(int from, int to) {
+        nodes.get(from).connect("node" + to);
+    }
+
+    private void awaitLinks(int... counts) throws InterruptedException {
+        for (int i = 0; i < counts.length; i++) {
+            ChatFixtures.awaitSessions(nodes.get(i), counts[i]);
+        }
+    }
+
+    private static class RelayListener extends ChatFixtures.QuietListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+
+        String next() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            return message;
+        }
+
+        @Override
+        public void onRelayedMessage(PeerSession from, long origin, int hops, PooledBuffer message) {
+            messages.add(origin + "/" + hops + "/" + new String(message.data(), 0, message.length()));
+            message.release();
+        }
+
+        @Override
+        public void onMessageRead(PeerSession session, PooledBuffer message) {
+            messages.add("direct/" + new String(message.data(), 0, message.length()));
+            message.release();
+        }
+
+        @Override
+        public void onMessageWritten(PeerSession session, byte[] message) {
+            written.add(session.getAddress() + (session.getOutboundQueue().getFlushedMessages() > 0 ? " flushed/"
+                    : " queued/") + new String(message));
+        }
+    }
+}
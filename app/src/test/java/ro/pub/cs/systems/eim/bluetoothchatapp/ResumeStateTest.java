@@ -0,0 +1,104 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResumeStateTest {
+    @Test
+    public void replaysOnlyWhatThePeerHasNotSeen() {
+        ResumeState state = new ResumeState(1);
+        assertEquals(1, state.assign(messages("a", "b", "c")));
+        assertEquals(4, state.assign(messages("d", "e")));
+
+        ResumeState.Replay replay = state.resume(7, true, 3);
+        assertEquals(4, replay.firstSeq);
+        assertEquals(Arrays.asList("d", "e"), strings(replay.messages));
+
+        replay = state.resume(7, false, 0);
+        assertEquals(4, replay.firstSeq);
+        assertEquals(2, replay.messages.size());
+    }
+
+    @Test
+    public void peerRestartDropsRetainedMessagesAndSequenceHistory() {
+        ResumeState state = new ResumeState(1);
+        state.resume(7, false, 0);
+        state.assign(messages("a", "b"));
+        assertTrue(state.accept(1));
+        assertTrue(state.accept(2));
+
+        ResumeState.Replay replay = state.resume(8, false, 0);
+        assertTrue(replay.messages.isEmpty());
+        assertEquals(3, replay.firstSeq);
+        assertFalse(state.hasDelivered());
+        assertTrue(state.accept(1));
+    }
+
+    @Test
+    public void retransmitBufferIsBounded() {
+        ResumeState state = new ResumeState(1);
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < ResumeState.MAX_RETAINED_MESSAGES + 10; i++) {
+            batch.add(new byte[1]);
+        }
+        state.assign(batch);
+        assertEquals(ResumeState.MAX_RETAINED_MESSAGES, state.getRetainedCount());
+        assertEquals(11, state.getFirstRetainedSeq());
+
+        state.assign(Arrays.asList(new byte[ResumeState.MAX_RETAINED_BYTES], new byte[1]));
+        assertEquals(1, state.getRetainedCount());
+    }
+
+    @Test
+    public void dropsDuplicatesAcrossWraparound() {
+        ResumeState state = new ResumeState(1);
+        assertTrue(state.accept(Integer.MAX_VALUE));
+        assertTrue(state.accept(Integer.MIN_VALUE));
+        assertFalse(state.accept(Integer.MAX_VALUE));
+        assertFalse(state.accept(Integer.MIN_VALUE));
+        assertTrue(state.accept(Integer.MIN_VALUE + 1));
+    }
+
+    @Test
+    public void keepsUnsentMessagesInOrder() {
+        ResumeState state = new ResumeState(1);
+        state.saveUnsent(messages("a", "b"));
+        state.saveUnsent(messages("c"));
+        assertEquals(Arrays.asList("a", "b", "c"), strings(state.takeUnsent()));
+        assertEquals(0, state.getUnsentCount());
+    }
+
+    @Test
+    public void backoffGrowsWithinJitterBounds() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 5, new Random(42));
+        for (int attempt = 0; attempt < 8; attempt++) {
+            long ceiling = Math.min(1000, 100L << attempt);
+            long delay = policy.delayMillis(attempt);
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+        }
+        assertEquals(1000, new ReconnectPolicy(100, 1000, 5, new Random(1)).delayMillis(40), 500);
+    }
+
+    private static List<byte[]> messages(String... texts) {
+        List<byte[]> messages = new ArrayList<>();
+        for (String text : texts) {
+            messages.add(text.getBytes());
+        }
+        return messages;
+    }
+
+    private static List<String> strings(List<byte[]> messages) {
+        List<String> texts = new ArrayList<>();
+        for (byte[] message : messages) {
+            texts.add(new String(message));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,52 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RotatingBloomFilterTest {
+    private static final long GENERATION = 1_000_000_000L;
+
+    @Test
+    public void rejectsRepeatsAndKeepsFalsePositivesNearTarget() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(10_000, 1e-3, GENERATION, 0);
+        for (long key = 0; key < 5_000; key++) {
+            assertTrue(filter.add(key, 0));
+        }
+        for (long key = 0; key < 5_000; key++) {
+            assertFalse(filter.add(key, 1));
+        }
+
+        int falsePositives = 0;
+        for (long key = 1_000_000; key < 1_005_000; key++) {
+            if (!filter.add(key, 2)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 5_000 * 3e-3);
+    }
+
+    @Test
+    public void forgetsKeysAfterTwoGenerations() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(100, 1e-3, GENERATION, 0);
+        assertTrue(filter.add(42, 0));
+
+        assertFalse(filter.add(42, GENERATION + 1));
+        assertTrue(filter.add(7, GENERATION + 2));
+        assertTrue(filter.add(42, 2 * GENERATION + 2));
+        assertTrue(filter.add(7, 10 * GENERATION));
+    }
+
+    @Test
+    public void rotatesEarlyWhenGenerationFills() {
+        RotatingBloomFilter filter = new RotatingBloomFilter(100, 1e-3, GENERATION, 0);
+        for (long key = 0; key < 100; key++) {
+            assertTrue(filter.add(key, 0));
+        }
+        for (long key = 100; key < 200; key++) {
+            assertTrue(filter.add(key, 0));
+        }
+        assertFalse(filter.add(150, 0));
+        assertTrue(filter.add(50, 0));
+    }
+}
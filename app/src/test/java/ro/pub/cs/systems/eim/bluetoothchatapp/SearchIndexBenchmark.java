@@ -0,0 +1,103 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a {@link ChatSearchIndex} over 100k messages spread across eight peers, with
+ * made-up words drawn from a skewed vocabulary, then times queries from the most common
+ * word and one-letter prefixes down to a word in no message. The peers' logs are indexed
+ * one after the other, as after a restart, so ids are not in time order. Run with
+ * {@code main}; it is not part of the unit test suite.
+ */
+public class SearchIndexBenchmark {
+    private static final int MESSAGES = 100_000;
+    private static final int PEERS = 8;
+    private static final int VOCABULARY = 20_000;
+    private static final int QUERIES = 2_000;
+    private static final String[] WORDS = new String[VOCABULARY];
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("search-benchmark").toFile();
+        try (ChatLogStore store = new ChatLogStore(directory)) {
+            fill(store);
+            String[] queries = {WORDS[0], WORDS[1] + " " + WORDS[2], WORDS[150], WORDS[VOCABULARY - 1],
+                    WORDS[0].substring(0, 2), "s", "mai scoala", "zzzzzzzz"};
+            for (int round = 0; round < 3; round++) {
+                try (ChatSearchIndex index = new ChatSearchIndex(store)) {
+                    long start = System.nanoTime();
+                    for (int peer = 0; peer < PEERS; peer++) {
+                        index.update(address(peer));
+                    }
+                    index.awaitIndexed(5, TimeUnit.MINUTES);
+                    System.out.printf("indexed %d messages in %d ms: %d terms, %.2f MB of postings%n",
+                            index.getDocumentCount(), (System.nanoTime() - start) / 1_000_000, index.getTermCount(),
+                            index.getPostingBytes() / 1e6);
+                    for (String query : queries) {
+                        time(index, query);
+                    }
+                }
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void fill(ChatLogStore store) throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < VOCABULARY; i++) {
+            char[] word = new char[3 + random.nextInt(6)];
+            for (int c = 0; c < word.length; c++) {
+                word[c] = (char) ('a' + random.nextInt(26));
+            }
+            WORDS[i] = new String(word);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < MESSAGES; i++) {
+            text.setLength(0);
+            int words = 3 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                // Cubing a uniform draw skews it towards low ranks, like word frequencies.
+                double u = random.nextDouble();
+                text.append(WORDS[(int) (u * u * u * VOCABULARY)]).append(' ');
+            }
+            if (i % 50 == 0) {
+                text.append("M\u00e2ine la \u0219coal\u0103");
+            }
+            store.get(address(i % PEERS)).append(i * 1000L, i % 3 == 0, text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        store.commitAll();
+    }
+
+    private static void time(ChatSearchIndex index, String query) {
+        long[] nanos = new long[QUERIES];
+        int hits = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            long start = System.nanoTime();
+            hits = index.search(query, 50).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("  %-16s %2d hits  p50 %6.3f ms  p99 %6.3f ms%n", '"' + query + '"', hits,
+                nanos[QUERIES / 2] / 1e6, nanos[QUERIES * 99 / 100] / 1e6);
+    }
+
+    private static String address(int peer) {
+        return String.format("00:00:00:00:00:%02X", peer);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,134 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+
+import static org.junit.Assert.*;
+
+public class SessionCryptoTest {
+    @Test
+    public void bothSidesAgreeOnKeysAndVerificationCode() throws Exception {
+        SessionCrypto alice = SessionCrypto.generate();
+        SessionCrypto bob = SessionCrypto.generate();
+        SessionCrypto.Keys aliceKeys = agree(alice, bob);
+        SessionCrypto.Keys bobKeys = agree(bob, alice);
+
+        assertEquals(aliceKeys.getVerificationCode(), bobKeys.getVerificationCode());
+        assertTrue(aliceKeys.getVerificationCode().matches("\\d{3} \\d{3}"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("to bob " + i, roundTrip(aliceKeys.sealer, bobKeys.opener, "to bob " + i));
+            assertEquals("to alice " + i, roundTrip(bobKeys.sealer, aliceKeys.opener, "to alice " + i));
+        }
+
+        SessionCrypto.Keys other = agree(SessionCrypto.generate(), bob);
+        assertNotEquals(aliceKeys.getVerificationCode(), other.getVerificationCode());
+    }
+
+    @Test
+    public void changedHelloGivesDifferentKeysAndCode() throws Exception {
+        SessionCrypto alice = SessionCrypto.generate();
+        SessionCrypto bob = SessionCrypto.generate();
+        byte[] aliceHello = hello(alice, 0);
+        byte[] bobHello = hello(bob, 0);
+        // Someone on the link flips a flag in Bob's hello on its way to Alice.
+        byte[] tampered = hello(bob, 1);
+        SessionCrypto.Keys aliceKeys = alice.agree(aliceHello, tampered, bob.getPublicKey());
+        SessionCrypto.Keys bobKeys = bob.agree(bobHello, aliceHello, alice.getPublicKey());
+
+        assertNotEquals(aliceKeys.getVerificationCode(), bobKeys.getVerificationCode());
+        byte[] frame = sealed(aliceKeys.sealer, "resume from 0");
+        assertThrows(AEADBadTagException.class, () -> bobKeys.opener.open(frame, 0, frame.length, 0));
+    }
+
+    @Test
+    public void sealsInPlaceWithoutRepeatingCiphertext() throws Exception {
+        SessionCrypto.Keys keys = agree(SessionCrypto.generate(), SessionCrypto.generate());
+        byte[] first = sealed(keys.sealer, "same text");
+        byte[] second = sealed(keys.sealer, "same text");
+
+        assertEquals("same text".length() + SessionCrypto.TAG_SIZE, first.length);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void rejectsTamperedFrame() throws Exception {
+        SessionCrypto.Keys[] pair = pair();
+        byte[] frame = sealed(pair[0].sealer, "transfer 100 lei");
+        frame[3] ^= 1;
+
+        assertThrows(AEADBadTagException.class, () -> pair[1].opener.open(frame, 0, frame.length, 0));
+    }
+
+    @Test
+    public void rejectsReplayedFrame() throws Exception {
+        SessionCrypto.Keys[] pair = pair();
+        byte[] frame = sealed(pair[0].sealer, "hello");
+        byte[] copy = frame.clone();
+
+        assertEquals(5, pair[1].opener.open(frame, 0, frame.length, 0));
+        assertThrows(AEADBadTagException.class, () -> pair[1].opener.open(copy, 0, copy.length, 0));
+    }
+
+    @Test
+    public void rejectsChangedHeaderAndTruncatedFrame() throws Exception {
+        SessionCrypto.Keys[] pair = pair();
+        byte[] frame = sealed(pair[0].sealer, "flags are authenticated");
+
+        assertThrows(AEADBadTagException.class, () -> pair[1].opener.open(frame, 0, frame.length, 1));
+        assertThrows(AEADBadTagException.class, () -> pair[1].opener.open(new byte[8], 0, 8, 0));
+    }
+
+    @Test
+    public void hkdfMatchesRfc5869TestCase1() throws Exception {
+        byte[] inputKey = new byte[22];
+        Arrays.fill(inputKey, (byte) 0x0b);
+        byte[] salt = hex("000102030405060708090a0b0c");
+        byte[] info = hex("f0f1f2f3f4f5f6f7f8f9");
+
+        assertArrayEquals(hex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865"),
+                SessionCrypto.hkdf(salt, inputKey, info, 42));
+    }
+
+    private static SessionCrypto.Keys[] pair() throws Exception {
+        SessionCrypto alice = SessionCrypto.generate();
+        SessionCrypto bob = SessionCrypto.generate();
+        return new SessionCrypto.Keys[]{agree(alice, bob), agree(bob, alice)};
+    }
+
+    private static SessionCrypto.Keys agree(SessionCrypto own, SessionCrypto peer) throws Exception {
+        return own.agree(hello(own, 0), hello(peer, 0), peer.getPublicKey());
+    }
+
+    /**
+     * Stands in for a hello payload: a flags byte and the public key.
+     */
+    private static byte[] hello(SessionCrypto side, int flags) {
+        byte[] key = side.getPublicKey();
+        byte[] hello = new byte[1 + key.length];
+        hello[0] = (byte) flags;
+        System.arraycopy(key, 0, hello, 1, key.length);
+        return hello;
+    }
+
+    private static String roundTrip(SessionCrypto.Sealer sealer, SessionCrypto.Opener opener, String text)
+            throws Exception {
+        byte[] frame = sealed(sealer, text);
+        int length = opener.open(frame, 0, frame.length, 0);
+        return new String(frame, 0, length);
+    }
+
+    private static byte[] sealed(SessionCrypto.Sealer sealer, String text) throws Exception {
+        byte[] buffer = Arrays.copyOf(text.getBytes(), text.length() + SessionCrypto.TAG_SIZE);
+        assertEquals(buffer.length, sealer.seal(buffer, 0, text.length(), 0));
+        return buffer;
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new BigInteger("01" + hex, 16).toByteArray();
+        return Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+}
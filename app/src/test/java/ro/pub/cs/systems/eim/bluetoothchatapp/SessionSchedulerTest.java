@@ -0,0 +1,88 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ro.pub.cs.systems.eim.bluetoothchatapp.ChatFixtures.TIMEOUT_MILLIS;
+import static org.junit.Assert.*;
+
+public class SessionSchedulerTest {
+    @Test
+    public void cancelUnblocksTaskAndJoinWaitsForIt() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler(2);
+        BytePipe pipe = new BytePipe(16);
+        CountDownLatch started = new CountDownLatch(1);
+
+        SessionScheduler.TaskHandle handle = scheduler.submit("blocked-reader", () -> {
+            started.countDown();
+            try {
+                pipe.getInputStream().read(new byte[1]);
+            } catch (IOException ignored) {
+            }
+        }, pipe::close);
+
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(handle.join(50, TimeUnit.MILLISECONDS));
+        handle.cancel();
+        assertTrue(handle.join(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(handle.isCancelled());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void rejectsWorkBeyondThePoolBound() throws Exception {
+        SessionScheduler scheduler = new SessionScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("busy", () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, null);
+
+        assertThrows(RejectedExecutionException.class, () -> scheduler.submit("extra", () -> {
+        }, null));
+        assertEquals(1, scheduler.getRejectedCount());
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void threadCountStaysFlatUnderConnectionChurn() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        ChatUtils hub = new ChatUtils(new InMemoryTransport(network, "hub"), new ChatFixtures.QuietListener());
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new ChatFixtures.QuietListener());
+        hub.start();
+
+        int baseline = 0;
+        for (int cycle = 0; cycle < 300; cycle++) {
+            client.connect("hub");
+            ChatFixtures.awaitSessions(client, 1);
+            ChatFixtures.awaitSessions(hub, 1);
+            client.disconnect("hub");
+            ChatFixtures.await("Client sessions left", () -> client.getSessions().isEmpty());
+            ChatFixtures.await("Hub sessions left", () -> hub.getSessions().isEmpty());
+            awaitActiveWorkers(client, 0);
+            awaitActiveWorkers(hub, 1);
+            if (cycle == 20) {
+                baseline = Thread.activeCount();
+            }
+        }
+
+        assertTrue("Thread count grew from " + baseline + " to " + Thread.activeCount(),
+                Thread.activeCount() <= baseline + 2);
+        assertTrue(hub.getScheduler().toString(), hub.getScheduler().getLargestPoolSize() <= 4);
+        assertTrue(client.getScheduler().toString(), client.getScheduler().getLargestPoolSize() <= 3);
+        assertTrue(hub.stopAndJoin(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(client.stopAndJoin(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitActiveWorkers(ChatUtils chatUtils, int count) throws InterruptedException {
+        ChatFixtures.await("Expected " + count + " active workers",
+                () -> chatUtils.getScheduler().getActiveCount() == count);
+    }
+}
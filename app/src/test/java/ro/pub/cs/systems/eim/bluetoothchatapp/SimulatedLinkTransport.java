@@ -0,0 +1,186 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps another transport and shapes what each socket writes like a slow radio link:
+ * bytes leave at {@code bytesPerSecond}, arrive {@code latencyMillis} later, and the
+ * writer blocks once the link has more than {@code queueMillis} of data waiting. Like
+ * RFCOMM's credits, at most that much may be in flight unread: a receiver that stops
+ * reading stalls the writer too. Wrap both ends to shape both directions.
+ */
+class SimulatedLinkTransport implements Transport {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private final Transport delegate;
+    private final long bytesPerSecond;
+    private final long latencyNanos;
+    private final long queueNanos;
+
+    SimulatedLinkTransport(Transport delegate, long bytesPerSecond, long latencyMillis, long queueMillis) {
+        this.delegate = delegate;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+        this.queueNanos = TimeUnit.MILLISECONDS.toNanos(queueMillis);
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        TransportServer server = delegate.listen();
+        return new TransportServer() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                return new ShapedSocket(server.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public TransportSocket createConnection(String address) throws IOException {
+        return new ShapedSocket(delegate.createConnection(address));
+    }
+
+    private class ShapedSocket implements TransportSocket {
+        private final TransportSocket socket;
+        private ShapedOutputStream output;
+
+        ShapedSocket(TransportSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new ShapedOutputStream(socket.getOutputStream());
+            }
+            return output;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return socket.getRemoteName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ShapedOutputStream current;
+            synchronized (this) {
+                current = output;
+            }
+            if (current != null) {
+                current.pump.interrupt();
+            }
+            socket.close();
+        }
+    }
+
+    private static final class Segment {
+        final byte[] data;
+        final long deliverAtNanos;
+
+        Segment(byte[] data, long deliverAtNanos) {
+            this.data = data;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private class ShapedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final BlockingQueue<Segment> inFlight = new LinkedBlockingQueue<>();
+        private final Semaphore credits =
+                new Semaphore((int) Math.max(SEGMENT_SIZE, bytesPerSecond * queueNanos / 1_000_000_000L));
+        private final Thread pump;
+        private long linkFreeAtNanos = System.nanoTime();
+        private volatile IOException failure;
+
+        ShapedOutputStream(OutputStream out) {
+            this.out = out;
+            pump = new Thread(this::deliver, "SimulatedLink");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (failure != null) {
+                    throw failure;
+                }
+                int size = Math.min(len, SEGMENT_SIZE);
+                try {
+                    credits.acquire(size);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                long now = System.nanoTime();
+                long backlog = linkFreeAtNanos - now;
+                if (backlog > queueNanos) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(backlog - queueNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    now = System.nanoTime();
+                }
+                linkFreeAtNanos = Math.max(now, linkFreeAtNanos) + size * 1_000_000_000L / bytesPerSecond;
+                byte[] data = new byte[size];
+                System.arraycopy(b, off, data, 0, size);
+                inFlight.add(new Segment(data, linkFreeAtNanos + latencyNanos));
+                off += size;
+                len -= size;
+            }
+        }
+
+        private void deliver() {
+            try {
+                while (true) {
+                    Segment segment = inFlight.take();
+                    TimeUnit.NANOSECONDS.sleep(segment.deliverAtNanos - System.nanoTime());
+                    out.write(segment.data);
+                    credits.release(segment.data.length);
+                    if (inFlight.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                failure = new IOException("Link closed");
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StreamingTextDecoderTest {
+    private static final String MIXED = "Bun\u0103 diminea\u021ba, \u0219tii c\u00e2nd vine? \ud83d\ude00\ud83d\udc4d\u20ac ok";
+
+    @Test
+    public void decodesOnlyTheGivenRange() {
+        byte[] buffer = new byte[1024];
+        byte[] text = "\u0219i".getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(text, 0, buffer, 3, text.length);
+
+        assertEquals("\u0219i", new StreamingTextDecoder().decode(buffer, 3, text.length));
+    }
+
+    @Test
+    public void joinsCharactersSplitAtEveryPossibleOffset() {
+        byte[] bytes = MIXED.getBytes(StandardCharsets.UTF_8);
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+        for (int first = 0; first <= bytes.length; first++) {
+            for (int second = first; second <= bytes.length; second++) {
+                String text = decoder.decode(bytes, 0, first, false)
+                        + decoder.decode(bytes, first, second - first, false)
+                        + decoder.decode(bytes, second, bytes.length - second, true);
+                assertEquals("split at " + first + "/" + second, MIXED, text);
+            }
+        }
+    }
+
+    @Test
+    public void feedsOneByteAtATime() {
+        byte[] bytes = MIXED.getBytes(StandardCharsets.UTF_8);
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            builder.append(decoder.decode(bytes, i, 1, i == bytes.length - 1));
+        }
+        assertEquals(MIXED, builder.toString());
+    }
+
+    @Test
+    public void replacesMalformedAndTruncatedInput() {
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+        byte[] truncated = {'a', (byte) 0xE2, (byte) 0x82};
+        assertEquals("a\ufffd", decoder.decode(truncated, 0, truncated.length));
+
+        byte[] invalid = {(byte) 0xC3, 'x', (byte) 0xFF};
+        assertEquals("\ufffdx\ufffd", decoder.decode(invalid, 0, invalid.length));
+
+        assertEquals("ok", decoder.decode("ok".getBytes(StandardCharsets.UTF_8), 0, 2));
+    }
+
+    @Test
+    public void resetDropsCarriedBytes() {
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        assertEquals("", decoder.decode(euro, 0, 2, false));
+        decoder.reset();
+        assertEquals("z", decoder.decode(new byte[]{'z'}, 0, 1));
+    }
+
+    @Test
+    public void decodesMessagesLargerThanTheRetainedBuffer() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 2 * StreamingTextDecoder.MAX_RETAINED_CHARS) {
+            builder.append(MIXED);
+        }
+        String text = builder.toString();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+
+        assertEquals(text, decoder.decode(bytes, 0, bytes.length));
+        assertEquals(MIXED, decoder.decode(MIXED.getBytes(StandardCharsets.UTF_8), 0,
+                MIXED.getBytes(StandardCharsets.UTF_8).length));
+    }
+}
@@ -0,0 +1,66 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares {@link StreamingTextDecoder} with decoding each read as {@code new String(buffer)}
+ * on a 1024-byte receive buffer, for ASCII, Romanian and emoji-heavy chat lines. Run with
+ * {@code main}; it is not part of the unit test suite.
+ */
+public class TextDecodingBenchmark {
+    private static final int MESSAGES = 2_000_000;
+    private static final int BUFFER_SIZE = 1024;
+
+    private static final String[] ASCII = {
+            "ok", "see you at 5", "did you get the file I sent earlier?", "lol",
+            "the meeting moved to room 302, bring the laptop charger"};
+    private static final String[] ROMANIAN = {
+            "bun\u0103", "ne vedem la \u0219ase", "\u021bi-am trimis fi\u0219ierul, l-ai primit?", "\u00een regul\u0103",
+            "\u0219edin\u021ba s-a mutat \u00een sala 302, adu \u00eenc\u0103rc\u0103torul"};
+    private static final String[] EMOJI = {
+            "\ud83d\ude02\ud83d\ude02", "ok \ud83d\udc4d", "\ud83c\udf89\ud83c\udf89\ud83c\udf89 felicit\u0103ri!",
+            "\u2764\ufe0f\ud83d\ude0d\ud83d\ude18", "\ud83d\ude80 plec\u0103m la 5 \ud83d\ude97\ud83d\udca8"};
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; round++) {
+            run("ascii", ASCII);
+            run("romanian", ROMANIAN);
+            run("emoji", EMOJI);
+        }
+    }
+
+    private static void run(String name, String[] lines) {
+        byte[][] buffers = new byte[lines.length][];
+        int[] lengths = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            byte[] encoded = lines[i].getBytes(StandardCharsets.UTF_8);
+            buffers[i] = new byte[BUFFER_SIZE];
+            System.arraycopy(encoded, 0, buffers[i], 0, encoded.length);
+            lengths[i] = encoded.length;
+        }
+
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            sink += new String(buffers[i % lines.length]).length();
+        }
+        long whole = System.nanoTime() - start;
+
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+        int mismatches = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            int line = i % lines.length;
+            String text = decoder.decode(buffers[line], 0, lengths[line]);
+            sink += text.length();
+            if (text.length() != lines[line].length()) {
+                mismatches++;
+            }
+        }
+        long streaming = System.nanoTime() - start;
+
+        System.out.printf("%-9s new String(buffer) %6.1f ns/msg   streaming %6.1f ns/msg  %s (%d)%n", name,
+                (double) whole / MESSAGES, (double) streaming / MESSAGES,
+                mismatches == 0 ? "ok" : mismatches + " MISMATCHES", sink);
+    }
+}
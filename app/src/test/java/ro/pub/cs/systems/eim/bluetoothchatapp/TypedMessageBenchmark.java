@@ -0,0 +1,51 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Times encoding and decoding of each {@link TypedMessage} type and prints its size on
+ * the wire next to the same content sent as a text line. Run with {@code main}; it is
+ * not part of the unit test suite.
+ */
+public class TypedMessageBenchmark {
+    private static final int ITERATIONS = 5_000_000;
+    private static final byte[] TEXT = "the meeting moved to room 302".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws ProtocolException {
+        for (int round = 0; round < 3; round++) {
+            run("typing", "{\"typing\":true}", i -> TypedMessage.typing((i & 1) == 0));
+            run("delivered", "{\"delivered\":1234567}", i -> TypedMessage.delivered(1_234_567 + (i & 0xff)));
+            run("read", "{\"read\":1234567}", i -> TypedMessage.read(1_234_567 + (i & 0xff)));
+            run("control", "{\"control\":3}", i -> TypedMessage.control(3, null));
+            run("text", "{\"id\":1234567,\"text\":\"the meeting moved to room 302\"}",
+                    i -> TypedMessage.text(1_234_567 + (i & 0xff), TEXT));
+        }
+    }
+
+    private interface Encoder {
+        byte[] encode(int i);
+    }
+
+    private static void run(String name, String asText, Encoder encoder) throws ProtocolException {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += encoder.encode(i).length;
+        }
+        long encoding = System.nanoTime() - start;
+
+        byte[] frame = encoder.encode(0);
+        TypedMessage message = new TypedMessage();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            message.wrap(frame, FrameProtocol.HEADER_SIZE, frame.length - FrameProtocol.HEADER_SIZE);
+            sink += message.getId() + message.getBodyLength();
+        }
+        long decoding = System.nanoTime() - start;
+
+        System.out.printf("%-10s %3d B (text %3d B)  encode %5.1f ns  decode %5.1f ns  (%d)%n", name,
+                frame.length - FrameProtocol.HEADER_SIZE, asText.length(), (double) encoding / ITERATIONS,
+                (double) decoding / ITERATIONS, sink & 1);
+    }
+}
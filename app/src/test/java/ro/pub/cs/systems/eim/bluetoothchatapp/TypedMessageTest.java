@@ -0,0 +1,306 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TypedMessageTest {
+    @Test
+    public void roundTripsEveryType() throws Exception {
+        TypedMessage message = new TypedMessage();
+        StreamingTextDecoder decoder = new StreamingTextDecoder();
+
+        assertTrue(wrap(message, TypedMessage.text(300, "bun\u0103".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(TypedMessage.TEXT, message.getType());
+        assertEquals(300, message.getId());
+        assertEquals("bun\u0103", message.getText(decoder));
+
+        assertTrue(wrap(message, TypedMessage.typing(true)));
+        assertEquals(TypedMessage.TYPING, message.getType());
+        assertTrue(message.isTypingActive());
+        assertTrue(wrap(message, TypedMessage.typing(false)));
+        assertFalse(message.isTypingActive());
+
+        assertTrue(wrap(message, TypedMessage.delivered(Long.MAX_VALUE)));
+        assertEquals(TypedMessage.DELIVERED, message.getType());
+        assertEquals(Long.MAX_VALUE, message.getId());
+        assertFalse(message.hasBody());
+
+        assertTrue(wrap(message, TypedMessage.read(0)));
+        assertEquals(TypedMessage.READ, message.getType());
+        assertEquals(0, message.getId());
+
+        assertTrue(wrap(message, TypedMessage.control(7, new byte[]{1, 2, 3})));
+        assertEquals(TypedMessage.CONTROL, message.getType());
+        assertEquals(7, message.getCode());
+        assertEquals(-1, message.getId());
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOfRange(message.buffer(), message.getBodyOffset(),
+                message.getBodyOffset() + message.getBodyLength()));
+    }
+
+    @Test
+    public void controlTrafficCostsAFewBytes() {
+        assertEquals(4, payloadSize(TypedMessage.typing(true)));
+        assertEquals(4, payloadSize(TypedMessage.delivered(127)));
+        assertEquals(5, payloadSize(TypedMessage.read(128)));
+        assertEquals(6, payloadSize(TypedMessage.read(1 << 14)));
+        assertEquals(4 + 2 + 5, payloadSize(TypedMessage.text(1, "hello".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void varintsRoundTripAtEveryByteBoundary() throws Exception {
+        TypedMessage message = new TypedMessage();
+        for (int bits = 0; bits < 63; bits++) {
+            for (long id : new long[]{(1L << bits) - 1, 1L << bits, (1L << bits) + 1}) {
+                byte[] frame = TypedMessage.read(id);
+                assertEquals(3 + TypedMessage.varintSize(id), payloadSize(frame));
+                assertTrue(wrap(message, frame));
+                assertEquals(id, message.getId());
+            }
+        }
+    }
+
+    @Test
+    public void readsBodyInPlace() throws Exception {
+        byte[] frame = TypedMessage.text(1, "in place".getBytes(StandardCharsets.UTF_8));
+        TypedMessage message = new TypedMessage();
+        wrap(message, frame);
+
+        assertSame(frame, message.buffer());
+        frame[message.getBodyOffset()] = 'I';
+        assertEquals("In place", message.getText(new StreamingTextDecoder()));
+    }
+
+    @Test
+    public void skipsFieldsAddedByNewerPeers() throws Exception {
+        byte[] payload = payload(TypedMessage.DELIVERED,
+                varintField(9, 12345), bytesField(10, new byte[300]), varintField(TypedMessage.FIELD_ID, 42),
+                bytesField(11, new byte[0]));
+        TypedMessage message = new TypedMessage();
+
+        assertTrue(message.wrap(payload, 0, payload.length));
+        assertTrue(message.isKnownType());
+        assertEquals(42, message.getId());
+    }
+
+    @Test
+    public void decodesUnknownTypesSoTheyCanBeIgnored() throws Exception {
+        byte[] payload = payload(1000, varintField(1, 5), bytesField(4, "from the future".getBytes()));
+        TypedMessage message = new TypedMessage();
+
+        assertTrue(message.wrap(payload, 0, payload.length));
+        assertEquals(1000, message.getType());
+        assertFalse(message.isKnownType());
+    }
+
+    @Test
+    public void refusesNewerSchemaAndMalformedMessages() {
+        TypedMessage message = new TypedMessage();
+        byte[] newer = payload(TypedMessage.TEXT);
+        newer[0] = TypedMessage.SCHEMA_VERSION + 1;
+        assertFalse(wrapQuietly(message, newer));
+
+        byte[] receipt = TypedMessage.read(1 << 20);
+        byte[] truncated = Arrays.copyOfRange(receipt, FrameProtocol.HEADER_SIZE, receipt.length - 1);
+        assertThrows(ProtocolException.class, () -> message.wrap(truncated, 0, truncated.length));
+
+        byte[] overrun = payload(TypedMessage.TEXT, bytesField(TypedMessage.FIELD_BODY, new byte[10]));
+        assertThrows(ProtocolException.class, () -> message.wrap(overrun, 0, overrun.length - 1));
+
+        byte[] endless = payload(TypedMessage.TEXT, new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1});
+        assertThrows(ProtocolException.class, () -> message.wrap(endless, 0, endless.length));
+        assertThrows(ProtocolException.class, () -> message.wrap(new byte[4], 2, 0));
+    }
+
+    @Test(timeout = 2000)
+    public void refusesLengthsAndNumbersPastSixtyThreeBits() {
+        TypedMessage message = new TypedMessage();
+        // A body length of 0x80000000_FFFFFFF5 would step the reader back to its start.
+        byte[] backwards = {TypedMessage.SCHEMA_VERSION, TypedMessage.TEXT,
+                TypedMessage.FIELD_BODY << 1 | TypedMessage.KIND_BYTES, (byte) 0xf5, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0x8f, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1, 0, 0, 0, 0};
+        assertEquals(17, backwards.length);
+        assertThrows(ProtocolException.class, () -> message.wrap(backwards, 0, backwards.length));
+
+        byte[] negativeType = {TypedMessage.SCHEMA_VERSION, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+        assertThrows(ProtocolException.class, () -> message.wrap(negativeType, 0, negativeType.length));
+
+        byte[] negativeId = payload(TypedMessage.READ, new byte[]{TypedMessage.FIELD_ID << 1, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, 1});
+        assertThrows(ProtocolException.class, () -> message.wrap(negativeId, 0, negativeId.length));
+    }
+
+    @Test
+    public void refusesHighBitsInTheTenthVarintByte() throws Exception {
+        TypedMessage message = new TypedMessage();
+        byte[] overflow = payload(TypedMessage.READ, new byte[]{TypedMessage.FIELD_ID << 1, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, 2});
+        assertThrows(ProtocolException.class, () -> message.wrap(overflow, 0, overflow.length));
+
+        // Bit 63 alone is a well formed varint; it is skipped in a field this build does not know.
+        byte[] topBit = payload(TypedMessage.READ, new byte[]{9 << 1, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1},
+                varintField(TypedMessage.FIELD_ID, 5));
+        assertTrue(message.wrap(topBit, 0, topBit.length));
+        assertEquals(5, message.getId());
+    }
+
+    @Test
+    public void refusesControlCodesPastAnInt() throws Exception {
+        TypedMessage message = new TypedMessage();
+        byte[] fits = payload(TypedMessage.CONTROL, varintField(TypedMessage.FIELD_CODE, Integer.MAX_VALUE));
+        assertTrue(message.wrap(fits, 0, fits.length));
+        assertEquals(Integer.MAX_VALUE, message.getCode());
+
+        byte[] tooLarge = payload(TypedMessage.CONTROL,
+                varintField(TypedMessage.FIELD_CODE, Integer.MAX_VALUE + 1L));
+        assertThrows(ProtocolException.class, () -> message.wrap(tooLarge, 0, tooLarge.length));
+    }
+
+    @Test
+    public void typeOfDecodesTheTypeVarint() {
+        assertEquals(TypedMessage.TEXT, TypedMessage.typeOf(TypedMessage.text(1, new byte[0])));
+        assertEquals(TypedMessage.CONTROL, TypedMessage.typeOf(TypedMessage.control(1, null)));
+        assertEquals(1000, TypedMessage.typeOf(FrameProtocol.encode(FrameProtocol.TYPE_MESSAGE, payload(1000))));
+        assertEquals(Integer.MAX_VALUE, TypedMessage.typeOf(
+                FrameProtocol.encode(FrameProtocol.TYPE_MESSAGE, payload(Integer.MAX_VALUE))));
+
+        byte[] truncated = FrameProtocol.encode(FrameProtocol.TYPE_MESSAGE, payload(1000));
+        assertEquals(-1, TypedMessage.typeOf(Arrays.copyOf(truncated, truncated.length - 1)));
+    }
+
+    @Test
+    public void peersExchangeTypedMessagesAndIgnoreUnknownOnes() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network();
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        ChatUtils server = new ChatUtils(new InMemoryTransport(network, "server"), new ChatFixtures.QuietListener() {
+            @Override
+            public void onTypedMessage(PeerSession session, TypedMessage message) {
+                received.add(message.getType() + ":" + message.getId());
+            }
+        });
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new ChatFixtures.QuietListener());
+        try {
+            server.start();
+            client.start();
+            client.connect("server");
+            ChatFixtures.awaitConnected(server, "client", client);
+
+            byte[] unknown = payload(77, varintField(TypedMessage.FIELD_ID, 1));
+            assertTrue(client.getSession("server").sendControl(
+                    FrameProtocol.encode(FrameProtocol.TYPE_MESSAGE, unknown)));
+            assertTrue(client.send("server", TypedMessage.text(9, "hi".getBytes())));
+            assertTrue(client.send("server", TypedMessage.read(9)));
+
+            Set<String> both = new HashSet<>();
+            both.add(received.poll(5, TimeUnit.SECONDS));
+            both.add(received.poll(5, TimeUnit.SECONDS));
+            assertEquals(new HashSet<>(Arrays.asList(TypedMessage.TEXT + ":9", TypedMessage.READ + ":9")), both);
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void typedTextIsResumedLikeChat() throws Exception {
+        InMemoryTransport.Network network = new InMemoryTransport.Network(1024);
+        BlockingQueue<Long> ids = new LinkedBlockingQueue<>();
+        ChatUtils server = new ChatUtils(new InMemoryTransport(network, "server"), new ChatFixtures.QuietListener() {
+            @Override
+            public void onTypedMessage(PeerSession session, TypedMessage message) {
+                ids.add(message.getId());
+            }
+        });
+        ChatUtils client = new ChatUtils(new InMemoryTransport(network, "client"), new ChatFixtures.QuietListener());
+        client.setReconnectPolicy(new ReconnectPolicy(20, 200, 10, new Random(1)));
+        client.setBackpressure(OutboundQueue.Backpressure.BLOCK);
+        try {
+            server.start();
+            client.start();
+            client.connect("server");
+            ChatFixtures.awaitConnected(server, "client", client);
+
+            int total = 300;
+            Thread sender = new Thread(() -> {
+                for (int i = 0; i < total; i++) {
+                    byte[] frame = TypedMessage.text(i, ("typed " + i).getBytes());
+                    while (!client.send("server", frame)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            sender.start();
+            for (long i = 0; i < 30; i++) {
+                assertEquals(Long.valueOf(i), ids.poll(5, TimeUnit.SECONDS));
+            }
+            server.disconnect("client");
+            for (long i = 30; i < total; i++) {
+                assertEquals(Long.valueOf(i), ids.poll(5, TimeUnit.SECONDS));
+            }
+            sender.join(5000);
+            assertNull(ids.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private static boolean wrap(TypedMessage message, byte[] frame) throws ProtocolException {
+        return message.wrap(frame, FrameProtocol.HEADER_SIZE, frame.length - FrameProtocol.HEADER_SIZE);
+    }
+
+    private static boolean wrapQuietly(TypedMessage message, byte[] payload) {
+        try {
+            return message.wrap(payload, 0, payload.length);
+        } catch (ProtocolException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int payloadSize(byte[] frame) {
+        return frame.length - FrameProtocol.HEADER_SIZE;
+    }
+
+    private static byte[] payload(int type, byte[]... fields) {
+        byte[] payload = new byte[1 + TypedMessage.varintSize(type)
+                + Arrays.stream(fields).mapToInt(field -> field.length).sum()];
+        payload[0] = TypedMessage.SCHEMA_VERSION;
+        int position = TypedMessage.writeVarint(payload, 1, type);
+        for (byte[] field : fields) {
+            System.arraycopy(field, 0, payload, position, field.length);
+            position += field.length;
+        }
+        return payload;
+    }
+
+    private static byte[] varintField(int number, long value) {
+        byte[] field = new byte[20];
+        int length = TypedMessage.writeVarint(field, 0, number << 1 | TypedMessage.KIND_VARINT);
+        length = TypedMessage.writeVarint(field, length, value);
+        return Arrays.copyOf(field, length);
+    }
+
+    private static byte[] bytesField(int number, byte[] value) {
+        byte[] field = new byte[20 + value.length];
+        int length = TypedMessage.writeVarint(field, 0, number << 1 | TypedMessage.KIND_BYTES);
+        length = TypedMessage.writeVarint(field, length, value.length);
+        System.arraycopy(value, 0, field, length, value.length);
+        return Arrays.copyOf(field, length + value.length);
+    }
+}
@@ -0,0 +1,142 @@
+package ro.pub.cs.systems.eim.bluetoothchatapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UiEventBusTest {
+    @Test
+    public void deliversEveryEventOnceInPublishOrderPerProducer() throws Exception {
+        int producers = 4;
+        int perProducer = 20_000;
+        int[] next = new int[producers];
+        int[] batches = new int[1];
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        UiEventBus bus = new UiEventBus(64, UiEventBus.Overflow.BLOCK, uiThread::execute, events -> {
+            batches[0]++;
+            for (UiEvent event : events) {
+                assertEquals(next[event.arg1]++, event.arg2);
+            }
+        });
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    bus.publish(new UiEvent(Constants.MESSAGE_WRITE, producer, i, null, null));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        uiThread.submit(bus::drain).get();
+        uiThread.shutdown();
+        assertTrue(uiThread.awaitTermination(5, TimeUnit.SECONDS));
+
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next[p]);
+        }
+        assertEquals(producers * perProducer, bus.getPublished());
+        assertEquals(0, bus.getDropped());
+        assertTrue(batches[0] < producers * perProducer);
+    }
+
+    @Test
+    public void collapsesStateProgressAndQualityToLatestValue() {
+        ManualFrames frames = new ManualFrames();
+        List<UiEvent> delivered = new ArrayList<>();
+        UiEventBus bus = new UiEventBus(64, UiEventBus.Overflow.DROP_NEWEST, frames, delivered::addAll);
+        Object transfer = new Object();
+
+        bus.onStateChanged(ChatUtils.STATE_CONNECTING);
+        bus.publish(new UiEvent(Constants.MESSAGE_FILE_PROGRESS, 10, -1, transfer, null));
+        bus.publish(new UiEvent(Constants.MESSAGE_WRITE, -1, 1, "first".getBytes(), null));
+        bus.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 1, -1, "slow", null));
+        bus.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 2, -1, "other", null));
+        bus.onStateChanged(ChatUtils.STATE_CONNECTED);
+        bus.publish(new UiEvent(Constants.MESSAGE_FILE_PROGRESS, 20, -1, transfer, null));
+        bus.publish(new UiEvent(Constants.MESSAGE_LINK_QUALITY, 1, -1, "fast", null));
+        bus.onToast("hello");
+
+        assertEquals(1, frames.requested);
+        frames.run();
+
+        assertEquals(6, delivered.size());
+        assertEquals(Constants.MESSAGE_WRITE, delivered.get(0).what);
+        assertEquals("other", delivered.get(1).obj);
+        assertEquals(ChatUtils.STATE_CONNECTED, delivered.get(2).arg1);
+        assertEquals(20, delivered.get(3).arg1);
+        assertEquals("fast", delivered.get(4).obj);
+        assertEquals("hello", delivered.get(5).text);
+        assertEquals(3, bus.getCoalesced());
+        assertEquals(1, bus.getBatchSizes().getCount());
+    }
+
+    @Test
+    public void dropNewestCountsAndReleasesOverflow() {
+        ManualFrames frames = new ManualFrames();
+        List<UiEvent> delivered = new ArrayList<>();
+        UiEventBus bus = new UiEventBus(4, UiEventBus.Overflow.DROP_NEWEST, frames, delivered::addAll);
+        BufferPool pool = new BufferPool(8, 16);
+
+        for (int i = 0; i < 6; i++) {
+            bus.publish(new UiEvent(Constants.MESSAGE_READ, 0, i, pool.acquire(16), null));
+        }
+
+        assertEquals(4, bus.getPublished());
+        assertEquals(2, bus.getDropped());
+        assertEquals(4, pool.getAvailable());
+        frames.run();
+        assertEquals(4, delivered.size());
+        assertEquals(3, delivered.get(3).arg2);
+
+        bus.publish(new UiEvent(Constants.MESSAGE_READ, 0, 6, pool.acquire(16), null));
+        assertEquals(2, frames.requested);
+    }
+
+    @Test
+    public void splitsLargeBacklogAcrossFrames() {
+        ManualFrames frames = new ManualFrames();
+        List<Integer> sizes = new ArrayList<>();
+        UiEventBus bus = new UiEventBus(4096, UiEventBus.Overflow.DROP_NEWEST, frames,
+                events -> sizes.add(events.size()));
+
+        for (int i = 0; i < UiEventBus.MAX_BATCH + 10; i++) {
+            bus.publish(new UiEvent(Constants.MESSAGE_WRITE, -1, i, null, null));
+        }
+        frames.run();
+        frames.run();
+
+        assertEquals(List.of(UiEventBus.MAX_BATCH, 10), sizes);
+        assertEquals(2, frames.requested);
+        assertEquals(UiEventBus.MAX_BATCH + 10, bus.getLag().getCount());
+        assertEquals(2, bus.getBatchSizes().getCount());
+    }
+
+    private static class ManualFrames implements UiEventBus.FrameScheduler {
+        int requested;
+        private Runnable pending;
+
+        @Override
+        public void requestFrame(Runnable drain) {
+            requested++;
+            pending = drain;
+        }
+
+        void run() {
+            Runnable drain = pending;
+            pending = null;
+            drain.run();
+        }
+    }
+}